@@ -0,0 +1,63 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AccessLogBenchmark measures what logging one request costs the thread serving it, with 4 threads logging at once
+ *   asyncRing: AccessLog.request (claim a ring slot, the writer thread formats and writes it)
+ *   syncPrint: format and println on a shared PrintStream, the way requests were logged before AccessLog
+ * AccessLogBenchmark writes both to files in the working directory, so the console is not part of the cost
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class AccessLogBenchmark {
+
+    // constants for files
+    private static final String ACCESS_LOG_FILE = "bench-access.log";
+    private static final String PRINT_LOG_FILE = "bench-print.log";
+
+    // benchmark state
+    private PrintStream printLog;
+    private InetAddress clientAddress;
+
+    @Setup
+    public void setup() throws IOException {
+        // flags must be set before AccessLog reads them (each benchmark runs in its own fork)
+        ServerOptions.parse(Collections.singletonList(ServerOptions.FLAG_ACCESS_LOG + ACCESS_LOG_FILE));
+        AccessLog.start();
+        printLog = new PrintStream(new FileOutputStream(PRINT_LOG_FILE), true);
+        clientAddress = InetAddress.getLoopbackAddress();
+    }
+
+    @TearDown
+    public void tearDown() {
+        printLog.close();
+    }
+
+    @Benchmark
+    public long asyncRing() {
+        AccessLog.request("GET", BenchSite.SMALL_FILE, 200, BenchSite.SMALL_FILE_BYTES, System.nanoTime(), false,
+                clientAddress);
+        return AccessLog.getDropped();
+    }
+
+    @Benchmark
+    public String syncPrint() {
+        String sLine = clientAddress.getHostAddress() + " [" + System.currentTimeMillis() + "] \"GET "
+                + BenchSite.SMALL_FILE + "\" 200 " + BenchSite.SMALL_FILE_BYTES;
+        printLog.println(sLine);
+        return sLine;
+    }
+
+}
@@ -0,0 +1,72 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * BenchSite writes the fixed ./www fixture the benchmarks and LoadDriver serve (run from bench/build/site)
+ * BenchSite files are generated from a fixed seed -> every run serves the same bytes
+ *   small.html (~2 KB, compressible), page.txt (~64 KB, compressible), large.pdf (8 MB, random) and a redirect.defs
+ * BenchSite lists the three files in ./warmup.list, the hot files WarmUp preloads when --warmUpAtStart=true
+ * BenchSite leaves files that are already the right size alone, so repeated runs don't touch mtimes (and ETags)
+ */
+
+public final class BenchSite {
+
+    // constants for the fixture
+    static final String SMALL_FILE = "/small.html";
+    static final String TEXT_FILE = "/page.txt";
+    static final String LARGE_FILE = "/large.pdf";
+    static final String REDIRECT_FROM = "/old.html";
+    static final int SMALL_FILE_BYTES = 2 * 1024;
+    static final int TEXT_FILE_BYTES = 64 * 1024;
+    static final int LARGE_FILE_BYTES = 8 * 1024 * 1024;
+    private static final long SEED = 54001;
+    private static final String[] WORDS = {"ramon", "killer", "server", "request", "response", "header", "socket",
+            "channel", "buffer", "keep-alive", "chunk", "latency", "throughput", "<b>", "</b>", "\n"};
+
+    // no instances - fixture is written once per run
+    private BenchSite() {
+    }
+
+    // write the fixture under ./www (idempotent)
+    public static void create() throws IOException {
+        File root = ClientThread.ROOT_FOLDER;
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("Can't create " + root.getAbsolutePath());
+        }
+        Random random = new Random(SEED);
+        writeIfChanged(new File(root, SMALL_FILE), getText(random, SMALL_FILE_BYTES, "<html><body>", "</body></html>"));
+        writeIfChanged(new File(root, TEXT_FILE), getText(random, TEXT_FILE_BYTES, "", ""));
+        byte[] large = new byte[LARGE_FILE_BYTES];
+        random.nextBytes(large);
+        writeIfChanged(new File(root, LARGE_FILE), large);
+        writeIfChanged(new File(ClientThread.REDIRECT_FILE_NAME), (REDIRECT_FROM + " " + SMALL_FILE + "\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        writeIfChanged(new File(WarmUp.DEFAULT_HOT_FILES), (SMALL_FILE + "\n" + TEXT_FILE + "\n" + LARGE_FILE + "\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        SiteIndex.reload();
+    }
+
+    // get words from the fixed list up to the size, wrapped in the prefix and suffix
+    private static byte[] getText(Random random, int iSize, String sPrefix, String sSuffix) {
+        StringBuilder sText = new StringBuilder(iSize).append(sPrefix);
+        while (sText.length() < iSize - sSuffix.length()) {
+            sText.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        sText.setLength(iSize - sSuffix.length());
+        return sText.append(sSuffix).toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // write the bytes unless the file already has that size
+    private static void writeIfChanged(File file, byte[] content) throws IOException {
+        if (file.isFile() && file.length() == content.length) {
+            return;
+        }
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ClientLimitsBenchmark measures what the per-client limits cost each request, with 4 threads at once
+ *   sharedClient: every thread takes requests from one client's buckets (its connections contend on the CAS)
+ *   ownClient: each thread takes requests from a client of its own (the uncontended case)
+ *   openClose: each thread counts a connection of its client open and closed again (the map lookup per connection)
+ * ClientLimitsBenchmark sets limits high enough that every request is allowed, so the full check is measured
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class ClientLimitsBenchmark {
+
+    // constants for limits (a billion requests and a terabyte a second, with a second of burst -> never over)
+    private static final String REQUEST_RATE = "1000000000";
+    private static final String BANDWIDTH = "1000000000000";
+
+    // benchmark state
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private ClientLimits.Client sharedClient;
+
+    @Setup
+    public void setup() throws UnknownHostException {
+        // flags must be set before ClientLimits reads them (each benchmark runs in its own fork)
+        ServerOptions.parse(Arrays.asList(ServerOptions.FLAG_MAX_CLIENT_CONNECTIONS + "1000",
+                ServerOptions.FLAG_CLIENT_REQUEST_RATE + REQUEST_RATE, ServerOptions.FLAG_CLIENT_BANDWIDTH + BANDWIDTH));
+        sharedClient = ClientLimits.open(InetAddress.getByName("10.0.0.1"));
+    }
+
+    @TearDown
+    public void tearDown() {
+        sharedClient.close();
+    }
+
+    // one client per benchmark thread
+    @State(Scope.Thread)
+    public static class ThreadClient {
+        InetAddress clientAddress;
+        ClientLimits.Client client;
+
+        @Setup
+        public void setup() throws UnknownHostException {
+            clientAddress = InetAddress.getByName("10.0.1." + threadCount.incrementAndGet());
+            client = ClientLimits.open(clientAddress);
+        }
+
+        @TearDown
+        public void tearDown() {
+            client.close();
+        }
+    }
+
+    @Benchmark
+    public long sharedClient() {
+        long lWaitNanos = sharedClient.tryRequest();
+        sharedClient.sent(BenchSite.SMALL_FILE_BYTES);
+        return lWaitNanos;
+    }
+
+    @Benchmark
+    public long ownClient(ThreadClient threadClient) {
+        long lWaitNanos = threadClient.client.tryRequest();
+        threadClient.client.sent(BenchSite.SMALL_FILE_BYTES);
+        return lWaitNanos;
+    }
+
+    @Benchmark
+    public ClientLimits.Client openClose(ThreadClient threadClient) {
+        ClientLimits.Client client = ClientLimits.open(threadClient.clientAddress);
+        client.close();
+        return client;
+    }
+
+}
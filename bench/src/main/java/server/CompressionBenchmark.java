@@ -0,0 +1,65 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * CompressionBenchmark measures the CPU a gzip body costs per request for the 64 KB text fixture
+ *   cachedVariant: CompressionCache hit (what the server does after the first request)
+ *   gzipPerRequest: compress the file again for every request at the given level
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({"1", "6", "9"})
+    public int iLevel;
+
+    // benchmark state
+    private SiteIndex siteIndex;
+    private byte[] content;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchSite.create();
+        siteIndex = SiteIndex.get();
+        content = Files.readAllBytes(new File(ClientThread.ROOT_FOLDER, BenchSite.TEXT_FILE).toPath());
+    }
+
+    @Benchmark
+    public Object cachedVariant() {
+        return CompressionCache.get(BenchSite.TEXT_FILE, ClientThread.getFilePath(BenchSite.TEXT_FILE),
+                CompressionCache.ENCODING_GZIP, siteIndex);
+    }
+
+    @Benchmark
+    public int gzipPerRequest() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 2);
+        GZIPOutputStream out = new GZIPOutputStream(compressed) {
+            {
+                def.setLevel(iLevel);
+            }
+        };
+        out.write(content);
+        out.close();
+        return compressed.size();
+    }
+
+    // reference point: no compression at all, just the copy a body write makes
+    @Benchmark
+    public int identity() {
+        return content.clone().length;
+    }
+
+}
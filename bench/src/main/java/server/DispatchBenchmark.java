@@ -0,0 +1,55 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DispatchBenchmark measures what ClientThread and NioConnection work out per request before sending anything:
+ *   status code (site index, redirect rules, content type checks), Content-Type and the serialized header
+ * DispatchBenchmark runs each kind of request: a file, a redirect and a missing file
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    @Param({"/small.html", "/old.html", "/missing.html"})
+    public String sHTTPRequest;
+
+    // benchmark state
+    private SiteIndex siteIndex;
+    private int iStatusCode;
+    private String sResponse;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchSite.create();
+        siteIndex = SiteIndex.get();
+        iStatusCode = ClientThread.getStatusCode(siteIndex, "GET", sHTTPRequest);
+        sResponse = ClientThread.getResponse(siteIndex, "GET", sHTTPRequest, iStatusCode);
+    }
+
+    @Benchmark
+    public int statusCode() {
+        return ClientThread.getStatusCode(siteIndex, "GET", sHTTPRequest);
+    }
+
+    @Benchmark
+    public String contentType() {
+        return ClientThread.getContentType(sHTTPRequest);
+    }
+
+    // whole header block for a kept alive plain connection (validators come from FileMetadataCache)
+    @Benchmark
+    public String header() {
+        return ClientThread.getHeader(sHTTPRequest, iStatusCode, sResponse, BenchSite.SMALL_FILE_BYTES, null,
+                true, false);
+    }
+
+}
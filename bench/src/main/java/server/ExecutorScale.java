@@ -0,0 +1,583 @@
+package server;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * ExecutorScale starts WebServer as a child process once per --executor mode and holds --connections keep-alive
+ *   connections (default 10000) open against it, so the server's memory is measured apart from the driver's
+ * ExecutorScale reports per mode: connections served, turned away (503 or closed) and still waiting for a worker,
+ *   requests per second over all of them, and the server's resident set (VmRSS) and thread count read from
+ *   /proc/<pid>/status when idle, once all connections are open and at the peak of the run
+ * ExecutorScale drives every connection from one selector thread (non-blocking sockets, one request in flight on
+ *   each), so the driver needs no thread per connection
+ * ExecutorScale options (--name=value): --connections, --duration seconds per mode, --modes (comma separated,
+ *   default thread,pool,virtual), --heap (the child's -Xms/-Xmx, default 512m) and --out; any other flag is passed
+ *   to WebServer. The child gets --maxConnections at twice the target and no keep-alive request cap, so neither
+ *   limit is what gets measured
+ * ExecutorScale needs Linux for /proc (RSS is reported as -1 elsewhere) and an open file limit above --connections
+ *   in both processes; a mode the JVM can't run (virtual before Java 21) is reported as unavailable
+ */
+
+public final class ExecutorScale {
+
+    // constants for driver options
+    private static final String OPTION_CONNECTIONS = "--connections=";
+    private static final String OPTION_DURATION = "--duration=";
+    private static final String OPTION_MODES = "--modes=";
+    private static final String OPTION_HEAP = "--heap=";
+    private static final String OPTION_OUT = "--out=";
+
+    // constants for defaults
+    private static final int DEFAULT_CONNECTIONS = 10000;
+    private static final int DEFAULT_DURATION_SECONDS = 20;
+    private static final String DEFAULT_MODES = ConnectionExecutor.MODE_THREAD + "," + ConnectionExecutor.MODE_POOL
+            + "," + ConnectionExecutor.MODE_VIRTUAL;
+    private static final String DEFAULT_HEAP = "512m";
+    private static final String DEFAULT_OUT = "executor-scale.json";
+    private static final long START_TIMEOUT_MILLIS = 30000;
+    private static final long CONNECT_TIMEOUT_MILLIS = 120000;
+    private static final long STOP_TIMEOUT_MILLIS = 30000;
+    private static final long SAMPLE_MILLIS = 500;
+    private static final int MAX_PENDING_CONNECTS = 256;
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final double KB_PER_MB = 1024.0;
+    private static final Pattern PORT_LINE = Pattern.compile("\\(unsecure\\) Server waiting for client on port (\\d+)");
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+    private static final String CONTENT_LENGTH = "content-length:";
+
+    // no instances - driver runs from main
+    private ExecutorScale() {
+    }
+
+    // main method to run every mode in turn
+    public static void main(String[] args) throws Exception {
+        // split driver options from server flags
+        Map<String, String> sOptions = new HashMap<>();
+        List<String> sServerArgs = new ArrayList<>();
+        for (String sArg : args) {
+            String sOption = getOption(sArg);
+            if (sOption != null) {
+                sOptions.put(sOption, sArg.substring(sOption.length()));
+            } else {
+                sServerArgs.add(sArg);
+            }
+        }
+        int iConnections = getInt(sOptions, OPTION_CONNECTIONS, DEFAULT_CONNECTIONS);
+        int iDurationSeconds = getInt(sOptions, OPTION_DURATION, DEFAULT_DURATION_SECONDS);
+        String sHeap = sOptions.containsKey(OPTION_HEAP) ? sOptions.get(OPTION_HEAP) : DEFAULT_HEAP;
+        String sModes = sOptions.containsKey(OPTION_MODES) ? sOptions.get(OPTION_MODES) : DEFAULT_MODES;
+        String sOut = sOptions.containsKey(OPTION_OUT) ? sOptions.get(OPTION_OUT) : DEFAULT_OUT;
+
+        // write the fixture the child serves (it runs in this working directory)
+        BenchSite.create();
+
+        List<Result> results = new ArrayList<>();
+        System.out.println(String.format("%-8s %10s %8s %8s %8s %10s %10s %10s %10s %8s", "mode", "connected",
+                "served", "refused", "waiting", "req/s", "idle MB", "open MB", "peak MB", "threads"));
+        for (String sMode : sModes.split(",")) {
+            Result result = run(sMode.trim(), iConnections, iDurationSeconds, sHeap, sServerArgs);
+            results.add(result);
+            System.out.println(result.getRow());
+        }
+
+        writeJson(sOut, iConnections, iDurationSeconds, sHeap, sServerArgs, results);
+        System.out.println();
+        System.out.println("Results written to " + new File(sOut).getAbsolutePath());
+    }
+
+    // start the server in the mode, open the connections, drive them for the duration, then stop the server
+    private static Result run(String sMode, int iConnections, int iDurationSeconds, String sHeap,
+                              List<String> sServerArgs) throws IOException, InterruptedException {
+        Result result = new Result(sMode);
+        List<String> sCommand = new ArrayList<>(Arrays.asList(
+                System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                "-Xms" + sHeap, "-Xmx" + sHeap, "-cp", System.getProperty("java.class.path"), WebServer.class.getName(),
+                "--serverPort=0", "--sslPort=0", "--logLevel=error", ServerOptions.FLAG_EXECUTOR + sMode,
+                ServerOptions.FLAG_MAX_CONNECTIONS + (2 * iConnections),
+                ServerOptions.FLAG_MAX_KEEP_ALIVE_REQUESTS + 0));
+        sCommand.addAll(sServerArgs);
+        Process server = new ProcessBuilder(sCommand).redirectErrorStream(true).start();
+        try {
+            ServerOutput output = new ServerOutput(server.getInputStream());
+            output.start();
+            int iPort = output.awaitPort(START_TIMEOUT_MILLIS);
+            if (iPort < 0) {
+                result.sUnavailable = output.getLastLine();
+                return result;
+            }
+            long lPid = getPid(server);
+            result.lIdleRssKB = readStatus(lPid, "VmRSS:");
+
+            // open every connection with its first request in flight, then drive them all for the duration
+            Driver driver = new Driver(new InetSocketAddress("127.0.0.1", iPort), iConnections);
+            driver.connectAll(CONNECT_TIMEOUT_MILLIS);
+            result.lOpenRssKB = readStatus(lPid, "VmRSS:");
+            driver.resetCounts();
+            long lStartNanos = System.nanoTime();
+            long lEndNanos = lStartNanos + TimeUnit.SECONDS.toNanos(iDurationSeconds);
+            long lNextSampleNanos = lStartNanos;
+            while (System.nanoTime() < lEndNanos) {
+                driver.poll(SAMPLE_MILLIS);
+                if (System.nanoTime() >= lNextSampleNanos) {
+                    result.lPeakRssKB = Math.max(result.lPeakRssKB, readStatus(lPid, "VmRSS:"));
+                    result.lPeakThreads = Math.max(result.lPeakThreads, readStatus(lPid, "Threads:"));
+                    lNextSampleNanos += TimeUnit.MILLISECONDS.toNanos(SAMPLE_MILLIS);
+                }
+            }
+            double dSeconds = (System.nanoTime() - lStartNanos) / 1e9;
+            result.iConnected = driver.iConnected;
+            result.iServed = driver.getServedCount();
+            result.iRefused = driver.iRefused;
+            result.iWaiting = driver.getWaitingCount();
+            result.dRequestsPerSecond = driver.lResponses / dSeconds;
+            driver.close();
+            return result;
+        } finally {
+            // SIGTERM -> the server drains and exits
+            server.destroy();
+            if (!server.waitFor(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                server.destroyForcibly();
+            }
+        }
+    }
+
+
+    //*******************
+    //  PROCESS HELPERS
+    //*******************
+
+    // get the child's process id (Process.pid is Java 9 -> looked up at runtime so the bench still builds on Java 8)
+    private static long getPid(Process process) {
+        try {
+            Method pid = Process.class.getMethod("pid");
+            return (Long) pid.invoke(process);
+        } catch (ReflectiveOperationException e) {
+            return -1;
+        }
+    }
+
+    // read a number field (kB for VmRSS) from /proc/<pid>/status -> -1 if it can't be read
+    private static long readStatus(long lPid, String sField) {
+        File statusFile = new File("/proc/" + lPid + "/status");
+        if (lPid < 0 || !statusFile.isFile()) {
+            return -1;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(statusFile))) {
+            String sLine;
+            while ((sLine = reader.readLine()) != null) {
+                if (sLine.startsWith(sField)) {
+                    return Long.parseLong(sLine.substring(sField.length()).trim().split("\\s+")[0]);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+        return -1;
+    }
+
+    // reads the child's console in the background: finds the plain listener's port and keeps the last line
+    private static final class ServerOutput extends Thread {
+
+        private final BufferedReader reader;
+        private volatile String sLastLine = "server exited";
+        private int iPort = -1;
+
+        // output constructor
+        ServerOutput(InputStream in) {
+            super("server-output");
+            this.reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            setDaemon(true);
+        }
+
+        // read to the end of the child's output
+        public void run() {
+            try {
+                String sLine;
+                while ((sLine = reader.readLine()) != null) {
+                    sLastLine = sLine;
+                    Matcher matcher = PORT_LINE.matcher(sLine);
+                    if (matcher.find()) {
+                        portFound(Integer.parseInt(matcher.group(1)));
+                    }
+                }
+            } catch (IOException e) {
+                // child is gone
+            }
+            portFound(-1);
+        }
+
+        // record the port (or -1 at the end of the output) and wake the waiting driver
+        private synchronized void portFound(int iFoundPort) {
+            if (iPort < 0) {
+                iPort = iFoundPort;
+            }
+            notifyAll();
+        }
+
+        // wait for the plain listener -> -1 if the child exited or didn't bind in time
+        synchronized int awaitPort(long lTimeoutMillis) throws InterruptedException {
+            long lEndMillis = System.currentTimeMillis() + lTimeoutMillis;
+            while (iPort < 0 && isAlive() && System.currentTimeMillis() < lEndMillis) {
+                wait(Math.max(1, lEndMillis - System.currentTimeMillis()));
+            }
+            return iPort;
+        }
+
+        // get the last line the child printed (why it exited)
+        String getLastLine() {
+            return sLastLine;
+        }
+    }
+
+
+    //*****************
+    //  CONNECTIONS
+    //*****************
+
+    // drives the connections on one selector: each sends a keep-alive GET and sends the next when its response is in
+    private static final class Driver {
+
+        private final Selector selector;
+        private final InetSocketAddress address;
+        private final int iTarget;
+        private final ByteBuffer request;
+        private int iStarted;
+        private int iPending;
+        private int iConnected;
+        private int iRefused;
+        private long lResponses;
+        private final List<Connection> connections = new ArrayList<>();
+
+        // driver constructor
+        Driver(InetSocketAddress address, int iTarget) throws IOException {
+            this.selector = Selector.open();
+            this.address = address;
+            this.iTarget = iTarget;
+            this.request = ByteBuffer.wrap(("GET " + BenchSite.SMALL_FILE + " HTTP/1.1\r\nHost: localhost\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+        }
+
+        // open all connections (at most MAX_PENDING_CONNECTS at once) with their first request sent
+        void connectAll(long lTimeoutMillis) throws IOException {
+            long lEndMillis = System.currentTimeMillis() + lTimeoutMillis;
+            while (iStarted < iTarget || iPending > 0) {
+                while (iStarted < iTarget && iPending < MAX_PENDING_CONNECTS) {
+                    SocketChannel channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    Connection connection = new Connection(channel, request.duplicate());
+                    connections.add(connection);
+                    iStarted++;
+                    iPending++;
+                    if (channel.connect(address)) {
+                        connected(connection, channel.register(selector, 0, connection));
+                    } else {
+                        channel.register(selector, SelectionKey.OP_CONNECT, connection);
+                    }
+                }
+                poll(100);
+                if (System.currentTimeMillis() > lEndMillis) {
+                    System.out.println("Gave up connecting after " + lTimeoutMillis + " ms with " + iConnected
+                            + " of " + iTarget + " open");
+                    return;
+                }
+            }
+        }
+
+        // handle the connections that are ready
+        void poll(long lTimeoutMillis) throws IOException {
+            selector.select(lTimeoutMillis);
+            for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                SelectionKey key = it.next();
+                it.remove();
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isConnectable()) {
+                        ((SocketChannel) key.channel()).finishConnect();
+                        connected(connection, key);
+                    } else if (key.isWritable()) {
+                        send(connection, key);
+                    } else if (key.isReadable()) {
+                        receive(connection, key);
+                    }
+                } catch (IOException e) {
+                    if (!connection.bIsConnected) {
+                        iPending--;  // refused at connect
+                    }
+                    closed(connection, key);
+                }
+            }
+        }
+
+        // the connection is open -> send its first request
+        private void connected(Connection connection, SelectionKey key) throws IOException {
+            connection.bIsConnected = true;
+            iPending--;
+            iConnected++;
+            send(connection, key);
+        }
+
+        // write the request -> wait for the response once it is all out
+        private void send(Connection connection, SelectionKey key) throws IOException {
+            connection.channel.write(connection.request);
+            if (connection.request.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            connection.request.rewind();
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        // read the response: the head up to the blank line, then Content-Length bytes of body
+        private void receive(Connection connection, SelectionKey key) throws IOException {
+            ByteBuffer buffer = connection.buffer;
+            int iRead = connection.channel.read(buffer);
+            if (iRead < 0) {
+                closed(connection, key);
+                return;
+            }
+            if (connection.lBodyLeft < 0) {
+                int iHeadEnd = indexOf(buffer, HEADER_END);
+                if (iHeadEnd < 0) {
+                    if (!buffer.hasRemaining()) {
+                        throw new IOException("response head over " + READ_BUFFER_SIZE + " bytes");
+                    }
+                    return;  // head not complete yet
+                }
+                String sHead = new String(buffer.array(), 0, iHeadEnd, StandardCharsets.ISO_8859_1);
+                if (!sHead.startsWith("HTTP/1.1 200")) {
+                    closed(connection, key);  // 503 from a full pool -> the server closes the connection
+                    return;
+                }
+                connection.lBodyLeft = getContentLength(sHead) - (buffer.position() - iHeadEnd - HEADER_END.length);
+            } else {
+                connection.lBodyLeft -= iRead;
+            }
+            buffer.clear();
+            if (connection.lBodyLeft <= 0) {
+                connection.lBodyLeft = -1;
+                connection.iResponses++;
+                lResponses++;
+                send(connection, key);
+            }
+        }
+
+        // the connection ended -> it is no longer driven (turned away if it never got a response)
+        private void closed(Connection connection, SelectionKey key) {
+            iRefused += (connection.iResponses == 0) ? 1 : 0;
+            connection.bIsClosed = true;
+            key.cancel();
+            try {
+                connection.channel.close();
+            } catch (IOException e) {
+                // already unusable
+            }
+        }
+
+        // count from here on (the responses while connecting aren't part of the run)
+        void resetCounts() {
+            lResponses = 0;
+        }
+
+        // get the number of open connections that got at least one response
+        int getServedCount() {
+            int iServed = 0;
+            for (Connection connection : connections) {
+                iServed += (!connection.bIsClosed && connection.iResponses > 0) ? 1 : 0;
+            }
+            return iServed;
+        }
+
+        // get the number of open connections still waiting for their first response (queued for a worker)
+        int getWaitingCount() {
+            int iWaiting = 0;
+            for (Connection connection : connections) {
+                iWaiting += (connection.bIsConnected && !connection.bIsClosed && connection.iResponses == 0) ? 1 : 0;
+            }
+            return iWaiting;
+        }
+
+        // close every connection and the selector
+        void close() throws IOException {
+            for (Connection connection : connections) {
+                connection.channel.close();
+            }
+            selector.close();
+        }
+    }
+
+    // one keep-alive connection: its request, its read buffer and how much body is still to come (-1 -> a head)
+    private static final class Connection {
+
+        private final SocketChannel channel;
+        private final ByteBuffer request;
+        private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private long lBodyLeft = -1;
+        private int iResponses;
+        private boolean bIsConnected;
+        private boolean bIsClosed;
+
+        // connection constructor
+        Connection(SocketChannel channel, ByteBuffer request) {
+            this.channel = channel;
+            this.request = request;
+        }
+    }
+
+    // get the start of the bytes in what was read into the buffer -> -1 if they aren't there
+    private static int indexOf(ByteBuffer buffer, byte[] target) {
+        byte[] bytes = buffer.array();
+        for (int i = 0; i + target.length <= buffer.position(); i++) {
+            int j = 0;
+            while (j < target.length && bytes[i + j] == target[j]) {
+                j++;
+            }
+            if (j == target.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // get the Content-Length of a response head -> 0 if it has none
+    private static long getContentLength(String sHead) {
+        for (String sLine : sHead.split("\r\n")) {
+            if (sLine.regionMatches(true, 0, CONTENT_LENGTH, 0, CONTENT_LENGTH.length())) {
+                return Long.parseLong(sLine.substring(CONTENT_LENGTH.length()).trim());
+            }
+        }
+        return 0;
+    }
+
+
+    //*******************
+    //  RESULT HELPERS
+    //*******************
+
+    // what one mode did
+    private static final class Result {
+
+        private final String sMode;
+        private String sUnavailable;
+        private int iConnected;
+        private int iServed;
+        private int iRefused;
+        private int iWaiting;
+        private double dRequestsPerSecond;
+        private long lIdleRssKB = -1;
+        private long lOpenRssKB = -1;
+        private long lPeakRssKB = -1;
+        private long lPeakThreads = -1;
+
+        // result constructor
+        Result(String sMode) {
+            this.sMode = sMode;
+        }
+
+        // get the console row
+        String getRow() {
+            if (sUnavailable != null) {
+                return String.format("%-8s unavailable: %s", sMode, sUnavailable);
+            }
+            return String.format("%-8s %10d %8d %8d %8d %10.1f %10.1f %10.1f %10.1f %8d", sMode, iConnected, iServed,
+                    iRefused, iWaiting, dRequestsPerSecond, lIdleRssKB / KB_PER_MB, lOpenRssKB / KB_PER_MB,
+                    lPeakRssKB / KB_PER_MB, lPeakThreads);
+        }
+
+        // get the JSON object
+        String getJson() {
+            if (sUnavailable != null) {
+                return "{\"mode\": " + quote(sMode) + ", \"unavailable\": " + quote(sUnavailable) + "}";
+            }
+            return "{\"mode\": " + quote(sMode) + ", \"connected\": " + iConnected + ", \"served\": " + iServed
+                    + ", \"refused\": " + iRefused + ", \"waiting\": " + iWaiting
+                    + ", \"requestsPerSecond\": " + String.format("%.1f", dRequestsPerSecond)
+                    + ", \"idleRssKB\": " + lIdleRssKB + ", \"openRssKB\": " + lOpenRssKB
+                    + ", \"peakRssKB\": " + lPeakRssKB + ", \"peakThreads\": " + lPeakThreads + "}";
+        }
+    }
+
+    // write settings, environment and every mode's result as JSON
+    private static void writeJson(String sOut, int iConnections, int iDurationSeconds, String sHeap,
+                                  List<String> sServerArgs, List<Result> results) throws IOException {
+        StringBuilder sJson = new StringBuilder(2048);
+        sJson.append("{\n");
+        sJson.append("  \"timestamp\": ").append(quote(new Date().toString())).append(",\n");
+        sJson.append("  \"environment\": {");
+        sJson.append("\"java\": ").append(quote(System.getProperty("java.version")));
+        sJson.append(", \"os\": ").append(quote(System.getProperty("os.name") + " " + System.getProperty("os.arch")));
+        sJson.append(", \"cpus\": ").append(Runtime.getRuntime().availableProcessors()).append("},\n");
+        sJson.append("  \"settings\": {");
+        sJson.append("\"connections\": ").append(iConnections);
+        sJson.append(", \"durationSeconds\": ").append(iDurationSeconds);
+        sJson.append(", \"heap\": ").append(quote(sHeap));
+        sJson.append(", \"serverArgs\": [");
+        for (int i = 0; i < sServerArgs.size(); i++) {
+            sJson.append(i == 0 ? "" : ", ").append(quote(sServerArgs.get(i)));
+        }
+        sJson.append("]},\n");
+        sJson.append("  \"modes\": [\n");
+        for (int i = 0; i < results.size(); i++) {
+            sJson.append("    ").append(results.get(i).getJson()).append(i < results.size() - 1 ? ",\n" : "\n");
+        }
+        sJson.append("  ]\n");
+        sJson.append("}\n");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(sOut), StandardCharsets.UTF_8)) {
+            writer.write(sJson.toString());
+        }
+    }
+
+    // quote a JSON string
+    private static String quote(String sValue) {
+        StringBuilder sQuoted = new StringBuilder(sValue.length() + 2).append('"');
+        for (int i = 0; i < sValue.length(); i++) {
+            char c = sValue.charAt(i);
+            if (c == '"' || c == '\\') {
+                sQuoted.append('\\').append(c);
+            } else if (c < ' ') {
+                sQuoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                sQuoted.append(c);
+            }
+        }
+        return sQuoted.append('"').toString();
+    }
+
+
+    //******************
+    //  OPTION HELPERS
+    //******************
+
+    // get the driver option the argument starts with -> null if it is a server flag
+    private static String getOption(String sArg) {
+        for (String sOption : new String[]{OPTION_CONNECTIONS, OPTION_DURATION, OPTION_MODES, OPTION_HEAP,
+                OPTION_OUT}) {
+            if (sArg.regionMatches(true, 0, sOption, 0, sOption.length())) {
+                return sOption;
+            }
+        }
+        return null;
+    }
+
+    // get an option as an int
+    private static int getInt(Map<String, String> sOptions, String sOption, int iDefault) {
+        String sValue = sOptions.get(sOption);
+        try {
+            return (sValue == null) ? iDefault : Integer.parseInt(sValue);
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring non-numeric value for " + sOption + sValue);
+            return iDefault;
+        }
+    }
+
+}
@@ -0,0 +1,596 @@
+package server;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import javax.net.ssl.*;
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LoadDriver starts WebServer in this JVM on ephemeral ports and drives a fixed matrix of load scenarios against it:
+ *   HTTP and HTTPS, keep-alive and close, small (2 KB) and large (8 MB) files, plus HTTPS close with full handshakes
+ * LoadDriver reports per scenario: requests per second, MB per second, p50/p99/p999 latency and the allocation
+ *   rate of the whole process (server and driver, from heap growth plus what each GC freed)
+ * LoadDriver writes the results as JSON (--out) so runs can be compared, and a table to the console
+ * LoadDriver reports the time from starting the server to both listeners open (readyMillis), so runs with and
+ *   without --warmUpAtStart=true can be compared on time-to-ready as well as on first scenario latency (--warmup=0)
+ * LoadDriver options (--name=value): --duration and --warmup seconds per scenario, --connections, --pipeline
+ *   (requests in flight per keep-alive connection), --acceptEncoding, --scenarios (names, comma separated) and --out;
+ *   any other flag is passed to WebServer (e.g. --engine=nio, --executor=pool)
+ * LoadDriver shares its JVM with the server, so it reports no server memory of its own; ExecutorScale measures the
+ *   server's RSS per executor mode in a separate process
+ * LoadDriver clients are plain blocking sockets that reuse their buffers, so the driver adds little allocation
+ */
+
+public final class LoadDriver {
+
+    // constants for driver options
+    private static final String OPTION_DURATION = "--duration=";
+    private static final String OPTION_WARMUP = "--warmup=";
+    private static final String OPTION_CONNECTIONS = "--connections=";
+    private static final String OPTION_PIPELINE = "--pipeline=";
+    private static final String OPTION_ACCEPT_ENCODING = "--acceptEncoding=";
+    private static final String OPTION_SCENARIOS = "--scenarios=";
+    private static final String OPTION_OUT = "--out=";
+
+    // constants for defaults
+    private static final int DEFAULT_DURATION_SECONDS = 10;
+    private static final int DEFAULT_WARMUP_SECONDS = 3;
+    private static final int DEFAULT_CONNECTIONS = 16;
+    private static final int DEFAULT_PIPELINE = 1;
+    private static final String DEFAULT_OUT = "load.json";
+    private static final long BIND_TIMEOUT_MILLIS = 10000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final double MICROS_PER_MILLI = 1000.0;
+    private static final double BYTES_PER_MB = 1024.0 * 1024.0;
+
+    // no instances - driver runs from main
+    private LoadDriver() {
+    }
+
+    // main method to run the load test
+    public static void main(String[] args) throws Exception {
+        // split driver options from server flags
+        Map<String, String> sOptions = new HashMap<>();
+        List<String> sServerArgs = new ArrayList<>(Arrays.asList("--serverPort=0", "--sslPort=0", "--logLevel=error"));
+        for (String sArg : args) {
+            String sOption = getOption(sArg);
+            if (sOption != null) {
+                sOptions.put(sOption, sArg.substring(sOption.length()));
+            } else {
+                sServerArgs.add(sArg);
+            }
+        }
+        int iDurationSeconds = getInt(sOptions, OPTION_DURATION, DEFAULT_DURATION_SECONDS);
+        int iWarmupSeconds = getInt(sOptions, OPTION_WARMUP, DEFAULT_WARMUP_SECONDS);
+        int iConnections = getInt(sOptions, OPTION_CONNECTIONS, DEFAULT_CONNECTIONS);
+        int iPipeline = Math.max(1, getInt(sOptions, OPTION_PIPELINE, DEFAULT_PIPELINE));
+        String sAcceptEncoding = sOptions.get(OPTION_ACCEPT_ENCODING);
+        String sOut = sOptions.containsKey(OPTION_OUT) ? sOptions.get(OPTION_OUT) : DEFAULT_OUT;
+
+        // write the fixture, then start the server in this JVM and wait for both listeners (time to ready)
+        BenchSite.create();
+        long lStartNanos = System.nanoTime();
+        WebServer.main(sServerArgs.toArray(new String[sServerArgs.size()]));
+        int iServerPort = WebServer.awaitBoundPort(false, BIND_TIMEOUT_MILLIS);
+        int iSSLPort = WebServer.awaitBoundPort(true, BIND_TIMEOUT_MILLIS);
+        if (iServerPort < 0 || iSSLPort < 0) {
+            System.err.println("Server did not bind its ports within " + BIND_TIMEOUT_MILLIS + " ms");
+            System.exit(1);
+        }
+        long lReadyMillis = (System.nanoTime() - lStartNanos) / 1000000;
+        System.out.println("Server ready in " + lReadyMillis + " ms");
+        SSLSocketFactory sslSocketFactory = getSSLContext().getSocketFactory();
+
+        // build the scenario matrix (optionally narrowed by --scenarios)
+        List<Scenario> scenarios = new ArrayList<>();
+        for (boolean bIsSecure : new boolean[]{false, true}) {
+            for (boolean bKeepAlive : new boolean[]{true, false}) {
+                for (String sPath : new String[]{BenchSite.SMALL_FILE, BenchSite.LARGE_FILE}) {
+                    scenarios.add(new Scenario(bIsSecure, bKeepAlive, false, sPath));
+                }
+            }
+        }
+        scenarios.add(new Scenario(true, false, true, BenchSite.SMALL_FILE));
+        if (sOptions.containsKey(OPTION_SCENARIOS)) {
+            Set<String> sNames = new HashSet<>(Arrays.asList(sOptions.get(OPTION_SCENARIOS).split(",")));
+            for (Iterator<Scenario> it = scenarios.iterator(); it.hasNext(); ) {
+                if (!sNames.contains(it.next().getName())) {
+                    it.remove();
+                }
+            }
+        }
+
+        // run each scenario in turn
+        AllocationMeter allocationMeter = new AllocationMeter();
+        List<Result> results = new ArrayList<>();
+        System.out.println();
+        System.out.println(String.format("%-28s %12s %10s %10s %10s %10s %10s %8s", "scenario", "req/s", "MB/s",
+                "p50 ms", "p99 ms", "p999 ms", "alloc MB/s", "errors"));
+        for (Scenario scenario : scenarios) {
+            int iPort = scenario.bIsSecure ? iSSLPort : iServerPort;
+            Result result = run(scenario, iPort, sslSocketFactory, iConnections,
+                    scenario.bKeepAlive ? iPipeline : 1, sAcceptEncoding, iWarmupSeconds, iDurationSeconds,
+                    allocationMeter);
+            results.add(result);
+            System.out.println(result.getRow());
+        }
+
+        // write the results and stop the server with the driver
+        writeJson(sOut, sServerArgs, iDurationSeconds, iWarmupSeconds, iConnections, iPipeline, sAcceptEncoding,
+                lReadyMillis, results);
+        System.out.println();
+        System.out.println("Results written to " + new File(sOut).getAbsolutePath());
+        System.exit(0);
+    }
+
+
+    //*******************
+    //  SCENARIO RUNNER
+    //*******************
+
+    // run one scenario: warm up, then measure for the duration
+    private static Result run(Scenario scenario, int iPort, SSLSocketFactory sslSocketFactory, int iConnections,
+                              int iPipeline, String sAcceptEncoding, int iWarmupSeconds, int iDurationSeconds,
+                              AllocationMeter allocationMeter) throws InterruptedException {
+        byte[] request = getRequest(scenario, sAcceptEncoding);
+        RunState state = new RunState();
+        CountDownLatch done = new CountDownLatch(iConnections);
+        for (int i = 0; i < iConnections; i++) {
+            Thread client = new Thread(new Client(scenario, iPort, sslSocketFactory, request, iPipeline, state, done),
+                    "load-client-" + i);
+            client.setDaemon(true);
+            client.start();
+        }
+
+        // warm up, then measure from a clean start
+        Thread.sleep(iWarmupSeconds * 1000L);
+        long lAllocatedStart = allocationMeter.getAllocatedBytes();
+        long lStartNanos = System.nanoTime();
+        state.bRecording = true;
+        Thread.sleep(iDurationSeconds * 1000L);
+        state.bRecording = false;
+        long lElapsedNanos = System.nanoTime() - lStartNanos;
+        long lAllocatedBytes = allocationMeter.getAllocatedBytes() - lAllocatedStart;
+        state.bRunning = false;
+        done.await();
+        return new Result(scenario, iPipeline, lElapsedNanos, state, lAllocatedBytes);
+    }
+
+    // get the request bytes for the scenario
+    private static byte[] getRequest(Scenario scenario, String sAcceptEncoding) {
+        String sRequest = "GET " + scenario.sPath + " HTTP/1.1" + ClientThread.END_LINE
+                + "Host: localhost" + ClientThread.END_LINE
+                + ((sAcceptEncoding != null) ? "Accept-Encoding: " + sAcceptEncoding + ClientThread.END_LINE : "")
+                + "Connection: " + (scenario.bKeepAlive ? "keep-alive" : "close") + ClientThread.END_LINE
+                + ClientThread.END_LINE;
+        return sRequest.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // get a client TLS context that trusts the server's own keystore
+    private static SSLContext getSSLContext() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream in = new FileInputStream(WebServer.KEY_STORE_FILE_NAME)) {
+            keyStore.load(in, WebServer.KEY_STORE_PASS.clone());
+        }
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(
+                TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(keyStore);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+        return sslContext;
+    }
+
+
+    //**************
+    //  JSON OUTPUT
+    //**************
+
+    // write settings, environment and every scenario result as JSON
+    private static void writeJson(String sOut, List<String> sServerArgs, int iDurationSeconds, int iWarmupSeconds,
+                                  int iConnections, int iPipeline, String sAcceptEncoding, long lReadyMillis,
+                                  List<Result> results) throws IOException {
+        StringBuilder sJson = new StringBuilder(4096);
+        sJson.append("{\n");
+        sJson.append("  \"timestamp\": ").append(quote(new Date().toString())).append(",\n");
+        sJson.append("  \"environment\": {");
+        sJson.append("\"java\": ").append(quote(System.getProperty("java.version")));
+        sJson.append(", \"vm\": ").append(quote(System.getProperty("java.vm.name")));
+        sJson.append(", \"os\": ").append(quote(System.getProperty("os.name") + " " + System.getProperty("os.arch")));
+        sJson.append(", \"cpus\": ").append(Runtime.getRuntime().availableProcessors());
+        sJson.append(", \"maxHeapBytes\": ").append(Runtime.getRuntime().maxMemory()).append("},\n");
+        sJson.append("  \"settings\": {");
+        sJson.append("\"durationSeconds\": ").append(iDurationSeconds);
+        sJson.append(", \"warmupSeconds\": ").append(iWarmupSeconds);
+        sJson.append(", \"connections\": ").append(iConnections);
+        sJson.append(", \"pipeline\": ").append(iPipeline);
+        sJson.append(", \"acceptEncoding\": ").append(sAcceptEncoding == null ? "null" : quote(sAcceptEncoding));
+        sJson.append(", \"serverArgs\": [");
+        for (int i = 0; i < sServerArgs.size(); i++) {
+            sJson.append(i == 0 ? "" : ", ").append(quote(sServerArgs.get(i)));
+        }
+        sJson.append("]},\n");
+        sJson.append("  \"readyMillis\": ").append(lReadyMillis).append(",\n");
+        sJson.append("  \"scenarios\": [\n");
+        for (int i = 0; i < results.size(); i++) {
+            sJson.append("    ").append(results.get(i).getJson()).append(i < results.size() - 1 ? ",\n" : "\n");
+        }
+        sJson.append("  ]\n");
+        sJson.append("}\n");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(sOut), StandardCharsets.UTF_8)) {
+            writer.write(sJson.toString());
+        }
+    }
+
+    // quote a JSON string
+    private static String quote(String sValue) {
+        StringBuilder sQuoted = new StringBuilder(sValue.length() + 2).append('"');
+        for (int i = 0; i < sValue.length(); i++) {
+            char c = sValue.charAt(i);
+            if (c == '"' || c == '\\') {
+                sQuoted.append('\\').append(c);
+            } else if (c < ' ') {
+                sQuoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                sQuoted.append(c);
+            }
+        }
+        return sQuoted.append('"').toString();
+    }
+
+
+    //******************
+    //  OPTION HELPERS
+    //******************
+
+    // get the driver option the argument starts with -> null if it is a server flag
+    private static String getOption(String sArg) {
+        for (String sOption : new String[]{OPTION_DURATION, OPTION_WARMUP, OPTION_CONNECTIONS, OPTION_PIPELINE,
+                OPTION_ACCEPT_ENCODING, OPTION_SCENARIOS, OPTION_OUT}) {
+            if (sArg.regionMatches(true, 0, sOption, 0, sOption.length())) {
+                return sOption;
+            }
+        }
+        return null;
+    }
+
+    // get an option as an int
+    private static int getInt(Map<String, String> sOptions, String sOption, int iDefault) {
+        String sValue = sOptions.get(sOption);
+        try {
+            return (sValue == null) ? iDefault : Integer.parseInt(sValue);
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring non-numeric value for " + sOption + sValue);
+            return iDefault;
+        }
+    }
+
+
+    //*************
+    //  SCENARIOS
+    //*************
+
+    // one cell of the matrix
+    private static final class Scenario {
+
+        private final boolean bIsSecure;
+        private final boolean bKeepAlive;
+        private final boolean bFullHandshake;
+        private final String sPath;
+
+        // scenario constructor
+        Scenario(boolean bIsSecure, boolean bKeepAlive, boolean bFullHandshake, String sPath) {
+            this.bIsSecure = bIsSecure;
+            this.bKeepAlive = bKeepAlive;
+            this.bFullHandshake = bFullHandshake;
+            this.sPath = sPath;
+        }
+
+        // get the name, e.g. https-close-small or https-close-full-handshake-small
+        String getName() {
+            return (bIsSecure ? "https" : "http") + (bKeepAlive ? "-keepalive" : "-close")
+                    + (bFullHandshake ? "-full-handshake" : "")
+                    + (sPath.equals(BenchSite.SMALL_FILE) ? "-small" : "-large");
+        }
+    }
+
+    // counters shared by the clients of one scenario
+    private static final class RunState {
+
+        private volatile boolean bRunning = true;
+        private volatile boolean bRecording;
+        private final ServerMetrics.Histogram latencyMicros = new ServerMetrics.Histogram();
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong bodyBytes = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong connections = new AtomicLong();
+    }
+
+    // results of one scenario
+    private static final class Result {
+
+        private final Scenario scenario;
+        private final int iPipeline;
+        private final double dSeconds;
+        private final long lRequests;
+        private final long lBodyBytes;
+        private final long lErrors;
+        private final long lConnections;
+        private final long[] latencySnapshot;
+        private final long lAllocatedBytes;
+
+        // result constructor
+        Result(Scenario scenario, int iPipeline, long lElapsedNanos, RunState state, long lAllocatedBytes) {
+            this.scenario = scenario;
+            this.iPipeline = iPipeline;
+            this.dSeconds = lElapsedNanos / 1e9;
+            this.lRequests = state.requests.get();
+            this.lBodyBytes = state.bodyBytes.get();
+            this.lErrors = state.errors.get();
+            this.lConnections = state.connections.get();
+            this.latencySnapshot = state.latencyMicros.snapshot();
+            this.lAllocatedBytes = lAllocatedBytes;
+        }
+
+        // get a latency quantile in milliseconds
+        double getLatencyMillis(double dQuantile) {
+            return ServerMetrics.Histogram.getValueAtQuantile(latencySnapshot, dQuantile) / MICROS_PER_MILLI;
+        }
+
+        // get the console row
+        String getRow() {
+            return String.format("%-28s %12.1f %10.1f %10.3f %10.3f %10.3f %10.1f %8d", scenario.getName(),
+                    lRequests / dSeconds, lBodyBytes / BYTES_PER_MB / dSeconds, getLatencyMillis(0.5),
+                    getLatencyMillis(0.99), getLatencyMillis(0.999), lAllocatedBytes / BYTES_PER_MB / dSeconds,
+                    lErrors);
+        }
+
+        // get the JSON object
+        String getJson() {
+            long lCount = latencySnapshot[ServerMetrics.Histogram.COUNT_INDEX];
+            double dMeanMillis = (lCount == 0) ? 0
+                    : latencySnapshot[ServerMetrics.Histogram.SUM_INDEX] / (double) lCount / MICROS_PER_MILLI;
+            return String.format(Locale.ROOT, "{\"name\": %s, \"protocol\": \"%s\", \"connection\": \"%s\", "
+                            + "\"fullHandshake\": %b, \"path\": %s, \"pipeline\": %d, \"seconds\": %.3f, "
+                            + "\"requests\": %d, \"errors\": %d, \"connections\": %d, \"requestsPerSecond\": %.1f, "
+                            + "\"megabytesPerSecond\": %.2f, \"latencyMillis\": {\"mean\": %.3f, \"p50\": %.3f, "
+                            + "\"p99\": %.3f, \"p999\": %.3f}, \"allocatedBytes\": %d, "
+                            + "\"allocationMegabytesPerSecond\": %.1f}",
+                    quote(scenario.getName()), scenario.bIsSecure ? "https" : "http",
+                    scenario.bKeepAlive ? "keep-alive" : "close", scenario.bFullHandshake, quote(scenario.sPath),
+                    iPipeline, dSeconds, lRequests, lErrors, lConnections, lRequests / dSeconds,
+                    lBodyBytes / BYTES_PER_MB / dSeconds, dMeanMillis, getLatencyMillis(0.5), getLatencyMillis(0.99),
+                    getLatencyMillis(0.999), lAllocatedBytes, lAllocatedBytes / BYTES_PER_MB / dSeconds);
+        }
+    }
+
+
+    //**********
+    //  CLIENT
+    //**********
+
+    // one connection's worth of load: send a batch of requests, read every response, repeat
+    private static final class Client implements Runnable {
+
+        private final Scenario scenario;
+        private final int iPort;
+        private final SSLSocketFactory sslSocketFactory;
+        private final byte[] batch;
+        private final int iPipeline;
+        private final RunState state;
+        private final CountDownLatch done;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private final long[] lResponseNanos;
+        private InputStream in;
+        private boolean bServerClosing;
+        private int iBufferStart;
+        private int iBufferEnd;
+
+        // client constructor
+        Client(Scenario scenario, int iPort, SSLSocketFactory sslSocketFactory, byte[] request, int iPipeline,
+               RunState state, CountDownLatch done) {
+            this.scenario = scenario;
+            this.iPort = iPort;
+            this.sslSocketFactory = sslSocketFactory;
+            this.batch = new byte[request.length * iPipeline];
+            this.iPipeline = iPipeline;
+            this.state = state;
+            this.done = done;
+            this.lResponseNanos = new long[iPipeline];
+            for (int i = 0; i < iPipeline; i++) {
+                System.arraycopy(request, 0, batch, i * request.length, request.length);
+            }
+        }
+
+        public void run() {
+            try {
+                while (state.bRunning) {
+                    try (Socket socket = connect()) {
+                        OutputStream out = socket.getOutputStream();
+                        in = socket.getInputStream();
+                        iBufferStart = 0;
+                        iBufferEnd = 0;
+                        bServerClosing = false;
+                        do {
+                            sendAndReceive(out);
+                        } while (scenario.bKeepAlive && state.bRunning && !bServerClosing);
+                    } catch (IOException e) {
+                        if (state.bRecording) {
+                            state.errors.incrementAndGet();
+                        }
+                    }
+                }
+            } finally {
+                done.countDown();
+            }
+        }
+
+        // open a plain or TLS connection (a full handshake scenario throws the session away afterwards)
+        private Socket connect() throws IOException {
+            Socket socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            socket.connect(new InetSocketAddress("127.0.0.1", iPort));
+            if (state.bRecording) {
+                state.connections.incrementAndGet();
+            }
+            if (!scenario.bIsSecure) {
+                return socket;
+            }
+            SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(socket, "localhost", iPort, true);
+            sslSocket.startHandshake();
+            if (scenario.bFullHandshake) {
+                sslSocket.getSession().invalidate();
+            }
+            return sslSocket;
+        }
+
+        // send the batch in one write and time each response from the write
+        // (the server ends a connection after --maxKeepAliveRequests -> the rest of the batch is not answered)
+        private void sendAndReceive(OutputStream out) throws IOException {
+            long lSentNanos = System.nanoTime();
+            out.write(batch);
+            out.flush();
+            long lBodyBytes = 0;
+            int iReceived = 0;
+            while (iReceived < iPipeline && !bServerClosing) {
+                lBodyBytes += readResponse();
+                lResponseNanos[iReceived++] = System.nanoTime();
+            }
+            if (state.bRecording) {
+                for (int i = 0; i < iReceived; i++) {
+                    state.latencyMicros.record((lResponseNanos[i] - lSentNanos) / 1000);
+                }
+                state.requests.addAndGet(iReceived);
+                state.bodyBytes.addAndGet(lBodyBytes);
+            }
+        }
+
+        // read one response (status 200 and a Content-Length body expected) -> body bytes
+        private long readResponse() throws IOException {
+            // read until the blank line that ends the head
+            int iHeadEnd;
+            while ((iHeadEnd = findHeadEnd()) < 0) {
+                fill();
+            }
+            String sHead = new String(buffer, iBufferStart, iHeadEnd - iBufferStart, StandardCharsets.ISO_8859_1);
+            iBufferStart = iHeadEnd;
+            if (!sHead.startsWith("HTTP/1.1 200")) {
+                throw new IOException("Unexpected response: " + sHead.substring(0, sHead.indexOf('\r')));
+            }
+            long lContentLength = getContentLength(sHead);
+            bServerClosing = sHead.contains("Connection: close");
+
+            // skip the body
+            long lRemaining = lContentLength;
+            while (lRemaining > 0) {
+                if (iBufferStart == iBufferEnd) {
+                    fill();
+                }
+                int iSkip = (int) Math.min(lRemaining, iBufferEnd - iBufferStart);
+                iBufferStart += iSkip;
+                lRemaining -= iSkip;
+            }
+            return lContentLength;
+        }
+
+        // find the end of the buffered head -> index after the blank line, or -1
+        private int findHeadEnd() {
+            for (int i = iBufferStart; i + 3 < iBufferEnd; i++) {
+                if (buffer[i] == '\r' && buffer[i + 1] == '\n' && buffer[i + 2] == '\r' && buffer[i + 3] == '\n') {
+                    return i + 4;
+                }
+            }
+            return -1;
+        }
+
+        // read more bytes, moving unread bytes to the front first
+        private void fill() throws IOException {
+            if (iBufferStart > 0) {
+                System.arraycopy(buffer, iBufferStart, buffer, 0, iBufferEnd - iBufferStart);
+                iBufferEnd -= iBufferStart;
+                iBufferStart = 0;
+            }
+            if (iBufferEnd == buffer.length) {
+                throw new IOException("Response head too large");
+            }
+            int iRead = in.read(buffer, iBufferEnd, buffer.length - iBufferEnd);
+            if (iRead < 0) {
+                throw new EOFException("Server closed the connection");
+            }
+            iBufferEnd += iRead;
+        }
+
+        // get the Content-Length value from a head
+        private static long getContentLength(String sHead) throws IOException {
+            for (String sLine : sHead.split(ClientThread.END_LINE)) {
+                if (sLine.regionMatches(true, 0, "Content-Length:", 0, "Content-Length:".length())) {
+                    return Long.parseLong(sLine.substring("Content-Length:".length()).trim());
+                }
+            }
+            throw new IOException("Response without Content-Length");
+        }
+    }
+
+
+    //********************
+    //  ALLOCATION METER
+    //********************
+
+    // bytes allocated by the whole process = heap growth + every byte a GC freed
+    private static final class AllocationMeter implements NotificationListener {
+
+        private final AtomicLong freedBytes = new AtomicLong();
+
+        // allocation meter constructor -> listens to every collector
+        AllocationMeter() {
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (collector instanceof NotificationEmitter) {
+                    ((NotificationEmitter) collector).addNotificationListener(this, null, null);
+                }
+            }
+        }
+
+        // get bytes allocated since the JVM started (approximately, between GCs)
+        long getAllocatedBytes() {
+            return freedBytes.get() + getHeapUsed();
+        }
+
+        public void handleNotification(Notification notification, Object handback) {
+            if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                return;
+            }
+            GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from(
+                    (CompositeData) notification.getUserData());
+            long lBefore = 0;
+            long lAfter = 0;
+            for (MemoryUsage usage : info.getGcInfo().getMemoryUsageBeforeGc().values()) {
+                lBefore += usage.getUsed();
+            }
+            for (MemoryUsage usage : info.getGcInfo().getMemoryUsageAfterGc().values()) {
+                lAfter += usage.getUsed();
+            }
+            freedBytes.addAndGet(Math.max(0, lBefore - lAfter));
+        }
+
+        // get used heap bytes
+        private static long getHeapUsed() {
+            return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        }
+    }
+
+}
@@ -0,0 +1,378 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executors;
+
+/**
+ * ProxyCheck starts two stand-in upstream servers and WebServer in this JVM on ephemeral ports, with proxy routes
+ *   to the upstreams, and checks the proxy end to end: balancing, pooled connections, request and response bodies
+ *   in each framing, responses without a body, failover and all upstreams down
+ * ProxyCheck prints PASS or FAIL per check and exits 1 if any failed
+ * ProxyCheck upstreams are the JDK's HttpServer: each answers with its name, echoes request bodies and records the
+ *   client port of each proxied request (one port per pooled connection, health checks on / aren't counted)
+ * ProxyCheck clients are plain sockets that send one request per connection, so the framing the proxy chose can be
+ *   read back as it was sent
+ */
+
+public final class ProxyCheck {
+
+    // constants for the check
+    private static final String ROUTES_FILE = "proxy-check.defs";
+    private static final long BIND_TIMEOUT_MILLIS = 10000;
+    private static final int READ_TIMEOUT_MILLIS = 10000;
+    private static final int SLOW_MILLIS = 1000;
+    private static final int BODY_BYTES = 1024 * 1024;
+    private static final int CHUNK_BYTES = 8 * 1024;
+    private static final String END_LINE = "\r\n";
+
+    // check state
+    private static int iFailures;
+
+    // no instances - check runs from main
+    private ProxyCheck() {
+    }
+
+    // main method to run the checks
+    public static void main(String[] args) throws Exception {
+        // stand-in upstreams, then the routes to them
+        StandIn first = new StandIn("first");
+        StandIn second = new StandIn("second");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(ROUTES_FILE), StandardCharsets.UTF_8)) {
+            writer.write("/rr/ " + first.getAuthority() + " " + second.getAuthority() + " strip\n");
+            writer.write("/lc/ " + first.getAuthority() + " " + second.getAuthority() + " least-connections strip\n");
+            writer.write("/one/ " + first.getAuthority() + " strip\n");
+            writer.write("/down/ 127.0.0.1:" + getUnusedPort() + "\n");
+        }
+
+        // start the server in this JVM and wait for the plain listener
+        List<String> sServerArgs = new ArrayList<>(Arrays.asList("--serverPort=0", "--sslPort=0", "--logLevel=error",
+                ServerOptions.FLAG_PROXY_ROUTES + ROUTES_FILE));
+        sServerArgs.addAll(Arrays.asList(args));
+        WebServer.main(sServerArgs.toArray(new String[sServerArgs.size()]));
+        int iPort = WebServer.awaitBoundPort(false, BIND_TIMEOUT_MILLIS);
+        if (iPort < 0) {
+            System.err.println("Server did not bind its port within " + BIND_TIMEOUT_MILLIS + " ms");
+            System.exit(1);
+        }
+        System.out.println();
+
+        // balancing and pooling
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 8; i++) {
+            String sBody = get(iPort, "/rr/name", true).sBody;
+            counts.put(sBody, counts.containsKey(sBody) ? counts.get(sBody) + 1 : 1);
+        }
+        check("round-robin spreads requests evenly", Integer.valueOf(4).equals(counts.get("first"))
+                && Integer.valueOf(4).equals(counts.get("second")), counts.toString());
+        check("upstream connections are pooled", first.getClientPorts().size() == 1
+                && second.getClientPorts().size() == 1, first.getClientPorts() + " " + second.getClientPorts());
+        Reply stripped = get(iPort, "/one/Echo/Path?Q=1", true);
+        check("route prefix is stripped, case kept", stripped.sBody.equals("first /Echo/Path?Q=1"), stripped.sBody);
+
+        // request bodies
+        byte[] body = getBody();
+        Reply posted = post(iPort, "/one/echo", body, false);
+        check("Content-Length request body is streamed", Arrays.equals(posted.body, body),
+                posted.body.length + " bytes");
+        Reply chunkedPost = post(iPort, "/one/echo", body, true);
+        check("chunked request body is streamed", Arrays.equals(chunkedPost.body, body),
+                chunkedPost.body.length + " bytes");
+
+        // response framing
+        Reply chunked = get(iPort, "/one/chunked", true);
+        check("chunked response is relayed to HTTP/1.1", chunked.hasHeader("Transfer-Encoding: chunked")
+                && Arrays.equals(chunked.body, body), chunked.sStatusLine);
+        Reply dechunked = get(iPort, "/one/chunked", false);
+        check("chunked response is dechunked for HTTP/1.0", !dechunked.hasHeader("Transfer-Encoding")
+                && dechunked.hasHeader("Connection: close") && Arrays.equals(dechunked.body, body),
+                dechunked.sStatusLine);
+        Reply head = request(iPort, "HEAD /one/name HTTP/1.1" + END_LINE + "Host: check" + END_LINE
+                + "Connection: close" + END_LINE + END_LINE, null);
+        check("HEAD has no body", head.sStatusLine.contains(" 200 ") && head.body.length == 0, head.sStatusLine);
+        Reply noContent = get(iPort, "/one/empty", true);
+        check("204 has no body", noContent.sStatusLine.contains(" 204 ") && noContent.body.length == 0,
+                noContent.sStatusLine);
+
+        // least-connections: while a slow request holds one upstream, the rest go to the other
+        final int iServerPort = iPort;
+        final Reply[] slow = new Reply[1];
+        Thread slowClient = new Thread() {
+            public void run() {
+                try {
+                    slow[0] = get(iServerPort, "/lc/slow", true);
+                } catch (IOException e) {
+                    slow[0] = new Reply("failed: " + e, Collections.<String>emptyList(), new byte[0]);
+                }
+            }
+        };
+        slowClient.start();
+        Thread.sleep(SLOW_MILLIS / 4);
+        Set<String> sQuickNames = new HashSet<>();
+        for (int i = 0; i < 4; i++) {
+            sQuickNames.add(get(iPort, "/lc/name", true).sBody);
+        }
+        slowClient.join();
+        check("least-connections avoids the busy upstream", sQuickNames.size() == 1
+                && !sQuickNames.contains(slow[0].sBody), "slow on " + slow[0].sBody + ", quick on " + sQuickNames);
+
+        // failover and all upstreams down
+        second.stop();
+        Set<String> sStatusLines = new HashSet<>();
+        Set<String> sNames = new HashSet<>();
+        for (int i = 0; i < 4; i++) {
+            Reply reply = get(iPort, "/rr/name", true);
+            sStatusLines.add(reply.sStatusLine);
+            sNames.add(reply.sBody);
+        }
+        check("stopped upstream fails over", sStatusLines.size() == 1 && sStatusLines.iterator().next()
+                .contains(" 200 ") && sNames.equals(Collections.singleton("first")), sStatusLines + " " + sNames);
+        Reply down = get(iPort, "/down/name", true);
+        check("unreachable upstream answers 502", down.sStatusLine.contains(" 502 "), down.sStatusLine);
+
+        first.stop();
+        new File(ROUTES_FILE).delete();
+        System.out.println();
+        System.out.println(iFailures == 0 ? "All proxy checks passed" : iFailures + " proxy checks failed");
+        System.exit(iFailures == 0 ? 0 : 1);
+    }
+
+
+    //*****************
+    //  CHECK HELPERS
+    //*****************
+
+    // print the outcome of one check
+    private static void check(String sName, boolean bIsPassed, String sDetail) {
+        if (!bIsPassed) {
+            iFailures++;
+        }
+        System.out.println(String.format("%-4s %-45s %s", bIsPassed ? "PASS" : "FAIL", sName, sDetail));
+    }
+
+    // get the request body the upstreams echo (and send back chunked)
+    private static byte[] getBody() {
+        byte[] body = new byte[BODY_BYTES];
+        new Random(24).nextBytes(body);
+        return body;
+    }
+
+    // get a port nothing listens on
+    private static int getUnusedPort() throws IOException {
+        try (java.net.ServerSocket socket = new java.net.ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+
+    //******************
+    //  CLIENT HELPERS
+    //******************
+
+    // GET over HTTP/1.1 or HTTP/1.0, one request per connection
+    private static Reply get(int iPort, String sPath, boolean bIsHttp11) throws IOException {
+        return request(iPort, "GET " + sPath + (bIsHttp11 ? " HTTP/1.1" : " HTTP/1.0") + END_LINE + "Host: check"
+                + END_LINE + "Connection: close" + END_LINE + END_LINE, null);
+    }
+
+    // POST the body with Content-Length or in chunks
+    private static Reply post(int iPort, String sPath, byte[] body, boolean bIsChunked) throws IOException {
+        String sHead = "POST " + sPath + " HTTP/1.1" + END_LINE + "Host: check" + END_LINE + "Connection: close"
+                + END_LINE + (bIsChunked ? "Transfer-Encoding: chunked" : "Content-Length: " + body.length)
+                + END_LINE + END_LINE;
+        return request(iPort, sHead, bIsChunked ? chunk(body) : body);
+    }
+
+    // send the request and read the reply until the server closes
+    private static Reply request(int iPort, String sHead, byte[] body) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress("127.0.0.1", iPort), READ_TIMEOUT_MILLIS);
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            OutputStream out = socket.getOutputStream();
+            out.write(sHead.getBytes(StandardCharsets.ISO_8859_1));
+            if (body != null) {
+                out.write(body);
+            }
+            out.flush();
+            return Reply.read(socket.getInputStream());
+        }
+    }
+
+    // frame the bytes as chunks with a last chunk
+    private static byte[] chunk(byte[] data) throws IOException {
+        ByteArrayOutputStream chunked = new ByteArrayOutputStream(data.length + data.length / 100 + 16);
+        for (int iOffset = 0; iOffset < data.length; iOffset += CHUNK_BYTES) {
+            int iLength = Math.min(CHUNK_BYTES, data.length - iOffset);
+            chunked.write((Integer.toHexString(iLength) + END_LINE).getBytes(StandardCharsets.ISO_8859_1));
+            chunked.write(data, iOffset, iLength);
+            chunked.write(END_LINE.getBytes(StandardCharsets.ISO_8859_1));
+        }
+        chunked.write(("0" + END_LINE + END_LINE).getBytes(StandardCharsets.ISO_8859_1));
+        return chunked.toByteArray();
+    }
+
+    // a reply as read from the socket: status line, header lines and the body (dechunked if it was chunked)
+    private static final class Reply {
+
+        private final String sStatusLine;
+        private final List<String> sHeaders;
+        private final byte[] body;
+        private final String sBody;
+
+        // reply constructor
+        Reply(String sStatusLine, List<String> sHeaders, byte[] body) {
+            this.sStatusLine = sStatusLine;
+            this.sHeaders = sHeaders;
+            this.body = body;
+            this.sBody = new String(body, StandardCharsets.ISO_8859_1);
+        }
+
+        // check for a header line (name alone, or the whole line)
+        boolean hasHeader(String sLine) {
+            for (String sHeader : sHeaders) {
+                if (sHeader.equalsIgnoreCase(sLine) || sHeader.toLowerCase().startsWith(sLine.toLowerCase() + ":")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // read the reply up to the end of the stream
+        static Reply read(InputStream in) throws IOException {
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            int iRead;
+            while ((iRead = in.read(buffer)) > 0) {
+                raw.write(buffer, 0, iRead);
+            }
+            byte[] bytes = raw.toByteArray();
+            String sText = new String(bytes, StandardCharsets.ISO_8859_1);
+            int iHeadEnd = sText.indexOf(END_LINE + END_LINE);
+            if (iHeadEnd < 0) {
+                return new Reply(sText, Collections.<String>emptyList(), new byte[0]);
+            }
+            List<String> sLines = new ArrayList<>(Arrays.asList(sText.substring(0, iHeadEnd).split(END_LINE)));
+            String sStatusLine = sLines.remove(0);
+            byte[] body = Arrays.copyOfRange(bytes, iHeadEnd + 4, bytes.length);
+            Reply reply = new Reply(sStatusLine, sLines, body);
+            return reply.hasHeader("Transfer-Encoding: chunked") ? new Reply(sStatusLine, sLines, dechunk(body))
+                    : reply;
+        }
+
+        // get the data of a chunked body
+        private static byte[] dechunk(byte[] chunked) {
+            ByteArrayOutputStream data = new ByteArrayOutputStream(chunked.length);
+            int iOffset = 0;
+            while (true) {
+                int iLineEnd = indexOfLineEnd(chunked, iOffset);
+                if (iLineEnd < 0) {
+                    return data.toByteArray();
+                }
+                int iSize = Integer.parseInt(new String(chunked, iOffset, iLineEnd - iOffset,
+                        StandardCharsets.ISO_8859_1).split(";")[0].trim(), 16);
+                if (iSize == 0) {
+                    return data.toByteArray();
+                }
+                data.write(chunked, iLineEnd + 2, iSize);
+                iOffset = iLineEnd + 2 + iSize + 2;
+            }
+        }
+
+        // get the index of the next CR LF from the offset -> -1 if there is none
+        private static int indexOfLineEnd(byte[] bytes, int iOffset) {
+            for (int i = iOffset; i + 1 < bytes.length; i++) {
+                if (bytes[i] == '\r' && bytes[i + 1] == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+
+    //************
+    //  UPSTREAM
+    //************
+
+    // a stand-in upstream: /name answers its name, /echo echoes the body, /chunked sends the body in chunks,
+    // /empty answers 204 and /slow answers its name after SLOW_MILLIS
+    private static final class StandIn implements HttpHandler {
+
+        private final String sName;
+        private final HttpServer server;
+        private final Set<Integer> clientPorts = Collections.synchronizedSet(new TreeSet<Integer>());
+
+        // stand-in constructor (starts listening on an ephemeral port)
+        StandIn(String sName) throws IOException {
+            this.sName = sName;
+            this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/", this);
+            server.setExecutor(Executors.newCachedThreadPool());
+            server.start();
+        }
+
+        // get the host:port to route to
+        String getAuthority() {
+            return "127.0.0.1:" + server.getAddress().getPort();
+        }
+
+        // get the client ports requests came from
+        Set<Integer> getClientPorts() {
+            return new TreeSet<>(clientPorts);
+        }
+
+        // stop listening and close the connections
+        void stop() {
+            server.stop(0);
+        }
+
+        public void handle(HttpExchange exchange) throws IOException {
+            String sPath = exchange.getRequestURI().toString();
+            if (!sPath.equals("/")) {
+                clientPorts.add(exchange.getRemoteAddress().getPort());  // not the health checks' own connections
+            }
+            byte[] body = (sPath.equals("/echo")) ? readAll(exchange.getRequestBody())
+                    : (sPath.equals("/chunked")) ? getBody()
+                    : (sPath.startsWith("/name") || sPath.equals("/slow")) ? sName.getBytes(StandardCharsets.UTF_8)
+                    : (sName + " " + sPath).getBytes(StandardCharsets.UTF_8);
+            if (sPath.equals("/slow")) {
+                try {
+                    Thread.sleep(SLOW_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (sPath.equals("/empty")) {
+                exchange.sendResponseHeaders(204, -1);
+            } else if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.getResponseHeaders().set("Content-Length", String.valueOf(body.length));
+                exchange.sendResponseHeaders(200, -1);
+            } else {
+                exchange.sendResponseHeaders(200, sPath.equals("/chunked") ? 0 : body.length);  // 0 -> chunked
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+            exchange.close();
+        }
+
+        // read the request body in full
+        private static byte[] readAll(InputStream in) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[16 * 1024];
+            int iRead;
+            while ((iRead = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, iRead);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+}
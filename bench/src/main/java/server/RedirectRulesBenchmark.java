@@ -0,0 +1,79 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RedirectRulesBenchmark measures redirect lookups against rule sets of 10 to 100000 generated rules
+ * RedirectRulesBenchmark rule sets mix exact, prefix (trailing *) and segment wildcard rules in equal parts
+ * RedirectRulesBenchmark looks up an exact hit, a prefix hit, a wildcard hit with a capture, and a miss
+ *   (a lookup should cost about the same for every rule count)
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RedirectRulesBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int iRuleCount;
+
+    // benchmark state
+    private RedirectRules rules;
+    private String sExactRequest;
+    private String sPrefixRequest;
+    private String sWildcardRequest;
+
+    @Setup
+    public void setup() throws IOException {
+        StringBuilder sDefs = new StringBuilder(iRuleCount * 40);
+        for (int i = 0; i < iRuleCount; i++) {
+            if (i % 3 == 0) {
+                sDefs.append("/section").append(i).append("/page.html /new/section").append(i).append(".html\n");
+            } else if (i % 3 == 1) {
+                sDefs.append("/blog").append(i).append("/* /news").append(i).append("/$1 308\n");
+            } else {
+                sDefs.append("/users").append(i).append("/*.htm /people").append(i).append("/$1.html 302\n");
+            }
+        }
+        rules = RedirectRules.parse(new BufferedReader(new StringReader(sDefs.toString())));
+
+        // look up rules from the end of the set (last added, deepest in any list a lookup would scan)
+        int iLast = iRuleCount - 1;
+        sExactRequest = "/section" + (iLast - iLast % 3) + "/page.html";
+        sPrefixRequest = "/blog" + (iLast - (iLast + 2) % 3) + "/2017/03/post.html";
+        sWildcardRequest = "/users" + (iLast - (iLast + 1) % 3) + "/ramon.htm";
+        if (rules.find(sExactRequest) == null || rules.find(sPrefixRequest) == null
+                || rules.find(sWildcardRequest) == null) {
+            throw new IllegalStateException("generated requests don't match their rules");
+        }
+    }
+
+    @Benchmark
+    public String exact() {
+        return rules.find(sExactRequest).getLocation();
+    }
+
+    @Benchmark
+    public String prefix() {
+        return rules.find(sPrefixRequest).getLocation();
+    }
+
+    @Benchmark
+    public String wildcard() {
+        return rules.find(sWildcardRequest).getLocation();
+    }
+
+    @Benchmark
+    public Object miss() {
+        return rules.find("/section/missing/page.html");
+    }
+
+}
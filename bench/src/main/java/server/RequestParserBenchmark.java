@@ -0,0 +1,141 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RequestParserBenchmark measures RequestParser on a typical browser request and on 16 pipelined requests
+ * RequestParserBenchmark feeds the parser from an in-memory stream, so only reading and parsing are timed
+ * RequestParserBenchmark baseline* methods parse the same requests the way ClientThread did before RequestParser
+ *   (BufferedReader over an InputStreamReader, a StringTokenizer per line, toUpperCase/toLowerCase), without its
+ *   console prints -> compare ns/op and gc.alloc.rate.norm (bytes per request) of the pairs
+ * RequestParserBenchmark allocation figures need the GC profiler: gradle :bench:jmhParser (or -prof gc)
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParserBenchmark {
+
+    // constants for requests
+    private static final int PIPELINE_DEPTH = 16;
+    private static final String BROWSER_REQUEST = "GET /small.html HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/118.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r\n"
+            + "Accept-Language: en-US,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Connection: keep-alive\r\n"
+            + "If-None-Match: \"800-18b2f1c3e40\"\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n"
+            + "\r\n";
+    private static final String PIPELINED_REQUEST = "GET /page.txt HTTP/1.1\r\nHost: localhost\r\n\r\n";
+
+    // benchmark state (one parser or reader per connection, as in ClientThread)
+    private RequestParser parser;
+    private ByteArrayInputStream browserInput;
+    private ByteArrayInputStream pipelinedInput;
+    private BufferedReader browserReader;
+    private BufferedReader pipelinedReader;
+
+    @Setup
+    public void setup() {
+        parser = new RequestParser();
+        browserInput = new ByteArrayInputStream(BROWSER_REQUEST.getBytes(StandardCharsets.US_ASCII));
+        StringBuilder sPipelined = new StringBuilder();
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            sPipelined.append(PIPELINED_REQUEST);
+        }
+        pipelinedInput = new ByteArrayInputStream(sPipelined.toString().getBytes(StandardCharsets.US_ASCII));
+        browserReader = new BufferedReader(new InputStreamReader(browserInput));
+        pipelinedReader = new BufferedReader(new InputStreamReader(pipelinedInput));
+    }
+
+    // read and parse one browser request, then read its Accept-Encoding like ClientThread does
+    @Benchmark
+    public String browserRequest() throws IOException {
+        browserInput.reset();
+        parser.read(browserInput);
+        if (parser.parse() != RequestParser.REQUEST_READY) {
+            throw new IllegalStateException("request not parsed");
+        }
+        return parser.getHeader(RequestParser.HEADER_ACCEPT_ENCODING);
+    }
+
+    // read 16 pipelined requests in one read and parse each of them
+    @Benchmark
+    @OperationsPerInvocation(PIPELINE_DEPTH)
+    public int pipelinedRequests() throws IOException {
+        pipelinedInput.reset();
+        parser.read(pipelinedInput);
+        int iParsed = 0;
+        while (parser.parse() == RequestParser.REQUEST_READY) {
+            iParsed += parser.getTarget().length();
+        }
+        return iParsed;
+    }
+
+    // baseline: read and parse one browser request line by line, then its Accept-Encoding
+    @Benchmark
+    public String baselineBrowserRequest() throws IOException {
+        browserInput.reset();
+        return baselineParse(browserReader).sAcceptEncoding;
+    }
+
+    // baseline: read and parse 16 pipelined requests line by line
+    @Benchmark
+    @OperationsPerInvocation(PIPELINE_DEPTH)
+    public int baselinePipelinedRequests() throws IOException {
+        pipelinedInput.reset();
+        int iParsed = 0;
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            iParsed += baselineParse(pipelinedReader).sHTTPRequest.length();
+        }
+        return iParsed;
+    }
+
+    // parse one request head the way ClientThread did before RequestParser -> the fields it kept
+    private static BaselineRequest baselineParse(BufferedReader inFromClient) throws IOException {
+        BaselineRequest request = new BaselineRequest();
+        boolean bNewHTTPHeader = true;
+        String sReadLine;
+        while ((sReadLine = inFromClient.readLine()) != null) {
+            StringTokenizer tokenizer = new StringTokenizer(sReadLine);
+            if (bNewHTTPHeader) {
+                request.sHTTPMethod = tokenizer.nextToken().toUpperCase();
+                request.sHTTPRequest = tokenizer.nextToken().toLowerCase();
+                bNewHTTPHeader = false;
+            } else if (sReadLine.length() > 0) {
+                String sParam = tokenizer.nextToken();
+                if (sParam.equalsIgnoreCase("Connection:")) {
+                    request.bPersistentConnection = tokenizer.nextToken().equalsIgnoreCase("keep-alive");
+                } else if (sParam.equalsIgnoreCase("Accept-Encoding:")) {
+                    request.sAcceptEncoding = sReadLine.substring(sParam.length()).trim();
+                }
+            } else {
+                return request;  // blank line -> head is over
+            }
+        }
+        throw new IllegalStateException("request not parsed");
+    }
+
+    // the fields the old parsing kept for a request
+    private static final class BaselineRequest {
+
+        private String sHTTPMethod;
+        private String sHTTPRequest;
+        private String sAcceptEncoding;
+        private boolean bPersistentConnection = true;
+    }
+
+}
@@ -0,0 +1,151 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.runner.IterationType;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SendFileBenchmark measures how fast each ClientThread send strategy pushes the 8 MB fixture file over loopback
+ *   transferTo (sendfile), copy (pooled direct buffer), mapped (MappedFileCache style) and stream (TLS path)
+ * SendFileBenchmark drains the other end of the connection on its own thread, so only the sending side is timed
+ * SendFileBenchmark reports files per second -> multiply by 8 MB for the send rate
+ * SendFileBenchmark prints the CPU each strategy spends per GB sent at the end of its trial (measurement iterations
+ *   only): the sending thread's CPU time (user and system, so sendfile's kernel work counts) and the whole
+ *   process's, which adds the drain thread's receive cost
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendFileBenchmark {
+
+    // constants for strategies
+    private static final String STRATEGY_TRANSFER_TO = "transferTo";
+    private static final String STRATEGY_COPY = "copy";
+    private static final String STRATEGY_MAPPED = "mapped";
+    private static final String STRATEGY_STREAM = "stream";
+
+    @Param({STRATEGY_TRANSFER_TO, STRATEGY_COPY, STRATEGY_MAPPED, STRATEGY_STREAM})
+    public String sStrategy;
+
+    // benchmark state
+    private RandomAccessFile file;
+    private FileChannel fileChannel;
+    private MappedByteBuffer mapping;
+    private SocketChannel socketChannel;
+    private DataOutputStream out;
+    private Thread drainThread;
+
+    // CPU accounting (measurement iterations only)
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private boolean bIsMeasuring;
+    private long lIterationStartCpuNanos;
+    private long lThreadCpuNanos;
+    private long lProcessCpuNanos;
+    private long lSentBytes;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchSite.create();
+        file = new RandomAccessFile(new File(ClientThread.ROOT_FOLDER, BenchSite.LARGE_FILE), "r");
+        fileChannel = file.getChannel();
+        mapping = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+
+        // connect over loopback and throw away everything that arrives
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+            socketChannel = SocketChannel.open(serverChannel.getLocalAddress());
+            final SocketChannel sink = serverChannel.accept();
+            drainThread = new Thread("sendfile-drain") {
+                public void run() {
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+                    try {
+                        while (sink.read(buffer) >= 0) {
+                            buffer.clear();
+                        }
+                    } catch (IOException e) {
+                        // benchmark closed the connection
+                    } finally {
+                        NioConnection.closeQuietly(sink);
+                    }
+                }
+            };
+        }
+        drainThread.setDaemon(true);
+        drainThread.start();
+        out = new DataOutputStream(new BufferedOutputStream(socketChannel.socket().getOutputStream(),
+                ClientThread.OUTPUT_BUFFER_SIZE));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        socketChannel.close();
+        drainThread.join();
+        file.close();
+        if (lSentBytes > 0) {
+            System.out.println(String.format("%s: %.1f ms CPU per GB sent on the sending thread, %.1f ms in the "
+                    + "process", sStrategy, getMillisPerGB(lThreadCpuNanos), getMillisPerGB(lProcessCpuNanos)));
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void startIteration(IterationParams iterationParams) {
+        bIsMeasuring = iterationParams.getType() == IterationType.MEASUREMENT;
+        lIterationStartCpuNanos = getProcessCpuNanos();
+    }
+
+    @TearDown(Level.Iteration)
+    public void endIteration() {
+        if (bIsMeasuring) {
+            lProcessCpuNanos += getProcessCpuNanos() - lIterationStartCpuNanos;
+        }
+    }
+
+    @Benchmark
+    public long sendFile() throws IOException {
+        long lStartCpuNanos = threadBean.getCurrentThreadCpuTime();
+        if (sStrategy.equals(STRATEGY_TRANSFER_TO)) {
+            ClientThread.transferFile(fileChannel, socketChannel);
+        } else if (sStrategy.equals(STRATEGY_COPY)) {
+            fileChannel.position(0);
+            ClientThread.copyFile(fileChannel, socketChannel);
+        } else if (sStrategy.equals(STRATEGY_MAPPED)) {
+            ClientThread.sendMapping(mapping.duplicate(), socketChannel, null);
+        } else {
+            fileChannel.position(0);
+            ClientThread.streamFile(fileChannel, out);
+            out.flush();
+        }
+        if (bIsMeasuring) {
+            lThreadCpuNanos += threadBean.getCurrentThreadCpuTime() - lStartCpuNanos;
+            lSentBytes += fileChannel.size();
+        }
+        return fileChannel.size();
+    }
+
+    // get the CPU time of the whole process
+    private static long getProcessCpuNanos() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+                .getProcessCpuTime();
+    }
+
+    // get CPU nanos spent over the bytes sent as millis per GB
+    private double getMillisPerGB(long lCpuNanos) {
+        return lCpuNanos / 1e6 / (lSentBytes / (1024.0 * 1024.0 * 1024.0));
+    }
+
+}
@@ -0,0 +1,362 @@
+package server;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * AccessLog writes one record per request (method, path, status, bytes, latency, secure flag) off the request path
+ * AccessLog records go into a lock-free ring buffer and a single background thread formats and writes them
+ * AccessLog's writer parks while the ring is empty and the first record after that unparks it;
+ *   records logged before the writer starts wait in the ring
+ * AccessLog verbosity is --logLevel=off|error|access|debug (debug adds connection and header dumps)
+ * AccessLog writes to --accessLog=<file> (rotated at --accessLogMaxBytes, keeping --accessLogFiles old files),
+ *   or to the console from the writer thread when no file is set
+ * AccessLog never blocks a client thread -> records are dropped (and counted) if the ring is full
+ */
+
+final class AccessLog {
+
+    // constants for levels
+    static final int LEVEL_OFF = 0;
+    static final int LEVEL_ERROR = 1;
+    static final int LEVEL_ACCESS = 2;
+    static final int LEVEL_DEBUG = 3;
+    private static final String[] LEVEL_NAMES = {"off", "error", "access", "debug"};
+
+    // constants for ring and writer
+    private static final int RING_SIZE = 8192;  // power of two
+    private static final long AWAIT_POLL_NANOS = 2000000;
+    private static final long DEFAULT_MAX_FILE_BYTES = 10L * 1024 * 1024;
+    private static final int DEFAULT_ROTATED_FILES = 5;
+    private static final String WRITER_THREAD_NAME = "access-log-writer";
+
+    // constants for record types
+    private static final int RECORD_REQUEST = 1;
+    private static final int RECORD_MESSAGE = 2;
+
+    // level (read once from flags)
+    private static final int iLevel = getLevel(ServerOptions.getString(ServerOptions.FLAG_LOG_LEVEL,
+            LEVEL_NAMES[LEVEL_ACCESS]));
+
+    // ring buffer: producers claim slots with a CAS on the tail, the writer thread owns the head
+    private static final Slot[] ring = new Slot[RING_SIZE];
+    private static final AtomicLong tail = new AtomicLong();
+    private static long lHead;
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile Thread writerThread;
+    private static volatile boolean bWriterParked;  // set by the writer before it parks on an empty ring
+    private static volatile long lFlushedPosition;  // every record before it is written and flushed
+
+    static {
+        for (int i = 0; i < RING_SIZE; i++) {
+            ring[i] = new Slot(i);
+        }
+    }
+
+    // no instances - log is process wide
+    private AccessLog() {
+    }
+
+    // start the background writer (call once after flags are parsed)
+    static synchronized void start() {
+        if (writerThread != null || iLevel == LEVEL_OFF) {
+            return;
+        }
+        Thread writer = new Thread(WRITER_THREAD_NAME) {
+            public void run() {
+                new LogWriter().run();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+        writerThread = writer;
+    }
+
+    // check if request records are logged
+    static boolean isAccessEnabled() {
+        return iLevel >= LEVEL_ACCESS;
+    }
+
+    // check if debug messages (connections, headers) are logged
+    static boolean isDebugEnabled() {
+        return iLevel >= LEVEL_DEBUG;
+    }
+
+    // get count of records dropped because the ring was full
+    static long getDropped() {
+        return dropped.get();
+    }
+
+    // wait up to lTimeoutMillis for the writer to write and flush the records logged so far (before exit)
+    static void awaitWritten(long lTimeoutMillis) {
+        long lPosition = tail.get();
+        long lDeadlineNanos = System.nanoTime() + lTimeoutMillis * 1000000L;
+        while (writerThread != null && lFlushedPosition < lPosition && System.nanoTime() < lDeadlineNanos) {
+            LockSupport.parkNanos(AWAIT_POLL_NANOS);
+        }
+    }
+
+    // log a finished request
+    static void request(String sMethod, String sPath, int iStatusCode, long lBytes, long lStartNanos,
+                        boolean bIsSecure, InetAddress clientAddress) {
+        if (iLevel < LEVEL_ACCESS) {
+            return;
+        }
+        long lLatencyNanos = System.nanoTime() - lStartNanos;
+        Slot slot = claim();
+        if (slot == null) {
+            return;
+        }
+        slot.iType = RECORD_REQUEST;
+        slot.lTimeMillis = System.currentTimeMillis();
+        slot.sMethod = sMethod;
+        slot.sPath = sPath;
+        slot.iStatusCode = iStatusCode;
+        slot.lBytes = lBytes;
+        slot.lLatencyNanos = lLatencyNanos;
+        slot.bIsSecure = bIsSecure;
+        slot.clientAddress = clientAddress;
+        publish(slot);
+    }
+
+    // log an error (with the exception that caused it)
+    static void error(String sMessage, Exception e) {
+        if (iLevel >= LEVEL_ERROR) {
+            message(sMessage + System.lineSeparator() + "  " + e);
+        }
+    }
+
+    // log a debug message (only build the message when isDebugEnabled, it may be expensive)
+    static void debug(String sMessage) {
+        if (iLevel >= LEVEL_DEBUG) {
+            message(sMessage);
+        }
+    }
+
+
+    //****************
+    //  RING METHODS
+    //****************
+
+    // queue a free text message
+    private static void message(String sMessage) {
+        Slot slot = claim();
+        if (slot == null) {
+            return;
+        }
+        slot.iType = RECORD_MESSAGE;
+        slot.lTimeMillis = System.currentTimeMillis();
+        slot.sMessage = sMessage;
+        publish(slot);
+    }
+
+    // claim the next free slot -> null (record dropped) if the writer is a full ring behind
+    private static Slot claim() {
+        while (true) {
+            long lPosition = tail.get();
+            Slot slot = ring[(int) (lPosition & (RING_SIZE - 1))];
+            long lDifference = slot.lSequence - lPosition;
+            if (lDifference == 0) {
+                if (tail.compareAndSet(lPosition, lPosition + 1)) {
+                    return slot;
+                }
+            } else if (lDifference < 0) {
+                dropped.incrementAndGet();
+                return null;
+            }
+            // another producer took this position -> retry with the new tail
+        }
+    }
+
+    // hand a filled slot to the writer (sequence was the claimed position until now), waking it if it is parked
+    private static void publish(Slot slot) {
+        slot.lSequence = slot.lSequence + 1;
+        if (bWriterParked) {
+            Thread writer = writerThread;
+            if (writer != null) {
+                LockSupport.unpark(writer);
+            }
+        }
+    }
+
+    // get the next published slot for the writer -> null if none
+    private static Slot poll() {
+        Slot slot = ring[(int) (lHead & (RING_SIZE - 1))];
+        if (slot.lSequence != lHead + 1) {
+            return null;
+        }
+        return slot;
+    }
+
+    // give the slot back to producers for the next lap of the ring
+    private static void free(Slot slot) {
+        slot.sMethod = null;
+        slot.sPath = null;
+        slot.sMessage = null;
+        slot.clientAddress = null;
+        slot.lSequence = lHead + RING_SIZE;
+        lHead++;
+    }
+
+    // get the level number for the name (defaults to access)
+    private static int getLevel(String sLevel) {
+        for (int i = 0; i < LEVEL_NAMES.length; i++) {
+            if (LEVEL_NAMES[i].equalsIgnoreCase(sLevel)) {
+                return i;
+            }
+        }
+        System.out.println("Unknown log level " + sLevel + ", using " + LEVEL_NAMES[LEVEL_ACCESS]);
+        return LEVEL_ACCESS;
+    }
+
+
+    //********
+    //  SLOT
+    //********
+
+    // one reusable record in the ring (fields are only touched by the claiming producer, then the writer)
+    private static final class Slot {
+        private volatile long lSequence;
+        private int iType;
+        private long lTimeMillis;
+        private String sMethod;
+        private String sPath;
+        private int iStatusCode;
+        private long lBytes;
+        private long lLatencyNanos;
+        private boolean bIsSecure;
+        private InetAddress clientAddress;
+        private String sMessage;
+
+        // slot constructor -> free for the first lap at its own index
+        Slot(long lIndex) {
+            lSequence = lIndex;
+        }
+    }
+
+
+    //**********
+    //  WRITER
+    //**********
+
+    // background writer: drains the ring, formats lines, writes and rotates the log file
+    private static final class LogWriter {
+
+        private final String sFileName = ServerOptions.getString(ServerOptions.FLAG_ACCESS_LOG, null);
+        private final long lMaxFileBytes = ServerOptions.getLong(ServerOptions.FLAG_ACCESS_LOG_MAX_BYTES,
+                DEFAULT_MAX_FILE_BYTES);
+        private final int iRotatedFiles = Math.max(1, ServerOptions.getInt(ServerOptions.FLAG_ACCESS_LOG_FILES,
+                DEFAULT_ROTATED_FILES));
+        private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+        private final StringBuilder sLine = new StringBuilder(256);
+        private Writer out;
+        private long lFileBytes;
+
+        // drain the ring forever, flushing and parking whenever it runs empty
+        void run() {
+            openOutput();
+            while (true) {
+                Slot slot = poll();
+                if (slot == null) {
+                    flush();
+                    lFlushedPosition = lHead;
+                    park();
+                    continue;
+                }
+                format(slot);
+                free(slot);
+                write();
+            }
+        }
+
+        // park until a producer publishes (flag first, then check again, so a publish in between is not missed)
+        private void park() {
+            bWriterParked = true;
+            if (poll() == null) {
+                LockSupport.park(this);
+            }
+            bWriterParked = false;
+        }
+
+        // format the record into the line buffer
+        private void format(Slot slot) {
+            sLine.setLength(0);
+            sLine.append(dateFormat.format(new Date(slot.lTimeMillis))).append(' ');
+            if (slot.iType == RECORD_MESSAGE) {
+                sLine.append(slot.sMessage);
+            } else {
+                sLine.append(slot.clientAddress == null ? "-" : slot.clientAddress.getHostAddress()).append(' ')
+                        .append(slot.bIsSecure ? "https" : "http").append(' ')
+                        .append(slot.sMethod.isEmpty() ? "-" : slot.sMethod).append(' ')
+                        .append(slot.sPath.isEmpty() ? "-" : slot.sPath).append(' ')
+                        .append(slot.iStatusCode).append(' ')
+                        .append(slot.lBytes).append(' ')
+                        .append(slot.lLatencyNanos / 1000).append("us");
+            }
+            sLine.append(System.lineSeparator());
+        }
+
+        // write the formatted line, rotating first if it would push the file over its limit
+        private void write() {
+            if (sFileName != null && lFileBytes + sLine.length() > lMaxFileBytes && lFileBytes > 0) {
+                rotate();
+            }
+            try {
+                out.append(sLine);
+                lFileBytes += sLine.length();
+            } catch (IOException e) {
+                System.out.println("There was an error writing the access log:");
+                System.out.println("  " + e);
+            }
+        }
+
+        // flush buffered lines
+        private void flush() {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                System.out.println("There was an error flushing the access log:");
+                System.out.println("  " + e);
+            }
+        }
+
+        // open the log file for append (or the console when no file is set)
+        private void openOutput() {
+            if (sFileName == null) {
+                out = new BufferedWriter(new OutputStreamWriter(System.out));
+                return;
+            }
+            try {
+                File file = new File(sFileName);
+                lFileBytes = file.length();
+                out = new BufferedWriter(new FileWriter(file, true));
+            } catch (IOException e) {
+                System.out.println("There was an error opening the access log " + sFileName + ", using the console:");
+                System.out.println("  " + e);
+                out = new BufferedWriter(new OutputStreamWriter(System.out));
+            }
+        }
+
+        // shift access.log -> access.log.1 -> ... -> access.log.N (oldest dropped), then start a new file
+        private void rotate() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // file is being replaced anyway
+            }
+            new File(sFileName + "." + iRotatedFiles).delete();
+            for (int i = iRotatedFiles - 1; i >= 0; i--) {
+                File from = new File(i == 0 ? sFileName : sFileName + "." + i);
+                if (from.exists()) {
+                    from.renameTo(new File(sFileName + "." + (i + 1)));
+                }
+            }
+            openOutput();
+        }
+    }
+
+}
@@ -0,0 +1,48 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * BufferPool hands out large I/O buffers so file sends don't allocate per request
+ * BufferPool buffers are shared by all connections (not one per connection) and returned after each send
+ * BufferPool keeps separate direct buffers (for channel writes) and heap buffers (for stream writes, e.g. TLS)
+ */
+
+final class BufferPool {
+
+    // constants for pool
+    static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    // idle buffers ready to be reused
+    private static final Queue<ByteBuffer> directBuffers = new ConcurrentLinkedQueue<>();
+    private static final Queue<ByteBuffer> heapBuffers = new ConcurrentLinkedQueue<>();
+
+    // no instances - pool is process wide
+    private BufferPool() {
+    }
+
+    // get a cleared direct buffer
+    static ByteBuffer acquireDirect() {
+        ByteBuffer buffer = directBuffers.poll();
+        return (buffer == null) ? ByteBuffer.allocateDirect(BUFFER_SIZE) : buffer;
+    }
+
+    // get a cleared heap buffer (backing array usable with OutputStream.write)
+    static ByteBuffer acquireHeap() {
+        ByteBuffer buffer = heapBuffers.poll();
+        return (buffer == null) ? ByteBuffer.allocate(BUFFER_SIZE) : buffer;
+    }
+
+    // return a buffer to the pool -> dropped if the pool is already full
+    static void release(ByteBuffer buffer) {
+        buffer.clear();
+        Queue<ByteBuffer> pool = buffer.isDirect() ? directBuffers : heapBuffers;
+        if (pool.size() < MAX_POOLED_BUFFERS) {
+            pool.offer(buffer);
+        }
+    }
+
+}
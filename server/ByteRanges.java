@@ -0,0 +1,230 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * ByteRanges holds the byte ranges a GET asked for with Range (and If-Range) against one file
+ * ByteRanges ignores a Range header it can't use (bad syntax, other units, too many ranges, stale If-Range)
+ *   -> the whole file is sent with 200 instead
+ * ByteRanges sends each byte at most once: ranges that ask for more bytes than the file has in total are ignored
+ *   like above (RFC 9110 14.2), the rest are sorted and overlapping or adjacent ones merged
+ * ByteRanges renders the 206 header and, for more than one range, the multipart/byteranges part headers
+ * ByteRanges only describes the ranges -> ClientThread and NioConnection send them with positioned
+ *   channel transfers or reads (never by skipping through a stream)
+ */
+
+final class ByteRanges {
+
+    // constants for parsing
+    private static final String BYTES_UNIT = "bytes=";
+    private static final int MAX_RANGES = 16;
+
+    // constants for multipart bodies (one boundary per server run, it never appears in part headers)
+    private static final String BOUNDARY = "RAMON_BOUNDARY_" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+    private static final String END_LINE = ClientThread.END_LINE;
+
+    // range instance variables (ends are inclusive, like Content-Range)
+    private final long lFileSize;
+    private final long[] lStarts;
+    private final long[] lEnds;
+    private final int iCount;
+
+    // ranges constructor
+    private ByteRanges(long lFileSize, long[] lStarts, long[] lEnds, int iCount) {
+        this.lFileSize = lFileSize;
+        this.lStarts = lStarts;
+        this.lEnds = lEnds;
+        this.iCount = iCount;
+    }
+
+    // get the ranges to send for the file -> null to ignore the Range header and send the whole file
+    static ByteRanges get(String sRange, String sIfRange, String sFilePath) {
+        FileMetadataCache.Metadata fileMetadata = FileMetadataCache.get(sFilePath);
+        if (sRange == null || fileMetadata == null || !FileMetadataCache.isRangeCurrent(fileMetadata, sIfRange)) {
+            return null;
+        }
+        return parse(sRange, fileMetadata.getSize());
+    }
+
+    // parse "bytes=a-b, c-, -n" -> null if the header can't be used; no ranges if none can be satisfied
+    static ByteRanges parse(String sRange, long lFileSize) {
+        if (!sRange.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return null;
+        }
+        String[] sSpecs = sRange.substring(BYTES_UNIT.length()).split(",");
+        if (sSpecs.length > MAX_RANGES) {
+            return null;
+        }
+
+        long[] lStarts = new long[sSpecs.length];
+        long[] lEnds = new long[sSpecs.length];
+        int iCount = 0;
+        for (String sSpec : sSpecs) {
+            String sTrimmed = sSpec.trim();
+            int iDash = sTrimmed.indexOf('-');
+            if (iDash < 0) {
+                return null;
+            }
+            String sFirst = sTrimmed.substring(0, iDash).trim();
+            String sLast = sTrimmed.substring(iDash + 1).trim();
+            long lStart;
+            long lEnd;
+            try {
+                if (sFirst.isEmpty()) {
+                    // suffix range: the last n bytes
+                    long lSuffix = parseDigits(sLast);
+                    if (lSuffix == 0 || lFileSize == 0) {
+                        continue;  // unsatisfiable
+                    }
+                    lStart = Math.max(0, lFileSize - lSuffix);
+                    lEnd = lFileSize - 1;
+                } else {
+                    lStart = parseDigits(sFirst);
+                    lEnd = sLast.isEmpty() ? Long.MAX_VALUE : parseDigits(sLast);
+                    if (lEnd < lStart) {
+                        return null;  // invalid range -> ignore the header
+                    }
+                    if (lStart >= lFileSize) {
+                        continue;  // unsatisfiable
+                    }
+                    lEnd = Math.min(lEnd, lFileSize - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            lStarts[iCount] = lStart;
+            lEnds[iCount] = lEnd;
+            iCount++;
+        }
+        return merge(lFileSize, lStarts, lEnds, iCount);
+    }
+
+    // sort the satisfiable ranges and merge overlapping or adjacent ones -> null (whole file) if together they ask
+    // for more bytes than the file has (e.g. "0-,0-,0-" would send it once per range)
+    private static ByteRanges merge(long lFileSize, long[] lStarts, long[] lEnds, int iCount) {
+        long lRequestedBytes = 0;
+        for (int i = 0; i < iCount; i++) {
+            lRequestedBytes += lEnds[i] - lStarts[i] + 1;
+        }
+        if (lRequestedBytes > lFileSize) {
+            return null;
+        }
+
+        // insertion sort by start (at most MAX_RANGES)
+        for (int i = 1; i < iCount; i++) {
+            long lStart = lStarts[i];
+            long lEnd = lEnds[i];
+            int j = i - 1;
+            while (j >= 0 && lStarts[j] > lStart) {
+                lStarts[j + 1] = lStarts[j];
+                lEnds[j + 1] = lEnds[j];
+                j--;
+            }
+            lStarts[j + 1] = lStart;
+            lEnds[j + 1] = lEnd;
+        }
+
+        // fold each range into the previous one when it starts at or before the byte after it
+        int iMerged = 0;
+        for (int i = 0; i < iCount; i++) {
+            if (iMerged > 0 && lStarts[i] <= lEnds[iMerged - 1] + 1) {
+                lEnds[iMerged - 1] = Math.max(lEnds[iMerged - 1], lEnds[i]);
+            } else {
+                lStarts[iMerged] = lStarts[i];
+                lEnds[iMerged] = lEnds[i];
+                iMerged++;
+            }
+        }
+        return new ByteRanges(lFileSize, lStarts, lEnds, iMerged);
+    }
+
+    // get the status code: 206 with ranges to send, 416 when none can be satisfied
+    int getStatusCode() {
+        return (iCount > 0) ? 206 : 416;
+    }
+
+    // get the number of ranges to send
+    int getCount() {
+        return iCount;
+    }
+
+    // get the first byte of the range
+    long getStart(int iRange) {
+        return lStarts[iRange];
+    }
+
+    // get the number of bytes in the range
+    long getLength(int iRange) {
+        return lEnds[iRange] - lStarts[iRange] + 1;
+    }
+
+    // check if the body is multipart/byteranges
+    boolean isMultipart() {
+        return iCount > 1;
+    }
+
+    // get the 206 header lines that don't depend on the connection
+    String getHeaderFields(String sHTTPRequest, boolean bIsSecure) {
+        StringBuilder sHeader = new StringBuilder(256);
+        sHeader.append(ClientThread.getStatusLine(206)).append(END_LINE);
+        sHeader.append(ClientThread.getServerDetails(bIsSecure)).append(END_LINE);
+        if (isMultipart()) {
+            sHeader.append("Content-Type: multipart/byteranges; boundary=").append(BOUNDARY).append(END_LINE);
+        } else {
+            sHeader.append(ClientThread.getContentType(sHTTPRequest)).append(END_LINE);
+            sHeader.append(getContentRange(0)).append(END_LINE);
+        }
+        sHeader.append("Content-Length: ").append(getContentLength(sHTTPRequest)).append(END_LINE);
+        ClientThread.appendValidators(sHeader, sHTTPRequest, null);
+        return sHeader.toString();
+    }
+
+    // get the body length (ranges plus part headers and closing boundary when multipart)
+    long getContentLength(String sHTTPRequest) {
+        long lLength = 0;
+        for (int i = 0; i < iCount; i++) {
+            lLength += getLength(i);
+            if (isMultipart()) {
+                lLength += getPartHeader(sHTTPRequest, i).length;
+            }
+        }
+        if (isMultipart()) {
+            lLength += getClosingBoundary().length;
+        }
+        return lLength;
+    }
+
+    // get the multipart header that goes before the range's bytes
+    byte[] getPartHeader(String sHTTPRequest, int iRange) {
+        String sPartHeader = (iRange == 0 ? "" : END_LINE) + "--" + BOUNDARY + END_LINE
+                + ClientThread.getContentType(sHTTPRequest) + END_LINE
+                + getContentRange(iRange) + END_LINE
+                + END_LINE;
+        return sPartHeader.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // get the line that ends a multipart body
+    byte[] getClosingBoundary() {
+        return (END_LINE + "--" + BOUNDARY + "--" + END_LINE).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // get the Content-Range line for one range
+    private String getContentRange(int iRange) {
+        return "Content-Range: bytes " + lStarts[iRange] + "-" + lEnds[iRange] + "/" + lFileSize;
+    }
+
+    // parse a run of digits (no sign, no spaces)
+    private static long parseDigits(String sDigits) {
+        if (sDigits.isEmpty()) {
+            throw new NumberFormatException("empty");
+        }
+        for (int i = 0; i < sDigits.length(); i++) {
+            if (sDigits.charAt(i) < '0' || sDigits.charAt(i) > '9') {
+                throw new NumberFormatException(sDigits);
+            }
+        }
+        return Long.parseLong(sDigits);
+    }
+
+}
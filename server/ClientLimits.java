@@ -0,0 +1,248 @@
+package server;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ClientLimits keeps one client from taking the server for itself, keyed by client IP (all limits off by default)
+ * ClientLimits caps the connections a client may have open at --maxClientConnections (more are answered with 429
+ *   and closed)
+ * ClientLimits lets a client make --clientRequestRate requests a second with bursts of --clientRequestBurst, and
+ *   send itself --clientBandwidth body bytes a second with bursts of --clientBandwidthBurst bytes -> requests over
+ *   either limit are answered with 429 and a Retry-After of the seconds until they would be allowed
+ * ClientLimits keeps each bucket as one AtomicLong "theoretical arrival time" (GCRA) -> a request costs a nanoTime
+ *   and a CAS on its own client's entry, no lock and no map lookup (the connection holds its entry)
+ * ClientLimits keeps entries in a ConcurrentHashMap and sweeps out clients with no open connection that have been
+ *   idle for --clientIdleTimeout millis (default 60000) and whose buckets are full again
+ */
+
+final class ClientLimits {
+
+    // constants for defaults
+    private static final int DEFAULT_IDLE_TIMEOUT_MILLIS = 60000;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final String SWEEPER_THREAD_NAME = "client-limits-sweeper";
+    static final int STATUS_CODE = 429;
+
+    // limits (read once from flags, 0 -> no limit)
+    private static final int iMaxConnections = ServerOptions.getInt(ServerOptions.FLAG_MAX_CLIENT_CONNECTIONS, 0);
+    private static final long lRequestRate = ServerOptions.getLong(ServerOptions.FLAG_CLIENT_REQUEST_RATE, 0);
+    private static final long lRequestBurst = Math.max(1, ServerOptions.getLong(
+            ServerOptions.FLAG_CLIENT_REQUEST_BURST, lRequestRate));
+    private static final long lBandwidth = ServerOptions.getLong(ServerOptions.FLAG_CLIENT_BANDWIDTH, 0);
+    private static final long lBandwidthBurst = Math.max(1, ServerOptions.getLong(
+            ServerOptions.FLAG_CLIENT_BANDWIDTH_BURST, lBandwidth));
+    private static final long lIdleNanos = Math.max(1, ServerOptions.getInt(ServerOptions.FLAG_CLIENT_IDLE_TIMEOUT,
+            DEFAULT_IDLE_TIMEOUT_MILLIS)) * 1000000L;
+
+    // buckets in nanos: one request / byte costs an interval, a full bucket allows a burst of them at once
+    private static final long lRequestIntervalNanos = (lRequestRate > 0)
+            ? Math.max(1, NANOS_PER_SECOND / lRequestRate) : 0;
+    private static final long lRequestBurstNanos = lRequestIntervalNanos * lRequestBurst;
+    private static final double dByteIntervalNanos = (lBandwidth > 0) ? (double) NANOS_PER_SECOND / lBandwidth : 0;
+    private static final long lBandwidthBurstNanos = (long) (dByteIntervalNanos * lBandwidthBurst);
+    private static final boolean bEnabled = iMaxConnections > 0 || lRequestIntervalNanos > 0 || dByteIntervalNanos > 0;
+
+    // clients with an open connection or a bucket that is still refilling
+    private static final ConcurrentHashMap<InetAddress, Client> clients = new ConcurrentHashMap<>();
+
+    // entry shared by every connection when no limit is set
+    private static final Client UNLIMITED = new Client();
+
+    static {
+        if (bEnabled) {
+            startSweeper();
+        }
+    }
+
+    // no instances - limits are process wide
+    private ClientLimits() {
+    }
+
+    // count a new connection of the client -> its entry, or null if the client has its cap of connections open
+    static Client open(InetAddress clientAddress) {
+        if (!bEnabled) {
+            return UNLIMITED;
+        }
+        while (true) {
+            Client client = clients.get(clientAddress);
+            if (client == null) {
+                client = new Client();
+                Client existing = clients.putIfAbsent(clientAddress, client);
+                client = (existing != null) ? existing : client;
+            }
+            int iOpened = client.tryOpen();
+            if (iOpened > 0) {
+                return client;
+            } else if (iOpened == 0) {
+                return null;  // at the cap
+            }
+            clients.remove(clientAddress, client);  // swept meanwhile -> start a new entry
+        }
+    }
+
+    // get the number of clients being tracked
+    static int getClientCount() {
+        return clients.size();
+    }
+
+    // get the seconds a client should wait (rounded up, at least 1)
+    static int getRetryAfterSeconds(long lWaitNanos) {
+        return (int) Math.max(1, (lWaitNanos + NANOS_PER_SECOND - 1) / NANOS_PER_SECOND);
+    }
+
+    // get the full header block of a 429 answer with its Retry-After
+    static String getHeader(int iRetryAfterSeconds, long lContentLength, boolean bPersistentConnection,
+                            boolean bIsSecure) {
+        StringBuilder sHeader = new StringBuilder(256);
+        sHeader.append(ClientThread.getStatusLine(STATUS_CODE)).append(ClientThread.END_LINE);
+        sHeader.append(ClientThread.getServerDetails(bIsSecure)).append(ClientThread.END_LINE);
+        sHeader.append(MimeTypes.getHtmlHeaderLine()).append(ClientThread.END_LINE);
+        sHeader.append("Content-Length: ").append(lContentLength).append(ClientThread.END_LINE);
+        sHeader.append("Retry-After: ").append(iRetryAfterSeconds).append(ClientThread.END_LINE);
+        return sHeader + ClientThread.getHeaderEnd(bPersistentConnection);
+    }
+
+    // get the HTML body of a 429 answer
+    static byte[] getBody() {
+        return ClientThread.getResponse(null, "", "", STATUS_CODE).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+
+    //*****************
+    //  SWEEP HELPERS
+    //*****************
+
+    // start the thread that evicts idle clients (every half idle timeout, at most once a second)
+    private static void startSweeper() {
+        final long lSweepMillis = Math.max(1000, lIdleNanos / 2000000L);
+        Thread sweeper = new Thread(SWEEPER_THREAD_NAME) {
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(lSweepMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    sweep(System.nanoTime());
+                }
+            }
+        };
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    // remove the clients that are idle with full buckets (retired first, so a connection opening meanwhile retries)
+    private static void sweep(long lNowNanos) {
+        Iterator<Client> iterator = clients.values().iterator();
+        while (iterator.hasNext()) {
+            Client client = iterator.next();
+            if (client.isIdle(lNowNanos) && client.retire()) {
+                iterator.remove();
+            }
+        }
+    }
+
+
+    //**********
+    //  CLIENT
+    //**********
+
+    // one client's open connections and buckets (all lock-free, shared by its connections)
+    static final class Client {
+
+        private static final int RETIRED = -1;
+
+        private final AtomicInteger connections = new AtomicInteger();
+        private final AtomicLong requestTat = new AtomicLong(System.nanoTime());
+        private final AtomicLong bandwidthTat = new AtomicLong(System.nanoTime());
+        private volatile long lLastClosedNanos = System.nanoTime();
+
+        // count a connection -> 1 if counted, 0 if at the cap, -1 if the entry was swept
+        private int tryOpen() {
+            while (true) {
+                int iOpen = connections.get();
+                if (iOpen == RETIRED) {
+                    return -1;
+                }
+                if (iMaxConnections > 0 && iOpen >= iMaxConnections) {
+                    return 0;
+                }
+                if (connections.compareAndSet(iOpen, iOpen + 1)) {
+                    return 1;
+                }
+            }
+        }
+
+        // uncount a connection from open once it is closed
+        void close() {
+            if (this != UNLIMITED) {
+                lLastClosedNanos = System.nanoTime();
+                connections.decrementAndGet();
+            }
+        }
+
+        // take a request from the buckets -> 0 if allowed, otherwise the nanos until it would be
+        long tryRequest() {
+            if (this == UNLIMITED) {
+                return 0;
+            }
+            long lNowNanos = System.nanoTime();
+
+            // bandwidth already sent past the burst -> wait until it has drained
+            if (dByteIntervalNanos > 0) {
+                long lWaitNanos = bandwidthTat.get() - lNowNanos - lBandwidthBurstNanos;
+                if (lWaitNanos > 0) {
+                    return lWaitNanos;
+                }
+            }
+
+            // one request interval on the request bucket, unless that would go past the burst
+            if (lRequestIntervalNanos > 0) {
+                while (true) {
+                    long lTat = requestTat.get();
+                    long lNewTat = Math.max(lTat, lNowNanos) + lRequestIntervalNanos;
+                    long lWaitNanos = lNewTat - lNowNanos - lRequestBurstNanos;
+                    if (lWaitNanos > 0) {
+                        return lWaitNanos;
+                    }
+                    if (requestTat.compareAndSet(lTat, lNewTat)) {
+                        break;
+                    }
+                }
+            }
+            return 0;
+        }
+
+        // charge the body bytes sent to the bandwidth bucket (may go past the burst -> later requests wait)
+        void sent(long lBodyBytes) {
+            if (this == UNLIMITED || dByteIntervalNanos <= 0 || lBodyBytes <= 0) {
+                return;
+            }
+            long lCostNanos = (long) (lBodyBytes * dByteIntervalNanos);
+            long lNowNanos = System.nanoTime();
+            while (true) {
+                long lTat = bandwidthTat.get();
+                if (bandwidthTat.compareAndSet(lTat, Math.max(lTat, lNowNanos) + lCostNanos)) {
+                    return;
+                }
+            }
+        }
+
+        // check if the entry can go: no open connection, idle long enough and both buckets full
+        private boolean isIdle(long lNowNanos) {
+            return connections.get() == 0 && lNowNanos - lLastClosedNanos > lIdleNanos
+                    && requestTat.get() - lNowNanos <= 0 && bandwidthTat.get() - lNowNanos <= 0;
+        }
+
+        // retire the entry -> false if a connection opened meanwhile
+        private boolean retire() {
+            return connections.compareAndSet(0, RETIRED);
+        }
+    }
+
+}
@@ -2,34 +2,68 @@ package server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.StringTokenizer;
 
 /**
- * ClientThread is a unique thread for each client connection to WebServer
+ * ClientThread is the task that serves each client connection to WebServer (run by ConnectionExecutor on its own
+ *   thread, a pooled worker or a virtual thread)
  * ClientThread can be secure HTTPS or unsecure HTTP
- * ClientThread supports GET and HEAD requests and limited MIME types
- * ClientThread redirects based on URLs listed in /www/redirect.defs
+ * ClientThread supports GET and HEAD requests for the file types known to MimeTypes
+ * ClientThread parses requests with a byte-level RequestParser and answers malformed ones with 400
+ * ClientThread buffers responses and only flushes before it has to wait for the client, so the responses
+ *   to pipelined requests (and each header with its small body) go out in as few writes as possible
+ * ClientThread redirects based on rules listed in /www/redirect.defs (exact, prefix and wildcard, see RedirectRules)
+ * ClientThread serves a folder's index.html, or streams a generated listing of it (see DirectoryListing)
+ * ClientThread sends files with zero-copy FileChannel.transferTo on plain HTTP sockets (see sendFile)
+ * ClientThread serves small hot files from ResponseCache with a single write
+ * ClientThread sends gzip or deflate bodies from CompressionCache when the client's Accept-Encoding allows
+ * ClientThread sends ETag, Last-Modified and Cache-Control for files and answers current conditional requests with 304
+ * ClientThread answers Range requests with 206 (multipart/byteranges for several ranges) or 416, sending each
+ *   range with a positioned transferTo or positioned reads
+ * ClientThread serves large files from shared MappedFileCache mappings when transferTo can't be used (e.g. TLS)
+ * ClientThread logs each request to the AccessLog (connection and header dumps only at --logLevel=debug)
+ * ClientThread records each request and connection in ServerMetrics and answers its endpoint
+ * ClientThread gets HTTPS sockets with the handshake already done (see TlsLayer) and hands the ones that picked
+ *   HTTP/2 to Http2Connection
+ * ClientThread bounds each blocking read by the header or keep-alive deadline from ConnectionLimits
+ *   (SO_TIMEOUT set to the time left) and closes after the last keep-alive request it allows
+ * ClientThread closes when idle once the server drains, and answers requests in flight with Connection: close
+ *   (see ServerLifecycle)
+ * ClientThread holds its client's ClientLimits entry: turns the connection away with 429 when the client has its cap
+ *   of connections open, and answers requests over the client's request rate or bandwidth with 429
+ * ClientThread hands requests on a proxy route to ReverseProxy, which relays them to an upstream server
  */
 
-public class ClientThread extends Thread {
+public class ClientThread implements Runnable, ServerLifecycle.Drainable {
 
     // constants for server
     static final String[] SUPPORTED_METHODS = {"GET", "HEAD"};
-    static final String[] SUPPORTED_FILE_TYPES = {".html", ".htm", ".txt", ".pdf", ".png", ".jpeg", ".jpg"};
     static final File ROOT_FOLDER = new File ("./www");
     static final String REDIRECT_FILE_NAME = "./www/redirect.defs";
     static final String HTML_START = "<html><body><b>";
     static final String HTML_END = "</b></body></html>";
     static final String END_LINE = "\r\n";
+    static final int REJECT_TIMEOUT_MILLIS = 1000;
+    static final int RETRY_AFTER_SECONDS = 1;
+    static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
 
     // server instance variables
     private Socket connectedClient;
     private boolean bIsSecure;
-    private Map<String, String> sRedirects;
-    private List<String> sAvailableFiles;
-    private BufferedReader inFromClient ;
+    private SiteIndex siteIndex;
+    private InputStream inFromClient;
+    private RequestParser requestParser;
     private DataOutputStream outToClient;
+    private long lRequestStartNanos;
+    private int iRequestCount;
+    private long lDeadlineMillis;
+    private int iDeadlineReason = -1;
+    private volatile boolean bIsIdle;
+    private volatile boolean bIsDrained;
+    private ClientLimits.Client client;
 
     // server constructor
     public ClientThread(Socket clientSocket, boolean bIsSecure) {
@@ -37,193 +71,658 @@ public class ClientThread extends Thread {
         connectedClient = clientSocket;
         this.bIsSecure = bIsSecure;
 
-        // out to console - new server started
-        String sSocketType = (bIsSecure ? "(SECURE)" : "(unsecure)");
-        System.out.println("New " + sSocketType + " client thread started");
-
-        // create map for redirects & get list of valid files to serve from root folder
-        sRedirects = new HashMap<>();
-        sRedirects = getRedirects(REDIRECT_FILE_NAME);
-        sAvailableFiles = new ArrayList<>();
-        sAvailableFiles = getValidFiles(ROOT_FOLDER);
+        // log - new server started
+        if (AccessLog.isDebugEnabled()) {
+            String sSocketType = (bIsSecure ? "(SECURE)" : "(unsecure)");
+            AccessLog.debug("New " + sSocketType + " client thread started");
+        }
     }
 
-    // extends Thread -> runnable
+    // runnable -> serve the connection on the executor's thread
     public void run() {
-        // variables to store key HTTP(S) request information
-        String sReadLine;
-        boolean bNewHTTPHeader = true;
-        String sHTTPMethod = "";
-        String sHTTPRequest = "";
-        boolean bPersistentConnection = true;
-
-        // print the client IP:port
-        System.out.println("client " + connectedClient.getInetAddress() + ":"
-                + connectedClient.getPort() + " is connected");
-        System.out.println();
-
-        // create BufferedReader to read in from socket & DataOutputStream to send out to socket
+        // log the client IP:port
+        if (AccessLog.isDebugEnabled()) {
+            AccessLog.debug("client " + connectedClient.getInetAddress() + ":"
+                    + connectedClient.getPort() + " is connected");
+        }
+
+        // client has its cap of connections open -> 429 and close
+        client = ClientLimits.open(connectedClient.getInetAddress());
+        if (client == null) {
+            sendTooManyConnections();
+            ConnectionLimits.closed();
+            return;
+        }
+        try {
+            // HTTP/2 was picked in the TLS handshake (ALPN) -> frames instead of HTTP/1.1 text
+            if (bIsSecure && Http2Connection.isNegotiated(connectedClient)) {
+                new Http2Connection(connectedClient, client).run();
+            } else {
+                serve();
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    // answer the HTTP/1.x requests on the connection until it closes
+    private void serve() {
+        // create InputStream & parser to read in from socket & DataOutputStream to send out to socket
         try {
-            inFromClient = new BufferedReader(new InputStreamReader(connectedClient.getInputStream()));
-            outToClient = new DataOutputStream(connectedClient.getOutputStream());
+            inFromClient = connectedClient.getInputStream();
+            requestParser = new RequestParser();
+            outToClient = new DataOutputStream(new BufferedOutputStream(connectedClient.getOutputStream(),
+                    OUTPUT_BUFFER_SIZE));
 
         } catch (IOException e) {
-            System.out.println("There was an error setting up the buffered reader, " +
-                    "data stream, or reading from the client:");
-            System.out.println("  " + e);
+            AccessLog.error("There was an error setting up the input stream, " +
+                    "data stream, or reading from the client:", e);
+            return;
         }
 
-        // process the HTTP(S) request
+        // process the HTTP(S) requests
+        ServerMetrics.connectionOpened(bIsSecure);
+        ServerLifecycle.opened(this);
+        int iCloseReason = ServerMetrics.CLOSE_CLIENT;
         try {
-            // break apart the input to read the http method and request
-            while ((sReadLine = inFromClient.readLine()) != null) {
-                // create a tokenizer to parse the string
-                StringTokenizer tokenizer = new StringTokenizer(sReadLine);
-
-                // if new HTTP header, then pull out the Method and Request (first line)
-                if (bNewHTTPHeader) {
-                    sHTTPMethod = tokenizer.nextToken().toUpperCase(); // HTTP method: GET, HEAD
-                    sHTTPRequest = tokenizer.nextToken().toLowerCase(); // HTTP query: file path
-                    bNewHTTPHeader = false;  // next lines are not part of a new HTTP header
-
-                    // print to console
-                    System.out.println("New HTTP Header:");
-                    System.out.println("  HTTP Method: " + sHTTPMethod);
-                    System.out.println("  HTTP Request: " + sHTTPRequest);
-
-                    // not a new HTTP header: check for key params Connection or empty line
-                } else if (sReadLine.length() > 0) {
-                    // get the next token in the input line
-                    String sParam = tokenizer.nextToken();
-
-                    //  check to update connection status
-                    if (sParam.equalsIgnoreCase("Connection:")) {
-                        String sConnectionRequest = tokenizer.nextToken();
-                        bPersistentConnection = (sConnectionRequest.equalsIgnoreCase("keep-alive"));
-                        // print param to console
-                        System.out.println("  param: " + sParam + " " + sConnectionRequest);
-                    } else {
-                        // otherwise just print param to console
-                        System.out.println("  param: " + sParam);
+            while (true) {
+                // parse the next request head -> read more from the client until it is complete (or the deadline)
+                int iParseResult = requestParser.parse();
+                if (iParseResult == RequestParser.NEED_MORE_INPUT) {
+                    outToClient.flush();  // send the batch of responses before waiting on the client
+                    updateDeadline();
+
+                    // idle between requests while the server drains -> close (checked after marking idle, so
+                    // either this thread or ServerLifecycle sees the other)
+                    bIsIdle = iRequestCount > 0 && !requestParser.hasBufferedInput();
+                    if (bIsIdle && ServerLifecycle.isDraining()) {
+                        iCloseReason = ServerMetrics.CLOSE_SHUTDOWN;
+                        break;
+                    }
+                    try {
+                        if (requestParser.read(inFromClient) < 0) {
+                            // client input is null (client must want to disconnect, or the drain shut the input)
+                            iCloseReason = bIsDrained ? ServerMetrics.CLOSE_SHUTDOWN : iCloseReason;
+                            break;
+                        }
+                    } catch (SocketTimeoutException e) {
+                        if (TimerWheel.getNowMillis() < lDeadlineMillis) {
+                            continue;  // woke up early -> wait out the rest of the deadline
+                        }
+                        iCloseReason = iDeadlineReason;
+                        break;
+                    } finally {
+                        bIsIdle = false;
                     }
+                    continue;
+                }
+                iDeadlineReason = -1;  // next wait starts a new deadline
+
+                // malformed or oversized request -> 400 and close (the rest of the stream can't be trusted)
+                lRequestStartNanos = System.nanoTime();
+                if (iParseResult == RequestParser.BAD_REQUEST) {
+                    sendResponse("", "", 400, getResponse(null, "", "", 400), null, false);
+                    iCloseReason = ServerMetrics.CLOSE_BAD_REQUEST;
+                    break;
+                }
 
-                    // no more lines to header: header is over
-                } else {
-                    //print to console
-                    System.out.println("End of Header");
-                    System.out.println();
+                // pull out the Method and Request (last request the limit allows -> answered with Connection: close)
+                String sHTTPMethod = requestParser.getMethod(); // HTTP method: GET, HEAD
+                String sHTTPRequest = requestParser.getTarget(); // HTTP query: file path
+                boolean bPersistentConnection = requestParser.isPersistentConnection()
+                        && ConnectionLimits.isKeepAliveAllowed(iRequestCount + 1) && !ServerLifecycle.isDraining();
 
-                    // get the status code & response, then send back to client
-                    int iStatusCode = getStatusCode(sHTTPMethod, sHTTPRequest);
-                    String sResponse = getResponse(sHTTPMethod, sHTTPRequest, iStatusCode);
-                    sendResponse(sHTTPMethod, sHTTPRequest, iStatusCode, sResponse, bPersistentConnection);
+                // log the raw header
+                if (AccessLog.isDebugEnabled()) {
+                    AccessLog.debug("New HTTP Header:" + System.lineSeparator() + requestParser.getHeadText());
+                }
 
-                    // next line is part of a new HTTP header
-                    bNewHTTPHeader = true;
+                // client over its request rate or bandwidth -> 429 (metrics endpoint and proxy routes are answered
+                // before the site is looked at)
+                long lWaitNanos = client.tryRequest();
+                ProxyRoutes.Route route = ProxyRoutes.find(sHTTPRequest);
+                if (lWaitNanos > 0) {
+                    sendTooManyRequests(sHTTPMethod, sHTTPRequest, lWaitNanos, bPersistentConnection);
+                } else if (ServerMetrics.isMetricsRequest(sHTTPMethod, sHTTPRequest)) {
+                    sendMetrics(sHTTPMethod, sHTTPRequest, bPersistentConnection);
+                } else if (route != null) {
+                    bPersistentConnection = sendProxied(route, sHTTPMethod, sHTTPRequest, bPersistentConnection);
+                } else {
+                    // use one site index snapshot for the whole request (index may be swapped by watcher)
+                    // a folder with an index.html is answered as that file
+                    siteIndex = SiteIndex.get();
+                    sHTTPRequest = DirectoryListing.resolveIndex(siteIndex, sHTTPRequest);
+
+                    // get the status code, ranges, encoding & response (304 if the client's copy is current,
+                    // 206/416 for a usable Range -> ranges are always of the unencoded file), then send back
+                    int iStatusCode = getStatusCode(siteIndex, sHTTPMethod, sHTTPRequest);
+                    ByteRanges ranges = getRanges(iStatusCode, sHTTPMethod, sHTTPRequest,
+                            requestParser.getHeader(RequestParser.HEADER_RANGE),
+                            requestParser.getHeader(RequestParser.HEADER_IF_RANGE));
+                    String sContentEncoding = (iStatusCode != 200 || ranges != null) ? null : CompressionCache.getEncoding(
+                            requestParser.getHeader(RequestParser.HEADER_ACCEPT_ENCODING), sHTTPRequest);
+                    iStatusCode = getConditionalStatusCode(iStatusCode, sHTTPRequest, sContentEncoding,
+                            requestParser.getHeader(RequestParser.HEADER_IF_NONE_MATCH),
+                            requestParser.getHeader(RequestParser.HEADER_IF_MODIFIED_SINCE));
+                    if (iStatusCode == 200 && ranges != null) {
+                        iStatusCode = ranges.getStatusCode();
+                    }
+                    String sResponse = getResponse(siteIndex, sHTTPMethod, sHTTPRequest, iStatusCode);
+                    if (iStatusCode == 206) {
+                        sendRanges(sHTTPMethod, sHTTPRequest, sResponse, ranges, bPersistentConnection);
+                    } else if (iStatusCode == 200 && DirectoryListing.isListing(siteIndex, sHTTPRequest)) {
+                        // HTTP/1.0 has no chunked encoding -> the listing ends when the connection closes
+                        boolean bIsChunked = requestParser.getMinorVersion() > 0;
+                        bPersistentConnection = bPersistentConnection && bIsChunked;
+                        sendListing(sHTTPMethod, sHTTPRequest, bIsChunked, bPersistentConnection);
+                    } else {
+                        sendResponse(sHTTPMethod, sHTTPRequest, iStatusCode, sResponse, sContentEncoding,
+                                bPersistentConnection);
+                    }
+                }
+                if (!bPersistentConnection) {
+                    if (!requestParser.isPersistentConnection()) {
+                        iCloseReason = ServerMetrics.CLOSE_NOT_PERSISTENT;
+                    } else {
+                        iCloseReason = ServerLifecycle.isDraining()
+                                ? ServerMetrics.CLOSE_SHUTDOWN : ServerMetrics.CLOSE_MAX_REQUESTS;
+                    }
+                    break;
                 }
             }
 
-            // loop has ended: client input is null (client must want to disconnect)
+            // loop has ended: client disconnected, deadline passed or connection is not persistent
+            outToClient.flush();  // the last responses may still be in the stream buffer
             this.connectedClient.close();
-            System.out.println("input from client " + connectedClient.getInetAddress() +
-                    + connectedClient.getPort() + " is null.  This socket closed.");
+            if (AccessLog.isDebugEnabled()) {
+                AccessLog.debug("input from client " + connectedClient.getInetAddress() + ":"
+                        + connectedClient.getPort() + " is done.  This socket closed.");
+            }
         } catch (IOException e) {
-            System.out.println("There was an error reading the HTTP request:");
-            System.out.println("  " + e);
+            if (bIsDrained) {
+                iCloseReason = ServerMetrics.CLOSE_SHUTDOWN;  // closed by the drain
+            } else {
+                iCloseReason = ServerMetrics.CLOSE_ERROR;
+                AccessLog.error("There was an error reading the HTTP request:", e);
+            }
+            NioConnection.closeQuietly(connectedClient);  // socket is already unusable
+        } finally {
+            ServerLifecycle.closed(this);
+            ServerMetrics.connectionClosed(bIsSecure, iCloseReason);
+            ConnectionLimits.closed();
         }
     }
 
+    // drain the connection: wake it if it waits idle for its next request (shut input -> read ends as if the
+    // client closed, a TLS socket is closed since its input can't be shut alone), or close it when forced
+    public void drain(boolean bIsForced) {
+        if (!bIsIdle && !bIsForced) {
+            return;  // a request is in flight -> its response closes the connection
+        }
+        bIsDrained = true;
+        try {
+            if (bIsSecure || bIsForced) {
+                connectedClient.close();
+            } else {
+                connectedClient.shutdownInput();
+            }
+        } catch (IOException e) {
+            // socket is already closed
+        }
+    }
+
+    // set the deadline for the next read: the header timeout runs from the first wait for a request head
+    // (later bytes don't extend it), the keep-alive timeout from each wait with nothing buffered
+    private void updateDeadline() throws SocketException {
+        boolean bIsIdle = iRequestCount > 0 && !requestParser.hasBufferedInput();
+        if (bIsIdle) {
+            if (iDeadlineReason != ServerMetrics.CLOSE_IDLE_TIMEOUT) {
+                iDeadlineReason = ServerMetrics.CLOSE_IDLE_TIMEOUT;
+                lDeadlineMillis = TimerWheel.getNowMillis() + ConnectionLimits.getKeepAliveTimeoutMillis();
+            }
+        } else if (iDeadlineReason != ServerMetrics.CLOSE_HEADER_TIMEOUT) {
+            iDeadlineReason = ServerMetrics.CLOSE_HEADER_TIMEOUT;
+            lDeadlineMillis = TimerWheel.getNowMillis() + ConnectionLimits.getHeaderTimeoutMillis();
+        }
+        connectedClient.setSoTimeout((int) Math.max(1, lDeadlineMillis - TimerWheel.getNowMillis()));
+    }
+
 
     //*********************
     //  MAIN HTTP METHODS
     //*********************
 
-    // send the HTTP response back to the client
-    private void sendResponse(String sHTTPMethod, String sHTTPRequest, int iStatusCode, String sResponse, boolean bPersistentConnection) {
-        // determine if sending file and if redirect -> determines response
-        boolean bIsFileSend = sHTTPMethod.equalsIgnoreCase("GET") && iStatusCode == 200;
-        boolean bIsRedirect = iStatusCode == 301;
+    // reject the client with 503 when no worker can take the connection, then close the socket
+    static void sendServiceUnavailable(Socket clientSocket, boolean bIsSecure) {
+        new ClientThread(clientSocket, bIsSecure).reject(503);
+    }
 
-        // write header
-        String sStatus = getStatusLine(iStatusCode) + END_LINE;
-        String sLocation = (bIsRedirect) ? ("Location: " + sResponse) + END_LINE : ("");  // only if redirect
-        String sServerDetails = getServerDetails() + END_LINE;
-        String sContentLength = "Content-Length: " + sResponse.length() + END_LINE;
-        String sContentType = getContentType(sHTTPRequest) + END_LINE;
-        String sConnection = getConnectionLine(bPersistentConnection) + END_LINE;
-        String sSpaceBetweenHeaderAndBody = END_LINE;
-        FileInputStream fin = null;
-
-        // update content length if sending a file -> create file input stream
+    // reject the client with 429 when it already has its cap of connections open, then close the socket
+    private void sendTooManyConnections() {
+        reject(ClientLimits.STATUS_CODE);
+    }
+
+    // answer the client with the status code (503 or 429) and close the socket
+    private void reject(int iStatusCode) {
+        ServerMetrics.connectionRejected(bIsSecure);
+        lRequestStartNanos = System.nanoTime();
+        try {
+            // don't let a slow client hold the thread that rejects it
+            connectedClient.setSoTimeout(REJECT_TIMEOUT_MILLIS);
+            outToClient = new DataOutputStream(new BufferedOutputStream(connectedClient.getOutputStream(),
+                    OUTPUT_BUFFER_SIZE));
+            if (iStatusCode == ClientLimits.STATUS_CODE) {
+                sendTooManyRequests("", "", 0, false);
+            } else {
+                sendResponse("", "", iStatusCode, getResponse(null, "", "", iStatusCode), null, false);
+            }
+        } catch (IOException e) {
+            AccessLog.error("There was an error rejecting the client:", e);
+        } finally {
+            try {
+                connectedClient.close();
+            } catch (IOException e) {
+                // socket is already unusable
+            }
+        }
+    }
+
+    // send the HTTP response back to the client (sContentEncoding -> compressed body wanted, null for identity)
+    private void sendResponse(String sHTTPMethod, String sHTTPRequest, int iStatusCode, String sResponse,
+                              String sContentEncoding, boolean bPersistentConnection) {
+        // determine if sending file -> determines response
+        boolean bIsFileSend = isFileSend(sHTTPMethod, iStatusCode);
+        long lContentLength = sResponse.length();
+        FileChannel fileChannel = null;
+
+        // compressed variants and small hot files come from the caches -> header and body in one write
+        if (bIsFileSend && sContentEncoding != null) {
+            CompressionCache.Variant variant = CompressionCache.get(sHTTPRequest, sResponse, sContentEncoding, siteIndex);
+            if (variant != null) {
+                sendCachedResponse(variant.getBuffers(bIsSecure, bPersistentConnection), variant.getBodyLength(),
+                        sHTTPMethod, sHTTPRequest, sResponse, bPersistentConnection);
+                return;
+            }
+        }
+        if (bIsFileSend) {
+            ResponseCache.Entry cachedEntry = ResponseCache.get(sHTTPRequest, sResponse, siteIndex);
+            if (cachedEntry != null) {
+                sendCachedResponse(cachedEntry.getBuffers(bIsSecure, bPersistentConnection),
+                        cachedEntry.getBodyLength(), sHTTPMethod, sHTTPRequest, sResponse, bPersistentConnection);
+                return;
+            }
+        }
+
+        // update content length if sending a file -> open file channel (size is a long, unlike available())
         if (bIsFileSend) {
             try {
-                fin = new FileInputStream(ROOT_FOLDER.toString() + "/" + sResponse);  // if file request, then sResponse is the file path
-                sContentLength = "Content-Length: " + Integer.toString(fin.available()) + END_LINE;
+                fileChannel = new FileInputStream(ROOT_FOLDER.toString() + "/" + sResponse).getChannel();  // if file request, then sResponse is the file path
+                lContentLength = fileChannel.size();
             } catch (IOException e) {
-                System.out.println("There was an error creating the file input stream for the response:");
-                System.out.println("  " + e);
+                AccessLog.error("There was an error opening the file channel for the response:", e);
+
+                // file is gone since the site index was built -> answer as not found
+                iStatusCode = 404;
+                sResponse = getResponse(siteIndex, sHTTPMethod, sHTTPRequest, iStatusCode);
+                lContentLength = sResponse.length();
+                bIsFileSend = false;
             }
         }
 
+        // write header
+        String sHeader = getHeader(sHTTPRequest, iStatusCode, sResponse, lContentLength,
+                (iStatusCode == 304) ? sContentEncoding : null, bPersistentConnection, bIsSecure);
+
         try {
             // send HTTP Header
-            outToClient.writeBytes(sStatus);
-            if (bIsRedirect) {
-                outToClient.writeBytes(sLocation); // only send Location on redirect
-            }
-            outToClient.writeBytes(sServerDetails);
-            outToClient.writeBytes(sContentType);
-            outToClient.writeBytes(sContentLength);
-            outToClient.writeBytes(sConnection);
-            outToClient.writeBytes(sSpaceBetweenHeaderAndBody);
+            outToClient.write(sHeader.getBytes(StandardCharsets.ISO_8859_1));
 
             // send HTTP Body
                 if (bIsFileSend) {
-                    sendFile(fin, outToClient);  // send file
-                } else if (!bIsRedirect && !sHTTPMethod.equalsIgnoreCase("HEAD")) {
-                    outToClient.writeBytes(sResponse);  // send HTML msg back
+                    sendFile(sResponse, fileChannel, outToClient);  // send file
+                } else if (isMessageSend(sHTTPMethod, iStatusCode)) {
+                    outToClient.write(sResponse.getBytes(StandardCharsets.ISO_8859_1));  // send HTML msg back
                 }
 
-            // print HTTP Header and Body to console
-            System.out.println(sStatus);
-            System.out.println(sServerDetails);
-            System.out.println(sContentType);
-            System.out.println(sContentLength);
-            System.out.println(sConnection);
-            if (bIsRedirect) {
-                System.out.println(sLocation);
-            }
-            if (bIsFileSend) {
-                System.out.println("File sent: " + sResponse);
+            // log the request (header and body only at debug level)
+            boolean bIsBodySent = bIsFileSend || isMessageSend(sHTTPMethod, iStatusCode);
+            logRequest(sHTTPMethod, sHTTPRequest, iStatusCode, bIsBodySent ? lContentLength : 0);
+            if (AccessLog.isDebugEnabled()) {
+                AccessLog.debug(sHeader + (bIsFileSend ? "File sent: " : "Response: ") + sResponse);
+            }
+
+            // close connection
+            if (!bPersistentConnection) {
+                outToClient.close();
+            }
+
+        } catch (IOException e) {
+            AccessLog.error("writeBytes did not complete:", e);
+        }
+    }
+
+    // send a cached response -> one gathered write on plain sockets when it ends the batch,
+    // otherwise into the buffered stream with the rest of the batch (always on TLS)
+    private void sendCachedResponse(ByteBuffer[] buffers, long lBodyLength, String sHTTPMethod, String sHTTPRequest,
+                                    String sResponse, boolean bPersistentConnection) {
+        SocketChannel socketChannel = connectedClient.getChannel();
+
+        try {
+            if (!bIsSecure && socketChannel != null && !requestParser.hasBufferedInput()) {
+                outToClient.flush();  // earlier responses in the batch go first
+                writeFully(socketChannel, buffers);
             } else {
-                System.out.println("Response: " + sResponse);
+                streamBuffers(buffers, outToClient);
+            }
+
+            // log the request
+            logRequest(sHTTPMethod, sHTTPRequest, 200, lBodyLength);
+            if (AccessLog.isDebugEnabled()) {
+                AccessLog.debug("Cached file sent: " + sResponse + " (" + lBodyLength + " bytes)");
             }
-            System.out.println();
 
             // close connection
             if (!bPersistentConnection) {
                 outToClient.close();
             }
+        } catch (IOException e) {
+            AccessLog.error("The cached response did not complete:", e);
+        }
+    }
+
+    // send the ranges of the file with 206 (sFilePath is the response for a file request)
+    private void sendRanges(String sHTTPMethod, String sHTTPRequest, String sFilePath, ByteRanges ranges,
+                            boolean bPersistentConnection) {
+        FileChannel fileChannel;
+        try {
+            fileChannel = new FileInputStream(ROOT_FOLDER.toString() + "/" + sFilePath).getChannel();
+        } catch (IOException e) {
+            // file is gone since the site index was built -> answer as not found
+            AccessLog.error("There was an error opening the file channel for the ranges:", e);
+            sendResponse(sHTTPMethod, sHTTPRequest, 404, getResponse(siteIndex, sHTTPMethod, sHTTPRequest, 404), null,
+                    bPersistentConnection);
+            return;
+        }
+
+        long lContentLength = ranges.getContentLength(sHTTPRequest);
+        try {
+            // send HTTP Header, then each range (with its part header when multipart)
+            String sHeader = ranges.getHeaderFields(sHTTPRequest, bIsSecure) + getHeaderEnd(bPersistentConnection);
+            outToClient.write(sHeader.getBytes(StandardCharsets.ISO_8859_1));
+            for (int i = 0; i < ranges.getCount(); i++) {
+                if (ranges.isMultipart()) {
+                    outToClient.write(ranges.getPartHeader(sHTTPRequest, i));
+                }
+                sendRange(fileChannel, ranges.getStart(i), ranges.getLength(i), outToClient);
+            }
+            if (ranges.isMultipart()) {
+                outToClient.write(ranges.getClosingBoundary());
+            }
 
+            // log the request (header only at debug level)
+            logRequest(sHTTPMethod, sHTTPRequest, 206, lContentLength);
+            if (AccessLog.isDebugEnabled()) {
+                AccessLog.debug(sHeader + ranges.getCount() + " range(s) sent: " + sFilePath);
+            }
+
+            // close connection
+            if (!bPersistentConnection) {
+                outToClient.close();
+            }
         } catch (IOException e) {
-            System.out.println("writeBytes did not complete:");
-            System.out.println("  " + e + "\n");
+            AccessLog.error("The range response did not complete:", e);
+        } finally {
+            NioConnection.closeQuietly(fileChannel);
+        }
+    }
+
+    // send one range of the file -> positioned transferTo on plain sockets, positioned reads otherwise (TLS)
+    private void sendRange(FileChannel fileChannel, long lStart, long lLength, DataOutputStream out) throws IOException {
+        SocketChannel socketChannel = connectedClient.getChannel();
+        long lPosition = lStart;
+        long lEnd = lStart + lLength;
+
+        if (!bIsSecure && socketChannel != null && ServerOptions.getBoolean(ServerOptions.FLAG_SENDFILE, true)) {
+            out.flush();  // header and part header are still in the stream buffer
+            while (lPosition < lEnd) {
+                long lSent = fileChannel.transferTo(lPosition, lEnd - lPosition, socketChannel);
+                if (lSent <= 0 && lPosition >= fileChannel.size()) {
+                    throw new EOFException("file shrank while sending a range");
+                }
+                lPosition += lSent;
+            }
+            return;
+        }
+
+        ByteBuffer buffer = BufferPool.acquireHeap();
+        try {
+            while (lPosition < lEnd) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), lEnd - lPosition));
+                int iRead = fileChannel.read(buffer, lPosition);
+                if (iRead < 0) {
+                    throw new EOFException("file shrank while sending a range");
+                }
+                out.write(buffer.array(), 0, iRead);
+                lPosition += iRead;
+            }
+        } finally {
+            BufferPool.release(buffer);
         }
     }
 
-    // send the file
-    private void sendFile(FileInputStream fin, DataOutputStream out) {
-        byte[] buffer = new byte[1024];
-        int bytesRead;
+    // send the metrics in Prometheus text format (body left out for HEAD)
+    private void sendMetrics(String sHTTPMethod, String sHTTPRequest, boolean bPersistentConnection) {
+        byte[] body = ServerMetrics.getBody();
+        boolean bIsBodySent = isMessageSend(sHTTPMethod, 200);
 
         try {
-            while ((bytesRead = fin.read(buffer)) != -1) {
-                out.write(buffer, 0, bytesRead);
+            outToClient.write(ServerMetrics.getHeader(body.length, bPersistentConnection, bIsSecure));
+            if (bIsBodySent) {
+                outToClient.write(body);
+            }
+            logRequest(sHTTPMethod, sHTTPRequest, 200, bIsBodySent ? body.length : 0);
+
+            // close connection
+            if (!bPersistentConnection) {
+                outToClient.close();
+            }
+        } catch (IOException e) {
+            AccessLog.error("The metrics response did not complete:", e);
+        }
+    }
+
+    // forward the request on a proxy route and relay the upstream's response -> false if the connection must close
+    // (the body may have been cut short, or be framed by the close)
+    private boolean sendProxied(ProxyRoutes.Route route, String sHTTPMethod, String sHTTPRequest,
+                                boolean bPersistentConnection) {
+        ReverseProxy proxy = new ReverseProxy(route, requestParser, connectedClient, inFromClient, outToClient,
+                bIsSecure);
+        boolean bIsKeptAlive = false;
+        try {
+            bIsKeptAlive = proxy.forward(bPersistentConnection);
+
+            // close connection
+            if (!bIsKeptAlive) {
+                outToClient.close();
             }
-            fin.close();
         } catch (IOException e) {
-            System.out.println("There was an error sending the file to the client:");
-            System.out.println("  " + e);
+            AccessLog.error("The proxied response did not complete:", e);
+        }
+        logRequest(sHTTPMethod, sHTTPRequest, proxy.getStatusCode(), proxy.getBodyBytes());
+        return bIsKeptAlive;
+    }
+
+    // answer a request over the client's limits with 429 and the seconds to wait before retrying
+    private void sendTooManyRequests(String sHTTPMethod, String sHTTPRequest, long lWaitNanos,
+                                     boolean bPersistentConnection) {
+        byte[] body = ClientLimits.getBody();
+        boolean bIsBodySent = isMessageSend(sHTTPMethod, ClientLimits.STATUS_CODE);
+
+        try {
+            outToClient.writeBytes(ClientLimits.getHeader(ClientLimits.getRetryAfterSeconds(lWaitNanos), body.length,
+                    bPersistentConnection, bIsSecure));
+            if (bIsBodySent) {
+                outToClient.write(body);
+            }
+            logRequest(sHTTPMethod, sHTTPRequest, ClientLimits.STATUS_CODE, bIsBodySent ? body.length : 0);
+
+            // close connection
+            if (!bPersistentConnection) {
+                outToClient.close();
+            }
+        } catch (IOException e) {
+            AccessLog.error("The too many requests response did not complete:", e);
+        }
+    }
+
+    // log the answered request and record it in the metrics
+    private void logRequest(String sHTTPMethod, String sHTTPRequest, int iStatusCode, long lBodyBytes) {
+        if (AccessLog.isAccessEnabled()) {
+            AccessLog.request(sHTTPMethod, sHTTPRequest, iStatusCode, lBodyBytes, lRequestStartNanos, bIsSecure,
+                    connectedClient.getInetAddress());
+        }
+        ServerMetrics.requestDone(bIsSecure, iStatusCode, lBodyBytes, lRequestStartNanos, iRequestCount++ > 0);
+        if (client != null) {
+            client.sent(lBodyBytes);  // null when rejected before the client was counted
+        }
+    }
+
+    // write every buffer to the channel (blocking channel, but a gathered write may still be partial)
+    private void writeFully(SocketChannel socketChannel, ByteBuffer[] buffers) throws IOException {
+        long lRemaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            lRemaining += buffer.remaining();
+        }
+        while (lRemaining > 0) {
+            lRemaining -= socketChannel.write(buffers);
+        }
+    }
+
+    // write the buffers to the buffered stream (coalesced with the rest of the batch)
+    private void streamBuffers(ByteBuffer[] buffers, DataOutputStream out) throws IOException {
+        for (ByteBuffer buffer : buffers) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+    }
+
+    // send the file -> zero-copy transferTo on plain sockets; otherwise (TLS or --sendfile=false)
+    // a shared mapping for large files, or a pooled buffer copy
+    private void sendFile(String sFilePath, FileChannel fileChannel, DataOutputStream out) {
+        SocketChannel socketChannel = connectedClient.getChannel();
+        boolean bIsChannelSend = !bIsSecure && socketChannel != null;
+        boolean bUseSendfile = ServerOptions.getBoolean(ServerOptions.FLAG_SENDFILE, true);
+        MappedFileCache.Mapping mapping = null;
+
+        try {
+            if (bIsChannelSend) {
+                out.flush();  // header (and earlier responses) are still in the stream buffer
+            }
+            if (bIsChannelSend && bUseSendfile) {
+                transferFile(fileChannel, socketChannel);
+            } else if ((mapping = MappedFileCache.acquire(sFilePath, fileChannel, siteIndex)) != null) {
+                sendMapping(mapping.getBuffer(), bIsChannelSend ? socketChannel : null, out);
+            } else if (bIsChannelSend) {
+                copyFile(fileChannel, socketChannel);
+            } else {
+                streamFile(fileChannel, out);
+            }
+        } catch (IOException e) {
+            AccessLog.error("There was an error sending the file to the client:", e);
+        } finally {
+            if (mapping != null) {
+                mapping.release();
+            }
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                // nothing left to clean up
+            }
+        }
+    }
+
+    // send the folder listing a chunk at a time (body left out for HEAD)
+    private void sendListing(String sHTTPMethod, String sHTTPRequest, boolean bIsChunked,
+                             boolean bPersistentConnection) throws IOException {
+        outToClient.write(DirectoryListing.getHeader(bIsChunked, bPersistentConnection, bIsSecure)
+                .getBytes(StandardCharsets.ISO_8859_1));
+        long lBodyBytes = 0;
+        if (isMessageSend(sHTTPMethod, 200)) {
+            DirectoryListing.Body body = DirectoryListing.open(siteIndex, sHTTPRequest, bIsChunked);
+            try {
+                ByteBuffer buffer;
+                while ((buffer = body.next()) != null) {
+                    outToClient.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                }
+            } finally {
+                body.close();
+            }
+            lBodyBytes = body.getBodyBytes();
+        }
+        logRequest(sHTTPMethod, sHTTPRequest, 200, lBodyBytes);
+    }
+
+    // send the file with FileChannel.transferTo (sendfile) -> file bytes never enter the JVM heap
+    static void transferFile(FileChannel fileChannel, SocketChannel socketChannel) throws IOException {
+        long lPosition = 0;
+        long lSize = fileChannel.size();
+        while (lPosition < lSize) {
+            long lSent = fileChannel.transferTo(lPosition, lSize - lPosition, socketChannel);
+            if (lSent <= 0 && lPosition >= fileChannel.size()) {
+                throw new EOFException("file shrank while sending");
+            }
+            lPosition += lSent;
+        }
+    }
+
+    // send the mapped file -> straight from the mapping to a channel, or in pooled chunks to a stream (TLS)
+    static void sendMapping(ByteBuffer mappedBuffer, SocketChannel socketChannel, DataOutputStream out) throws IOException {
+        if (socketChannel != null) {
+            while (mappedBuffer.hasRemaining()) {
+                socketChannel.write(mappedBuffer);
+            }
+            return;
+        }
+
+        ByteBuffer buffer = BufferPool.acquireHeap();
+        try {
+            while (mappedBuffer.hasRemaining()) {
+                int iChunk = Math.min(buffer.capacity(), mappedBuffer.remaining());
+                mappedBuffer.get(buffer.array(), 0, iChunk);
+                out.write(buffer.array(), 0, iChunk);
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    // send the file through a pooled direct buffer -> one read and one write per 256 KB
+    static void copyFile(FileChannel fileChannel, SocketChannel socketChannel) throws IOException {
+        ByteBuffer buffer = BufferPool.acquireDirect();
+        try {
+            while (fileChannel.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    socketChannel.write(buffer);
+                }
+                buffer.clear();
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    // send the file through a pooled heap buffer to the output stream (TLS sockets have no channel)
+    static void streamFile(FileChannel fileChannel, DataOutputStream out) throws IOException {
+        ByteBuffer buffer = BufferPool.acquireHeap();
+        try {
+            int bytesRead;
+            while ((bytesRead = fileChannel.read(buffer)) != -1) {
+                out.write(buffer.array(), 0, bytesRead);
+                buffer.clear();
+            }
+        } finally {
+            BufferPool.release(buffer);
         }
     }
 
@@ -232,22 +731,128 @@ public class ClientThread extends Thread {
     //  HTTP HELPERS
     //****************
 
+    // get the full header block (status line through blank line) for the response
+    // shared by ClientThread and the NIO engine so both send identical headers
+    static String getHeader(String sHTTPRequest, int iStatusCode, String sResponse, long lContentLength,
+                            String sContentEncoding, boolean bPersistentConnection, boolean bIsSecure) {
+        return getHeaderFields(sHTTPRequest, iStatusCode, sResponse, lContentLength, sContentEncoding, bIsSecure)
+                + getHeaderEnd(bPersistentConnection);
+    }
+
+    // get the header lines that don't depend on the connection (status line through Content-Length)
+    // these are the same for every response to a file, so ResponseCache renders them once
+    static String getHeaderFields(String sHTTPRequest, int iStatusCode, String sResponse, long lContentLength,
+                                  boolean bIsSecure) {
+        return getHeaderFields(sHTTPRequest, iStatusCode, sResponse, lContentLength, null, bIsSecure);
+    }
+
+    // get the header lines for a body sent with a content encoding (null for identity)
+    // a 304 has no body -> only the validators of the variant the client holds (sContentEncoding picks its ETag)
+    static String getHeaderFields(String sHTTPRequest, int iStatusCode, String sResponse, long lContentLength,
+                                  String sContentEncoding, boolean bIsSecure) {
+        boolean bIsRedirect = RedirectRules.isRedirectStatusCode(iStatusCode);
+        boolean bIsNotModified = iStatusCode == 304;
+
+        StringBuilder sHeader = new StringBuilder(256);
+        sHeader.append(getStatusLine(iStatusCode)).append(END_LINE);
+        if (bIsRedirect) {
+            sHeader.append("Location: ").append(sResponse).append(END_LINE);  // only send Location on redirect
+        }
+        sHeader.append(getServerDetails(bIsSecure)).append(END_LINE);
+        if (!bIsNotModified) {
+            // a file's own type for 200, otherwise the body is a message from the server
+            sHeader.append((iStatusCode == 200) ? getContentType(sHTTPRequest) : MimeTypes.getHtmlHeaderLine())
+                    .append(END_LINE);
+            sHeader.append("Content-Length: ").append(bIsRedirect ? 0 : lContentLength).append(END_LINE);  // no body
+        }
+        if (sContentEncoding != null && !bIsNotModified) {
+            sHeader.append("Content-Encoding: ").append(sContentEncoding).append(END_LINE);
+        }
+        if (iStatusCode == 200 || bIsNotModified) {
+            appendValidators(sHeader, sHTTPRequest, sContentEncoding);
+        }
+        if (iStatusCode == 416) {
+            FileMetadataCache.Metadata fileMetadata = FileMetadataCache.get(getFilePath(sHTTPRequest));
+            if (fileMetadata != null) {
+                sHeader.append("Content-Range: bytes */").append(fileMetadata.getSize()).append(END_LINE);
+            }
+        }
+        if ((iStatusCode == 200 || bIsNotModified) && CompressionCache.isCompressible(sHTTPRequest)) {
+            sHeader.append("Vary: Accept-Encoding").append(END_LINE);  // body depends on Accept-Encoding
+        }
+        if (iStatusCode == 503) {
+            sHeader.append("Retry-After: ").append(RETRY_AFTER_SECONDS).append(END_LINE);  // only if busy
+        }
+        return sHeader.toString();
+    }
+
+    // append ETag, Last-Modified, Cache-Control and Accept-Ranges for the file (from the metadata cache, stat'ed once)
+    static void appendValidators(StringBuilder sHeader, String sHTTPRequest, String sContentEncoding) {
+        FileMetadataCache.Metadata fileMetadata = FileMetadataCache.get(getFilePath(sHTTPRequest));
+        if (fileMetadata == null) {
+            return;
+        }
+        sHeader.append("ETag: ").append(fileMetadata.getETag(sContentEncoding)).append(END_LINE);
+        sHeader.append("Last-Modified: ").append(fileMetadata.getLastModified()).append(END_LINE);
+        sHeader.append("Cache-Control: ").append(FileMetadataCache.getCacheControl()).append(END_LINE);
+        sHeader.append("Accept-Ranges: bytes").append(END_LINE);
+    }
+
+    // get the end of the header: connection line and the space between header and body
+    static String getHeaderEnd(boolean bPersistentConnection) {
+        return getConnectionLine(bPersistentConnection) + END_LINE + END_LINE;
+    }
+
+    // check if the response body is the requested file
+    static boolean isFileSend(String sHTTPMethod, int iStatusCode) {
+        return sHTTPMethod.equalsIgnoreCase("GET") && iStatusCode == 200;
+    }
+
+    // check if the response body is the HTML message (not sent for redirects, 304 or HEAD)
+    static boolean isMessageSend(String sHTTPMethod, int iStatusCode) {
+        return !RedirectRules.isRedirectStatusCode(iStatusCode) && iStatusCode != 304
+                && !sHTTPMethod.equalsIgnoreCase("HEAD");
+    }
+
+    // get the ranges of a Range request for a file -> null to send the whole file (no usable Range header)
+    static ByteRanges getRanges(int iStatusCode, String sHTTPMethod, String sHTTPRequest, String sRange,
+                                String sIfRange) {
+        if (sRange == null || !isFileSend(sHTTPMethod, iStatusCode)) {
+            return null;  // only GET uses ranges
+        }
+        return ByteRanges.get(sRange, sIfRange, getFilePath(sHTTPRequest));
+    }
+
+    // get 304 instead of 200 when the client's copy of the file (or of its encoded variant) is current
+    static int getConditionalStatusCode(int iStatusCode, String sHTTPRequest, String sContentEncoding,
+                                        String sIfNoneMatch, String sIfModifiedSince) {
+        if (iStatusCode != 200 || (sIfNoneMatch == null && sIfModifiedSince == null)) {
+            return iStatusCode;
+        }
+        FileMetadataCache.Metadata fileMetadata = FileMetadataCache.get(getFilePath(sHTTPRequest));
+        return FileMetadataCache.isNotModified(fileMetadata, sContentEncoding, sIfNoneMatch, sIfModifiedSince)
+                ? 304 : iStatusCode;
+    }
+
     // get the status code for based on the HTTP method and request from the client
-    private int getStatusCode(String sHTTPMethod, String sHTTPRequest) {
+    static int getStatusCode(SiteIndex siteIndex, String sHTTPMethod, String sHTTPRequest) {
         // default is internal server error
         int iStatusCode = 500;
+        RedirectRules.Redirect redirect = siteIndex.getRedirect(sHTTPRequest);
 
         // update based on method and request
         if (!isSupportedMethod(sHTTPMethod)) {
             iStatusCode = 403;
-        } else if (isRedirect(sHTTPRequest)) {
-            iStatusCode = 301;
-        } else if (!isValidFile(sHTTPRequest)) {
+        } else if (redirect != null) {
+            iStatusCode = redirect.getStatusCode();  // 301, 302, 307 or 308 from the rule
+        } else if (DirectoryListing.isListing(siteIndex, sHTTPRequest)) {
+            iStatusCode = 200;  // folder without an index.html -> generated listing
+        } else if (!siteIndex.isValidFile(sHTTPRequest)) {
             iStatusCode = 404;
         } else if (!isValidContentType(sHTTPRequest)) {
             iStatusCode = 415;
-        } else if (isSupportedMethod(sHTTPMethod) && !isRedirect(sHTTPRequest)
-                && isValidFile(sHTTPRequest) && isValidContentType(sHTTPRequest)) {
+        } else if (isSupportedMethod(sHTTPMethod) && redirect == null
+                && siteIndex.isValidFile(sHTTPRequest) && isValidContentType(sHTTPRequest)) {
             iStatusCode = 200;
         }
 
@@ -256,24 +861,42 @@ public class ClientThread extends Thread {
     }
 
     // check if HTTP method is supported
-    private boolean isSupportedMethod(String sHTTPMethod) {
+    static boolean isSupportedMethod(String sHTTPMethod) {
         return Arrays.asList(SUPPORTED_METHODS).contains(sHTTPMethod.toUpperCase());
     }
 
     // get the response that should be sent to the client based on HTTP method, request, & status code
-    private String getResponse(String sHTTPMethod, String sHTTPRequest, int iStatusCode) {
+    static String getResponse(SiteIndex siteIndex, String sHTTPMethod, String sHTTPRequest, int iStatusCode) {
         // default is internal server error
         String sResponse = HTML_START + "There was an internal error with the server." + HTML_END;
 
         // update based on status code
-        if (iStatusCode == 403) {
+        if (iStatusCode == 400) {
+            sResponse = HTML_START + "Bad request" + HTML_END;
+        } else if (iStatusCode == 403) {
             sResponse = HTML_START + "HTTP method not supported" + HTML_END;
-        } else if (iStatusCode == 301) {
-            sResponse = getRedirectURL(sHTTPRequest);
+        } else if (RedirectRules.isRedirectStatusCode(iStatusCode)) {
+            sResponse = siteIndex.getRedirect(sHTTPRequest).getLocation();
         } else if (iStatusCode == 404) {
             sResponse = HTML_START + "File not found" + HTML_END;
         } else if (iStatusCode == 415) {
             sResponse = HTML_START + "The server does not support this file type" + HTML_END;
+        } else if (iStatusCode == 503) {
+            sResponse = HTML_START + "The server is busy, please try again" + HTML_END;
+        } else if (iStatusCode == 429) {
+            sResponse = HTML_START + "Too many requests, please slow down" + HTML_END;
+        } else if (iStatusCode == 501) {
+            sResponse = HTML_START + "This path is not served on this connection" + HTML_END;
+        } else if (iStatusCode == 502) {
+            sResponse = HTML_START + "The upstream server could not be reached" + HTML_END;
+        } else if (iStatusCode == 504) {
+            sResponse = HTML_START + "The upstream server did not answer in time" + HTML_END;
+        } else if (iStatusCode == 304) {
+            sResponse = "";  // client already has the file
+        } else if (iStatusCode == 416) {
+            sResponse = HTML_START + "Requested range not satisfiable" + HTML_END;
+        } else if (iStatusCode == 206) {
+            sResponse = getFilePath(sHTTPRequest);
         } else if (iStatusCode == 200 ) {
             sResponse = (sHTTPMethod.equalsIgnoreCase("GET")) ? getFilePath(sHTTPRequest) : "";
         }
@@ -283,87 +906,78 @@ public class ClientThread extends Thread {
     }
 
     // get the status line to return based on status code
-    private String getStatusLine(int iStatusCode) {
+    static String getStatusLine(int iStatusCode) {
         String sStatus = "HTTP/1.1 ";
         if (iStatusCode == 200) {
             sStatus += iStatusCode + " OK";
+        } else if (iStatusCode == 206) {
+            sStatus += iStatusCode + " Partial Content";
         } else if (iStatusCode == 301) {
             sStatus += iStatusCode + " Moved Permanently";
+        } else if (iStatusCode == 302) {
+            sStatus += iStatusCode + " Found";
+        } else if (iStatusCode == 304) {
+            sStatus += iStatusCode + " Not Modified";
+        } else if (iStatusCode == 307) {
+            sStatus += iStatusCode + " Temporary Redirect";
+        } else if (iStatusCode == 308) {
+            sStatus += iStatusCode + " Permanent Redirect";
+        } else if (iStatusCode == 400) {
+            sStatus += iStatusCode + " Bad Request";
         } else if (iStatusCode == 403) {
             sStatus += iStatusCode + " Forbidden";
         } else if (iStatusCode == 404) {
             sStatus += iStatusCode + " Not Found";
         } else if (iStatusCode == 415) {
             sStatus += iStatusCode + " Unsupported Media Type";
+        } else if (iStatusCode == 416) {
+            sStatus += iStatusCode + " Range Not Satisfiable";
+        } else if (iStatusCode == 429) {
+            sStatus += iStatusCode + " Too Many Requests";
         } else if(iStatusCode == 500) {
             sStatus += iStatusCode + " Internal Server Error";
+        } else if (iStatusCode == 501) {
+            sStatus += iStatusCode + " Not Implemented";
+        } else if (iStatusCode == 502) {
+            sStatus += iStatusCode + " Bad Gateway";
+        } else if (iStatusCode == 504) {
+            sStatus += iStatusCode + " Gateway Timeout";
+        } else if (iStatusCode == 503) {
+            sStatus += iStatusCode + " Service Unavailable";
         }
         return sStatus;
     }
 
-    // get the connection line
-    private String getConnectionLine(boolean bPersistentConnection) {
+    // get the connection line (plus the Keep-Alive line when the connection stays open)
+    static String getConnectionLine(boolean bPersistentConnection) {
         String sConnection = "Connection: ";
         String sConnectionStatus = (bPersistentConnection ? "keep-alive" : "close");
+        if (bPersistentConnection) {
+            sConnectionStatus += END_LINE + ConnectionLimits.getKeepAliveLine();  // idle timeout and request limit
+        }
         return sConnection + sConnectionStatus;
     }
 
     // get the server details (secure or unsecure)
-    private String getServerDetails() {
+    static String getServerDetails(boolean bIsSecure) {
         String sServerLine = "Server: Ramon's Killer ";
         String sSocketType = (bIsSecure ? "(SECURE)" : "(unsecure)");
         sServerLine = sServerLine + sSocketType + " Server";
         return sServerLine;
     }
 
-    // get the content type to return
-    private String getContentType(String sHTTPRequest) {
-        String sContentType = "Content-Type: ";
-
-        // update based on file extension or if response starts with HTML/URL
-            String sFileExtension = getFileExtension(sHTTPRequest);
-            if (sFileExtension.equalsIgnoreCase(".html") || sFileExtension.equalsIgnoreCase(".htm")) {
-                sContentType += "text/html";
-            } else if (sFileExtension.equalsIgnoreCase(".txt")) {
-                sContentType += "text/plain";
-            } else if (sFileExtension.equalsIgnoreCase(".pdf")) {
-                sContentType += "application/pdf";
-            } else if (sFileExtension.equalsIgnoreCase(".png")) {
-                sContentType += "image/png";
-            } else if (sFileExtension.equalsIgnoreCase(".jpeg") || sFileExtension.equalsIgnoreCase(".jpg")) {
-                sContentType += "image/jpeg";
-            } else {
-                sContentType += "text/html";  // default response
-            }
-
-        // return final content type
-        return sContentType;
-    }
-
-    // check if request is redirect
-    private boolean isRedirect(String sHTTPRequest) {
-        return sRedirects.containsKey(sHTTPRequest);
-    }
-
-    // get the final URL location if request is a redirect
-    private String getRedirectURL(String sHTTPRequest) {
-        return sRedirects.get(sHTTPRequest);
-    }
-
-    // check if content type is supported
-    private boolean isValidContentType(String sHTTPRequest) {
-        String sFileType = getFileExtension(sHTTPRequest);
-        return Arrays.asList(SUPPORTED_FILE_TYPES).contains(sFileType);
+    // get the content type line to return (see MimeTypes)
+    static String getContentType(String sHTTPRequest) {
+        return MimeTypes.getHeaderLine(sHTTPRequest);
     }
 
-    // check if HTTP request is a valid file - i.e. among available files in root server
-    private boolean isValidFile(String sHTTPRequest) {
-        String sRootFolder = "/" + ROOT_FOLDER.getName();
-        return sAvailableFiles.contains(sRootFolder + sHTTPRequest.toLowerCase());
+    // check if content type is supported (or unknown types are served)
+    static boolean isValidContentType(String sHTTPRequest) {
+        return MimeTypes.isServable(sHTTPRequest);
     }
 
     // get file extension, http://stackoverflow.com/questions/3571223/how-do-i-get-the-file-extension-of-a-file-in-java
-    private String getFileExtension(String sFileName) {
+    static String getFileExtension(String sFileName) {
         String sExt = "";
         int i = sFileName.lastIndexOf('.');
         if (i > 0) {
@@ -373,57 +987,9 @@ public class ClientThread extends Thread {
     }
 
     // get the file path for the HTTP request
-    private String getFilePath(String sHTTPRequest) {
+    static String getFilePath(String sHTTPRequest) {
         return sHTTPRequest.replaceFirst("/", "");
 
     }
 
-
-    //*************************
-    //  INITIALIZATION HELPERS
-    //*************************
-
-    // get list of valid file requests
-    private List<String> getValidFiles(File currentFolder) {
-        File[] subFiles = currentFolder.listFiles();
-        List<String> sValidFiles = new ArrayList<>();
-
-        // recurse through root directory, http://stackoverflow.com/questions/1844688/read-all-files-in-a-folder
-        // valid file must not be a directory, not be the redirect file, and be a supported content type
-        if (subFiles != null) {
-            for (File fileEntry : subFiles) {
-                String sFileName = fileEntry.getPath();
-                if (fileEntry.isDirectory()) {
-                    sValidFiles.addAll(getValidFiles(fileEntry));
-                } else if (isValidContentType(sFileName) && !sFileName.equals(REDIRECT_FILE_NAME)) {
-                    sValidFiles.add(sFileName.replaceFirst(".","").toLowerCase());
-                }
-            }
-        }
-        return sValidFiles;
-    }
-
-    // get a map of redirect original URLS and matching location URLs to redirect client
-    private Map<String, String> getRedirects(String sRedirectFileName) {
-        try {
-            // create Buffered reader to read file and String to store each line
-            BufferedReader reader = new BufferedReader(new FileReader(sRedirectFileName));
-            String line;
-
-            // read each line with space delimiter in form: sOriginal sNewURL
-            while ((line = reader.readLine()) != null) {
-                StringTokenizer tokenizer = new StringTokenizer(line);
-                String sOriginalRequest =  tokenizer.nextToken();
-                String sNewURL = tokenizer.nextToken();
-                sRedirects.put(sOriginalRequest, sNewURL);
-            }
-            reader.close();
-        } catch (IOException e) {
-            System.out.println("There was an error created the map of redirects:");
-            System.out.println("  " + e);
-        }
-
-        return sRedirects;
-    }
-
 }
\ No newline at end of file
@@ -0,0 +1,386 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * CompressionCache negotiates gzip or deflate from Accept-Encoding for compressible types (text, json, javascript,
+ *   xml and svg - see MimeTypes) of files that are served with 200
+ * CompressionCache serves a precompressed sibling (e.g. index.html.gz) for gzip when one exists,
+ *   otherwise compresses the file once (--compressionLevel) and keeps the result
+ * CompressionCache holds variants within a byte budget (--compressionCacheBytes, least recently used evicted first)
+ *   and only compresses files up to --compressionMaxFileBytes (larger ones are sent as they are)
+ * CompressionCache variants are revalidated against the file's (and sibling's) mtime and size after each SiteIndex reload
+ * CompressionCache is turned off with --compression=false
+ */
+
+final class CompressionCache {
+
+    // constants for encodings
+    static final String ENCODING_GZIP = "gzip";
+    static final String ENCODING_DEFLATE = "deflate";
+    private static final String PRECOMPRESSED_SUFFIX = ".gz";
+
+    // constants for defaults
+    private static final long DEFAULT_CACHE_BYTES = 32L * 1024 * 1024;
+    private static final long DEFAULT_MAX_FILE_BYTES = 1024L * 1024;
+
+    // settings (read once from flags)
+    private static final boolean bEnabled = ServerOptions.getBoolean(ServerOptions.FLAG_COMPRESSION, true);
+    private static final long lBudgetBytes = ServerOptions.getLong(ServerOptions.FLAG_COMPRESSION_CACHE_BYTES,
+            DEFAULT_CACHE_BYTES);
+    private static final long lMaxFileBytes = Math.min(ServerOptions.getLong(
+            ServerOptions.FLAG_COMPRESSION_MAX_FILE_BYTES, DEFAULT_MAX_FILE_BYTES), Integer.MAX_VALUE);
+    private static final int iLevel = ServerOptions.getInt(ServerOptions.FLAG_COMPRESSION_LEVEL,
+            Deflater.DEFAULT_COMPRESSION);
+
+    // variants in least -> most recently used order, and variants being built (both guarded by the map's lock)
+    private static final LinkedHashMap<String, Variant> variants = new LinkedHashMap<>(64, 0.75f, true);
+    private static final Map<String, FutureTask<Variant>> loads = new HashMap<>();
+    private static long lUsedBytes;
+
+    // counters
+    private static final AtomicLong compressions = new AtomicLong();
+    private static final AtomicLong compressedInputBytes = new AtomicLong();
+    private static final AtomicLong compressedOutputBytes = new AtomicLong();
+
+    // no instances - cache is process wide
+    private CompressionCache() {
+    }
+
+    // check if the requested file's type is worth compressing (images and PDFs are already compressed)
+    static boolean isCompressible(String sHTTPRequest) {
+        return MimeTypes.isCompressible(sHTTPRequest);
+    }
+
+    // get the encoding to answer with -> null to send the file as it is
+    static String getEncoding(String sAcceptEncoding, String sHTTPRequest) {
+        if (!bEnabled || sAcceptEncoding == null || !isCompressible(sHTTPRequest)) {
+            return null;
+        }
+
+        // quality of each coding the client listed (* covers the ones it didn't name)
+        double dGzip = -1;
+        double dDeflate = -1;
+        double dAny = -1;
+        for (String sCoding : sAcceptEncoding.split(",")) {
+            String[] sParts = sCoding.split(";");
+            String sName = sParts[0].trim().toLowerCase();
+            double dQuality = getQuality(sParts);
+            if (sName.equals(ENCODING_GZIP) || sName.equals("x-gzip")) {
+                dGzip = dQuality;
+            } else if (sName.equals(ENCODING_DEFLATE)) {
+                dDeflate = dQuality;
+            } else if (sName.equals("*")) {
+                dAny = dQuality;
+            }
+        }
+        dGzip = (dGzip < 0) ? dAny : dGzip;
+        dDeflate = (dDeflate < 0) ? dAny : dDeflate;
+
+        // prefer gzip on a tie (precompressed siblings are gzip)
+        String sEncoding = null;
+        if (dGzip > 0 && dGzip >= dDeflate) {
+            sEncoding = ENCODING_GZIP;
+        } else if (dDeflate > 0) {
+            sEncoding = ENCODING_DEFLATE;
+        }
+        return (sEncoding != null && canEncode(sHTTPRequest, sEncoding)) ? sEncoding : null;
+    }
+
+    // get the compressed variant of the file, building it on a miss -> null to send the file as it is
+    static Variant get(String sHTTPRequest, String sFilePath, String sEncoding, SiteIndex siteIndex) {
+        if (lBudgetBytes <= 0) {
+            return null;
+        }
+        String sKey = sEncoding + " " + sHTTPRequest;
+
+        // hit, or join a build of the same variant that is already running
+        FutureTask<Variant> load;
+        boolean bIsLoader = false;
+        synchronized (variants) {
+            Variant variant = variants.get(sKey);
+            if (variant != null && variant.isCurrent(siteIndex)) {
+                return variant;
+            }
+            load = loads.get(sKey);
+            if (load == null) {
+                load = new FutureTask<>(new VariantLoader(sHTTPRequest, sFilePath, sEncoding, siteIndex));
+                loads.put(sKey, load);
+                bIsLoader = true;
+            }
+        }
+
+        // build outside the lock (one thread per variant), then publish
+        if (bIsLoader) {
+            load.run();
+        }
+        Variant variant;
+        try {
+            variant = load.get();
+        } catch (InterruptedException | ExecutionException e) {
+            variant = null;
+        }
+        if (bIsLoader) {
+            synchronized (variants) {
+                loads.remove(sKey);
+                remove(sKey);
+                if (variant != null) {
+                    variants.put(sKey, variant);
+                    lUsedBytes += variant.getSize();
+                    evictToBudget();
+                }
+            }
+        }
+        return variant;
+    }
+
+    // get count of files compressed on the fly
+    static long getCompressions() {
+        return compressions.get();
+    }
+
+    // get bytes read by on the fly compression
+    static long getCompressedInputBytes() {
+        return compressedInputBytes.get();
+    }
+
+    // get bytes written by on the fly compression
+    static long getCompressedOutputBytes() {
+        return compressedOutputBytes.get();
+    }
+
+    // get the bytes currently held by the cache
+    static long getUsedBytes() {
+        synchronized (variants) {
+            return lUsedBytes;
+        }
+    }
+
+
+    //*****************
+    //  CACHE HELPERS
+    //*****************
+
+    // get the q value of one Accept-Encoding entry (1 when not given, 0 when malformed)
+    private static double getQuality(String[] sParts) {
+        for (int i = 1; i < sParts.length; i++) {
+            String sParameter = sParts[i].trim();
+            if (sParameter.startsWith("q=") || sParameter.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(sParameter.substring(2));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    // check the variant fits the limits (decided up front so headers and ETags match the body that is sent)
+    private static boolean canEncode(String sHTTPRequest, String sEncoding) {
+        FileMetadataCache.Metadata fileMetadata = FileMetadataCache.get(ClientThread.getFilePath(sHTTPRequest));
+        if (fileMetadata == null || lBudgetBytes <= 0) {
+            return false;
+        }
+        long lSize = (sEncoding.equals(ENCODING_GZIP) && fileMetadata.hasSibling())
+                ? fileMetadata.getSiblingSize() : fileMetadata.getSize();
+        return lSize <= lMaxFileBytes && lSize <= lBudgetBytes;
+    }
+
+    // read the precompressed sibling, or compress the file -> null if too large or unreadable
+    private static Variant load(String sHTTPRequest, String sFilePath, String sEncoding, SiteIndex siteIndex) {
+        File file = new File(ClientThread.ROOT_FOLDER, sFilePath);
+        File sibling = new File(ClientThread.ROOT_FOLDER, sFilePath + PRECOMPRESSED_SUFFIX);
+        long lLastModified = file.lastModified();
+        long lSize = file.length();
+        long lSiblingLastModified = sibling.lastModified();  // 0 if there is no sibling
+        long lSiblingSize = sibling.length();
+
+        byte[] body;
+        try {
+            if (sEncoding.equals(ENCODING_GZIP) && sibling.isFile()) {
+                if (lSiblingSize > lMaxFileBytes || lSiblingSize > lBudgetBytes) {
+                    return null;
+                }
+                body = readFile(sibling, lSiblingSize);
+            } else {
+                if (lSize > lMaxFileBytes || lSize > lBudgetBytes) {
+                    return null;
+                }
+                body = compress(readFile(file, lSize), sEncoding);
+            }
+        } catch (IOException e) {
+            return null;  // file changed or vanished under us -> serve it uncompressed
+        }
+
+        // the Server line differs for HTTP and HTTPS, so render both once
+        byte[] unsecureFields = ClientThread.getHeaderFields(sHTTPRequest, 200, sFilePath, body.length, sEncoding,
+                false).getBytes(StandardCharsets.ISO_8859_1);
+        byte[] secureFields = ClientThread.getHeaderFields(sHTTPRequest, 200, sFilePath, body.length, sEncoding,
+                true).getBytes(StandardCharsets.ISO_8859_1);
+        return new Variant(file, lLastModified, lSize, sibling, lSiblingLastModified, body, unsecureFields,
+                secureFields, siteIndex);
+    }
+
+    // read the whole file
+    private static byte[] readFile(File file, long lSize) throws IOException {
+        byte[] bytes = new byte[(int) lSize];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(bytes);
+        }
+        return bytes;
+    }
+
+    // compress the bytes with gzip or zlib deflate (HTTP "deflate" is the zlib format)
+    private static byte[] compress(byte[] raw, String sEncoding) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 2 + 64);
+        Deflater deflater = null;  // the gzip stream owns (and ends) its own deflater
+        DeflaterOutputStream out;
+        if (sEncoding.equals(ENCODING_GZIP)) {
+            out = new LeveledGZIPOutputStream(compressed, iLevel);
+        } else {
+            deflater = new Deflater(iLevel);
+            out = new DeflaterOutputStream(compressed, deflater);
+        }
+        try {
+            out.write(raw);
+            out.close();
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+        compressions.incrementAndGet();
+        compressedInputBytes.addAndGet(raw.length);
+        compressedOutputBytes.addAndGet(compressed.size());
+        return compressed.toByteArray();
+    }
+
+    // drop the least recently used variants until the cache fits the budget (caller holds the lock)
+    private static void evictToBudget() {
+        Iterator<Variant> iterator = variants.values().iterator();
+        while (lUsedBytes > lBudgetBytes && iterator.hasNext()) {
+            lUsedBytes -= iterator.next().getSize();
+            iterator.remove();
+        }
+    }
+
+    // drop the variant for the key if present (caller holds the lock)
+    private static void remove(String sKey) {
+        Variant removed = variants.remove(sKey);
+        if (removed != null) {
+            lUsedBytes -= removed.getSize();
+        }
+    }
+
+
+    //*****************
+    //  VARIANT LOADER
+    //*****************
+
+    // builds one variant for the FutureTask that other requests for it wait on
+    private static final class VariantLoader implements Callable<Variant> {
+
+        private final String sHTTPRequest;
+        private final String sFilePath;
+        private final String sEncoding;
+        private final SiteIndex siteIndex;
+
+        // loader constructor
+        VariantLoader(String sHTTPRequest, String sFilePath, String sEncoding, SiteIndex siteIndex) {
+            this.sHTTPRequest = sHTTPRequest;
+            this.sFilePath = sFilePath;
+            this.sEncoding = sEncoding;
+            this.siteIndex = siteIndex;
+        }
+
+        public Variant call() {
+            return load(sHTTPRequest, sFilePath, sEncoding, siteIndex);
+        }
+    }
+
+    // GZIPOutputStream with a compression level (the JDK class always uses the default)
+    private static final class LeveledGZIPOutputStream extends GZIPOutputStream {
+
+        LeveledGZIPOutputStream(OutputStream out, int iLevel) throws IOException {
+            super(out);
+            def.setLevel(iLevel);
+        }
+    }
+
+
+    //***********
+    //  VARIANT
+    //***********
+
+    // one compressed file: encoded body plus header fields for HTTP and HTTPS
+    static final class Variant {
+
+        private final File file;
+        private final long lLastModified;
+        private final long lFileSize;
+        private final File sibling;
+        private final long lSiblingLastModified;
+        private final byte[] body;
+        private final byte[] unsecureFields;
+        private final byte[] secureFields;
+        private volatile SiteIndex validatedIndex;
+
+        // variant constructor
+        private Variant(File file, long lLastModified, long lFileSize, File sibling, long lSiblingLastModified,
+                        byte[] body, byte[] unsecureFields, byte[] secureFields, SiteIndex validatedIndex) {
+            this.file = file;
+            this.lLastModified = lLastModified;
+            this.lFileSize = lFileSize;
+            this.sibling = sibling;
+            this.lSiblingLastModified = lSiblingLastModified;
+            this.body = body;
+            this.unsecureFields = unsecureFields;
+            this.secureFields = secureFields;
+            this.validatedIndex = validatedIndex;
+        }
+
+        // get the complete response as buffers for one gathered write (fresh buffers per call)
+        ByteBuffer[] getBuffers(boolean bIsSecure, boolean bPersistentConnection) {
+            return new ByteBuffer[] {
+                    ByteBuffer.wrap(bIsSecure ? secureFields : unsecureFields),
+                    ByteBuffer.wrap(ResponseCache.getHeaderEnd(bPersistentConnection)),
+                    ByteBuffer.wrap(body)
+            };
+        }
+
+        // get the encoded body length
+        int getBodyLength() {
+            return body.length;
+        }
+
+        // get the header and body bytes held by this variant
+        long getSize() {
+            return body.length + unsecureFields.length + secureFields.length;
+        }
+
+        // check the variant still matches the file and its sibling (a sibling may appear, change or go away)
+        private boolean isCurrent(SiteIndex siteIndex) {
+            if (validatedIndex == siteIndex) {
+                return true;
+            }
+            if (file.lastModified() == lLastModified && file.length() == lFileSize
+                    && sibling.lastModified() == lSiblingLastModified) {
+                validatedIndex = siteIndex;
+                return true;
+            }
+            return false;
+        }
+    }
+
+}
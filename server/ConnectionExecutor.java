@@ -0,0 +1,152 @@
+package server;
+
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ConnectionExecutor runs a ClientThread for each socket accepted by WebServer
+ * ConnectionExecutor mode is picked with --executor=thread|pool|virtual
+ *   thread:  new platform thread per connection (original behavior, unbounded)
+ *   pool:    bounded platform pool (--workerThreads, --workerQueue), rejects with 503 when full
+ *   virtual: virtual thread per connection (needs a Java runtime with virtual threads)
+ * ConnectionExecutor turns clients away with 503 once --maxConnections are open (see ConnectionLimits)
+ * ConnectionExecutor writes the 503s on a rejecter thread of its own, so a slow client can't hold up the accept
+ *   loop (with REJECT_QUEUE already waiting, more are closed without a response)
+ */
+
+final class ConnectionExecutor {
+
+    // constants for modes
+    static final String MODE_THREAD = "thread";
+    static final String MODE_POOL = "pool";
+    static final String MODE_VIRTUAL = "virtual";
+
+    // constants for pool defaults
+    private static final int DEFAULT_WORKER_THREADS = 200;
+    private static final int DEFAULT_WORKER_QUEUE = 1000;
+    private static final String WORKER_THREAD_NAME = "client-worker-";
+
+    // constants for rejections
+    private static final int REJECT_QUEUE = 1024;
+    private static final String REJECT_THREAD_NAME = "connection-rejecter";
+
+    // rejecter shared by every mode (one thread, created with the class)
+    private static final ExecutorService rejecter = newRejecter();
+
+    // executor instance variables (null executor -> start a new thread per connection)
+    private final String sMode;
+    private final ExecutorService executor;
+
+    // executor constructor
+    private ConnectionExecutor(String sMode, ExecutorService executor) {
+        this.sMode = sMode;
+        this.executor = executor;
+    }
+
+    // create the executor for the mode -> IllegalArgumentException if the mode can't be used
+    static ConnectionExecutor create(String sMode) {
+        if (MODE_THREAD.equalsIgnoreCase(sMode)) {
+            return new ConnectionExecutor(MODE_THREAD, null);
+        } else if (MODE_POOL.equalsIgnoreCase(sMode)) {
+            return new ConnectionExecutor(MODE_POOL, newBoundedPool());
+        } else if (MODE_VIRTUAL.equalsIgnoreCase(sMode)) {
+            return new ConnectionExecutor(MODE_VIRTUAL, newVirtualThreadExecutor());
+        }
+        throw new IllegalArgumentException("unknown executor mode: " + sMode);
+    }
+
+    // get a description of the mode for the console
+    String getDescription() {
+        if (executor instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            return sMode + " (" + pool.getMaximumPoolSize() + " threads, "
+                    + pool.getQueue().remainingCapacity() + " queued)";
+        }
+        return sMode;
+    }
+
+    // handle the accepted socket on a worker -> reply 503 and close if the connection cap or the pool is full
+    // (the ClientThread task is only created for a connection that was let in)
+    void execute(Socket clientSocket, boolean bIsSecure) {
+        if (!ConnectionLimits.tryOpen()) {
+            reject(clientSocket, bIsSecure);
+            return;
+        }
+        ClientThread clientThread = new ClientThread(clientSocket, bIsSecure);
+        if (executor == null) {
+            new Thread(clientThread).start();
+            return;
+        }
+
+        try {
+            executor.execute(clientThread);
+        } catch (RejectedExecutionException e) {
+            ConnectionLimits.closed();
+            reject(clientSocket, bIsSecure);
+        }
+    }
+
+    // reply 503 on the rejecter thread -> just close if it is that far behind
+    private static void reject(final Socket clientSocket, final boolean bIsSecure) {
+        try {
+            rejecter.execute(new Runnable() {
+                public void run() {
+                    ClientThread.sendServiceUnavailable(clientSocket, bIsSecure);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            ServerMetrics.connectionRejected(bIsSecure);
+            NioConnection.closeQuietly(clientSocket);
+        }
+    }
+
+
+    //*******************
+    //  EXECUTOR HELPERS
+    //*******************
+
+    // create a fixed size pool with a bounded queue -> execute throws when both are full
+    private static ExecutorService newBoundedPool() {
+        int iThreads = ServerOptions.getInt(ServerOptions.FLAG_WORKER_THREADS, DEFAULT_WORKER_THREADS);
+        int iQueue = ServerOptions.getInt(ServerOptions.FLAG_WORKER_QUEUE, DEFAULT_WORKER_QUEUE);
+        if (iThreads < 1 || iQueue < 1) {
+            throw new IllegalArgumentException("worker threads and queue must be at least 1");
+        }
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, WORKER_THREAD_NAME + threadCount.incrementAndGet());
+            }
+        };
+        return new ThreadPoolExecutor(iThreads, iThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(iQueue), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    // create the single daemon thread that writes rejections, with a bounded queue -> execute throws when full
+    private static ExecutorService newRejecter() {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, REJECT_THREAD_NAME);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        return new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(REJECT_QUEUE), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    // create a virtual thread per task executor (looked up at runtime so the server still builds on Java 8)
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            throw new IllegalArgumentException("virtual threads are not available in Java "
+                    + System.getProperty("java.version"));
+        }
+    }
+
+}
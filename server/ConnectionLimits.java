@@ -0,0 +1,86 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ConnectionLimits holds the keep-alive limits and deadlines shared by ClientThread and NioConnection
+ * ConnectionLimits gives a request head --headerTimeout millis from its first byte (or from the connection opening)
+ *   and lets a kept alive connection wait --keepAliveTimeout millis for the next request
+ * ConnectionLimits closes a connection after --maxKeepAliveRequests requests (0 -> no limit)
+ * ConnectionLimits caps open connections over both listeners at --maxConnections (0 -> no cap) -> extra clients get 503
+ * ConnectionLimits advertises the idle timeout and request limit with a Keep-Alive header
+ */
+
+final class ConnectionLimits {
+
+    // constants for defaults
+    private static final int DEFAULT_HEADER_TIMEOUT_MILLIS = 10000;
+    private static final int DEFAULT_KEEP_ALIVE_TIMEOUT_MILLIS = 5000;
+    private static final int DEFAULT_MAX_KEEP_ALIVE_REQUESTS = 1000;
+    private static final int DEFAULT_MAX_CONNECTIONS = 10000;
+
+    // limits (read once from flags)
+    private static final int iHeaderTimeoutMillis = Math.max(1, ServerOptions.getInt(ServerOptions.FLAG_HEADER_TIMEOUT,
+            DEFAULT_HEADER_TIMEOUT_MILLIS));
+    private static final int iKeepAliveTimeoutMillis = Math.max(1, ServerOptions.getInt(
+            ServerOptions.FLAG_KEEP_ALIVE_TIMEOUT, DEFAULT_KEEP_ALIVE_TIMEOUT_MILLIS));
+    private static final int iMaxKeepAliveRequests = ServerOptions.getInt(ServerOptions.FLAG_MAX_KEEP_ALIVE_REQUESTS,
+            DEFAULT_MAX_KEEP_ALIVE_REQUESTS);
+    private static final int iMaxConnections = ServerOptions.getInt(ServerOptions.FLAG_MAX_CONNECTIONS,
+            DEFAULT_MAX_CONNECTIONS);
+
+    // Keep-Alive line (timeout in whole seconds, rounded down so clients give up on a connection first)
+    private static final String sKeepAliveLine = "Keep-Alive: timeout=" + (iKeepAliveTimeoutMillis / 1000)
+            + ((iMaxKeepAliveRequests > 0) ? ", max=" + iMaxKeepAliveRequests : "");
+
+    // connections being served by either engine
+    private static final AtomicInteger openConnections = new AtomicInteger();
+
+    // no instances - limits are process wide
+    private ConnectionLimits() {
+    }
+
+    // count a new connection -> false (not counted) if the cap is reached
+    static boolean tryOpen() {
+        while (true) {
+            int iOpen = openConnections.get();
+            if (iMaxConnections > 0 && iOpen >= iMaxConnections) {
+                return false;
+            }
+            if (openConnections.compareAndSet(iOpen, iOpen + 1)) {
+                return true;
+            }
+        }
+    }
+
+    // uncount a connection from tryOpen once it is closed
+    static void closed() {
+        openConnections.decrementAndGet();
+    }
+
+    // get the number of open connections
+    static int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    // check if the connection may stay open after its iRequestNumber-th request (counting from 1)
+    static boolean isKeepAliveAllowed(int iRequestNumber) {
+        return iMaxKeepAliveRequests <= 0 || iRequestNumber < iMaxKeepAliveRequests;
+    }
+
+    // get the millis a request head may take to arrive
+    static int getHeaderTimeoutMillis() {
+        return iHeaderTimeoutMillis;
+    }
+
+    // get the millis a kept alive connection may wait for its next request
+    static int getKeepAliveTimeoutMillis() {
+        return iKeepAliveTimeoutMillis;
+    }
+
+    // get the Keep-Alive header line sent with Connection: keep-alive
+    static String getKeepAliveLine() {
+        return sKeepAliveLine;
+    }
+
+}
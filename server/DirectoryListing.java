@@ -0,0 +1,360 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * DirectoryListing answers requests for folders under ./www
+ * DirectoryListing serves a folder's index.html when it has one (the request is rewritten, so caching,
+ *   validators, compression and ranges work as for any file) and redirects /folder to /folder/
+ * DirectoryListing otherwise generates an HTML listing of the sub folders and servable files (--directoryListing=false
+ *   -> 404 as before), sent with chunked transfer encoding (HTTP/1.0 clients get it until the connection closes)
+ * DirectoryListing caches the rendered chunks of folders up to --listingCacheEntries entries until the next
+ *   SiteIndex reload (any change under ./www); larger folders are streamed from the directory a chunk at a time,
+ *   unsorted, so they are never held in memory
+ */
+
+final class DirectoryListing {
+
+    // constants for folders
+    static final String INDEX_FILE_NAME = "index.html";
+    private static final String SLASH = "/";
+
+    // constants for rendering
+    private static final int CHUNK_BYTES = 8 * 1024;
+    private static final int DEFAULT_CACHE_ENTRIES = 1000;
+    private static final byte[] LAST_CHUNK = ("0" + ClientThread.END_LINE + ClientThread.END_LINE)
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CHUNK_END = ClientThread.END_LINE.getBytes(StandardCharsets.US_ASCII);
+
+    // settings (read once from flags)
+    private static final boolean bEnabled = ServerOptions.getBoolean(ServerOptions.FLAG_DIRECTORY_LISTING, true);
+    private static final int iMaxCachedEntries = ServerOptions.getInt(ServerOptions.FLAG_LISTING_CACHE_ENTRIES,
+            DEFAULT_CACHE_ENTRIES);
+
+    // rendered listings keyed by folder request (bounded by the folders in the site)
+    private static final ConcurrentHashMap<String, Listing> listings = new ConcurrentHashMap<>();
+
+    // no instances - listings are process wide
+    private DirectoryListing() {
+    }
+
+    // get the request to serve: a folder request ending in / with an index.html -> that file
+    static String resolveIndex(SiteIndex siteIndex, String sHTTPRequest) {
+        if (!sHTTPRequest.endsWith(SLASH) || !siteIndex.isDirectory(sHTTPRequest)) {
+            return sHTTPRequest;
+        }
+        String sIndexRequest = sHTTPRequest + INDEX_FILE_NAME;
+        return siteIndex.isValidFile(sIndexRequest) ? sIndexRequest : sHTTPRequest;
+    }
+
+    // check if the request gets a generated listing (a folder request ending in / that has no index.html)
+    static boolean isListing(SiteIndex siteIndex, String sHTTPRequest) {
+        return bEnabled && sHTTPRequest.endsWith(SLASH) && siteIndex.isDirectory(sHTTPRequest);
+    }
+
+    // get the header of a listing (chunked for HTTP/1.1, otherwise the body ends when the connection closes)
+    static String getHeader(boolean bIsChunked, boolean bPersistentConnection, boolean bIsSecure) {
+        StringBuilder sHeader = new StringBuilder(256);
+        sHeader.append(ClientThread.getStatusLine(200)).append(ClientThread.END_LINE);
+        sHeader.append(ClientThread.getServerDetails(bIsSecure)).append(ClientThread.END_LINE);
+        sHeader.append("Content-Type: text/html; charset=UTF-8").append(ClientThread.END_LINE);
+        if (bIsChunked) {
+            sHeader.append("Transfer-Encoding: chunked").append(ClientThread.END_LINE);
+        }
+        sHeader.append("Cache-Control: no-cache").append(ClientThread.END_LINE);  // changes with the folder
+        return sHeader + ClientThread.getHeaderEnd(bPersistentConnection);
+    }
+
+    // open the body of the folder's listing -> cached chunks, or a stream over the folder if it is too large
+    static Body open(SiteIndex siteIndex, String sHTTPRequest, boolean bIsChunked) throws IOException {
+        Listing listing = listings.get(sHTTPRequest);
+        if (listing == null || listing.siteIndex != siteIndex) {
+            listing = render(siteIndex, sHTTPRequest);
+            listings.put(sHTTPRequest, listing);
+        }
+        if (listing.chunks == null) {
+            return new StreamedBody(siteIndex, sHTTPRequest, bIsChunked);  // too large to cache
+        }
+        return new CachedBody(listing.chunks, bIsChunked);
+    }
+
+
+    //********************
+    //  RENDER HELPERS
+    //********************
+
+    // render the folder in sorted order (folders first) -> no chunks if it has more entries than the cache takes
+    private static Listing render(SiteIndex siteIndex, String sHTTPRequest) throws IOException {
+        List<String> sEntries = new ArrayList<>();
+        try (DirectoryStream<Path> folder = Files.newDirectoryStream(getFolder(sHTTPRequest).toPath())) {
+            for (Path entry : folder) {
+                String sEntry = getEntry(siteIndex, sHTTPRequest, entry);
+                if (sEntry == null) {
+                    continue;
+                }
+                if (sEntries.size() == iMaxCachedEntries) {
+                    return new Listing(siteIndex, null);
+                }
+                sEntries.add(sEntry);
+            }
+        }
+        Collections.sort(sEntries, new Comparator<String>() {
+            public int compare(String sFirst, String sSecond) {
+                boolean bFirstIsFolder = sFirst.endsWith(SLASH);
+                if (bFirstIsFolder != sSecond.endsWith(SLASH)) {
+                    return bFirstIsFolder ? -1 : 1;
+                }
+                return sFirst.compareToIgnoreCase(sSecond);
+            }
+        });
+
+        // cut the page into chunks of about CHUNK_BYTES
+        List<byte[]> chunks = new ArrayList<>();
+        StringBuilder sChunk = new StringBuilder(CHUNK_BYTES + 512).append(getPageStart(sHTTPRequest));
+        for (String sEntry : sEntries) {
+            sChunk.append(getRow(sEntry));
+            if (sChunk.length() >= CHUNK_BYTES) {
+                chunks.add(getChunk(sChunk));
+            }
+        }
+        sChunk.append(getPageEnd());
+        chunks.add(getChunk(sChunk));
+        return new Listing(siteIndex, chunks.toArray(new byte[chunks.size()][]));
+    }
+
+    // get the listed name of a folder entry (folders end in /) -> null if it is not served
+    private static String getEntry(SiteIndex siteIndex, String sHTTPRequest, Path entry) {
+        String sName = entry.getFileName().toString();
+        if (siteIndex.isDirectory(sHTTPRequest + sName)) {
+            return sName + SLASH;
+        }
+        return siteIndex.isValidFile(sHTTPRequest + sName) ? sName : null;
+    }
+
+    // get the page up to the first row (with a parent link below the root)
+    private static String getPageStart(String sHTTPRequest) {
+        String sTitle = "Index of " + escape(sHTTPRequest);
+        return "<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>" + sTitle + "</title></head>\n"
+                + "<body><h1>" + sTitle + "</h1>\n<ul>\n"
+                + (sHTTPRequest.equals(SLASH) ? "" : "<li><a href=\"../\">../</a></li>\n");
+    }
+
+    // get one row of the listing
+    private static String getRow(String sEntry) {
+        return "<li><a href=\"" + encode(sEntry) + "\">" + escape(sEntry) + "</a></li>\n";
+    }
+
+    // get the page after the last row
+    private static String getPageEnd() {
+        return "</ul></body></html>\n";
+    }
+
+    // get the chunk's bytes framed for chunked encoding ("size CRLF data CRLF"), then empty the builder
+    private static byte[] getChunk(StringBuilder sChunk) {
+        byte[] data = sChunk.toString().getBytes(StandardCharsets.UTF_8);
+        sChunk.setLength(0);
+        byte[] size = (Integer.toHexString(data.length) + ClientThread.END_LINE).getBytes(StandardCharsets.US_ASCII);
+        byte[] chunk = new byte[size.length + data.length + CHUNK_END.length];
+        System.arraycopy(size, 0, chunk, 0, size.length);
+        System.arraycopy(data, 0, chunk, size.length, data.length);
+        System.arraycopy(CHUNK_END, 0, chunk, size.length + data.length, CHUNK_END.length);
+        return chunk;
+    }
+
+    // get the folder on disk for the request
+    private static File getFolder(String sHTTPRequest) {
+        return new File(ClientThread.ROOT_FOLDER, sHTTPRequest);
+    }
+
+    // escape text for HTML
+    private static String escape(String sText) {
+        return sText.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    // percent encode a name for a relative link (keeps the trailing / of folders)
+    private static String encode(String sEntry) {
+        boolean bIsFolder = sEntry.endsWith(SLASH);
+        String sName = bIsFolder ? sEntry.substring(0, sEntry.length() - 1) : sEntry;
+        try {
+            return URLEncoder.encode(sName, "UTF-8").replace("+", "%20") + (bIsFolder ? SLASH : "");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);  // UTF-8 is always supported
+        }
+    }
+
+
+    //***********
+    //  BODIES
+    //***********
+
+    // rendered chunks of one folder, valid for the site index they were built from (null chunks -> too large)
+    private static final class Listing {
+
+        private final SiteIndex siteIndex;
+        private final byte[][] chunks;
+
+        // listing constructor
+        Listing(SiteIndex siteIndex, byte[][] chunks) {
+            this.siteIndex = siteIndex;
+            this.chunks = chunks;
+        }
+    }
+
+    // a listing body handed out a buffer at a time (ClientThread writes each, NioConnection as the socket takes them)
+    abstract static class Body {
+
+        private final boolean bIsChunked;
+        private boolean bIsDone;
+        private long lBodyBytes;
+
+        // body constructor
+        Body(boolean bIsChunked) {
+            this.bIsChunked = bIsChunked;
+        }
+
+        // get the next buffer of the body -> null once it has all been handed out
+        final ByteBuffer next() throws IOException {
+            if (bIsDone) {
+                return null;
+            }
+            byte[] chunk = nextChunk();
+            ByteBuffer buffer;
+            if (chunk != null) {
+                buffer = bIsChunked ? ByteBuffer.wrap(chunk) : unframe(chunk);
+            } else {
+                bIsDone = true;
+                close();
+                buffer = bIsChunked ? ByteBuffer.wrap(LAST_CHUNK) : null;
+            }
+            if (buffer != null) {
+                lBodyBytes += buffer.remaining();
+            }
+            return buffer;
+        }
+
+        // get the body bytes handed out so far
+        final long getBodyBytes() {
+            return lBodyBytes;
+        }
+
+        // check if the body is sent with chunked framing
+        final boolean isChunked() {
+            return bIsChunked;
+        }
+
+        // get the length of the whole body -> -1 if it is only known once it has been sent
+        abstract long getLength();
+
+        // get the next framed chunk -> null at the end
+        abstract byte[] nextChunk() throws IOException;
+
+        // release what the body holds (called at the end, or by the connection if it closes first)
+        abstract void close();
+
+        // get the data of a framed chunk without its size line and CRLF
+        private static ByteBuffer unframe(byte[] chunk) {
+            int iDataStart = getDataStart(chunk);
+            return ByteBuffer.wrap(chunk, iDataStart, chunk.length - iDataStart - CHUNK_END.length);
+        }
+
+        // get the index after the size line of a framed chunk
+        static int getDataStart(byte[] chunk) {
+            int iDataStart = 0;
+            while (chunk[iDataStart] != '\n') {
+                iDataStart++;
+            }
+            return iDataStart + 1;
+        }
+    }
+
+    // body from cached chunks (shared between requests, never modified)
+    private static final class CachedBody extends Body {
+
+        private final byte[][] chunks;
+        private int iNextChunk;
+
+        // cached body constructor
+        CachedBody(byte[][] chunks, boolean bIsChunked) {
+            super(bIsChunked);
+            this.chunks = chunks;
+        }
+
+        long getLength() {
+            long lLength = isChunked() ? LAST_CHUNK.length : 0;
+            for (byte[] chunk : chunks) {
+                lLength += isChunked() ? chunk.length : chunk.length - getDataStart(chunk) - CHUNK_END.length;
+            }
+            return lLength;
+        }
+
+        byte[] nextChunk() {
+            return (iNextChunk < chunks.length) ? chunks[iNextChunk++] : null;
+        }
+
+        void close() {
+            // nothing held
+        }
+    }
+
+    // body rendered straight from the folder, a chunk at a time (folder order, not sorted)
+    private static final class StreamedBody extends Body {
+
+        private final SiteIndex siteIndex;
+        private final String sHTTPRequest;
+        private final DirectoryStream<Path> folder;
+        private final Iterator<Path> entries;
+        private final StringBuilder sChunk = new StringBuilder(CHUNK_BYTES + 512);
+        private boolean bIsEnded;
+
+        // streamed body constructor -> opens the folder
+        StreamedBody(SiteIndex siteIndex, String sHTTPRequest, boolean bIsChunked) throws IOException {
+            super(bIsChunked);
+            this.siteIndex = siteIndex;
+            this.sHTTPRequest = sHTTPRequest;
+            this.folder = Files.newDirectoryStream(getFolder(sHTTPRequest).toPath());
+            this.entries = folder.iterator();
+            sChunk.append(getPageStart(sHTTPRequest));
+        }
+
+        long getLength() {
+            return -1;
+        }
+
+        byte[] nextChunk() throws IOException {
+            if (bIsEnded) {
+                return null;
+            }
+            try {
+                while (sChunk.length() < CHUNK_BYTES && entries.hasNext()) {
+                    String sEntry = getEntry(siteIndex, sHTTPRequest, entries.next());
+                    if (sEntry != null) {
+                        sChunk.append(getRow(sEntry));
+                    }
+                }
+            } catch (DirectoryIteratorException e) {
+                throw e.getCause();
+            }
+            if (!entries.hasNext()) {
+                sChunk.append(getPageEnd());
+                bIsEnded = true;
+            }
+            return getChunk(sChunk);
+        }
+
+        void close() {
+            NioConnection.closeQuietly(folder);
+        }
+    }
+
+}
@@ -0,0 +1,199 @@
+package server;
+
+import java.io.File;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * FileMetadataCache holds the size, mtime, strong ETag and Last-Modified date of each served file
+ * FileMetadataCache computes a file's validators once and only stats it again after a SiteIndex reload
+ * FileMetadataCache ETags are built from size and mtime -> a compressed variant gets its own ETag
+ *   (which also covers the precompressed sibling's mtime)
+ * FileMetadataCache answers conditional requests (If-None-Match, then If-Modified-Since) for a 304,
+ *   and If-Range for a range request
+ */
+
+final class FileMetadataCache {
+
+    // constants for dates (IMF-fixdate out, any RFC 1123 date in)
+    private static final DateTimeFormatter HTTP_DATE_FORMAT = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    private static final String PRECOMPRESSED_SUFFIX = ".gz";
+
+    // constants for defaults
+    private static final long DEFAULT_MAX_AGE_SECONDS = 60;
+
+    // Cache-Control line (read once from flags, a negative max age -> clients must always revalidate)
+    private static final long lMaxAgeSeconds = ServerOptions.getLong(ServerOptions.FLAG_CACHE_MAX_AGE,
+            DEFAULT_MAX_AGE_SECONDS);
+    private static final String sCacheControl = (lMaxAgeSeconds < 0) ? "no-cache" : "public, max-age=" + lMaxAgeSeconds;
+
+    // metadata keyed by file path (bounded by the files in the site)
+    private static final ConcurrentHashMap<String, Metadata> metadata = new ConcurrentHashMap<>();
+
+    // no instances - cache is process wide
+    private FileMetadataCache() {
+    }
+
+    // get the metadata of the file (checked against the current site index) -> null if it is not a file
+    static Metadata get(String sFilePath) {
+        SiteIndex siteIndex = SiteIndex.get();
+        Metadata fileMetadata = metadata.get(sFilePath);
+        if (fileMetadata != null && fileMetadata.isCurrent(siteIndex)) {
+            return fileMetadata;
+        }
+
+        File file = new File(ClientThread.ROOT_FOLDER, sFilePath);
+        if (!file.isFile()) {
+            metadata.remove(sFilePath);
+            return null;
+        }
+        fileMetadata = new Metadata(file, new File(ClientThread.ROOT_FOLDER, sFilePath + PRECOMPRESSED_SUFFIX),
+                siteIndex);
+        metadata.put(sFilePath, fileMetadata);
+        return fileMetadata;
+    }
+
+    // get the value of the Cache-Control header for files
+    static String getCacheControl() {
+        return sCacheControl;
+    }
+
+    // check if the client's copy is still current -> 304 instead of the body
+    // If-None-Match wins over If-Modified-Since (weak comparison, as for GET and HEAD)
+    static boolean isNotModified(Metadata fileMetadata, String sContentEncoding, String sIfNoneMatch,
+                                 String sIfModifiedSince) {
+        if (fileMetadata == null) {
+            return false;
+        }
+        if (sIfNoneMatch != null) {
+            String sETag = stripWeak(fileMetadata.getETag(sContentEncoding));
+            for (String sCandidate : sIfNoneMatch.split(",")) {
+                String sTag = stripWeak(sCandidate.trim());
+                if (sTag.equals("*") || sTag.equals(sETag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (sIfModifiedSince != null) {
+            try {
+                long lSinceSeconds = ZonedDateTime.parse(sIfModifiedSince.trim(),
+                        DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+                return fileMetadata.getLastModifiedMillis() / 1000 <= lSinceSeconds;
+            } catch (DateTimeParseException e) {
+                return false;  // invalid date -> ignore the header
+            }
+        }
+        return false;
+    }
+
+    // check if a Range request still applies (no If-Range, or it names the current file with a strong validator)
+    static boolean isRangeCurrent(Metadata fileMetadata, String sIfRange) {
+        if (sIfRange == null) {
+            return true;
+        }
+        String sValidator = sIfRange.trim();
+        if (sValidator.startsWith("\"") || sValidator.startsWith("W/")) {
+            return sValidator.equals(fileMetadata.getETag(null));  // strong comparison -> weak tags never match
+        }
+        try {
+            long lDateSeconds = ZonedDateTime.parse(sValidator, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+            return fileMetadata.getLastModifiedMillis() / 1000 == lDateSeconds;
+        } catch (DateTimeParseException e) {
+            return false;  // invalid date -> send the whole file
+        }
+    }
+
+    // drop the W/ prefix of a weak tag
+    private static String stripWeak(String sTag) {
+        return sTag.startsWith("W/") ? sTag.substring(2) : sTag;
+    }
+
+
+    //************
+    //  METADATA
+    //************
+
+    // validators of one file (and its precompressed sibling)
+    static final class Metadata {
+
+        private final File file;
+        private final long lSize;
+        private final long lLastModified;
+        private final File sibling;
+        private final long lSiblingSize;
+        private final long lSiblingLastModified;
+        private final String sETagBase;
+        private final String sLastModified;
+        private volatile SiteIndex validatedIndex;
+
+        // metadata constructor -> stats the file and sibling once
+        private Metadata(File file, File sibling, SiteIndex validatedIndex) {
+            this.file = file;
+            this.lSize = file.length();
+            this.lLastModified = file.lastModified();
+            this.sibling = sibling;
+            this.lSiblingSize = sibling.isFile() ? sibling.length() : -1;
+            this.lSiblingLastModified = sibling.lastModified();
+            this.sETagBase = Long.toHexString(lSize) + "-" + Long.toHexString(lLastModified);
+            this.sLastModified = HTTP_DATE_FORMAT.format(Instant.ofEpochMilli(lLastModified));
+            this.validatedIndex = validatedIndex;
+        }
+
+        // get the strong ETag for the body sent with the content encoding (null for identity)
+        String getETag(String sContentEncoding) {
+            if (sContentEncoding == null) {
+                return "\"" + sETagBase + "\"";
+            }
+            if (sContentEncoding.equals(CompressionCache.ENCODING_GZIP) && hasSibling()) {
+                return "\"" + sETagBase + "-gz" + Long.toHexString(lSiblingLastModified) + "\"";
+            }
+            return "\"" + sETagBase + "-" + sContentEncoding + "\"";
+        }
+
+        // get the Last-Modified date
+        String getLastModified() {
+            return sLastModified;
+        }
+
+        // get the mtime in milliseconds
+        long getLastModifiedMillis() {
+            return lLastModified;
+        }
+
+        // get the file size
+        long getSize() {
+            return lSize;
+        }
+
+        // check if a precompressed sibling exists
+        boolean hasSibling() {
+            return lSiblingSize >= 0;
+        }
+
+        // get the precompressed sibling's size -> -1 if there is none
+        long getSiblingSize() {
+            return lSiblingSize;
+        }
+
+        // check the metadata still matches the file -> only touches the disk after the site index changed
+        private boolean isCurrent(SiteIndex siteIndex) {
+            if (validatedIndex == siteIndex) {
+                return true;
+            }
+            if (file.lastModified() == lLastModified && file.length() == lSize
+                    && sibling.lastModified() == lSiblingLastModified) {
+                validatedIndex = siteIndex;
+                return true;
+            }
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,506 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Hpack is the HTTP/2 header compression (RFC 7541) used by Http2Connection
+ * Hpack decodes request header blocks: indexed and literal fields, the dynamic table and Huffman coded strings
+ * Hpack encodes response header blocks against its own dynamic table -> the Server, Content-Type, Cache-Control, ...
+ *   lines repeated on every response of a connection shrink to one or two bytes after the first response
+ * Hpack leaves per-response values (Content-Length, ETag, Last-Modified, Content-Range) out of the table,
+ *   and Huffman codes a string only when that makes it shorter
+ * Hpack decoders and encoders are not thread safe -> each belongs to one connection and is used in frame order
+ */
+
+final class Hpack {
+
+    // constants for the tables
+    static final int DEFAULT_TABLE_SIZE = 4096;
+    private static final int ENTRY_OVERHEAD = 32;
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+            {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+            {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+            {":status", "404"}, {":status", "500"}, {"accept-charset", ""}, {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""}, {"access-control-allow-origin", ""},
+            {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+            {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+            {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+            {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""},
+            {"from", ""}, {"host", ""}, {"if-match", ""}, {"if-modified-since", ""},
+            {"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""}, {"last-modified", ""},
+            {"link", ""}, {"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""},
+            {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+            {"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+            {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""},
+            {"www-authenticate", ""}};
+
+    // constants for fields that change with every response (kept out of the encoder's dynamic table)
+    private static final Set<String> UNINDEXED_NAMES = new HashSet<>(Arrays.asList(
+            "content-length", "etag", "last-modified", "content-range", ":path"));
+
+    // Huffman code (most significant bit first) and length in bits of each octet (RFC 7541 Appendix B)
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+    };
+    private static final int EOS_CODE = 0x3fffffff;
+    private static final int EOS_LENGTH = 30;
+    private static final int EOS = 256;
+
+    // Huffman decoding tree: children of each node (>= 0 next node, < 0 leaf with symbol -(value + 1))
+    private static final int[][] huffmanTree = buildHuffmanTree();
+
+    // static table as fields for the decoder, and lookups for the encoder: "name\nvalue" -> index, name -> first index
+    private static final Field[] staticFields = new Field[STATIC_TABLE.length];
+    private static final Map<String, Integer> staticIndexes = new HashMap<>();
+    private static final Map<String, Integer> staticNames = new HashMap<>();
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            staticFields[i] = new Field(STATIC_TABLE[i][0], STATIC_TABLE[i][1]);
+            staticIndexes.put(STATIC_TABLE[i][0] + "\n" + STATIC_TABLE[i][1], i + 1);
+            staticNames.put(STATIC_TABLE[i][0], i + 1);
+        }
+    }
+
+    // no instances - encoders and decoders hold the state
+    private Hpack() {
+    }
+
+
+    //*********
+    //  FIELD
+    //*********
+
+    // one header field (names are lower case, as HTTP/2 requires)
+    static final class Field {
+
+        private final String sName;
+        private final String sValue;
+
+        // field constructor
+        Field(String sName, String sValue) {
+            this.sName = sName;
+            this.sValue = sValue;
+        }
+
+        // get the field name
+        String getName() {
+            return sName;
+        }
+
+        // get the field value
+        String getValue() {
+            return sValue;
+        }
+
+        // get the size the field takes in a dynamic table
+        int getSize() {
+            return sName.length() + sValue.length() + ENTRY_OVERHEAD;
+        }
+    }
+
+
+    //***********
+    //  DECODER
+    //***********
+
+    // decodes the header blocks a client sends on one connection
+    static final class Decoder {
+
+        private final Table table;
+        private final int iMaxTableSize;
+
+        // decoder constructor (iMaxTableSize is the SETTINGS_HEADER_TABLE_SIZE this side announced)
+        Decoder(int iMaxTableSize) {
+            this.table = new Table(iMaxTableSize);
+            this.iMaxTableSize = iMaxTableSize;
+        }
+
+        // decode a complete header block -> its fields in order, IOException if it is malformed
+        List<Field> decode(byte[] block, int iLength) throws IOException {
+            List<Field> fields = new ArrayList<>();
+            int[] iPosition = {0};
+            boolean bIsFieldSeen = false;
+            while (iPosition[0] < iLength) {
+                int b = block[iPosition[0]] & 0xff;
+                if ((b & 0x80) != 0) {
+                    // indexed field
+                    fields.add(getField(readInteger(block, iLength, iPosition, 7)));
+                    bIsFieldSeen = true;
+                } else if ((b & 0x40) != 0) {
+                    // literal field added to the table
+                    Field field = readLiteral(block, iLength, iPosition, 6);
+                    table.add(field);
+                    fields.add(field);
+                    bIsFieldSeen = true;
+                } else if ((b & 0x20) != 0) {
+                    // table size update -> only allowed before the first field
+                    int iSize = readInteger(block, iLength, iPosition, 5);
+                    if (bIsFieldSeen || iSize > iMaxTableSize) {
+                        throw new IOException("bad dynamic table size update: " + iSize);
+                    }
+                    table.setMaxSize(iSize);
+                } else {
+                    // literal field not added to the table (without indexing or never indexed)
+                    fields.add(readLiteral(block, iLength, iPosition, 4));
+                    bIsFieldSeen = true;
+                }
+            }
+            return fields;
+        }
+
+        // read a literal field whose name is indexed (prefix bits) or follows as a string
+        private Field readLiteral(byte[] block, int iLength, int[] iPosition, int iPrefixBits) throws IOException {
+            int iNameIndex = readInteger(block, iLength, iPosition, iPrefixBits);
+            String sName = (iNameIndex == 0) ? readString(block, iLength, iPosition) : getField(iNameIndex).sName;
+            return new Field(sName, readString(block, iLength, iPosition));
+        }
+
+        // get the field at an index of the static table followed by the dynamic table
+        private Field getField(int iIndex) throws IOException {
+            if (iIndex >= 1 && iIndex <= STATIC_TABLE.length) {
+                return staticFields[iIndex - 1];
+            }
+            Field field = table.get(iIndex - STATIC_TABLE.length - 1);
+            if (field == null) {
+                throw new IOException("header index out of range: " + iIndex);
+            }
+            return field;
+        }
+    }
+
+
+    //***********
+    //  ENCODER
+    //***********
+
+    // encodes the header blocks the server sends on one connection
+    static final class Encoder {
+
+        private final Table table = new Table(DEFAULT_TABLE_SIZE);
+        private int iPendingSizeUpdate = -1;
+
+        // use at most the table size the client allows (its SETTINGS_HEADER_TABLE_SIZE)
+        void setMaxTableSize(int iClientMaxSize) {
+            int iSize = Math.min(iClientMaxSize, DEFAULT_TABLE_SIZE);
+            if (iSize != table.iMaxSize) {
+                table.setMaxSize(iSize);
+                iPendingSizeUpdate = iSize;  // announced at the start of the next block
+            }
+        }
+
+        // encode the fields as one header block
+        byte[] encode(List<Field> fields) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+            if (iPendingSizeUpdate >= 0) {
+                writeInteger(out, 0x20, 5, iPendingSizeUpdate);
+                iPendingSizeUpdate = -1;
+            }
+            for (Field field : fields) {
+                encode(field, out);
+            }
+            return out.toByteArray();
+        }
+
+        // encode one field: an index when the table has it, otherwise a literal (added to the table if it repeats)
+        private void encode(Field field, ByteArrayOutputStream out) {
+            Integer iStaticIndex = staticIndexes.get(field.sName + "\n" + field.sValue);
+            int iIndex = (iStaticIndex != null) ? iStaticIndex : getDynamicIndex(field, true);
+            if (iIndex > 0) {
+                writeInteger(out, 0x80, 7, iIndex);
+                return;
+            }
+
+            Integer iStaticName = staticNames.get(field.sName);
+            int iNameIndex = (iStaticName != null) ? iStaticName : getDynamicIndex(field, false);
+            boolean bIsIndexed = !UNINDEXED_NAMES.contains(field.sName);
+            writeInteger(out, bIsIndexed ? 0x40 : 0x00, bIsIndexed ? 6 : 4, iNameIndex);
+            if (iNameIndex == 0) {
+                writeString(out, field.sName);
+            }
+            writeString(out, field.sValue);
+            if (bIsIndexed) {
+                table.add(field);
+            }
+        }
+
+        // get the index of the field (or of its name) in the dynamic table -> 0 if it isn't there
+        private int getDynamicIndex(Field field, boolean bMatchValue) {
+            for (int i = 0; i < table.iCount; i++) {
+                Field entry = table.get(i);
+                if (entry.sName.equals(field.sName) && (!bMatchValue || entry.sValue.equals(field.sValue))) {
+                    return STATIC_TABLE.length + 1 + i;
+                }
+            }
+            return 0;
+        }
+    }
+
+
+    //*****************
+    //  DYNAMIC TABLE
+    //*****************
+
+    // dynamic table: a ring of fields, newest first by index, evicted oldest first to stay within the size
+    private static final class Table {
+
+        private Field[] entries = new Field[16];
+        private int iFirst;
+        private int iCount;
+        private int iSize;
+        private int iMaxSize;
+
+        // table constructor
+        Table(int iMaxSize) {
+            this.iMaxSize = iMaxSize;
+        }
+
+        // get the entry at the index (0 is the newest) -> null if there is none
+        Field get(int iIndex) {
+            if (iIndex < 0 || iIndex >= iCount) {
+                return null;
+            }
+            return entries[(iFirst + iIndex) % entries.length];
+        }
+
+        // add a field as the newest entry (a field larger than the table just empties it)
+        void add(Field field) {
+            evictTo(iMaxSize - field.getSize());
+            if (field.getSize() > iMaxSize) {
+                return;
+            }
+            if (iCount == entries.length) {
+                Field[] newEntries = new Field[entries.length * 2];
+                for (int i = 0; i < iCount; i++) {
+                    newEntries[i] = get(i);
+                }
+                entries = newEntries;
+                iFirst = 0;
+            }
+            iFirst = (iFirst - 1 + entries.length) % entries.length;
+            entries[iFirst] = field;
+            iCount++;
+            iSize += field.getSize();
+        }
+
+        // change the size limit, evicting entries that no longer fit
+        void setMaxSize(int iMaxSize) {
+            this.iMaxSize = iMaxSize;
+            evictTo(iMaxSize);
+        }
+
+        // evict the oldest entries until the table holds at most the size
+        private void evictTo(int iTargetSize) {
+            while (iCount > 0 && iSize > iTargetSize) {
+                int iLast = (iFirst + iCount - 1) % entries.length;
+                iSize -= entries[iLast].getSize();
+                entries[iLast] = null;
+                iCount--;
+            }
+        }
+    }
+
+
+    //*********************
+    //  PRIMITIVE HELPERS
+    //*********************
+
+    // read an integer with an N-bit prefix (RFC 7541 5.1) and move the position past it
+    private static int readInteger(byte[] block, int iLength, int[] iPosition, int iPrefixBits) throws IOException {
+        int iMask = (1 << iPrefixBits) - 1;
+        int iValue = block[iPosition[0]++] & iMask;
+        if (iValue < iMask) {
+            return iValue;
+        }
+        for (int iShift = 0; iShift < 28; iShift += 7) {
+            if (iPosition[0] >= iLength) {
+                throw new IOException("truncated integer");
+            }
+            int b = block[iPosition[0]++] & 0xff;
+            iValue += (b & 0x7f) << iShift;
+            if ((b & 0x80) == 0) {
+                return iValue;
+            }
+        }
+        throw new IOException("integer too large");
+    }
+
+    // read a string literal (length prefixed, raw or Huffman coded) and move the position past it
+    private static String readString(byte[] block, int iLength, int[] iPosition) throws IOException {
+        if (iPosition[0] >= iLength) {
+            throw new IOException("truncated string");
+        }
+        boolean bIsHuffman = (block[iPosition[0]] & 0x80) != 0;
+        int iStringLength = readInteger(block, iLength, iPosition, 7);
+        if (iStringLength > iLength - iPosition[0]) {
+            throw new IOException("truncated string");
+        }
+        int iStart = iPosition[0];
+        iPosition[0] += iStringLength;
+        if (bIsHuffman) {
+            return decodeHuffman(block, iStart, iStringLength);
+        }
+        return new String(block, iStart, iStringLength, StandardCharsets.ISO_8859_1);
+    }
+
+    // write an integer with an N-bit prefix, the first byte starting with the pattern bits
+    private static void writeInteger(ByteArrayOutputStream out, int iPattern, int iPrefixBits, int iValue) {
+        int iMask = (1 << iPrefixBits) - 1;
+        if (iValue < iMask) {
+            out.write(iPattern | iValue);
+            return;
+        }
+        out.write(iPattern | iMask);
+        iValue -= iMask;
+        while (iValue >= 0x80) {
+            out.write((iValue & 0x7f) | 0x80);
+            iValue >>>= 7;
+        }
+        out.write(iValue);
+    }
+
+    // write a string literal, Huffman coded if that is shorter
+    private static void writeString(ByteArrayOutputStream out, String sValue) {
+        long lBits = 0;
+        for (int i = 0; i < sValue.length(); i++) {
+            lBits += HUFFMAN_LENGTHS[sValue.charAt(i) & 0xff];
+        }
+        int iHuffmanLength = (int) ((lBits + 7) / 8);
+        if (iHuffmanLength >= sValue.length()) {
+            writeInteger(out, 0x00, 7, sValue.length());
+            for (int i = 0; i < sValue.length(); i++) {
+                out.write(sValue.charAt(i));
+            }
+            return;
+        }
+
+        // pack the codes most significant bit first, padding the last byte with the start of EOS (all ones)
+        writeInteger(out, 0x80, 7, iHuffmanLength);
+        long lPending = 0;
+        int iPendingBits = 0;
+        for (int i = 0; i < sValue.length(); i++) {
+            int iSymbol = sValue.charAt(i) & 0xff;
+            lPending = (lPending << HUFFMAN_LENGTHS[iSymbol]) | HUFFMAN_CODES[iSymbol];
+            iPendingBits += HUFFMAN_LENGTHS[iSymbol];
+            while (iPendingBits >= 8) {
+                iPendingBits -= 8;
+                out.write((int) (lPending >>> iPendingBits));
+            }
+        }
+        if (iPendingBits > 0) {
+            out.write((int) ((lPending << (8 - iPendingBits)) | (0xff >>> iPendingBits)));
+        }
+    }
+
+
+    //*******************
+    //  HUFFMAN HELPERS
+    //*******************
+
+    // decode a Huffman coded string (padding must be under 8 bits of the EOS prefix, EOS itself is an error)
+    private static String decodeHuffman(byte[] block, int iStart, int iLength) throws IOException {
+        StringBuilder sValue = new StringBuilder(iLength * 8 / 5 + 1);
+        int iNode = 0;
+        int iBitsSinceSymbol = 0;
+        boolean bIsAllOnes = true;
+        for (int i = iStart; i < iStart + iLength; i++) {
+            int b = block[i] & 0xff;
+            for (int iBit = 7; iBit >= 0; iBit--) {
+                int iDirection = (b >>> iBit) & 1;
+                int iNext = huffmanTree[iNode][iDirection];
+                iBitsSinceSymbol++;
+                bIsAllOnes = bIsAllOnes && iDirection == 1;
+                if (iNext < 0) {
+                    int iSymbol = -(iNext + 1);
+                    if (iSymbol == EOS) {
+                        throw new IOException("EOS in Huffman string");
+                    }
+                    sValue.append((char) iSymbol);
+                    iNode = 0;
+                    iBitsSinceSymbol = 0;
+                    bIsAllOnes = true;
+                } else {
+                    iNode = iNext;
+                }
+            }
+        }
+        if (iBitsSinceSymbol > 7 || !bIsAllOnes) {
+            throw new IOException("bad Huffman padding");
+        }
+        return sValue.toString();
+    }
+
+    // build the decoding tree from the code table
+    private static int[][] buildHuffmanTree() {
+        int[][] tree = new int[EOS + 1][2];
+        int iNodeCount = 1;
+        for (int iSymbol = 0; iSymbol <= EOS; iSymbol++) {
+            int iCode = (iSymbol == EOS) ? EOS_CODE : HUFFMAN_CODES[iSymbol];
+            int iLength = (iSymbol == EOS) ? EOS_LENGTH : HUFFMAN_LENGTHS[iSymbol];
+            int iNode = 0;
+            for (int iBit = iLength - 1; iBit > 0; iBit--) {
+                int iDirection = (iCode >>> iBit) & 1;
+                if (tree[iNode][iDirection] == 0) {
+                    tree[iNode][iDirection] = iNodeCount++;
+                }
+                iNode = tree[iNode][iDirection];
+            }
+            tree[iNode][iCode & 1] = -(iSymbol + 1);
+        }
+        return tree;
+    }
+
+}
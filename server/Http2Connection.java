@@ -0,0 +1,1209 @@
+package server;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Http2Connection serves an HTTPS connection whose client picked HTTP/2 ("h2") in the TLS handshake (see TlsLayer)
+ * Http2Connection reads frames on the connection's worker thread and answers each request stream when its headers
+ *   arrive, with the same status codes, header lines, caches, compression, ranges and listings as ClientThread
+ * Http2Connection writes on a writer thread of its own: control frames and response headers first, then one DATA
+ *   frame (up to 16 KB) per stream in turn -> a large file can't hold back the small ones requested with it
+ * Http2Connection keeps to the client's connection and stream flow control windows and its SETTINGS, and allows
+ *   --http2MaxStreams concurrent streams (more are refused with RST_STREAM for the client to retry)
+ * Http2Connection sends GOAWAY after --keepAliveTimeout idle millis or --maxKeepAliveRequests streams, or when the
+ *   client breaks the protocol, and then closes
+ * Http2Connection also goes away when its open streams make no progress for --keepAliveTimeout millis (windows stay
+ *   shut, or the client stops reading and a write blocks) -> a stalled client can't hold the connection forever
+ * Http2Connection sends GOAWAY when the server drains and finishes the streams already opened (see ServerLifecycle)
+ * Http2Connection sends GOAWAY with ENHANCE_YOUR_CALM when more than MAX_QUEUED_FRAMES control frames wait for the
+ *   writer (PING, SETTINGS or RST_STREAM floods from a client that doesn't read the answers)
+ * Http2Connection answers streams over its client's request rate or bandwidth with 429 (see ClientLimits)
+ * Http2Connection resets streams on a proxy route with HTTP_1_1_REQUIRED, so the client sends them over HTTP/1.1
+ *   (see ReverseProxy)
+ */
+
+final class Http2Connection implements ServerLifecycle.Drainable {
+
+    // constants for the protocol
+    static final String PROTOCOL = "h2";
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final int FRAME_HEADER_BYTES = 9;
+    private static final int MAX_FRAME_BYTES = 16384;  // the default SETTINGS_MAX_FRAME_SIZE, used both ways
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final int DEFAULT_MAX_STREAMS = 100;
+    private static final int DEFAULT_MAX_HEADER_BYTES = 16 * 1024;
+    private static final int MAX_QUEUED_FRAMES = 10000;  // control frames waiting for the writer
+    private static final String WRITER_THREAD_SUFFIX = "-h2-writer";
+    private static final String APPLICATION_PROTOCOL_METHOD = "getApplicationProtocol";
+
+    // constants for frame types
+    private static final int TYPE_DATA = 0x0;
+    private static final int TYPE_HEADERS = 0x1;
+    private static final int TYPE_PRIORITY = 0x2;
+    private static final int TYPE_RST_STREAM = 0x3;
+    private static final int TYPE_SETTINGS = 0x4;
+    private static final int TYPE_PUSH_PROMISE = 0x5;
+    private static final int TYPE_PING = 0x6;
+    private static final int TYPE_GOAWAY = 0x7;
+    private static final int TYPE_WINDOW_UPDATE = 0x8;
+    private static final int TYPE_CONTINUATION = 0x9;
+
+    // constants for frame flags
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    // constants for settings
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    // constants for error codes
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int INTERNAL_ERROR = 0x2;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int COMPRESSION_ERROR = 0x9;
+    private static final int ENHANCE_YOUR_CALM = 0xb;
+    private static final int HTTP_1_1_REQUIRED = 0xd;
+
+    // settings (read once from flags)
+    private static final int iMaxStreams = Math.max(1, ServerOptions.getInt(ServerOptions.FLAG_HTTP2_MAX_STREAMS,
+            DEFAULT_MAX_STREAMS));
+    private static final int iMaxHeaderBytes = Math.max(1024, ServerOptions.getInt(
+            ServerOptions.FLAG_MAX_HEADER_BYTES, DEFAULT_MAX_HEADER_BYTES));
+
+    // connection instance variables (reader side: the worker thread that runs the connection)
+    private final Socket connectedClient;
+    private final ClientLimits.Client client;
+    private InputStream inFromClient;
+    private OutputStream outToClient;
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    private final byte[] frameHeader = new byte[FRAME_HEADER_BYTES];
+    private final byte[] payload = new byte[MAX_FRAME_BYTES];
+    private int iLastStreamId;
+    private int iStreamCount;
+    private boolean bIsGoingAway;
+    private int iGoAwayReason = ServerMetrics.CLOSE_CLIENT;
+    private volatile boolean bIsDraining;
+
+    // state shared by the reader and the writer (guarded by this)
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private final ArrayDeque<byte[]> controlFrames = new ArrayDeque<>();
+    private final List<Stream> streams = new ArrayList<>();
+    private int iNextStream;
+    private long lConnectionWindow = DEFAULT_WINDOW;
+    private int iInitialStreamWindow = DEFAULT_WINDOW;
+    private int iRequestCount;
+    private boolean bIsClosing;
+    private boolean bIsFlooded;
+
+    // writer instance variables (only touched by the writer thread)
+    private final byte[] data = new byte[MAX_FRAME_BYTES];
+    private boolean bIsUnflushed;
+
+    // writer progress (set by the writer, read by the reader to tell a stalled client from an idle one)
+    private volatile long lWriteStartNanos;  // when the write in progress began (0 between writes)
+    private volatile boolean bIsStalled;  // open streams made no progress for the keep-alive timeout
+
+    // connection constructor (the TLS handshake is done, the client is counted in ClientLimits)
+    Http2Connection(Socket clientSocket, ClientLimits.Client client) {
+        this.connectedClient = clientSocket;
+        this.client = client;
+    }
+
+    // check if the client picked HTTP/2 in the handshake (ALPN needs Java 9, or 8u252 and later)
+    static boolean isNegotiated(Socket clientSocket) {
+        if (!(clientSocket instanceof SSLSocket)) {
+            return false;
+        }
+        try {
+            Method getProtocol = SSLSocket.class.getMethod(APPLICATION_PROTOCOL_METHOD);
+            return PROTOCOL.equals(getProtocol.invoke(clientSocket));
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    // serve the connection until it closes (runs on the worker thread ClientThread was given)
+    void run() {
+        ServerMetrics.connectionOpened(true);
+        ServerLifecycle.opened(this);
+        int iCloseReason = ServerMetrics.CLOSE_CLIENT;
+        Thread writer = null;
+        try {
+            inFromClient = new BufferedInputStream(connectedClient.getInputStream(), ClientThread.OUTPUT_BUFFER_SIZE);
+            outToClient = new BufferedOutputStream(connectedClient.getOutputStream(), ClientThread.OUTPUT_BUFFER_SIZE);
+
+            // the client speaks first: the preface, then its SETTINGS
+            readFully(inFromClient, payload, PREFACE.length, ConnectionLimits.getHeaderTimeoutMillis());
+            if (!Arrays.equals(Arrays.copyOf(payload, PREFACE.length), PREFACE)) {
+                throw new Http2Exception(PROTOCOL_ERROR, "bad connection preface");
+            }
+            queueSettings();
+            writer = startWriter();
+            iCloseReason = readFrames();
+        } catch (Http2Exception e) {
+            iCloseReason = ServerMetrics.CLOSE_BAD_REQUEST;
+            queueGoAway(e.iErrorCode);
+            if (AccessLog.isDebugEnabled()) {
+                AccessLog.debug("HTTP/2 connection error with client " + connectedClient.getInetAddress() + ": " + e);
+            }
+        } catch (SocketTimeoutException e) {
+            iCloseReason = (iStreamCount > 0) ? ServerMetrics.CLOSE_IDLE_TIMEOUT : ServerMetrics.CLOSE_HEADER_TIMEOUT;
+            queueGoAway(NO_ERROR);
+        } catch (EOFException e) {
+            iCloseReason = bIsStalled ? ServerMetrics.CLOSE_IDLE_TIMEOUT : ServerMetrics.CLOSE_CLIENT;  // client closed
+        } catch (IOException e) {
+            iCloseReason = bIsDraining ? ServerMetrics.CLOSE_SHUTDOWN
+                    : bIsStalled ? ServerMetrics.CLOSE_IDLE_TIMEOUT : ServerMetrics.CLOSE_ERROR;
+            if (AccessLog.isDebugEnabled()) {
+                AccessLog.debug("HTTP/2 connection with client " + connectedClient.getInetAddress() + " failed: " + e);
+            }
+        } finally {
+            close(writer);
+            ServerLifecycle.closed(this);
+            ServerMetrics.connectionClosed(true, iCloseReason);
+            ConnectionLimits.closed();
+        }
+    }
+
+
+    // drain the connection: GOAWAY so the client opens no new streams (and closes once its streams are answered),
+    // or close it when forced
+    public void drain(boolean bIsForced) {
+        if (bIsForced) {
+            abort();
+        } else if (!bIsDraining) {
+            bIsDraining = true;
+            queueGoAway(Integer.MAX_VALUE, NO_ERROR);  // the reader follows with the last stream id it took
+        }
+    }
+
+
+    //****************
+    //  READER SIDE
+    //****************
+
+    // read and handle frames until the client goes away or is idle -> the close reason
+    private int readFrames() throws IOException {
+        while (true) {
+            // answers to the client's frames pile up faster than it reads them
+            if (isFlooded()) {
+                throw new Http2Exception(ENHANCE_YOUR_CALM, "over " + MAX_QUEUED_FRAMES + " frames queued");
+            }
+
+            // the server drains -> no streams after the ones already taken
+            if (bIsDraining && !bIsGoingAway) {
+                bIsGoingAway = true;
+                iGoAwayReason = ServerMetrics.CLOSE_SHUTDOWN;
+                queueGoAway(NO_ERROR);
+            }
+
+            // between frames: idle while no stream is being answered, otherwise the client is busy reading
+            int iTimeoutMillis = ConnectionLimits.getKeepAliveTimeoutMillis();
+            if (!readFrameHeader(iTimeoutMillis)) {
+                if (bIsGoingAway) {
+                    return iGoAwayReason;  // last stream is answered
+                }
+                queueGoAway(NO_ERROR);
+                return ServerMetrics.CLOSE_IDLE_TIMEOUT;
+            }
+            int iLength = ((frameHeader[0] & 0xff) << 16) | ((frameHeader[1] & 0xff) << 8) | (frameHeader[2] & 0xff);
+            int iType = frameHeader[3] & 0xff;
+            int iFlags = frameHeader[4] & 0xff;
+            int iStreamId = getInt(frameHeader, 5) & 0x7fffffff;
+            if (iLength > MAX_FRAME_BYTES) {
+                throw new Http2Exception(FRAME_SIZE_ERROR, "frame of " + iLength + " bytes");
+            }
+            readFully(inFromClient, payload, iLength, ConnectionLimits.getHeaderTimeoutMillis());
+
+            // handle the frame by type (unknown types are ignored)
+            if (iType == TYPE_HEADERS) {
+                readHeaders(iStreamId, iFlags, iLength);
+            } else if (iType == TYPE_DATA) {
+                readData(iStreamId, iLength);
+            } else if (iType == TYPE_SETTINGS) {
+                readSettings(iStreamId, iFlags, iLength);
+            } else if (iType == TYPE_WINDOW_UPDATE) {
+                readWindowUpdate(iStreamId, iLength);
+            } else if (iType == TYPE_PING) {
+                readPing(iStreamId, iFlags, iLength);
+            } else if (iType == TYPE_RST_STREAM) {
+                readResetStream(iStreamId, iLength);
+            } else if (iType == TYPE_PRIORITY) {
+                if (iLength != 5 || iStreamId == 0) {
+                    throw new Http2Exception(iStreamId == 0 ? PROTOCOL_ERROR : FRAME_SIZE_ERROR, "bad PRIORITY");
+                }
+            } else if (iType == TYPE_GOAWAY) {
+                bIsGoingAway = true;  // no new streams; answer the open ones until the client closes
+            } else if (iType == TYPE_PUSH_PROMISE || iType == TYPE_CONTINUATION) {
+                throw new Http2Exception(PROTOCOL_ERROR, "unexpected frame type " + iType);
+            }
+        }
+    }
+
+    // read the next frame header -> false if the connection was idle (or done going away) past the timeout
+    private boolean readFrameHeader(int iTimeoutMillis) throws IOException {
+        while (true) {
+            connectedClient.setSoTimeout(iTimeoutMillis);
+            try {
+                int b = inFromClient.read();
+                if (b < 0) {
+                    throw new EOFException();
+                }
+                frameHeader[0] = (byte) b;
+                break;
+            } catch (SocketTimeoutException e) {
+                if (!hasStreams()) {
+                    return false;
+                }
+                if (isWriteStalled(iTimeoutMillis)) {
+                    abort();  // the client stopped reading -> unblock the writer
+                    throw e;
+                }
+            }
+        }
+        readFully(inFromClient, frameHeader, 1, FRAME_HEADER_BYTES - 1, ConnectionLimits.getHeaderTimeoutMillis());
+        return true;
+    }
+
+    // read a HEADERS frame (and its CONTINUATION frames), then answer the request it opens
+    private void readHeaders(int iStreamId, int iFlags, int iLength) throws IOException {
+        if (iStreamId == 0 || (iStreamId & 1) == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "HEADERS on stream " + iStreamId);
+        }
+
+        // strip padding and priority from the header block fragment
+        int iStart = 0;
+        int iEnd = iLength;
+        if ((iFlags & FLAG_PADDED) != 0) {
+            int iPadLength = (iLength > 0) ? payload[0] & 0xff : iLength;
+            iStart = 1;
+            iEnd = iLength - iPadLength;
+        }
+        if ((iFlags & FLAG_PRIORITY) != 0) {
+            iStart += 5;
+        }
+        if (iStart > iEnd) {
+            throw new Http2Exception(PROTOCOL_ERROR, "HEADERS padding");
+        }
+
+        // gather the whole block (CONTINUATION frames must follow straight on the same stream)
+        ByteArrayOutputStream block = new ByteArrayOutputStream(Math.max(iEnd - iStart, 64));
+        block.write(payload, iStart, iEnd - iStart);
+        boolean bIsEndHeaders = (iFlags & FLAG_END_HEADERS) != 0;
+        while (!bIsEndHeaders) {
+            readFully(inFromClient, frameHeader, FRAME_HEADER_BYTES, ConnectionLimits.getHeaderTimeoutMillis());
+            int iFragmentLength = ((frameHeader[0] & 0xff) << 16) | ((frameHeader[1] & 0xff) << 8)
+                    | (frameHeader[2] & 0xff);
+            if ((frameHeader[3] & 0xff) != TYPE_CONTINUATION || (getInt(frameHeader, 5) & 0x7fffffff) != iStreamId) {
+                throw new Http2Exception(PROTOCOL_ERROR, "header block interrupted");
+            }
+            if (iFragmentLength > MAX_FRAME_BYTES || block.size() + iFragmentLength > iMaxHeaderBytes * 2) {
+                throw new Http2Exception(ENHANCE_YOUR_CALM, "header block too large");
+            }
+            readFully(inFromClient, payload, iFragmentLength, ConnectionLimits.getHeaderTimeoutMillis());
+            block.write(payload, 0, iFragmentLength);
+            bIsEndHeaders = (frameHeader[4] & FLAG_END_HEADERS) != 0;
+        }
+
+        // decode every block (the table must stay in step), but only answer new streams
+        List<Hpack.Field> fields;
+        try {
+            fields = decoder.decode(block.toByteArray(), block.size());
+        } catch (IOException e) {
+            throw new Http2Exception(COMPRESSION_ERROR, e.getMessage());
+        }
+        if (iStreamId <= iLastStreamId) {
+            return;  // trailers of a request that was already answered
+        }
+        iLastStreamId = iStreamId;
+        if (bIsGoingAway) {
+            return;  // past the last stream GOAWAY allowed -> the client retries it elsewhere
+        }
+        synchronized (this) {
+            if (streams.size() >= iMaxStreams) {
+                queueFrame(TYPE_RST_STREAM, 0, iStreamId, getIntBytes(REFUSED_STREAM));
+                return;
+            }
+        }
+
+        // the last stream the keep-alive limit allows -> GOAWAY once it is answered
+        iStreamCount++;
+        answer(iStreamId, fields);
+        if (!ConnectionLimits.isKeepAliveAllowed(iStreamCount)) {
+            bIsGoingAway = true;
+            iGoAwayReason = ServerMetrics.CLOSE_MAX_REQUESTS;
+            queueGoAway(NO_ERROR);
+        }
+    }
+
+    // read a DATA frame -> request bodies aren't used, so just give the window back to the client
+    private void readData(int iStreamId, int iLength) throws IOException {
+        if (iStreamId == 0 || iStreamId > iLastStreamId) {
+            throw new Http2Exception(PROTOCOL_ERROR, "DATA on idle stream " + iStreamId);
+        }
+        if (iLength > 0) {
+            queueFrame(TYPE_WINDOW_UPDATE, 0, 0, getIntBytes(iLength));
+        }
+    }
+
+    // read SETTINGS -> apply the client's limits, then acknowledge them
+    private void readSettings(int iStreamId, int iFlags, int iLength) throws IOException {
+        if (iStreamId != 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "SETTINGS on stream " + iStreamId);
+        }
+        if ((iFlags & FLAG_ACK) != 0) {
+            if (iLength != 0) {
+                throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS ack with payload");
+            }
+            return;
+        }
+        if (iLength % 6 != 0) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS of " + iLength + " bytes");
+        }
+        synchronized (this) {
+            for (int i = 0; i < iLength; i += 6) {
+                int iId = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+                int iValue = getInt(payload, i + 2);
+                if (iId == SETTINGS_HEADER_TABLE_SIZE) {
+                    encoder.setMaxTableSize(iValue < 0 ? Integer.MAX_VALUE : iValue);
+                } else if (iId == SETTINGS_ENABLE_PUSH && (iValue & ~1) != 0) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "ENABLE_PUSH " + iValue);
+                } else if (iId == SETTINGS_INITIAL_WINDOW_SIZE) {
+                    if (iValue < 0) {
+                        throw new Http2Exception(FLOW_CONTROL_ERROR, "INITIAL_WINDOW_SIZE " + iValue);
+                    }
+                    // the change applies to the windows of open streams too
+                    for (Stream stream : streams) {
+                        stream.lWindow += iValue - iInitialStreamWindow;
+                        if (stream.lWindow > Integer.MAX_VALUE) {
+                            throw new Http2Exception(FLOW_CONTROL_ERROR, "stream window overflow");
+                        }
+                    }
+                    iInitialStreamWindow = iValue;
+                } else if (iId == SETTINGS_MAX_FRAME_SIZE && (iValue < MAX_FRAME_BYTES || iValue > 0xffffff)) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "MAX_FRAME_SIZE " + iValue);
+                }
+            }
+            queueFrame(TYPE_SETTINGS, FLAG_ACK, 0, new byte[0]);
+            notifyAll();  // windows may have opened
+        }
+    }
+
+    // read WINDOW_UPDATE -> more room to send on the connection or on one stream
+    private void readWindowUpdate(int iStreamId, int iLength) throws IOException {
+        if (iLength != 4) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + iLength + " bytes");
+        }
+        int iIncrement = getInt(payload, 0) & 0x7fffffff;
+        synchronized (this) {
+            if (iStreamId == 0) {
+                if (iIncrement == 0) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "empty connection WINDOW_UPDATE");
+                }
+                lConnectionWindow += iIncrement;
+                if (lConnectionWindow > Integer.MAX_VALUE) {
+                    throw new Http2Exception(FLOW_CONTROL_ERROR, "connection window overflow");
+                }
+            } else {
+                Stream stream = getStream(iStreamId);
+                if (stream != null) {
+                    stream.lWindow += iIncrement;
+                    if (iIncrement == 0 || stream.lWindow > Integer.MAX_VALUE) {
+                        resetStream(stream, iIncrement == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR);
+                    }
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    // read PING -> echo it back
+    private void readPing(int iStreamId, int iFlags, int iLength) throws IOException {
+        if (iLength != 8 || iStreamId != 0) {
+            throw new Http2Exception(iStreamId != 0 ? PROTOCOL_ERROR : FRAME_SIZE_ERROR, "bad PING");
+        }
+        if ((iFlags & FLAG_ACK) == 0) {
+            queueFrame(TYPE_PING, FLAG_ACK, 0, Arrays.copyOf(payload, 8));
+        }
+    }
+
+    // read RST_STREAM -> the client no longer wants the response
+    private void readResetStream(int iStreamId, int iLength) throws IOException {
+        if (iLength != 4 || iStreamId == 0) {
+            throw new Http2Exception(iStreamId == 0 ? PROTOCOL_ERROR : FRAME_SIZE_ERROR, "bad RST_STREAM");
+        }
+        synchronized (this) {
+            Stream stream = getStream(iStreamId);
+            if (stream != null) {
+                stream.bIsReset = true;
+                endStream(stream);
+            }
+        }
+    }
+
+
+    //******************
+    //  REQUEST METHODS
+    //******************
+
+    // answer the request on a new stream (same steps as ClientThread, then headers and body as frames)
+    private void answer(int iStreamId, List<Hpack.Field> fields) {
+        long lStartNanos = System.nanoTime();
+
+        // pull out the pseudo headers and the request headers the server uses
+        String sHTTPMethod = null;
+        String sHTTPRequest = null;
+        String sAcceptEncoding = null;
+        String sIfNoneMatch = null;
+        String sIfModifiedSince = null;
+        String sRange = null;
+        String sIfRange = null;
+        long lListBytes = 0;
+        for (Hpack.Field field : fields) {
+            String sName = field.getName();
+            lListBytes += field.getSize();
+            if (sName.equals(":method")) {
+                sHTTPMethod = field.getValue().toUpperCase();
+            } else if (sName.equals(":path")) {
+                sHTTPRequest = field.getValue();
+            } else if (sName.equals("accept-encoding")) {
+                sAcceptEncoding = (sAcceptEncoding == null) ? field.getValue() : sAcceptEncoding + "," + field.getValue();
+            } else if (sName.equals("if-none-match")) {
+                sIfNoneMatch = field.getValue();
+            } else if (sName.equals("if-modified-since")) {
+                sIfModifiedSince = field.getValue();
+            } else if (sName.equals("range")) {
+                sRange = field.getValue();
+            } else if (sName.equals("if-range")) {
+                sIfRange = field.getValue();
+            }
+        }
+
+        // missing or unusable request line, or oversized header list -> 400 on the stream
+        if (sHTTPMethod == null || !isValidTarget(sHTTPRequest) || lListBytes > iMaxHeaderBytes) {
+            String sResponse = ClientThread.getResponse(null, "", "", 400);
+            respond(iStreamId, "", "", 400,
+                    ClientThread.getHeader("", 400, sResponse, sResponse.length(), null, true, true),
+                    new Stream.Part(ByteBuffer.wrap(sResponse.getBytes(StandardCharsets.ISO_8859_1))), null, null,
+                    lStartNanos);
+            return;
+        }
+        sHTTPRequest = sHTTPRequest.toLowerCase();  // like RequestParser
+
+        // client over its request rate or bandwidth -> 429 on the stream
+        long lWaitNanos = client.tryRequest();
+        if (lWaitNanos > 0) {
+            byte[] body = ClientLimits.getBody();
+            respond(iStreamId, sHTTPMethod, sHTTPRequest, ClientLimits.STATUS_CODE,
+                    ClientLimits.getHeader(ClientLimits.getRetryAfterSeconds(lWaitNanos), body.length, true, true),
+                    ClientThread.isMessageSend(sHTTPMethod, ClientLimits.STATUS_CODE)
+                            ? new Stream.Part(ByteBuffer.wrap(body)) : null, null, null, lStartNanos);
+            return;
+        }
+
+        // proxy route -> reset so the client retries over HTTP/1.1 (ReverseProxy relays on blocking sockets only)
+        if (ProxyRoutes.find(sHTTPRequest) != null) {
+            queueFrame(TYPE_RST_STREAM, 0, iStreamId, getIntBytes(HTTP_1_1_REQUIRED));
+            return;
+        }
+
+        // metrics endpoint is answered before the site is looked at
+        if (ServerMetrics.isMetricsRequest(sHTTPMethod, sHTTPRequest)) {
+            byte[] body = ServerMetrics.getBody();
+            respond(iStreamId, sHTTPMethod, sHTTPRequest, 200,
+                    new String(ServerMetrics.getHeader(body.length, true, true), StandardCharsets.ISO_8859_1),
+                    ClientThread.isMessageSend(sHTTPMethod, 200) ? new Stream.Part(ByteBuffer.wrap(body)) : null,
+                    null, null, lStartNanos);
+            return;
+        }
+
+        // one site index snapshot for the whole request (a folder with an index.html is answered as that file)
+        SiteIndex siteIndex = SiteIndex.get();
+        sHTTPRequest = DirectoryListing.resolveIndex(siteIndex, sHTTPRequest);
+
+        // get the status code, ranges, encoding & response as ClientThread does
+        int iStatusCode = ClientThread.getStatusCode(siteIndex, sHTTPMethod, sHTTPRequest);
+        ByteRanges ranges = ClientThread.getRanges(iStatusCode, sHTTPMethod, sHTTPRequest, sRange, sIfRange);
+        String sContentEncoding = (iStatusCode != 200 || ranges != null) ? null
+                : CompressionCache.getEncoding(sAcceptEncoding, sHTTPRequest);
+        iStatusCode = ClientThread.getConditionalStatusCode(iStatusCode, sHTTPRequest, sContentEncoding,
+                sIfNoneMatch, sIfModifiedSince);
+        if (iStatusCode == 200 && ranges != null) {
+            iStatusCode = ranges.getStatusCode();
+        }
+        String sResponse = ClientThread.getResponse(siteIndex, sHTTPMethod, sHTTPRequest, iStatusCode);
+
+        if (iStatusCode == 206) {
+            answerRanges(iStreamId, sHTTPMethod, sHTTPRequest, sResponse, ranges, siteIndex, lStartNanos);
+        } else if (iStatusCode == 200 && DirectoryListing.isListing(siteIndex, sHTTPRequest)) {
+            answerListing(iStreamId, sHTTPMethod, sHTTPRequest, siteIndex, lStartNanos);
+        } else {
+            answerFile(iStreamId, sHTTPMethod, sHTTPRequest, iStatusCode, sResponse, sContentEncoding, siteIndex,
+                    lStartNanos);
+        }
+    }
+
+    // answer with the file (from the caches when they have it), or with the status code's message
+    private void answerFile(int iStreamId, String sHTTPMethod, String sHTTPRequest, int iStatusCode, String sResponse,
+                            String sContentEncoding, SiteIndex siteIndex, long lStartNanos) {
+        boolean bIsFileSend = ClientThread.isFileSend(sHTTPMethod, iStatusCode);
+
+        // compressed variants and small hot files: cached header fields and body
+        ByteBuffer[] buffers = null;
+        if (bIsFileSend && sContentEncoding != null) {
+            CompressionCache.Variant variant = CompressionCache.get(sHTTPRequest, sResponse, sContentEncoding, siteIndex);
+            buffers = (variant != null) ? variant.getBuffers(true, true) : null;
+        }
+        if (bIsFileSend && buffers == null) {
+            ResponseCache.Entry cachedEntry = ResponseCache.get(sHTTPRequest, sResponse, siteIndex);
+            buffers = (cachedEntry != null) ? cachedEntry.getBuffers(true, true) : null;
+        }
+        if (buffers != null) {
+            String sHeader = new String(buffers[0].array(), StandardCharsets.ISO_8859_1);
+            respond(iStreamId, sHTTPMethod, sHTTPRequest, 200, sHeader, new Stream.Part(buffers[2]), null, null,
+                    lStartNanos);
+            return;
+        }
+
+        // open the file (gone since the site index was built -> answer as not found)
+        FileChannel fileChannel = null;
+        long lContentLength = sResponse.length();
+        if (bIsFileSend) {
+            try {
+                fileChannel = new FileInputStream(ClientThread.ROOT_FOLDER.toString() + "/" + sResponse).getChannel();
+                lContentLength = fileChannel.size();
+            } catch (IOException e) {
+                AccessLog.error("There was an error opening the file channel for the HTTP/2 response:", e);
+                if (fileChannel != null) {
+                    NioConnection.closeQuietly(fileChannel);
+                    fileChannel = null;
+                }
+                iStatusCode = 404;
+                sResponse = ClientThread.getResponse(siteIndex, sHTTPMethod, sHTTPRequest, iStatusCode);
+                lContentLength = sResponse.length();
+                bIsFileSend = false;
+            }
+        }
+
+        String sHeader = ClientThread.getHeader(sHTTPRequest, iStatusCode, sResponse, lContentLength,
+                (iStatusCode == 304) ? sContentEncoding : null, true, true);
+        Stream.Part body = null;
+        if (bIsFileSend) {
+            body = new Stream.Part(0, lContentLength);
+        } else if (ClientThread.isMessageSend(sHTTPMethod, iStatusCode)) {
+            body = new Stream.Part(ByteBuffer.wrap(sResponse.getBytes(StandardCharsets.ISO_8859_1)));
+        }
+        respond(iStreamId, sHTTPMethod, sHTTPRequest, iStatusCode, sHeader, body, fileChannel, null, lStartNanos);
+    }
+
+    // answer with the ranges of the file (with their part headers when multipart)
+    private void answerRanges(int iStreamId, String sHTTPMethod, String sHTTPRequest, String sFilePath,
+                              ByteRanges ranges, SiteIndex siteIndex, long lStartNanos) {
+        FileChannel fileChannel;
+        try {
+            fileChannel = new FileInputStream(ClientThread.ROOT_FOLDER.toString() + "/" + sFilePath).getChannel();
+        } catch (IOException e) {
+            AccessLog.error("There was an error opening the file channel for the HTTP/2 ranges:", e);
+            answerFile(iStreamId, sHTTPMethod, sHTTPRequest, 404,
+                    ClientThread.getResponse(siteIndex, sHTTPMethod, sHTTPRequest, 404), null, siteIndex, lStartNanos);
+            return;
+        }
+
+        // chain the parts: [part header] range ... [closing boundary]
+        Stream.Part first = null;
+        Stream.Part last = null;
+        for (int i = 0; i < ranges.getCount(); i++) {
+            if (ranges.isMultipart()) {
+                last = Stream.Part.append(last, new Stream.Part(ByteBuffer.wrap(ranges.getPartHeader(sHTTPRequest, i))));
+                first = (first == null) ? last : first;
+            }
+            last = Stream.Part.append(last, new Stream.Part(ranges.getStart(i), ranges.getLength(i)));
+            first = (first == null) ? last : first;
+        }
+        if (ranges.isMultipart()) {
+            last = Stream.Part.append(last, new Stream.Part(ByteBuffer.wrap(ranges.getClosingBoundary())));
+        }
+        respond(iStreamId, sHTTPMethod, sHTTPRequest, 206, ranges.getHeaderFields(sHTTPRequest, true), first,
+                fileChannel, null, lStartNanos);
+    }
+
+    // answer with the folder listing (cached chunks or streamed from the folder, body left out for HEAD)
+    private void answerListing(int iStreamId, String sHTTPMethod, String sHTTPRequest, SiteIndex siteIndex,
+                               long lStartNanos) {
+        DirectoryListing.Body listing = null;
+        if (ClientThread.isMessageSend(sHTTPMethod, 200)) {
+            try {
+                listing = DirectoryListing.open(siteIndex, sHTTPRequest, false);
+            } catch (IOException e) {
+                AccessLog.error("There was an error listing the folder for the HTTP/2 response:", e);
+                String sResponse = ClientThread.getResponse(siteIndex, sHTTPMethod, sHTTPRequest, 500);
+                respond(iStreamId, sHTTPMethod, sHTTPRequest, 500,
+                        ClientThread.getHeader(sHTTPRequest, 500, sResponse, sResponse.length(), null, true, true),
+                        new Stream.Part(ByteBuffer.wrap(sResponse.getBytes(StandardCharsets.ISO_8859_1))), null,
+                        null, lStartNanos);
+                return;
+            }
+        }
+        respond(iStreamId, sHTTPMethod, sHTTPRequest, 200, DirectoryListing.getHeader(false, true, true), null, null,
+                listing, lStartNanos);
+    }
+
+    // queue the response headers and hand the body (if any) to the writer
+    private void respond(int iStreamId, String sHTTPMethod, String sHTTPRequest, int iStatusCode, String sHeader,
+                         Stream.Part body, FileChannel fileChannel, DirectoryListing.Body listing, long lStartNanos) {
+        Stream stream = new Stream(iStreamId, sHTTPMethod, sHTTPRequest, iStatusCode, body, fileChannel, listing,
+                lStartNanos);
+        try {
+            stream.advance();  // know up front if there is a body at all
+        } catch (IOException e) {
+            AccessLog.error("There was an error reading the HTTP/2 response body:", e);
+            stream.bIsReset = true;
+        }
+
+        synchronized (this) {
+            // header blocks are encoded in the order they are queued -> the client's decoder stays in step
+            byte[] block = encoder.encode(getFields(sHeader));
+            boolean bHasBody = stream.current != null && !stream.bIsReset;
+            queueHeaders(iStreamId, block, bHasBody ? 0 : FLAG_END_STREAM);
+            if (stream.bIsReset) {
+                queueFrame(TYPE_RST_STREAM, 0, iStreamId, getIntBytes(INTERNAL_ERROR));
+            }
+            if (bHasBody) {
+                stream.lWindow = iInitialStreamWindow;
+                streams.add(stream);
+            } else {
+                endStream(stream);
+            }
+            notifyAll();
+        }
+    }
+
+    // check the :path is a target RequestParser would take (no spaces, control characters or non-ASCII)
+    private static boolean isValidTarget(String sHTTPRequest) {
+        if (sHTTPRequest == null || sHTTPRequest.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < sHTTPRequest.length(); i++) {
+            char c = sHTTPRequest.charAt(i);
+            if (c <= ' ' || c >= 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // get the HTTP/2 fields for an HTTP/1.1 header block: :status from the status line, names in lower case,
+    // no connection specific lines (Connection, Keep-Alive, Transfer-Encoding)
+    static List<Hpack.Field> getFields(String sHeader) {
+        List<Hpack.Field> fields = new ArrayList<>();
+        String[] sLines = sHeader.split(ClientThread.END_LINE);
+        fields.add(new Hpack.Field(":status", sLines[0].substring("HTTP/1.1 ".length(), "HTTP/1.1 ".length() + 3)));
+        for (int i = 1; i < sLines.length; i++) {
+            int iColon = sLines[i].indexOf(':');
+            if (iColon <= 0) {
+                continue;  // blank line at the end
+            }
+            String sName = sLines[i].substring(0, iColon).trim().toLowerCase();
+            if (sName.equals("connection") || sName.equals("keep-alive") || sName.equals("transfer-encoding")) {
+                continue;
+            }
+            fields.add(new Hpack.Field(sName, sLines[i].substring(iColon + 1).trim()));
+        }
+        return fields;
+    }
+
+
+    //****************
+    //  WRITER SIDE
+    //****************
+
+    // start the writer thread for the connection
+    private Thread startWriter() {
+        Thread writer = new Thread(Thread.currentThread().getName() + WRITER_THREAD_SUFFIX) {
+            public void run() {
+                try {
+                    writeFrames();
+                    if (bIsStalled) {
+                        NioConnection.closeQuietly(connectedClient);  // GOAWAY is out -> wakes the reader
+                    }
+                } catch (IOException e) {
+                    if (AccessLog.isDebugEnabled()) {
+                        AccessLog.debug("HTTP/2 writes to client " + connectedClient.getInetAddress() + " failed: " + e);
+                    }
+                    NioConnection.closeQuietly(connectedClient);  // wakes the reader
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+        return writer;
+    }
+
+    // write frames until the connection closes: control frames first, then one DATA frame per ready stream in turn,
+    // flushing whenever there is nothing more to write right away
+    // (open streams that can't send for the keep-alive timeout -> GOAWAY, then return for the connection to close)
+    private void writeFrames() throws IOException, InterruptedException {
+        while (true) {
+            byte[][] frames = null;
+            Stream stream = null;
+            int iLength = 0;
+            long lWaitStartNanos = 0;
+            synchronized (this) {
+                while (true) {
+                    if (!controlFrames.isEmpty()) {
+                        frames = controlFrames.toArray(new byte[controlFrames.size()][]);
+                        controlFrames.clear();
+                        break;
+                    }
+                    stream = getNextStream();
+                    if (stream != null) {
+                        iLength = reserve(stream);
+                        break;
+                    }
+                    if (bIsUnflushed || bIsClosing || bIsStalled) {
+                        break;
+                    }
+                    if (streams.isEmpty()) {
+                        wait();
+                        continue;
+                    }
+
+                    // streams wait for the client's windows -> only as long as the keep-alive timeout
+                    long lNowNanos = System.nanoTime();
+                    lWaitStartNanos = (lWaitStartNanos == 0) ? lNowNanos : lWaitStartNanos;
+                    long lWaitMillis = ConnectionLimits.getKeepAliveTimeoutMillis()
+                            - (lNowNanos - lWaitStartNanos) / 1000000L;
+                    if (lWaitMillis <= 0) {
+                        bIsStalled = true;
+                        queueGoAway(NO_ERROR);
+                        continue;
+                    }
+                    wait(lWaitMillis);
+                }
+            }
+
+            lWriteStartNanos = System.nanoTime();
+            if (frames != null) {
+                for (byte[] frame : frames) {
+                    outToClient.write(frame);
+                }
+                bIsUnflushed = true;
+            } else if (stream != null) {
+                writeData(stream, iLength);
+            } else if (bIsUnflushed) {
+                outToClient.flush();
+                bIsUnflushed = false;
+            } else {
+                return;  // closing (or stalled) and everything is out
+            }
+            lWriteStartNanos = 0;
+        }
+    }
+
+    // check if the writer has been blocked in one write for the timeout (the client doesn't read)
+    private boolean isWriteStalled(int iTimeoutMillis) {
+        long lStartNanos = lWriteStartNanos;
+        return lStartNanos != 0 && System.nanoTime() - lStartNanos >= iTimeoutMillis * 1000000L;
+    }
+
+    // get the next stream (round robin) that can send now: window left, or only its end left to send
+    private Stream getNextStream() {
+        for (int i = 0; i < streams.size(); i++) {
+            int iIndex = (iNextStream + i) % streams.size();
+            Stream stream = streams.get(iIndex);
+            if (stream.current == null || (stream.lWindow > 0 && lConnectionWindow > 0)) {
+                iNextStream = iIndex + 1;
+                return stream;
+            }
+        }
+        return null;
+    }
+
+    // take the window for the stream's next DATA frame -> its length
+    private int reserve(Stream stream) {
+        if (stream.current == null) {
+            return 0;
+        }
+        int iLength = (int) Math.min(Math.min(MAX_FRAME_BYTES, stream.current.getRemaining()),
+                Math.min(stream.lWindow, lConnectionWindow));
+        stream.lWindow -= iLength;
+        lConnectionWindow -= iLength;
+        return iLength;
+    }
+
+    // write one DATA frame of the stream (the last one ends the stream)
+    private void writeData(Stream stream, int iLength) throws IOException {
+        try {
+            if (iLength > 0) {
+                stream.current.read(data, iLength, stream.fileChannel);
+                stream.lBodyBytes += iLength;
+                stream.advance();
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                if (!stream.bIsReset) {
+                    AccessLog.error("There was an error reading the HTTP/2 response body:", e);
+                    resetStream(stream, INTERNAL_ERROR);
+                }
+            }
+            return;
+        }
+
+        boolean bIsEnd = stream.current == null;
+        synchronized (this) {
+            if (stream.bIsReset) {
+                return;  // the client reset it while the data was read
+            }
+            if (bIsEnd) {
+                endStream(stream);
+            }
+        }
+        outToClient.write(getFrameHeader(iLength, TYPE_DATA, bIsEnd ? FLAG_END_STREAM : 0, stream.iStreamId));
+        outToClient.write(data, 0, iLength);
+        bIsUnflushed = true;
+    }
+
+
+    //*****************
+    //  QUEUE HELPERS
+    //*****************
+
+    // queue the server's SETTINGS (the rest stay at their defaults)
+    private void queueSettings() {
+        byte[] settings = new byte[12];
+        putSetting(settings, 0, SETTINGS_MAX_CONCURRENT_STREAMS, iMaxStreams);
+        putSetting(settings, 6, SETTINGS_MAX_HEADER_LIST_SIZE, iMaxHeaderBytes);
+        queueFrame(TYPE_SETTINGS, 0, 0, settings);
+    }
+
+    // queue a header block as HEADERS and as many CONTINUATION frames as it needs
+    private synchronized void queueHeaders(int iStreamId, byte[] block, int iFlags) {
+        int iOffset = 0;
+        int iType = TYPE_HEADERS;
+        do {
+            int iLength = Math.min(MAX_FRAME_BYTES, block.length - iOffset);
+            boolean bIsLast = iOffset + iLength == block.length;
+            int iFrameFlags = (bIsLast ? FLAG_END_HEADERS : 0) | ((iType == TYPE_HEADERS) ? iFlags : 0);
+            queueFrame(iType, iFrameFlags, iStreamId, Arrays.copyOfRange(block, iOffset, iOffset + iLength));
+            iOffset += iLength;
+            iType = TYPE_CONTINUATION;
+        } while (iOffset < block.length);
+    }
+
+    // queue GOAWAY with the last stream this side answers
+    private void queueGoAway(int iErrorCode) {
+        queueGoAway(iLastStreamId, iErrorCode);
+    }
+
+    // queue GOAWAY with the stream id
+    private void queueGoAway(int iStreamId, int iErrorCode) {
+        byte[] goAway = new byte[8];
+        putInt(goAway, 0, iStreamId);
+        putInt(goAway, 4, iErrorCode);
+        queueFrame(TYPE_GOAWAY, 0, 0, goAway);
+    }
+
+    // queue a control frame for the writer (past MAX_QUEUED_FRAMES only GOAWAY -> the reader goes away)
+    private synchronized void queueFrame(int iType, int iFlags, int iStreamId, byte[] framePayload) {
+        if (bIsClosing) {
+            return;
+        }
+        if (controlFrames.size() >= MAX_QUEUED_FRAMES && iType != TYPE_GOAWAY) {
+            bIsFlooded = true;
+            return;
+        }
+        byte[] frame = Arrays.copyOf(getFrameHeader(framePayload.length, iType, iFlags, iStreamId),
+                FRAME_HEADER_BYTES + framePayload.length);
+        System.arraycopy(framePayload, 0, frame, FRAME_HEADER_BYTES, framePayload.length);
+        controlFrames.add(frame);
+        notifyAll();
+    }
+
+
+    //******************
+    //  STREAM HELPERS
+    //******************
+
+    // check if any stream is still being answered
+    private synchronized boolean hasStreams() {
+        return !streams.isEmpty();
+    }
+
+    // check if control frames were dropped because too many were waiting for the writer
+    private synchronized boolean isFlooded() {
+        return bIsFlooded;
+    }
+
+    // get the open stream with the id -> null if it is done (or was never opened)
+    private Stream getStream(int iStreamId) {
+        for (Stream stream : streams) {
+            if (stream.iStreamId == iStreamId) {
+                return stream;
+            }
+        }
+        return null;
+    }
+
+    // reset a stream from the server side
+    private void resetStream(Stream stream, int iErrorCode) {
+        stream.bIsReset = true;
+        queueFrame(TYPE_RST_STREAM, 0, stream.iStreamId, getIntBytes(iErrorCode));
+        endStream(stream);
+    }
+
+    // end the stream: release its body and log the request (sent in full or cut short by a reset)
+    private void endStream(Stream stream) {
+        streams.remove(stream);
+        if (stream.fileChannel != null) {
+            NioConnection.closeQuietly(stream.fileChannel);
+        }
+        if (stream.listing != null) {
+            stream.listing.close();
+        }
+        if (AccessLog.isAccessEnabled()) {
+            AccessLog.request(stream.sHTTPMethod, stream.sHTTPRequest, stream.iStatusCode, stream.lBodyBytes,
+                    stream.lStartNanos, true, connectedClient.getInetAddress());
+        }
+        ServerMetrics.requestDone(true, stream.iStatusCode, stream.lBodyBytes, stream.lStartNanos,
+                iRequestCount++ > 0);
+        client.sent(stream.lBodyBytes);
+        notifyAll();
+    }
+
+    // close the socket at once, even while the writer is blocked in a write (SSLSocket.close waits for the write to
+    // send close_notify after it; with linger 0 it gives up on that and resets the connection)
+    private void abort() {
+        try {
+            connectedClient.setSoLinger(true, 0);
+        } catch (SocketException e) {
+            // closed already
+        }
+        NioConnection.closeQuietly(connectedClient);
+    }
+
+    // close the connection: drop unfinished streams, let the writer send what is queued, then close the socket
+    private void close(Thread writer) {
+        synchronized (this) {
+            for (Stream stream : new ArrayList<>(streams)) {
+                stream.bIsReset = true;
+                endStream(stream);
+            }
+            bIsClosing = true;
+            notifyAll();
+        }
+        if (writer != null) {
+            try {
+                writer.join(ConnectionLimits.getHeaderTimeoutMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (writer != null && writer.isAlive()) {
+            abort();  // still blocked in a write
+        } else {
+            NioConnection.closeQuietly(connectedClient);
+        }
+        if (AccessLog.isDebugEnabled()) {
+            AccessLog.debug("HTTP/2 client " + connectedClient.getInetAddress() + " is done.  This socket closed.");
+        }
+    }
+
+
+    //*****************
+    //  FRAME HELPERS
+    //*****************
+
+    // read exactly iLength bytes into the buffer, each read bounded by the timeout
+    private void readFully(InputStream in, byte[] buffer, int iLength, int iTimeoutMillis) throws IOException {
+        readFully(in, buffer, 0, iLength, iTimeoutMillis);
+    }
+
+    // read exactly iLength bytes into the buffer from the offset, each read bounded by the timeout
+    private void readFully(InputStream in, byte[] buffer, int iOffset, int iLength, int iTimeoutMillis)
+            throws IOException {
+        connectedClient.setSoTimeout(iTimeoutMillis);
+        int iRead = 0;
+        while (iRead < iLength) {
+            int iCount = in.read(buffer, iOffset + iRead, iLength - iRead);
+            if (iCount < 0) {
+                throw new EOFException();
+            }
+            iRead += iCount;
+        }
+    }
+
+    // get the 9 byte frame header
+    private static byte[] getFrameHeader(int iLength, int iType, int iFlags, int iStreamId) {
+        byte[] header = new byte[FRAME_HEADER_BYTES];
+        header[0] = (byte) (iLength >>> 16);
+        header[1] = (byte) (iLength >>> 8);
+        header[2] = (byte) iLength;
+        header[3] = (byte) iType;
+        header[4] = (byte) iFlags;
+        putInt(header, 5, iStreamId);
+        return header;
+    }
+
+    // write one setting (16 bit id, 32 bit value)
+    private static void putSetting(byte[] settings, int iOffset, int iId, int iValue) {
+        settings[iOffset] = (byte) (iId >>> 8);
+        settings[iOffset + 1] = (byte) iId;
+        putInt(settings, iOffset + 2, iValue);
+    }
+
+    // get a 32 bit value as 4 bytes
+    private static byte[] getIntBytes(int iValue) {
+        byte[] bytes = new byte[4];
+        putInt(bytes, 0, iValue);
+        return bytes;
+    }
+
+    // write a 32 bit big endian value
+    private static void putInt(byte[] bytes, int iOffset, int iValue) {
+        bytes[iOffset] = (byte) (iValue >>> 24);
+        bytes[iOffset + 1] = (byte) (iValue >>> 16);
+        bytes[iOffset + 2] = (byte) (iValue >>> 8);
+        bytes[iOffset + 3] = (byte) iValue;
+    }
+
+    // read a 32 bit big endian value
+    private static int getInt(byte[] bytes, int iOffset) {
+        return ((bytes[iOffset] & 0xff) << 24) | ((bytes[iOffset + 1] & 0xff) << 16)
+                | ((bytes[iOffset + 2] & 0xff) << 8) | (bytes[iOffset + 3] & 0xff);
+    }
+
+
+    //**********
+    //  STREAM
+    //**********
+
+    // one request being answered: its body as a chain of parts, send window and what to log at the end
+    private static final class Stream {
+
+        private final int iStreamId;
+        private final String sHTTPMethod;
+        private final String sHTTPRequest;
+        private final int iStatusCode;
+        private final long lStartNanos;
+        private final FileChannel fileChannel;
+        private final DirectoryListing.Body listing;
+        private Part current;
+        private long lWindow;
+        private long lBodyBytes;
+        private boolean bIsReset;
+
+        // stream constructor
+        Stream(int iStreamId, String sHTTPMethod, String sHTTPRequest, int iStatusCode, Part body,
+               FileChannel fileChannel, DirectoryListing.Body listing, long lStartNanos) {
+            this.iStreamId = iStreamId;
+            this.sHTTPMethod = sHTTPMethod;
+            this.sHTTPRequest = sHTTPRequest;
+            this.iStatusCode = iStatusCode;
+            this.current = body;
+            this.fileChannel = fileChannel;
+            this.listing = listing;
+            this.lStartNanos = lStartNanos;
+        }
+
+        // move past finished parts (pulling the next listing buffer) -> current is null once the body is done
+        void advance() throws IOException {
+            while (current != null && current.getRemaining() == 0) {
+                current = current.next;
+            }
+            if (current == null && listing != null) {
+                ByteBuffer buffer = listing.next();
+                while (buffer != null && !buffer.hasRemaining()) {
+                    buffer = listing.next();
+                }
+                current = (buffer != null) ? new Part(buffer) : null;
+            }
+        }
+
+        // one piece of a body: bytes in a buffer, or a region of the stream's file
+        static final class Part {
+
+            private final ByteBuffer buffer;
+            private long lPosition;
+            private long lRemaining;
+            private Part next;
+
+            // buffer part constructor
+            Part(ByteBuffer buffer) {
+                this.buffer = buffer;
+                this.lRemaining = buffer.remaining();
+            }
+
+            // file region part constructor
+            Part(long lPosition, long lLength) {
+                this.buffer = null;
+                this.lPosition = lPosition;
+                this.lRemaining = lLength;
+            }
+
+            // link the part after the last one -> the new last part
+            static Part append(Part last, Part part) {
+                if (last != null) {
+                    last.next = part;
+                }
+                return part;
+            }
+
+            // get the bytes left in the part
+            long getRemaining() {
+                return lRemaining;
+            }
+
+            // read the next iLength bytes of the part into the array
+            void read(byte[] data, int iLength, FileChannel fileChannel) throws IOException {
+                if (buffer != null) {
+                    buffer.get(data, 0, iLength);
+                } else {
+                    ByteBuffer target = ByteBuffer.wrap(data, 0, iLength);
+                    while (target.hasRemaining()) {
+                        if (fileChannel.read(target, lPosition + target.position()) < 0) {
+                            throw new EOFException("file shrank while sending it");
+                        }
+                    }
+                    lPosition += iLength;
+                }
+                lRemaining -= iLength;
+            }
+        }
+    }
+
+    // protocol error -> GOAWAY with the error code, then close
+    private static final class Http2Exception extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int iErrorCode;
+
+        // exception constructor
+        Http2Exception(int iErrorCode, String sMessage) {
+            super(sMessage);
+            this.iErrorCode = iErrorCode;
+        }
+    }
+
+}
@@ -0,0 +1,180 @@
+package server;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.nio.channels.Channel;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Arrays;
+
+/**
+ * ListenerOptions opens the listening sockets of both listeners and tunes every accepted socket
+ * ListenerOptions opens --acceptors sockets per port with SO_REUSEPORT (default 1), each accepted on its own thread,
+ *   so the kernel spreads new connections over the acceptors instead of queueing them behind one accept loop
+ * ListenerOptions falls back to one socket shared by the acceptor threads where SO_REUSEPORT is missing
+ *   (Java 8, or an OS without it)
+ * ListenerOptions sets SO_REUSEPORT even with one acceptor when --reusePort=true, so a new server process can bind
+ *   the ports while the old one drains, and takes the plain listener from the parent process when
+ *   --inheritedChannel=true and one was passed (System.inheritedChannel, e.g. systemd socket activation)
+ * ListenerOptions sets the accept backlog (--backlog) and, on accepted sockets, TCP_NODELAY (--tcpNoDelay, on by
+ *   default since responses are already coalesced into few writes) and SO_SNDBUF / SO_RCVBUF (--sendBufferSize,
+ *   --receiveBufferSize bytes, 0 -> OS default)
+ */
+
+final class ListenerOptions {
+
+    // constants for defaults
+    private static final int DEFAULT_ACCEPTORS = 1;
+    private static final int DEFAULT_BACKLOG = 1024;
+    private static final String REUSE_PORT_FIELD = "SO_REUSEPORT";
+
+    // settings (read once from flags)
+    private static final int iAcceptors = Math.max(1, ServerOptions.getInt(ServerOptions.FLAG_ACCEPTORS,
+            DEFAULT_ACCEPTORS));
+    private static final int iBacklog = ServerOptions.getInt(ServerOptions.FLAG_BACKLOG, DEFAULT_BACKLOG);
+    private static final boolean bTcpNoDelay = ServerOptions.getBoolean(ServerOptions.FLAG_TCP_NO_DELAY, true);
+    private static final int iSendBufferSize = ServerOptions.getInt(ServerOptions.FLAG_SEND_BUFFER_SIZE, 0);
+    private static final int iReceiveBufferSize = ServerOptions.getInt(ServerOptions.FLAG_RECEIVE_BUFFER_SIZE, 0);
+    private static final boolean bReusePort = ServerOptions.getBoolean(ServerOptions.FLAG_REUSE_PORT, false);
+    private static final boolean bInheritedChannel = ServerOptions.getBoolean(ServerOptions.FLAG_INHERITED_CHANNEL,
+            false);
+
+    // SO_REUSEPORT (Java 9 and later) -> null if this JDK has no such option
+    private static final SocketOption<Boolean> reusePortOption = getReusePortOption();
+
+    // opener for plain listeners (the socket of a channel, so accepted sockets have channels for transferTo)
+    static final SocketOpener CHANNEL_OPENER = new SocketOpener() {
+        public ServerSocket open() throws IOException {
+            return ServerSocketChannel.open().socket();
+        }
+    };
+
+    // no instances - options are process wide
+    private ListenerOptions() {
+    }
+
+    // open the acceptor sockets for the port -> one per acceptor, all the same socket if the port can't be shared
+    static ServerSocket[] open(int iPort, SocketOpener opener) throws IOException {
+        ServerSocket[] serverSockets = new ServerSocket[iAcceptors];
+        ServerSocket inherited = (opener == CHANNEL_OPENER) ? getInheritedSocket() : null;
+        if (inherited != null) {
+            Arrays.fill(serverSockets, inherited);  // already bound by the parent -> the acceptors share it
+            return serverSockets;
+        }
+        ServerSocket first = opener.open();
+        boolean bIsShared = (iAcceptors > 1 || bReusePort) && setReusePort(first);
+        serverSockets[0] = bind(first, iPort);
+
+        // bind the rest to the port the first one got (it may have been ephemeral)
+        for (int i = 1; i < iAcceptors; i++) {
+            serverSockets[i] = bIsShared ? bind(reusePort(opener.open()), first.getLocalPort()) : first;
+        }
+        return serverSockets;
+    }
+
+    // get a description of the acceptors for the console
+    static String getDescription(ServerSocket[] serverSockets) {
+        if (serverSockets.length == 1) {
+            return "1 acceptor";
+        }
+        return serverSockets.length + " acceptors"
+                + ((serverSockets[0] != serverSockets[1]) ? " (SO_REUSEPORT)" : " (sharing one socket)");
+    }
+
+    // apply the socket flags to an accepted socket
+    static void configure(Socket clientSocket) {
+        try {
+            clientSocket.setTcpNoDelay(bTcpNoDelay);
+            if (iSendBufferSize > 0) {
+                clientSocket.setSendBufferSize(iSendBufferSize);
+            }
+            if (iReceiveBufferSize > 0) {
+                clientSocket.setReceiveBufferSize(iReceiveBufferSize);
+            }
+        } catch (SocketException e) {
+            AccessLog.error("Could not set socket options", e);  // keep serving with the OS defaults
+        }
+    }
+
+
+    //***************
+    //  BIND HELPERS
+    //***************
+
+    // bind the socket with the backlog (receive buffer set first -> windows over 64 KB are agreed in the handshake)
+    private static ServerSocket bind(ServerSocket serverSocket, int iPort) throws IOException {
+        if (iReceiveBufferSize > 0) {
+            serverSocket.setReceiveBufferSize(iReceiveBufferSize);
+        }
+        serverSocket.bind(new InetSocketAddress(iPort), iBacklog);
+        return serverSocket;
+    }
+
+    // get the listening socket passed by the parent process -> null if none was passed (or the flag is off)
+    private static ServerSocket getInheritedSocket() throws IOException {
+        if (!bInheritedChannel) {
+            return null;
+        }
+        Channel inherited = System.inheritedChannel();
+        if (!(inherited instanceof ServerSocketChannel)) {
+            System.out.println("No listening socket was inherited -> opening the port");
+            return null;
+        }
+        ServerSocketChannel serverChannel = (ServerSocketChannel) inherited;
+        serverChannel.configureBlocking(true);  // accepted on acceptor threads like an opened one
+        return serverChannel.socket();
+    }
+
+    // set SO_REUSEPORT on a further acceptor socket (the first one already proved it works)
+    private static ServerSocket reusePort(ServerSocket serverSocket) throws IOException {
+        if (!setReusePort(serverSocket)) {
+            throw new IOException("SO_REUSEPORT stopped working");
+        }
+        return serverSocket;
+    }
+
+    // set SO_REUSEPORT on an unbound socket -> false if this JDK or OS can't
+    private static boolean setReusePort(ServerSocket serverSocket) {
+        if (reusePortOption == null) {
+            System.out.println("SO_REUSEPORT needs Java 9 or later -> acceptors share one socket");
+            return false;
+        }
+        try {
+            ServerSocketChannel channel = serverSocket.getChannel();
+            if (channel != null) {
+                channel.setOption(reusePortOption, true);
+            } else {
+                // ServerSocket.setOption is Java 9 and later too
+                Method setOption = ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class);
+                setOption.invoke(serverSocket, reusePortOption, true);
+            }
+            return true;
+        } catch (IOException | UnsupportedOperationException | ReflectiveOperationException e) {
+            Throwable cause = (e instanceof InvocationTargetException) ? e.getCause() : e;
+            System.out.println("SO_REUSEPORT is not available (" + cause + ") -> acceptors share one socket");
+            return false;
+        }
+    }
+
+    // get the SO_REUSEPORT option -> null before Java 9
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> getReusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField(REUSE_PORT_FIELD).get(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+
+    //**********
+    //  OPENER
+    //**********
+
+    // creates one unbound listening socket (plain channel or TLS)
+    interface SocketOpener {
+        ServerSocket open() throws IOException;
+    }
+
+}
@@ -0,0 +1,211 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MappedFileCache shares one read-only MappedByteBuffer per large file across all connections
+ * MappedFileCache only maps files of at least --mmapThreshold bytes (0 turns it off), up to --mmapBytes in total
+ * MappedFileCache mappings are reference counted -> an evicted or changed file is unmapped after its last send
+ * MappedFileCache is used where transferTo can't be (TLS sockets, or --sendfile=false)
+ */
+
+final class MappedFileCache {
+
+    // constants for defaults
+    private static final long DEFAULT_THRESHOLD_BYTES = 1024L * 1024;
+    private static final long DEFAULT_MAPPED_BYTES = 1024L * 1024 * 1024;
+
+    // cache settings (read once from flags)
+    private static final long lThresholdBytes = ServerOptions.getLong(ServerOptions.FLAG_MMAP_THRESHOLD, DEFAULT_THRESHOLD_BYTES);
+    private static final long lBudgetBytes = ServerOptions.getLong(ServerOptions.FLAG_MMAP_BYTES, DEFAULT_MAPPED_BYTES);
+
+    // mappings in least -> most recently used order (guarded by the map's lock)
+    private static final LinkedHashMap<String, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+    private static long lMappedBytes;
+
+    // no instances - cache is process wide
+    private MappedFileCache() {
+    }
+
+    // check if a file of this size should be served from a mapping
+    static boolean isMappable(long lFileSize) {
+        return lThresholdBytes > 0 && lFileSize >= lThresholdBytes && lFileSize <= Integer.MAX_VALUE
+                && lFileSize <= lBudgetBytes;
+    }
+
+    // get a referenced mapping of the open file -> caller must release it; null if the file can't be mapped
+    static Mapping acquire(String sFilePath, FileChannel fileChannel, SiteIndex siteIndex) {
+        try {
+            long lFileSize = fileChannel.size();
+            if (!isMappable(lFileSize)) {
+                return null;
+            }
+
+            // reuse the shared mapping when it still matches the file being sent
+            synchronized (mappings) {
+                Mapping mapping = mappings.get(sFilePath);
+                if (mapping != null && mapping.isCurrent(siteIndex) && mapping.getSize() == lFileSize
+                        && mapping.retain()) {
+                    return mapping;
+                }
+                if (mapping != null) {
+                    retire(sFilePath);
+                }
+            }
+
+            // map outside the lock, then publish (one reference for the cache, one for the caller)
+            Mapping mapping = new Mapping(new File(ClientThread.ROOT_FOLDER, sFilePath),
+                    fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, lFileSize), siteIndex);
+            mapping.retain();
+            synchronized (mappings) {
+                retire(sFilePath);
+                mappings.put(sFilePath, mapping);
+                lMappedBytes += lFileSize;
+                evictToBudget();
+            }
+            return mapping;
+        } catch (IOException e) {
+            AccessLog.error("There was an error mapping " + sFilePath + ":", e);
+            return null;
+        }
+    }
+
+    // get the bytes currently mapped by the cache
+    static long getMappedBytes() {
+        synchronized (mappings) {
+            return lMappedBytes;
+        }
+    }
+
+
+    //*****************
+    //  CACHE HELPERS
+    //*****************
+
+    // drop least recently used mappings until the cache fits the budget (caller holds the lock)
+    private static void evictToBudget() {
+        Iterator<Mapping> iterator = mappings.values().iterator();
+        while (lMappedBytes > lBudgetBytes && iterator.hasNext()) {
+            Mapping mapping = iterator.next();
+            iterator.remove();
+            lMappedBytes -= mapping.getSize();
+            mapping.retire();
+        }
+    }
+
+    // remove the mapping for the file and drop the cache's reference (caller holds the lock)
+    private static void retire(String sFilePath) {
+        Mapping mapping = mappings.remove(sFilePath);
+        if (mapping != null) {
+            lMappedBytes -= mapping.getSize();
+            mapping.retire();
+        }
+    }
+
+    // unmap now instead of waiting for the GC (no public API -> try the JDK 9+ and JDK 8 cleaners)
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // not JDK 9+ -> try the JDK 8 cleaner below
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // leave it to the GC
+        }
+    }
+
+
+    //***********
+    //  MAPPING
+    //***********
+
+    // one mapped file shared by every send of it
+    static final class Mapping {
+
+        private final File file;
+        private final long lLastModified;
+        private final MappedByteBuffer buffer;
+        private final AtomicInteger referenceCount = new AtomicInteger(1);  // the cache's own reference
+        private final AtomicBoolean retired = new AtomicBoolean();
+        private volatile SiteIndex validatedIndex;
+
+        // mapping constructor
+        private Mapping(File file, MappedByteBuffer buffer, SiteIndex validatedIndex) {
+            this.file = file;
+            this.lLastModified = file.lastModified();
+            this.buffer = buffer;
+            this.validatedIndex = validatedIndex;
+        }
+
+        // get a private view of the mapped bytes (own position and limit)
+        ByteBuffer getBuffer() {
+            return buffer.duplicate();
+        }
+
+        // get the mapped length
+        long getSize() {
+            return buffer.capacity();
+        }
+
+        // give back a reference from acquire -> unmaps once retired and unused
+        void release() {
+            if (referenceCount.decrementAndGet() == 0) {
+                unmap(buffer);
+            }
+        }
+
+        // take a reference unless the mapping is already unmapped
+        private boolean retain() {
+            while (true) {
+                int iCount = referenceCount.get();
+                if (iCount == 0) {
+                    return false;
+                }
+                if (referenceCount.compareAndSet(iCount, iCount + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        // drop the cache's reference (only once)
+        private void retire() {
+            if (retired.compareAndSet(false, true)) {
+                release();
+            }
+        }
+
+        // check the mapping still matches the file -> only touches the disk after the site index changed
+        private boolean isCurrent(SiteIndex siteIndex) {
+            if (validatedIndex == siteIndex) {
+                return true;
+            }
+            if (file.lastModified() == lLastModified && file.length() == buffer.capacity()) {
+                validatedIndex = siteIndex;
+                return true;
+            }
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * MimeTypes maps file extensions to the Content-Type they are served with
+ * MimeTypes starts from a built-in table (html, txt, pdf, images, css, js, json, svg, fonts) and adds the lines of a
+ *   mime.types style file (--mimeTypes, default ./mime.types if present) in form: type ext1 ext2 ... (# comments)
+ * MimeTypes renders each Content-Type header line once and finds it with one hash lookup on the extension
+ * MimeTypes answers files of unknown types with 415 (the default) or serves them as the type given in
+ *   --unknownContentType (e.g. application/octet-stream)
+ * MimeTypes marks text types (text/*, json, javascript, xml, svg) as compressible for CompressionCache
+ */
+
+final class MimeTypes {
+
+    // constants for types
+    private static final String HTML_TYPE = "text/html";
+    private static final String DEFAULT_MIME_TYPES_FILE = "./mime.types";
+    private static final String REJECT_UNKNOWN = "415";
+    private static final String COMMENT_START = "#";
+    private static final String[][] BUILT_IN_TYPES = {
+            {HTML_TYPE, "html", "htm"},
+            {"text/plain", "txt"},
+            {"text/css", "css"},
+            {"application/javascript", "js", "mjs"},
+            {"application/json", "json"},
+            {"application/xml", "xml"},
+            {"application/pdf", "pdf"},
+            {"image/png", "png"},
+            {"image/jpeg", "jpeg", "jpg"},
+            {"image/gif", "gif"},
+            {"image/webp", "webp"},
+            {"image/svg+xml", "svg"},
+            {"image/x-icon", "ico"},
+            {"font/woff", "woff"},
+            {"font/woff2", "woff2"}};
+
+    // settings (read once from flags): null unknown type -> files of unknown types are not served
+    private static final String sUnknownType = getUnknownType();
+
+    // types keyed by extension with its dot, in lower case (e.g. ".html") -> never modified after loading
+    private static final Map<String, MimeType> types = load();
+    private static final MimeType htmlType = types.get(".html");
+    private static final MimeType unknownType = (sUnknownType != null) ? new MimeType(sUnknownType) : null;
+
+    // no instances - types are process wide
+    private MimeTypes() {
+    }
+
+    // check if a file with this name can be served (known type, or unknown types are served too)
+    static boolean isServable(String sFileName) {
+        return unknownType != null || types.containsKey(ClientThread.getFileExtension(sFileName));
+    }
+
+    // get the Content-Type header line for the file (text/html if its type is unknown and not served)
+    static String getHeaderLine(String sFileName) {
+        return getType(sFileName).sHeaderLine;
+    }
+
+    // get the Content-Type header line for the HTML bodies the server writes itself (errors, messages)
+    static String getHtmlHeaderLine() {
+        return htmlType.sHeaderLine;
+    }
+
+    // check if files of this type are worth compressing
+    static boolean isCompressible(String sFileName) {
+        MimeType type = types.get(ClientThread.getFileExtension(sFileName));
+        return type != null && type.bIsCompressible;
+    }
+
+    // get count of extensions with a known type
+    static int getExtensionCount() {
+        return types.size();
+    }
+
+
+    //*************************
+    //  INITIALIZATION HELPERS
+    //*************************
+
+    // get the type for the file's extension -> the unknown type, or text/html, if the extension is not known
+    private static MimeType getType(String sFileName) {
+        MimeType type = types.get(ClientThread.getFileExtension(sFileName));
+        if (type == null) {
+            type = (unknownType != null) ? unknownType : htmlType;
+        }
+        return type;
+    }
+
+    // build the table: built-in types, then the mime.types file (its lines replace built-in extensions)
+    private static Map<String, MimeType> load() {
+        Map<String, MimeType> types = new HashMap<>();
+        for (String[] sEntry : BUILT_IN_TYPES) {
+            MimeType type = new MimeType(sEntry[0]);
+            for (int i = 1; i < sEntry.length; i++) {
+                types.put("." + sEntry[i], type);
+            }
+        }
+
+        // a missing default file is fine, a missing file given by flag is reported
+        String sFileName = ServerOptions.getString(ServerOptions.FLAG_MIME_TYPES, null);
+        boolean bIsDefaultFile = sFileName == null;
+        File mimeTypesFile = new File(bIsDefaultFile ? DEFAULT_MIME_TYPES_FILE : sFileName);
+        if (!bIsDefaultFile || mimeTypesFile.isFile()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(mimeTypesFile))) {
+                parse(reader, types);
+            } catch (IOException e) {
+                System.out.println("There was an error loading the MIME types:");
+                System.out.println("  " + e);
+            }
+        }
+        return types;
+    }
+
+    // add the lines in mime.types form to the table (a trailing ; is allowed on each line)
+    private static void parse(BufferedReader reader, Map<String, MimeType> types) throws IOException {
+        String line;
+
+        // read each line with space delimiter in form: sType sExtension [sExtension ...]
+        while ((line = reader.readLine()) != null) {
+            String sLine = line.trim();
+            if (sLine.endsWith(";")) {
+                sLine = sLine.substring(0, sLine.length() - 1);
+            }
+            StringTokenizer tokenizer = new StringTokenizer(sLine);
+            if (tokenizer.countTokens() < 2 || sLine.startsWith(COMMENT_START)) {
+                continue;  // skip blank, comment or type-only lines
+            }
+            MimeType type = new MimeType(tokenizer.nextToken());
+            while (tokenizer.hasMoreTokens()) {
+                types.put("." + tokenizer.nextToken().toLowerCase(), type);
+            }
+        }
+    }
+
+    // get the type unknown files are served as -> null to answer them with 415
+    private static String getUnknownType() {
+        String sType = ServerOptions.getString(ServerOptions.FLAG_UNKNOWN_CONTENT_TYPE, REJECT_UNKNOWN).trim();
+        return (sType.isEmpty() || sType.equals(REJECT_UNKNOWN)) ? null : sType;
+    }
+
+
+    //*************
+    //  MIME TYPE
+    //*************
+
+    // one content type with its header line rendered up front
+    private static final class MimeType {
+
+        private final String sHeaderLine;
+        private final boolean bIsCompressible;
+
+        // type constructor
+        MimeType(String sType) {
+            String sLowerType = sType.toLowerCase();
+            this.sHeaderLine = "Content-Type: " + sType;
+            this.bIsCompressible = sLowerType.startsWith("text/") || sLowerType.endsWith("json")
+                    || sLowerType.endsWith("javascript") || sLowerType.endsWith("xml");
+        }
+    }
+
+}
@@ -0,0 +1,551 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * NioConnection is the per-client state for a SelectorServer event loop (never blocks the loop)
+ * NioConnection parses requests incrementally with RequestParser as bytes arrive (a head may span reads)
+ * NioConnection answers with the same status codes, headers and bodies as ClientThread
+ * NioConnection queues the responses to all pipelined requests it has read and writes them with one gathered write
+ * NioConnection writes file bodies (and the ranges of 206 responses) with FileChannel.transferTo and resumes
+ *   when the socket is writable again
+ * NioConnection sends small hot files from ResponseCache without copying (header and body buffers are shared)
+ * NioConnection sends compressed variants from CompressionCache when the client's Accept-Encoding allows
+ * NioConnection sends folder listings a chunk at a time as the socket takes them (see DirectoryListing)
+ * NioConnection logs each request to the AccessLog and ServerMetrics when its response is queued
+ * NioConnection keeps one deadline on its event loop's TimerWheel (header or keep-alive timeout from
+ *   ConnectionLimits) and moves it as the connection goes between reading and waiting
+ * NioConnection closes when idle once the server drains (see ServerLifecycle)
+ * NioConnection answers requests over its client's request rate or bandwidth with 429 (see ClientLimits)
+ */
+
+final class NioConnection {
+
+    // connection instance variables
+    private final SocketChannel clientChannel;
+    private final SelectionKey key;
+    private final RequestParser requestParser = new RequestParser();
+    private final TimerWheel timerWheel;
+    private final TimerWheel.Timeout deadline;
+    private final ClientLimits.Client client;
+    private int iRequestCount;
+
+    // response instance variables: queued buffers and file regions, in the order they go out
+    private final ArrayDeque<Segment> pendingSegments = new ArrayDeque<>();
+    private int iQueuedFiles;
+    private boolean bCloseAfterWrite;
+    private int iCloseReason;
+
+    // connection constructor (counted against ConnectionLimits by the acceptor, and ClientLimits by the event loop)
+    NioConnection(SocketChannel clientChannel, SelectionKey key, TimerWheel timerWheel, ClientLimits.Client client) {
+        this.clientChannel = clientChannel;
+        this.key = key;
+        this.timerWheel = timerWheel;
+        this.client = client;
+        this.deadline = new TimerWheel.Timeout(new Runnable() {
+            public void run() {
+                close(deadline.getReason());
+            }
+        });
+        ServerMetrics.connectionOpened(false);
+        updateDeadline();
+    }
+
+    // turn a client away (one non-blocking write, then close): 503 when the connection cap is reached, 429 when
+    // the client has its cap of connections open
+    static void reject(SocketChannel clientChannel, int iStatusCode) {
+        long lStartNanos = System.nanoTime();
+        ServerMetrics.connectionRejected(false);
+        try {
+            clientChannel.configureBlocking(false);
+            String sResponse = ClientThread.getResponse(null, "", "", iStatusCode);
+            String sHeader = (iStatusCode == ClientLimits.STATUS_CODE)
+                    ? ClientLimits.getHeader(ClientThread.RETRY_AFTER_SECONDS, sResponse.length(), false, false)
+                    : ClientThread.getHeader("", iStatusCode, sResponse, sResponse.length(), null, false, false);
+            clientChannel.write(ByteBuffer.wrap((sHeader + sResponse).getBytes(StandardCharsets.ISO_8859_1)));
+            if (AccessLog.isAccessEnabled()) {
+                AccessLog.request("", "", iStatusCode, sResponse.length(), lStartNanos, false,
+                        clientChannel.socket().getInetAddress());
+            }
+            ServerMetrics.requestDone(false, iStatusCode, sResponse.length(), lStartNanos, false);
+        } catch (IOException e) {
+            // client is already gone
+        } finally {
+            closeQuietly(clientChannel);
+        }
+    }
+
+    // handle a ready key -> read and answer requests, or continue responses that were waiting to write
+    void handle() {
+        try {
+            if (key.isReadable()) {
+                if (requestParser.read(clientChannel) < 0) {
+                    close(ServerMetrics.CLOSE_CLIENT);  // client input is null (client must want to disconnect)
+                    return;
+                }
+                processRequests();
+            } else if (key.isWritable()) {
+                processRequests();
+            }
+            updateDeadline();
+            if (ServerLifecycle.isDraining()) {
+                drain(false);  // went idle after the event loop's drain pass
+            }
+        } catch (IOException | RuntimeException e) {
+            AccessLog.error("There was an error handling the (unsecure) NIO client:", e);
+            close(ServerMetrics.CLOSE_ERROR);
+        }
+    }
+
+    // drain the connection (on its event loop): close it if it waits idle for its next request, or when forced
+    // -> a request in flight is answered with Connection: close instead
+    void drain(boolean bIsForced) {
+        boolean bIsIdle = iRequestCount > 0 && !hasPendingOutput() && !requestParser.hasBufferedInput();
+        if (bIsIdle || bIsForced) {
+            close(ServerMetrics.CLOSE_SHUTDOWN);
+        }
+    }
+
+    // move the deadline: the header timeout runs from the first wait for a request head (later bytes don't
+    // extend it), the keep-alive timeout from each wait with nothing buffered -> none while a response is written
+    private void updateDeadline() {
+        if (!key.isValid() || hasPendingOutput()) {
+            timerWheel.cancel(deadline);
+        } else if (iRequestCount > 0 && !requestParser.hasBufferedInput()) {
+            timerWheel.schedule(deadline, ServerMetrics.CLOSE_IDLE_TIMEOUT, ConnectionLimits.getKeepAliveTimeoutMillis());
+        } else if (!deadline.isScheduled() || deadline.getReason() != ServerMetrics.CLOSE_HEADER_TIMEOUT) {
+            timerWheel.schedule(deadline, ServerMetrics.CLOSE_HEADER_TIMEOUT, ConnectionLimits.getHeaderTimeoutMillis());
+        }
+    }
+
+
+    //******************
+    //  REQUEST METHODS
+    //******************
+
+    // answer every complete request in the parser -> responses to pipelined requests go out together
+    private void processRequests() throws IOException {
+        while (key.isValid()) {
+            queueResponses();
+            if (!hasPendingOutput()) {
+                break;
+            }
+
+            // socket buffer full -> wait for OP_WRITE to finish the batch
+            if (!writeResponses()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            if (bCloseAfterWrite) {
+                close(iCloseReason);
+                return;
+            }
+        }
+
+        // nothing left to write -> wait for the next request
+        if (key.isValid()) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    // queue a response for each complete request (stops behind a file body or a response that closes)
+    private void queueResponses() throws IOException {
+        while (iQueuedFiles == 0 && !bCloseAfterWrite) {
+            int iParseResult = requestParser.parse();
+            if (iParseResult == RequestParser.NEED_MORE_INPUT) {
+                return;
+            }
+
+            // malformed or oversized request -> 400 and close (the rest of the stream can't be trusted)
+            long lStartNanos = System.nanoTime();
+            SiteIndex siteIndex = SiteIndex.get();
+            if (iParseResult == RequestParser.BAD_REQUEST) {
+                queueResponse(siteIndex, "", "", 400, null, false, lStartNanos);
+                iCloseReason = ServerMetrics.CLOSE_BAD_REQUEST;
+                return;
+            }
+
+            // last request the limit allows (or the server is draining) -> answered with Connection: close
+            String sHTTPMethod = requestParser.getMethod();
+            String sHTTPRequest = DirectoryListing.resolveIndex(siteIndex, requestParser.getTarget());
+            boolean bPersistentConnection = requestParser.isPersistentConnection()
+                    && ConnectionLimits.isKeepAliveAllowed(iRequestCount + 1) && !ServerLifecycle.isDraining();
+            if (!requestParser.isPersistentConnection()) {
+                iCloseReason = ServerMetrics.CLOSE_NOT_PERSISTENT;
+            } else {
+                iCloseReason = ServerLifecycle.isDraining()
+                        ? ServerMetrics.CLOSE_SHUTDOWN : ServerMetrics.CLOSE_MAX_REQUESTS;
+            }
+            if (AccessLog.isDebugEnabled()) {
+                AccessLog.debug("New NIO HTTP Header:" + System.lineSeparator() + requestParser.getHeadText());
+            }
+            long lWaitNanos = client.tryRequest();
+            if (lWaitNanos > 0) {
+                queueTooManyRequests(sHTTPMethod, sHTTPRequest, lWaitNanos, bPersistentConnection, lStartNanos);
+                continue;
+            }
+            if (ServerMetrics.isMetricsRequest(sHTTPMethod, sHTTPRequest)) {
+                queueMetrics(sHTTPMethod, sHTTPRequest, bPersistentConnection, lStartNanos);
+                continue;
+            }
+            if (ProxyRoutes.find(requestParser.getTarget()) != null) {
+                // proxying needs blocking upstream sockets -> only the thread engine forwards (a body would be
+                // left unread, so the connection closes)
+                queueResponse(siteIndex, sHTTPMethod, sHTTPRequest, 501, null, false, lStartNanos);
+                continue;
+            }
+            int iStatusCode = ClientThread.getStatusCode(siteIndex, sHTTPMethod, sHTTPRequest);
+            ByteRanges ranges = ClientThread.getRanges(iStatusCode, sHTTPMethod, sHTTPRequest,
+                    requestParser.getHeader(RequestParser.HEADER_RANGE),
+                    requestParser.getHeader(RequestParser.HEADER_IF_RANGE));
+            String sContentEncoding = (iStatusCode != 200 || ranges != null) ? null : CompressionCache.getEncoding(
+                    requestParser.getHeader(RequestParser.HEADER_ACCEPT_ENCODING), sHTTPRequest);
+            iStatusCode = ClientThread.getConditionalStatusCode(iStatusCode, sHTTPRequest, sContentEncoding,
+                    requestParser.getHeader(RequestParser.HEADER_IF_NONE_MATCH),
+                    requestParser.getHeader(RequestParser.HEADER_IF_MODIFIED_SINCE));
+            if (iStatusCode == 200 && ranges != null) {
+                iStatusCode = ranges.getStatusCode();
+            }
+            if (iStatusCode == 206) {
+                queueRanges(siteIndex, sHTTPMethod, sHTTPRequest, ranges, bPersistentConnection, lStartNanos);
+            } else if (iStatusCode == 200 && DirectoryListing.isListing(siteIndex, sHTTPRequest)) {
+                // HTTP/1.0 has no chunked encoding -> the listing ends when the connection closes
+                boolean bIsChunked = requestParser.getMinorVersion() > 0;
+                queueListing(siteIndex, sHTTPMethod, sHTTPRequest, bIsChunked, bPersistentConnection && bIsChunked,
+                        lStartNanos);
+            } else {
+                queueResponse(siteIndex, sHTTPMethod, sHTTPRequest, iStatusCode, sContentEncoding,
+                        bPersistentConnection, lStartNanos);
+            }
+        }
+    }
+
+
+    //*******************
+    //  RESPONSE METHODS
+    //*******************
+
+    // build the response for the finished request and queue it behind earlier responses
+    // (logged once queued -> latency covers parsing and building, not the wait on a slow reader)
+    private void queueResponse(SiteIndex siteIndex, String sHTTPMethod, String sHTTPRequest, int iStatusCode,
+                               String sContentEncoding, boolean bPersistentConnection, long lStartNanos)
+            throws IOException {
+        String sResponse = ClientThread.getResponse(siteIndex, sHTTPMethod, sHTTPRequest, iStatusCode);
+        boolean bIsFileSend = ClientThread.isFileSend(sHTTPMethod, iStatusCode);
+        long lContentLength = sResponse.length();
+        bCloseAfterWrite = !bPersistentConnection;
+
+        // compressed variants and small hot files come from the caches -> header and body buffers are queued as they are
+        CompressionCache.Variant variant = (bIsFileSend && sContentEncoding != null)
+                ? CompressionCache.get(sHTTPRequest, sResponse, sContentEncoding, siteIndex) : null;
+        ResponseCache.Entry cachedEntry = (bIsFileSend && variant == null)
+                ? ResponseCache.get(sHTTPRequest, sResponse, siteIndex) : null;
+        if (variant != null) {
+            queueBuffers(variant.getBuffers(false, bPersistentConnection));
+            lContentLength = variant.getBodyLength();
+        } else if (cachedEntry != null) {
+            queueBuffers(cachedEntry.getBuffers(false, bPersistentConnection));
+            lContentLength = cachedEntry.getBodyLength();
+        } else {
+            // open the file body -> if file request, then sResponse is the file path
+            FileChannel fileChannel = null;
+            if (bIsFileSend) {
+                try {
+                    fileChannel = openFile(sResponse);
+                } catch (FileNotFoundException | NoSuchFileException e) {
+                    // file is gone since the site index was built -> answer as not found (as ClientThread does)
+                    AccessLog.error("There was an error opening the file channel for the response:", e);
+                    queueResponse(siteIndex, sHTTPMethod, sHTTPRequest, 404, null, bPersistentConnection,
+                            lStartNanos);
+                    return;
+                }
+                lContentLength = fileChannel.size();
+            }
+
+            // header (plus HTML message if there is no file) go out in one buffer, then the file
+            String sHeader = ClientThread.getHeader(sHTTPRequest, iStatusCode, sResponse, lContentLength,
+                    (iStatusCode == 304) ? sContentEncoding : null, bPersistentConnection, false);
+            if (!bIsFileSend && ClientThread.isMessageSend(sHTTPMethod, iStatusCode)) {
+                sHeader += sResponse;
+            }
+            queueBuffers(ByteBuffer.wrap(sHeader.getBytes(StandardCharsets.ISO_8859_1)));
+            if (fileChannel != null) {
+                pendingSegments.add(new Segment(fileChannel, 0, lContentLength, true));
+            }
+        }
+        boolean bIsBodySent = bIsFileSend || ClientThread.isMessageSend(sHTTPMethod, iStatusCode);
+        logRequest(sHTTPMethod, sHTTPRequest, iStatusCode, bIsBodySent ? lContentLength : 0, lStartNanos);
+    }
+
+    // queue the ranges of the file with 206 -> a file region per range behind the header (and part headers)
+    private void queueRanges(SiteIndex siteIndex, String sHTTPMethod, String sHTTPRequest, ByteRanges ranges,
+                             boolean bPersistentConnection, long lStartNanos) throws IOException {
+        String sFilePath = ClientThread.getResponse(siteIndex, sHTTPMethod, sHTTPRequest, 206);
+        FileChannel fileChannel;
+        try {
+            fileChannel = openFile(sFilePath);
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            // file is gone since the site index was built -> answer as not found (as ClientThread does)
+            AccessLog.error("There was an error opening the file channel for the ranges:", e);
+            queueResponse(siteIndex, sHTTPMethod, sHTTPRequest, 404, null, bPersistentConnection, lStartNanos);
+            return;
+        }
+        bCloseAfterWrite = !bPersistentConnection;
+
+        String sHeader = ranges.getHeaderFields(sHTTPRequest, false) + ClientThread.getHeaderEnd(bPersistentConnection);
+        queueBuffers(ByteBuffer.wrap(sHeader.getBytes(StandardCharsets.ISO_8859_1)));
+        for (int i = 0; i < ranges.getCount(); i++) {
+            if (ranges.isMultipart()) {
+                queueBuffers(ByteBuffer.wrap(ranges.getPartHeader(sHTTPRequest, i)));
+            }
+            long lStart = ranges.getStart(i);
+            pendingSegments.add(new Segment(fileChannel, lStart, lStart + ranges.getLength(i),
+                    i == ranges.getCount() - 1));
+        }
+        if (ranges.isMultipart()) {
+            queueBuffers(ByteBuffer.wrap(ranges.getClosingBoundary()));
+        }
+        logRequest(sHTTPMethod, sHTTPRequest, 206, ranges.getContentLength(sHTTPRequest), lStartNanos);
+    }
+
+    // queue the folder listing -> header buffer, then the body produced a chunk at a time (body left out for HEAD)
+    private void queueListing(SiteIndex siteIndex, String sHTTPMethod, String sHTTPRequest, boolean bIsChunked,
+                              boolean bPersistentConnection, long lStartNanos) throws IOException {
+        bCloseAfterWrite = !bPersistentConnection;
+        queueBuffers(ByteBuffer.wrap(DirectoryListing.getHeader(bIsChunked, bPersistentConnection, false)
+                .getBytes(StandardCharsets.ISO_8859_1)));
+        if (!ClientThread.isMessageSend(sHTTPMethod, 200)) {
+            logRequest(sHTTPMethod, sHTTPRequest, 200, 0, lStartNanos);
+            return;
+        }
+        DirectoryListing.Body body = DirectoryListing.open(siteIndex, sHTTPRequest, bIsChunked);
+        iQueuedFiles++;  // parsing waits behind it like behind a file
+        if (body.getLength() >= 0) {
+            pendingSegments.add(new Segment(body, null, null, 0));
+            logRequest(sHTTPMethod, sHTTPRequest, 200, body.getLength(), lStartNanos);
+        } else {
+            // a streamed listing's length is only known once it has been sent -> logged by write
+            pendingSegments.add(new Segment(body, sHTTPMethod, sHTTPRequest, lStartNanos));
+        }
+    }
+
+    // queue the metrics in Prometheus text format (body left out for HEAD)
+    private void queueMetrics(String sHTTPMethod, String sHTTPRequest, boolean bPersistentConnection,
+                              long lStartNanos) {
+        byte[] body = ServerMetrics.getBody();
+        boolean bIsBodySent = ClientThread.isMessageSend(sHTTPMethod, 200);
+        bCloseAfterWrite = !bPersistentConnection;
+        queueBuffers(ByteBuffer.wrap(ServerMetrics.getHeader(body.length, bPersistentConnection, false)));
+        if (bIsBodySent) {
+            queueBuffers(ByteBuffer.wrap(body));
+        }
+        logRequest(sHTTPMethod, sHTTPRequest, 200, bIsBodySent ? body.length : 0, lStartNanos);
+    }
+
+    // queue 429 for a request over the client's limits, with the seconds to wait before retrying (body left out
+    // for HEAD)
+    private void queueTooManyRequests(String sHTTPMethod, String sHTTPRequest, long lWaitNanos,
+                                      boolean bPersistentConnection, long lStartNanos) {
+        byte[] body = ClientLimits.getBody();
+        boolean bIsBodySent = ClientThread.isMessageSend(sHTTPMethod, ClientLimits.STATUS_CODE);
+        bCloseAfterWrite = !bPersistentConnection;
+        String sHeader = ClientLimits.getHeader(ClientLimits.getRetryAfterSeconds(lWaitNanos), body.length,
+                bPersistentConnection, false);
+        queueBuffers(ByteBuffer.wrap(sHeader.getBytes(StandardCharsets.ISO_8859_1)));
+        if (bIsBodySent) {
+            queueBuffers(ByteBuffer.wrap(body));
+        }
+        logRequest(sHTTPMethod, sHTTPRequest, ClientLimits.STATUS_CODE, bIsBodySent ? body.length : 0, lStartNanos);
+    }
+
+    // log the answered request, record it in the metrics and charge its body to the client's bandwidth
+    private void logRequest(String sHTTPMethod, String sHTTPRequest, int iStatusCode, long lBodyBytes,
+                            long lStartNanos) {
+        if (AccessLog.isAccessEnabled()) {
+            AccessLog.request(sHTTPMethod, sHTTPRequest, iStatusCode, lBodyBytes, lStartNanos, false,
+                    clientChannel.socket().getInetAddress());
+        }
+        ServerMetrics.requestDone(false, iStatusCode, lBodyBytes, lStartNanos, iRequestCount++ > 0);
+        client.sent(lBodyBytes);
+    }
+
+    // open the file for a body (counted so parsing waits until it has been sent)
+    private FileChannel openFile(String sFilePath) throws IOException {
+        FileChannel fileChannel = new FileInputStream(ClientThread.ROOT_FOLDER.toString() + "/" + sFilePath).getChannel();
+        iQueuedFiles++;
+        return fileChannel;
+    }
+
+    // queue buffers behind earlier output
+    private void queueBuffers(ByteBuffer... buffers) {
+        for (ByteBuffer buffer : buffers) {
+            pendingSegments.add(new Segment(buffer));
+        }
+    }
+
+    // check if anything is queued to write
+    private boolean hasPendingOutput() {
+        return !pendingSegments.isEmpty();
+    }
+
+    // write the queued output in order: runs of buffers with one gathered write, listing bodies a chunk at a time,
+    // file regions with transferTo -> true when all is written, false when the socket buffer is full
+    private boolean writeResponses() throws IOException {
+        while (!pendingSegments.isEmpty()) {
+            Segment segment = pendingSegments.peekFirst();
+            if (segment.buffer != null) {
+                long lWritten = clientChannel.write(getLeadingBuffers());
+                while (!pendingSegments.isEmpty() && pendingSegments.peekFirst().buffer != null
+                        && !pendingSegments.peekFirst().buffer.hasRemaining()) {
+                    pendingSegments.removeFirst();
+                }
+                if (lWritten == 0 && segment.buffer.hasRemaining()) {
+                    return false;  // socket buffer full
+                }
+                continue;
+            }
+
+            if (segment.body != null) {
+                if (segment.bodyBuffer == null || !segment.bodyBuffer.hasRemaining()) {
+                    segment.bodyBuffer = segment.body.next();
+                    if (segment.bodyBuffer == null) {
+                        pendingSegments.removeFirst();  // listing sent (the body closed itself)
+                        iQueuedFiles--;
+                        if (segment.sHTTPMethod != null) {
+                            logRequest(segment.sHTTPMethod, segment.sHTTPRequest, 200, segment.body.getBodyBytes(),
+                                    segment.lStartNanos);
+                        }
+                        continue;
+                    }
+                }
+                clientChannel.write(segment.bodyBuffer);
+                if (segment.bodyBuffer.hasRemaining()) {
+                    return false;  // socket buffer full
+                }
+                continue;
+            }
+
+            long lSent = segment.fileChannel.transferTo(segment.lPosition, segment.lEnd - segment.lPosition,
+                    clientChannel);
+            if (lSent == 0) {
+                if (segment.lPosition >= segment.fileChannel.size()) {
+                    throw new EOFException("file shrank while it was being sent");
+                }
+                return false;  // socket buffer full
+            }
+            segment.lPosition += lSent;
+            if (segment.lPosition >= segment.lEnd) {
+                pendingSegments.removeFirst();
+                if (segment.bLastRegion) {
+                    segment.fileChannel.close();
+                    iQueuedFiles--;
+                }
+            }
+        }
+        return true;
+    }
+
+    // get the buffers at the front of the queue (up to the first file region)
+    private ByteBuffer[] getLeadingBuffers() {
+        int iCount = 0;
+        for (Segment segment : pendingSegments) {
+            if (segment.buffer == null) {
+                break;
+            }
+            iCount++;
+        }
+        ByteBuffer[] buffers = new ByteBuffer[iCount];
+        Iterator<Segment> iterator = pendingSegments.iterator();
+        for (int i = 0; i < iCount; i++) {
+            buffers[i] = iterator.next().buffer;
+        }
+        return buffers;
+    }
+
+    // close the channel and any open file, counting why it closed
+    private void close(int iReason) {
+        if (!clientChannel.isOpen()) {
+            return;  // already closed
+        }
+        ServerMetrics.connectionClosed(false, iReason);
+        ConnectionLimits.closed();
+        client.close();
+        timerWheel.cancel(deadline);
+        key.cancel();
+        for (Segment segment : pendingSegments) {
+            if (segment.fileChannel != null) {
+                closeQuietly(segment.fileChannel);
+            } else if (segment.body != null) {
+                segment.body.close();
+            }
+        }
+        pendingSegments.clear();
+        iQueuedFiles = 0;
+        closeQuietly(clientChannel);
+    }
+
+    // close without reporting errors (socket or file is already unusable)
+    static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing left to clean up
+        }
+    }
+
+
+    //***********
+    //  SEGMENT
+    //***********
+
+    // one piece of queued output: a buffer, a listing body, or a region of an open file
+    private static final class Segment {
+
+        private final ByteBuffer buffer;
+        private final DirectoryListing.Body body;
+        private ByteBuffer bodyBuffer;  // body chunk being written
+        private final FileChannel fileChannel;
+        private long lPosition;
+        private final long lEnd;
+        private final boolean bLastRegion;  // file is closed once this region is sent
+        private final String sHTTPMethod;  // request of a streamed listing, logged once it is sent (null otherwise)
+        private final String sHTTPRequest;
+        private final long lStartNanos;
+
+        // buffer segment constructor
+        Segment(ByteBuffer buffer) {
+            this(buffer, null, null, 0, 0, false, null, null, 0);
+        }
+
+        // listing body segment constructor (request given -> logged with the bytes sent once the body ends)
+        Segment(DirectoryListing.Body body, String sHTTPMethod, String sHTTPRequest, long lStartNanos) {
+            this(null, body, null, 0, 0, false, sHTTPMethod, sHTTPRequest, lStartNanos);
+        }
+
+        // file region segment constructor
+        Segment(FileChannel fileChannel, long lPosition, long lEnd, boolean bLastRegion) {
+            this(null, null, fileChannel, lPosition, lEnd, bLastRegion, null, null, 0);
+        }
+
+        // shared segment constructor
+        private Segment(ByteBuffer buffer, DirectoryListing.Body body, FileChannel fileChannel, long lPosition,
+                        long lEnd, boolean bLastRegion, String sHTTPMethod, String sHTTPRequest, long lStartNanos) {
+            this.buffer = buffer;
+            this.body = body;
+            this.fileChannel = fileChannel;
+            this.lPosition = lPosition;
+            this.lEnd = lEnd;
+            this.bLastRegion = bLastRegion;
+            this.sHTTPMethod = sHTTPMethod;
+            this.sHTTPRequest = sHTTPRequest;
+            this.lStartNanos = lStartNanos;
+        }
+    }
+
+}
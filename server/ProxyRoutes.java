@@ -0,0 +1,253 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ProxyRoutes sends requests under a path prefix to upstream HTTP servers instead of the site (see ReverseProxy)
+ * ProxyRoutes are read once at startup from --proxyRoutes (default ./proxy.defs if present), one route per line:
+ *   prefix upstream [upstream ...] [round-robin | least-connections] [strip] [health=path]
+ *   e.g. /api/ 127.0.0.1:9001 127.0.0.1:9002 least-connections strip health=/status
+ * ProxyRoutes match the lower case request on the longest prefix; strip drops the prefix (all but its last /)
+ *   from the target sent upstream, otherwise the target goes as the client sent it
+ * ProxyRoutes spread requests over the upstreams that are up: in turn (round-robin, the default), or to the one
+ *   with the fewest requests in flight (least-connections) -> when none is up, all are tried
+ * ProxyRoutes check every upstream each --proxyHealthInterval millis (default 5000) with a GET of the route's
+ *   health path (default /) and close pooled connections that have been idle too long
+ */
+
+final class ProxyRoutes {
+
+    // constants for routes
+    private static final String DEFAULT_ROUTES_FILE = "./proxy.defs";
+    private static final String COMMENT_START = "#";
+    private static final String ROUND_ROBIN = "round-robin";
+    private static final String LEAST_CONNECTIONS = "least-connections";
+    private static final String STRIP = "strip";
+    private static final String HEALTH_PREFIX = "health=";
+    private static final String DEFAULT_HEALTH_PATH = "/";
+    private static final int DEFAULT_HEALTH_INTERVAL_MILLIS = 5000;
+    private static final String HEALTH_THREAD_NAME = "proxy-health";
+
+    // settings (read once from flags)
+    private static final int iHealthIntervalMillis = Math.max(100, ServerOptions.getInt(
+            ServerOptions.FLAG_PROXY_HEALTH_INTERVAL, DEFAULT_HEALTH_INTERVAL_MILLIS));
+
+    // routes, longest prefix first -> never modified after loading
+    private static final Route[] routes = load();
+
+    // no instances - routes are process wide
+    private ProxyRoutes() {
+    }
+
+    // find the route for the lower case request -> null if it is served from the site
+    static Route find(String sHTTPRequest) {
+        for (Route route : routes) {
+            if (sHTTPRequest.startsWith(route.sPrefix)) {
+                return route;
+            }
+        }
+        return null;
+    }
+
+    // get count of routes
+    static int getRouteCount() {
+        return routes.length;
+    }
+
+    // get every route (for the metrics)
+    static Route[] getRoutes() {
+        return routes;
+    }
+
+    // start the thread that checks the upstreams (only if there are routes)
+    static void startHealthChecks() {
+        if (routes.length == 0) {
+            return;
+        }
+        Thread checker = new Thread(HEALTH_THREAD_NAME) {
+            public void run() {
+                while (true) {
+                    for (Route route : routes) {
+                        for (Upstream upstream : route.upstreams) {
+                            upstream.setUp(upstream.check(route.sHealthPath));
+                            upstream.closeIdle(System.nanoTime());
+                        }
+                    }
+                    try {
+                        Thread.sleep(iHealthIntervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        checker.setDaemon(true);
+        checker.start();
+    }
+
+
+    //*************************
+    //  INITIALIZATION HELPERS
+    //*************************
+
+    // read the routes file -> no routes if the default file is missing, a missing file given by flag is reported
+    private static Route[] load() {
+        String sFileName = ServerOptions.getString(ServerOptions.FLAG_PROXY_ROUTES, null);
+        boolean bIsDefaultFile = sFileName == null;
+        File routesFile = new File(bIsDefaultFile ? DEFAULT_ROUTES_FILE : sFileName);
+        List<Route> routeList = new ArrayList<>();
+        if (!bIsDefaultFile || routesFile.isFile()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(routesFile))) {
+                parse(reader, routeList);
+            } catch (IOException e) {
+                System.out.println("There was an error loading the proxy routes:");
+                System.out.println("  " + e);
+            }
+        }
+
+        // longest prefix first, so the first match is the most specific
+        Collections.sort(routeList, new Comparator<Route>() {
+            public int compare(Route first, Route second) {
+                return second.sPrefix.length() - first.sPrefix.length();
+            }
+        });
+        return routeList.toArray(new Route[routeList.size()]);
+    }
+
+    // add the routes from lines in proxy.defs form (a later route for the same prefix replaces an earlier one)
+    private static void parse(BufferedReader reader, List<Route> routeList) throws IOException {
+        String line;
+
+        // read each line with space delimiter in form: sPrefix sUpstream [sUpstream ...] [options]
+        while ((line = reader.readLine()) != null) {
+            StringTokenizer tokenizer = new StringTokenizer(line);
+            if (tokenizer.countTokens() < 2 || line.trim().startsWith(COMMENT_START)) {
+                continue;  // skip blank, partial or comment lines
+            }
+            String sPrefix = tokenizer.nextToken().toLowerCase();  // requests are matched in lower case
+            List<Upstream> upstreams = new ArrayList<>();
+            boolean bIsLeastConnections = false;
+            boolean bIsStripped = false;
+            String sHealthPath = DEFAULT_HEALTH_PATH;
+            boolean bIsValid = sPrefix.startsWith("/");
+            while (tokenizer.hasMoreTokens()) {
+                String sToken = tokenizer.nextToken();
+                Upstream upstream = Upstream.parse(sToken);
+                if (sToken.equalsIgnoreCase(LEAST_CONNECTIONS)) {
+                    bIsLeastConnections = true;
+                } else if (sToken.equalsIgnoreCase(ROUND_ROBIN)) {
+                    bIsLeastConnections = false;
+                } else if (sToken.equalsIgnoreCase(STRIP)) {
+                    bIsStripped = true;
+                } else if (sToken.startsWith(HEALTH_PREFIX) && sToken.length() > HEALTH_PREFIX.length()) {
+                    sHealthPath = sToken.substring(HEALTH_PREFIX.length());
+                } else if (upstream != null) {
+                    upstreams.add(upstream);
+                } else {
+                    bIsValid = false;
+                }
+            }
+            if (!bIsValid || upstreams.isEmpty()) {
+                System.out.println("Skipping proxy route (prefix must start with /, upstreams are host:port): " + line);
+                continue;
+            }
+            for (Iterator<Route> iterator = routeList.iterator(); iterator.hasNext(); ) {
+                if (iterator.next().sPrefix.equals(sPrefix)) {
+                    iterator.remove();
+                }
+            }
+            routeList.add(new Route(sPrefix, upstreams.toArray(new Upstream[upstreams.size()]), bIsLeastConnections,
+                    bIsStripped, sHealthPath));
+        }
+    }
+
+
+    //*********
+    //  ROUTE
+    //*********
+
+    // one prefix and the upstreams it is balanced over
+    static final class Route {
+
+        private final String sPrefix;
+        private final Upstream[] upstreams;
+        private final boolean bIsLeastConnections;
+        private final boolean bIsStripped;
+        private final String sHealthPath;
+        private final AtomicInteger nextUpstream = new AtomicInteger();
+
+        // route constructor
+        Route(String sPrefix, Upstream[] upstreams, boolean bIsLeastConnections, boolean bIsStripped,
+              String sHealthPath) {
+            this.sPrefix = sPrefix;
+            this.upstreams = upstreams;
+            this.bIsLeastConnections = bIsLeastConnections;
+            this.bIsStripped = bIsStripped;
+            this.sHealthPath = sHealthPath;
+        }
+
+        // get the prefix
+        String getPrefix() {
+            return sPrefix;
+        }
+
+        // get the upstreams
+        Upstream[] getUpstreams() {
+            return upstreams;
+        }
+
+        // get a one line description for the startup report
+        String getDescription() {
+            StringBuilder sDescription = new StringBuilder(sPrefix).append(" ->");
+            for (Upstream upstream : upstreams) {
+                sDescription.append(' ').append(upstream.getAuthority());
+            }
+            sDescription.append(" (").append(bIsLeastConnections ? LEAST_CONNECTIONS : ROUND_ROBIN);
+            return sDescription.append(bIsStripped ? ", " + STRIP + ")" : ")").toString();
+        }
+
+        // get the target to send upstream for the target as the client sent it
+        String getUpstreamTarget(String sSentTarget) {
+            if (!bIsStripped) {
+                return sSentTarget;
+            }
+            String sRest = sSentTarget.substring(sPrefix.length());
+            return sPrefix.endsWith("/") ? "/" + sRest : (sRest.startsWith("/") ? sRest : "/" + sRest);
+        }
+
+        // pick the upstream for the next request (skipping the ones that are down) and count it as begun
+        Upstream pick() {
+            int iStart = (nextUpstream.getAndIncrement() & Integer.MAX_VALUE) % upstreams.length;
+            Upstream picked = null;
+            for (int i = 0; i < upstreams.length; i++) {
+                Upstream upstream = upstreams[(iStart + i) % upstreams.length];
+                if (!upstream.isUp()) {
+                    continue;
+                }
+                if (!bIsLeastConnections) {
+                    picked = upstream;
+                    break;
+                }
+                if (picked == null || upstream.getActiveRequests() < picked.getActiveRequests()) {
+                    picked = upstream;
+                }
+            }
+            if (picked == null) {
+                picked = upstreams[iStart];  // none up -> health may be stale, try them in turn anyway
+            }
+            picked.begin();
+            return picked;
+        }
+
+        // get count of upstreams
+        int getUpstreamCount() {
+            return upstreams.length;
+        }
+    }
+
+}
@@ -0,0 +1,298 @@
+package server;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * RedirectRules is the compiled, immutable form of /www/redirect.defs, built and swapped with each SiteIndex
+ * RedirectRules lines are "pattern location [status]" with status 301 (the default), 302, 307 or 308
+ *   exact:     /old /index.html
+ *   prefix:    /blog/* /news/$1 308        (a trailing * matches the rest of the request, slashes included)
+ *   wildcard:  /users/*.htm /people/$1.html  (any other * matches within one path segment)
+ * RedirectRules locations use $1..$9 for the text matched by each * in the pattern
+ * RedirectRules compiles patterns into a character trie -> a lookup walks the request once (backtracking only
+ *   at * nodes), so its cost follows the request length and not the number of rules
+ * RedirectRules picks the most specific rule: longer literal text first, then a segment *, then a trailing *
+ */
+
+final class RedirectRules {
+
+    // constants for patterns
+    private static final char WILDCARD = '*';
+    private static final int MAX_CAPTURES = 9;
+    private static final int DEFAULT_STATUS_CODE = 301;
+    private static final String COMMENT_START = "#";
+
+    // rules instance variables
+    private final Node root;
+    private final int iRuleCount;
+
+    // rules constructor
+    private RedirectRules(Node root, int iRuleCount) {
+        this.root = root;
+        this.iRuleCount = iRuleCount;
+    }
+
+    // load and compile the redirect file -> no rules if it can't be read
+    static RedirectRules load(String sRedirectFileName) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(sRedirectFileName))) {
+            return parse(reader);
+        } catch (IOException e) {
+            System.out.println("There was an error loading the redirect rules:");
+            System.out.println("  " + e);
+            return new RedirectRules(new Node(), 0);
+        }
+    }
+
+    // compile rules from lines in redirect.defs form (a later rule for the same pattern replaces an earlier one)
+    static RedirectRules parse(BufferedReader reader) throws IOException {
+        Node root = new Node();
+        int iRuleCount = 0;
+        String line;
+
+        // read each line with space delimiter in form: sPattern sLocation [iStatusCode]
+        while ((line = reader.readLine()) != null) {
+            StringTokenizer tokenizer = new StringTokenizer(line);
+            if (tokenizer.countTokens() < 2 || line.trim().startsWith(COMMENT_START)) {
+                continue;  // skip blank, partial or comment lines
+            }
+            String sPattern = tokenizer.nextToken().toLowerCase();  // requests are matched in lower case
+            String sLocation = tokenizer.nextToken();
+            int iStatusCode = tokenizer.hasMoreTokens() ? parseStatusCode(tokenizer.nextToken()) : DEFAULT_STATUS_CODE;
+            int iCaptureCount = countWildcards(sPattern);
+            if (iStatusCode < 0 || iCaptureCount > MAX_CAPTURES) {
+                System.out.println("Skipping redirect rule (bad status or more than " + MAX_CAPTURES + " *): " + line);
+                continue;
+            }
+            if (add(root, sPattern, new Rule(sLocation, iStatusCode, iCaptureCount))) {
+                iRuleCount++;
+            }
+        }
+        return new RedirectRules(root, iRuleCount);
+    }
+
+    // find the redirect for the request -> null if no rule matches
+    Redirect find(String sHTTPRequest) {
+        int[] iCaptures = new int[MAX_CAPTURES * 2];
+        Rule rule = match(root, sHTTPRequest, 0, iCaptures, 0);
+        if (rule == null) {
+            return null;
+        }
+        return new Redirect(rule.iStatusCode, rule.getLocation(sHTTPRequest, iCaptures));
+    }
+
+    // get count of rules
+    int getRuleCount() {
+        return iRuleCount;
+    }
+
+    // check if the status code is one a rule can redirect with
+    static boolean isRedirectStatusCode(int iStatusCode) {
+        return iStatusCode == 301 || iStatusCode == 302 || iStatusCode == 307 || iStatusCode == 308;
+    }
+
+
+    //*******************
+    //  COMPILE HELPERS
+    //*******************
+
+    // add the rule under the pattern's path in the trie -> false if it replaced a rule for the same pattern
+    private static boolean add(Node root, String sPattern, Rule rule) {
+        Node node = root;
+        for (int i = 0; i < sPattern.length(); i++) {
+            char c = sPattern.charAt(i);
+            if (c == WILDCARD && i == sPattern.length() - 1) {
+                boolean bIsNew = node.restRule == null;
+                node.restRule = rule;
+                return bIsNew;
+            }
+            node = (c == WILDCARD) ? node.getOrAddWildcard() : node.getOrAddChild(c);
+        }
+        boolean bIsNew = node.exactRule == null;
+        node.exactRule = rule;
+        return bIsNew;
+    }
+
+    // parse a status code -> -1 if it is not a redirect status
+    private static int parseStatusCode(String sStatusCode) {
+        try {
+            int iStatusCode = Integer.parseInt(sStatusCode);
+            return isRedirectStatusCode(iStatusCode) ? iStatusCode : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // count the * in a pattern
+    private static int countWildcards(String sPattern) {
+        int iCount = 0;
+        for (int i = 0; i < sPattern.length(); i++) {
+            if (sPattern.charAt(i) == WILDCARD) {
+                iCount++;
+            }
+        }
+        return iCount;
+    }
+
+
+    //*****************
+    //  MATCH HELPERS
+    //*****************
+
+    // match sRequest from index i at the node -> the most specific rule, with its captures filled in
+    private static Rule match(Node node, String sRequest, int i, int[] iCaptures, int iCaptureCount) {
+        // literal text first (the longer the literal match, the more specific the rule)
+        if (i == sRequest.length()) {
+            if (node.exactRule != null) {
+                return node.exactRule;
+            }
+        } else {
+            Node child = node.getChild(sRequest.charAt(i));
+            if (child != null) {
+                Rule rule = match(child, sRequest, i + 1, iCaptures, iCaptureCount);
+                if (rule != null) {
+                    return rule;
+                }
+            }
+        }
+
+        // then a * within the segment (longest match first)
+        if (node.wildcard != null) {
+            int iSegmentEnd = i;
+            while (iSegmentEnd < sRequest.length() && sRequest.charAt(iSegmentEnd) != '/') {
+                iSegmentEnd++;
+            }
+            for (int iEnd = iSegmentEnd; iEnd >= i; iEnd--) {
+                iCaptures[iCaptureCount * 2] = i;
+                iCaptures[iCaptureCount * 2 + 1] = iEnd;
+                Rule rule = match(node.wildcard, sRequest, iEnd, iCaptures, iCaptureCount + 1);
+                if (rule != null) {
+                    return rule;
+                }
+            }
+        }
+
+        // then a trailing * takes the rest of the request
+        if (node.restRule != null) {
+            iCaptures[iCaptureCount * 2] = i;
+            iCaptures[iCaptureCount * 2 + 1] = sRequest.length();
+            return node.restRule;
+        }
+        return null;
+    }
+
+
+    //***********
+    //  REDIRECT
+    //***********
+
+    // result of a lookup: status code and the location with captures filled in
+    static final class Redirect {
+
+        private final int iStatusCode;
+        private final String sLocation;
+
+        // redirect constructor
+        Redirect(int iStatusCode, String sLocation) {
+            this.iStatusCode = iStatusCode;
+            this.sLocation = sLocation;
+        }
+
+        // get the redirect status code
+        int getStatusCode() {
+            return iStatusCode;
+        }
+
+        // get the final URL location
+        String getLocation() {
+            return sLocation;
+        }
+    }
+
+
+    //*****************
+    //  RULE AND NODE
+    //*****************
+
+    // one compiled rule: location template and status code
+    private static final class Rule {
+
+        private final String sLocation;
+        private final int iStatusCode;
+        private final int iCaptureCount;
+
+        // rule constructor
+        Rule(String sLocation, int iStatusCode, int iCaptureCount) {
+            this.sLocation = sLocation;
+            this.iStatusCode = iStatusCode;
+            this.iCaptureCount = (sLocation.indexOf('$') >= 0) ? iCaptureCount : 0;
+        }
+
+        // get the location with each $n replaced by the text the n-th * matched ($n past the captures stays as is)
+        String getLocation(String sRequest, int[] iCaptures) {
+            if (iCaptureCount == 0) {
+                return sLocation;
+            }
+            StringBuilder sResult = new StringBuilder(sLocation.length() + sRequest.length());
+            for (int i = 0; i < sLocation.length(); i++) {
+                char c = sLocation.charAt(i);
+                int iCapture = (c == '$' && i + 1 < sLocation.length()) ? sLocation.charAt(i + 1) - '1' : -1;
+                if (iCapture >= 0 && iCapture < iCaptureCount) {
+                    sResult.append(sRequest, iCaptures[iCapture * 2], iCaptures[iCapture * 2 + 1]);
+                    i++;
+                } else {
+                    sResult.append(c);
+                }
+            }
+            return sResult.toString();
+        }
+    }
+
+    // trie node: literal children in sorted arrays (binary search), plus a * edge and the rules ending here
+    private static final class Node {
+
+        private static final char[] NO_CHARS = new char[0];
+        private static final Node[] NO_NODES = new Node[0];
+
+        private char[] childChars = NO_CHARS;
+        private Node[] children = NO_NODES;
+        private Node wildcard;
+        private Rule exactRule;
+        private Rule restRule;
+
+        // get the literal child for the character -> null if there is none
+        Node getChild(char c) {
+            int iIndex = Arrays.binarySearch(childChars, c);
+            return (iIndex >= 0) ? children[iIndex] : null;
+        }
+
+        // get the literal child for the character, adding it in sorted position if needed
+        Node getOrAddChild(char c) {
+            int iIndex = Arrays.binarySearch(childChars, c);
+            if (iIndex >= 0) {
+                return children[iIndex];
+            }
+            int iInsert = -iIndex - 1;
+            char[] newChars = new char[childChars.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(childChars, 0, newChars, 0, iInsert);
+            System.arraycopy(children, 0, newChildren, 0, iInsert);
+            newChars[iInsert] = c;
+            newChildren[iInsert] = new Node();
+            System.arraycopy(childChars, iInsert, newChars, iInsert + 1, childChars.length - iInsert);
+            System.arraycopy(children, iInsert, newChildren, iInsert + 1, children.length - iInsert);
+            childChars = newChars;
+            children = newChildren;
+            return newChildren[iInsert];
+        }
+
+        // get the * child, adding it if needed
+        Node getOrAddWildcard() {
+            if (wildcard == null) {
+                wildcard = new Node();
+            }
+            return wildcard;
+        }
+    }
+
+}
@@ -0,0 +1,451 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * RequestParser reads HTTP request heads straight from bytes, one reusable instance per connection
+ * RequestParser matches the method, version and known header names in place (no String per line or token)
+ * RequestParser parses each line as soon as its line ending arrives -> the bytes of a head are scanned once
+ * RequestParser only allocates the lower case target String (and values of known headers when asked for), plus
+ *   the target as sent when that has upper case letters (proxied requests keep it)
+ * RequestParser hands the bytes after a head to ReverseProxy as the request body, so a pipelined request behind
+ *   the body stays buffered for the next parse
+ * RequestParser rejects request lines over --maxRequestLine and heads over --maxHeaderBytes as bad requests
+ * RequestParser works for blocking streams (ClientThread) and non-blocking channels (NioConnection)
+ */
+
+final class RequestParser {
+
+    // constants for parse results
+    static final int NEED_MORE_INPUT = 0;
+    static final int REQUEST_READY = 1;
+    static final int BAD_REQUEST = 2;
+
+    // constants for known headers (index into KNOWN_HEADER_NAMES)
+    static final int HEADER_CONNECTION = 0;
+    static final int HEADER_ACCEPT_ENCODING = 1;
+    static final int HEADER_IF_NONE_MATCH = 2;
+    static final int HEADER_IF_MODIFIED_SINCE = 3;
+    static final int HEADER_RANGE = 4;
+    static final int HEADER_IF_RANGE = 5;
+    private static final byte[][] KNOWN_HEADER_NAMES = {
+            ascii("Connection"),
+            ascii("Accept-Encoding"),
+            ascii("If-None-Match"),
+            ascii("If-Modified-Since"),
+            ascii("Range"),
+            ascii("If-Range")
+    };
+
+    // constants for tokens
+    private static final String METHOD_GET = "GET";
+    private static final String METHOD_HEAD = "HEAD";
+    private static final byte[] TOKEN_GET = ascii(METHOD_GET);
+    private static final byte[] TOKEN_HEAD = ascii(METHOD_HEAD);
+    private static final byte[] TOKEN_HTTP_1_0 = ascii("HTTP/1.0");
+    private static final byte[] TOKEN_HTTP_1_1 = ascii("HTTP/1.1");
+    private static final byte[] TOKEN_KEEP_ALIVE = ascii("keep-alive");
+    private static final byte[] TOKEN_CLOSE = ascii("close");
+    private static final boolean[] TOKEN_CHARS = getTokenChars();
+
+    // constants for default limits
+    private static final int DEFAULT_MAX_REQUEST_LINE = 8 * 1024;
+    private static final int DEFAULT_MAX_HEADER_BYTES = 16 * 1024;
+
+    // limits (read once from flags)
+    private static final int iMaxRequestLine = ServerOptions.getInt(ServerOptions.FLAG_MAX_REQUEST_LINE, DEFAULT_MAX_REQUEST_LINE);
+    private static final int iMaxHeaderBytes = Math.max(iMaxRequestLine,
+            ServerOptions.getInt(ServerOptions.FLAG_MAX_HEADER_BYTES, DEFAULT_MAX_HEADER_BYTES));
+
+    // buffer instance variables: unread bytes are buffer[iStart, iEnd)
+    private final byte[] buffer = new byte[iMaxHeaderBytes];
+    private final ByteBuffer channelBuffer = ByteBuffer.wrap(buffer);
+    private int iStart;
+    private int iEnd;
+
+    // scan instance variables (carried between reads so bytes are only scanned once; the head in progress starts
+    // at iStart, its next line at iLineStart)
+    private int iScanned;
+    private int iLineStart;
+
+    // parsed request instance variables (valid until the next parse)
+    private int iHeadStart;
+    private int iHeadEnd;
+    private String sMethod = "";
+    private String sTarget = "";
+    private String sSentTarget = "";
+    private int iMinorVersion;
+    private boolean bPersistentConnection;
+    private final int[] iHeaderValueStart = new int[KNOWN_HEADER_NAMES.length];
+    private final int[] iHeaderValueEnd = new int[KNOWN_HEADER_NAMES.length];
+
+
+    //*****************
+    //  INPUT METHODS
+    //*****************
+
+    // read more bytes from a blocking stream -> -1 at end of stream
+    int read(InputStream in) throws IOException {
+        makeRoom();
+        int iRead = in.read(buffer, iEnd, buffer.length - iEnd);
+        if (iRead > 0) {
+            iEnd += iRead;
+        }
+        return iRead;
+    }
+
+    // read more bytes from a (possibly non-blocking) channel -> -1 at end of stream, 0 if nothing ready
+    int read(ReadableByteChannel channel) throws IOException {
+        makeRoom();
+        channelBuffer.limit(buffer.length).position(iEnd);
+        int iRead = channel.read(channelBuffer);
+        if (iRead > 0) {
+            iEnd += iRead;
+        }
+        return iRead;
+    }
+
+    // check if bytes of a following request are already buffered (pipelined)
+    boolean hasBufferedInput() {
+        return iEnd > iStart;
+    }
+
+    // take up to iLength buffered bytes that follow the last parsed head (its request body) -> count taken
+    int take(byte[] target, int iOffset, int iLength) {
+        int iTaken = Math.min(iLength, iEnd - iStart);
+        System.arraycopy(buffer, iStart, target, iOffset, iTaken);
+        iStart += iTaken;
+        iScanned = iStart;
+        iLineStart = iStart;
+        return iTaken;
+    }
+
+
+    //*****************
+    //  PARSE METHODS
+    //*****************
+
+    // parse the next request head from the buffered bytes (each complete line as it is found)
+    int parse() {
+        for (int i = findNewline(iScanned, iEnd); i < iEnd; i = findNewline(i + 1, iEnd)) {
+            int iFrom = iLineStart;
+            int iLineEnd = (i > iFrom && buffer[i - 1] == '\r') ? i - 1 : i;
+            iLineStart = i + 1;
+            iScanned = i + 1;
+            if (iLineEnd > iFrom) {
+                // request line first, then header lines
+                boolean bIsValid = (iFrom == iStart) ? parseRequestLine(iFrom, iLineEnd)
+                        : parseHeaderLine(iFrom, iLineEnd);
+                if (!bIsValid) {
+                    return BAD_REQUEST;
+                }
+            } else if (iFrom == iStart) {
+                iStart = i + 1;  // empty line before the request line -> ignore it
+            } else {
+                // empty line ends the head -> consume it (the next request starts right after)
+                iHeadEnd = i + 1;
+                iStart = iHeadEnd;
+                return REQUEST_READY;
+            }
+        }
+
+        // head is not complete yet -> check it can still fit within the limits
+        iScanned = iEnd;
+        boolean bRequestLineDone = iLineStart > iStart;
+        if ((!bRequestLineDone && iEnd - iStart > iMaxRequestLine) || iEnd - iStart >= buffer.length) {
+            return BAD_REQUEST;
+        }
+        return NEED_MORE_INPUT;
+    }
+
+    // get the upper case method (GET and HEAD are shared constants)
+    String getMethod() {
+        return sMethod;
+    }
+
+    // get the lower case request target
+    String getTarget() {
+        return sTarget;
+    }
+
+    // get the request target as the client sent it (same String as getTarget when it had no upper case)
+    String getSentTarget() {
+        return sSentTarget;
+    }
+
+    // get the HTTP/1.x minor version
+    int getMinorVersion() {
+        return iMinorVersion;
+    }
+
+    // check if the client asked to keep the connection open (the default unless it sent Connection: close)
+    boolean isPersistentConnection() {
+        return bPersistentConnection;
+    }
+
+    // get the raw text of the last parsed head for debug dumps (target is already lower case)
+    String getHeadText() {
+        return new String(buffer, iHeadStart, iHeadEnd - iHeadStart, StandardCharsets.ISO_8859_1).trim();
+    }
+
+    // get the value of a known header (allocated on request) -> null if the request did not send it
+    String getHeader(int iHeader) {
+        if (iHeaderValueStart[iHeader] < 0) {
+            return null;
+        }
+        return new String(buffer, iHeaderValueStart[iHeader], iHeaderValueEnd[iHeader] - iHeaderValueStart[iHeader],
+                StandardCharsets.ISO_8859_1);
+    }
+
+
+    //*****************
+    //  PARSE HELPERS
+    //*****************
+
+    // parse the request line in buffer[iFrom, iTo): method SP target [SP version] (starts a new head)
+    private boolean parseRequestLine(int iFrom, int iTo) {
+        for (int i = 0; i < iHeaderValueStart.length; i++) {
+            iHeaderValueStart[i] = -1;
+        }
+        bPersistentConnection = true;
+        iHeadStart = iFrom;
+
+        if (iTo - iFrom > iMaxRequestLine) {
+            return false;
+        }
+        int iMethodEnd = findTokenEnd(iFrom, iTo);
+        int iTargetStart = skipSpaces(iMethodEnd, iTo);
+        int iTargetEnd = findTokenEnd(iTargetStart, iTo);
+        int iVersionStart = skipSpaces(iTargetEnd, iTo);
+        int iVersionEnd = findTokenEnd(iVersionStart, iTo);
+        if (iMethodEnd == iFrom || iTargetEnd == iTargetStart || skipSpaces(iVersionEnd, iTo) != iTo) {
+            return false;
+        }
+        return parseMethod(iFrom, iMethodEnd) && parseTarget(iTargetStart, iTargetEnd)
+                && parseVersion(iVersionStart, iVersionEnd);
+    }
+
+    // match the method without allocating for GET and HEAD
+    private boolean parseMethod(int iFrom, int iTo) {
+        if (equalsIgnoreCase(TOKEN_GET, iFrom, iTo)) {
+            sMethod = METHOD_GET;
+        } else if (equalsIgnoreCase(TOKEN_HEAD, iFrom, iTo)) {
+            sMethod = METHOD_HEAD;
+        } else {
+            for (int i = iFrom; i < iTo; i++) {
+                if (!isTokenChar(buffer[i])) {
+                    return false;
+                }
+            }
+            sMethod = new String(buffer, iFrom, iTo - iFrom, StandardCharsets.ISO_8859_1).toUpperCase();
+        }
+        return true;
+    }
+
+    // lower case the target in place, then make it the single String of the request (the target as sent is only
+    // copied out first when it has upper case)
+    private boolean parseTarget(int iFrom, int iTo) {
+        String sUnchangedTarget = null;
+        for (int i = iFrom; i < iTo; i++) {
+            byte b = buffer[i];
+            if (b <= ' ' || b == 0x7f) {
+                return false;  // control characters (bytes >= 0x80 are negative and rejected too)
+            }
+            if (b >= 'A' && b <= 'Z') {
+                if (sUnchangedTarget == null) {
+                    sUnchangedTarget = new String(buffer, iFrom, iTo - iFrom, StandardCharsets.ISO_8859_1);
+                }
+                buffer[i] = (byte) (b + ('a' - 'A'));
+            }
+        }
+        sTarget = new String(buffer, iFrom, iTo - iFrom, StandardCharsets.ISO_8859_1);
+        sSentTarget = (sUnchangedTarget != null) ? sUnchangedTarget : sTarget;
+        return true;
+    }
+
+    // match HTTP/1.0 or HTTP/1.1 (a missing version is treated as HTTP/1.1 like the original parser)
+    private boolean parseVersion(int iFrom, int iTo) {
+        if (iFrom == iTo || equals(TOKEN_HTTP_1_1, iFrom, iTo)) {
+            iMinorVersion = 1;
+        } else if (equals(TOKEN_HTTP_1_0, iFrom, iTo)) {
+            iMinorVersion = 0;
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    // parse one header line -> remember the value of known headers
+    private boolean parseHeaderLine(int iFrom, int iTo) {
+        if (buffer[iFrom] == ' ' || buffer[iFrom] == '\t') {
+            return false;  // obsolete line folding
+        }
+        int iColon = iFrom;
+        while (iColon < iTo && buffer[iColon] != ':') {
+            if (!isTokenChar(buffer[iColon])) {
+                return false;  // includes whitespace before the colon
+            }
+            iColon++;
+        }
+        if (iColon == iFrom || iColon == iTo) {
+            return false;
+        }
+
+        // trim optional whitespace around the value
+        int iValueStart = skipSpaces(iColon + 1, iTo);
+        int iValueEnd = iTo;
+        while (iValueEnd > iValueStart && (buffer[iValueEnd - 1] == ' ' || buffer[iValueEnd - 1] == '\t')) {
+            iValueEnd--;
+        }
+
+        int iHeader = findKnownHeader(iFrom, iColon);
+        if (iHeader < 0) {
+            return true;
+        }
+        iHeaderValueStart[iHeader] = iValueStart;
+        iHeaderValueEnd[iHeader] = iValueEnd;
+        if (iHeader == HEADER_CONNECTION) {
+            parseConnection(iValueStart, iValueEnd);
+        }
+        return true;
+    }
+
+    // check the comma separated Connection options for close or keep-alive
+    private void parseConnection(int iFrom, int iTo) {
+        int iOptionStart = iFrom;
+        for (int i = iFrom; i <= iTo; i++) {
+            if (i == iTo || buffer[i] == ',') {
+                int iOptionEnd = i;
+                iOptionStart = skipSpaces(iOptionStart, iOptionEnd);
+                while (iOptionEnd > iOptionStart && (buffer[iOptionEnd - 1] == ' ' || buffer[iOptionEnd - 1] == '\t')) {
+                    iOptionEnd--;
+                }
+                if (equalsIgnoreCase(TOKEN_CLOSE, iOptionStart, iOptionEnd)) {
+                    bPersistentConnection = false;
+                } else if (equalsIgnoreCase(TOKEN_KEEP_ALIVE, iOptionStart, iOptionEnd)) {
+                    bPersistentConnection = true;
+                }
+                iOptionStart = i + 1;
+            }
+        }
+    }
+
+    // get the index of the known header with this name -> -1 if not known
+    private int findKnownHeader(int iFrom, int iTo) {
+        for (int i = 0; i < KNOWN_HEADER_NAMES.length; i++) {
+            if (equalsIgnoreCase(KNOWN_HEADER_NAMES[i], iFrom, iTo)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // move any unread bytes to the front of the buffer so a read has room (with the positions of the head in
+    // progress)
+    private void makeRoom() {
+        if (iStart == 0) {
+            return;
+        }
+        int iShift = iStart;
+        System.arraycopy(buffer, iStart, buffer, 0, iEnd - iStart);
+        iEnd -= iShift;
+        iScanned -= iShift;
+        iLineStart -= iShift;
+        iHeadStart -= iShift;
+        for (int i = 0; i < iHeaderValueStart.length; i++) {
+            if (iHeaderValueStart[i] >= 0) {
+                iHeaderValueStart[i] -= iShift;
+                iHeaderValueEnd[i] -= iShift;
+            }
+        }
+        iStart = 0;
+    }
+
+
+    //****************
+    //  BYTE HELPERS
+    //****************
+
+    // get the index of the first LF at or after iFrom -> iTo if there is none
+    private int findNewline(int iFrom, int iTo) {
+        int i = iFrom;
+        while (i < iTo && buffer[i] != '\n') {
+            i++;
+        }
+        return i;
+    }
+
+    // get the index of the first space or tab at or after iFrom
+    private int findTokenEnd(int iFrom, int iTo) {
+        int i = iFrom;
+        while (i < iTo && buffer[i] != ' ' && buffer[i] != '\t') {
+            i++;
+        }
+        return i;
+    }
+
+    // get the index of the first byte that isn't a space or tab at or after iFrom
+    private int skipSpaces(int iFrom, int iTo) {
+        int i = iFrom;
+        while (i < iTo && (buffer[i] == ' ' || buffer[i] == '\t')) {
+            i++;
+        }
+        return i;
+    }
+
+    // compare bytes exactly
+    private boolean equals(byte[] token, int iFrom, int iTo) {
+        if (iTo - iFrom != token.length) {
+            return false;
+        }
+        for (int i = 0; i < token.length; i++) {
+            if (buffer[iFrom + i] != token[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // compare ASCII bytes ignoring case
+    private boolean equalsIgnoreCase(byte[] token, int iFrom, int iTo) {
+        if (iTo - iFrom != token.length) {
+            return false;
+        }
+        for (int i = 0; i < token.length; i++) {
+            if (toLowerCase(buffer[iFrom + i]) != toLowerCase(token[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // lower case an ASCII byte
+    private static byte toLowerCase(byte b) {
+        return (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    // check the byte is allowed in a method or header name (RFC 7230 tchar)
+    private static boolean isTokenChar(byte b) {
+        return b >= 0 && TOKEN_CHARS[b];
+    }
+
+    // get the table of tchar bytes (letters, digits and the symbols RFC 7230 allows)
+    private static boolean[] getTokenChars() {
+        boolean[] bIsTokenChar = new boolean[128];
+        for (int c = 0; c < bIsTokenChar.length; c++) {
+            bIsTokenChar[c] = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || "!#$%&'*+-.^_`|~".indexOf(c) >= 0;
+        }
+        return bIsTokenChar;
+    }
+
+    // get the ASCII bytes of a constant
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+}
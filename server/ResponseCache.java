@@ -0,0 +1,204 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ResponseCache keeps small, hot files in memory together with their pre-rendered header lines
+ * ResponseCache is keyed by request path and bounded by a byte budget (--cacheBytes, 0 turns it off)
+ * ResponseCache evicts least recently used entries first and only holds files up to --cacheMaxFileBytes
+ * ResponseCache entries are revalidated against the file's mtime and size after each SiteIndex reload
+ */
+
+final class ResponseCache {
+
+    // constants for defaults
+    private static final long DEFAULT_CACHE_BYTES = 32L * 1024 * 1024;
+    private static final long DEFAULT_MAX_FILE_BYTES = 64L * 1024;
+
+    // constants for connection header endings (the only part of a cached response that changes per request)
+    private static final byte[] KEEP_ALIVE_END = ClientThread.getHeaderEnd(true).getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] CLOSE_END = ClientThread.getHeaderEnd(false).getBytes(StandardCharsets.ISO_8859_1);
+
+    // cache settings (read once from flags)
+    private static final long lBudgetBytes = ServerOptions.getLong(ServerOptions.FLAG_CACHE_BYTES, DEFAULT_CACHE_BYTES);
+    private static final long lMaxFileBytes = Math.min(ServerOptions.getLong(ServerOptions.FLAG_CACHE_MAX_FILE_BYTES,
+            DEFAULT_MAX_FILE_BYTES), Integer.MAX_VALUE);
+
+    // entries in least -> most recently used order (guarded by the map's lock)
+    private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private static long lUsedBytes;
+
+    // counters
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    // no instances - cache is process wide
+    private ResponseCache() {
+    }
+
+    // get the cached response for the request, loading it on a miss -> null if the file can't be cached
+    static Entry get(String sHTTPRequest, String sFilePath, SiteIndex siteIndex) {
+        if (lBudgetBytes <= 0) {
+            return null;
+        }
+
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(sHTTPRequest);
+        }
+        if (entry != null && entry.isCurrent(siteIndex)) {
+            hits.incrementAndGet();
+            return entry;
+        }
+
+        misses.incrementAndGet();
+        entry = load(sHTTPRequest, sFilePath, siteIndex);
+        synchronized (entries) {
+            remove(sHTTPRequest);
+            if (entry != null) {
+                entries.put(sHTTPRequest, entry);
+                lUsedBytes += entry.getSize();
+                evictToBudget();
+            }
+        }
+        return entry;
+    }
+
+    // get the connection line and blank line that end every cached header (shared, never modified)
+    static byte[] getHeaderEnd(boolean bPersistentConnection) {
+        return bPersistentConnection ? KEEP_ALIVE_END : CLOSE_END;
+    }
+
+    // get count of cache hits
+    static long getHits() {
+        return hits.get();
+    }
+
+    // get count of cache misses (including files too large to cache)
+    static long getMisses() {
+        return misses.get();
+    }
+
+    // get count of entries evicted to stay within the byte budget
+    static long getEvictions() {
+        return evictions.get();
+    }
+
+    // get the bytes currently held by the cache
+    static long getUsedBytes() {
+        synchronized (entries) {
+            return lUsedBytes;
+        }
+    }
+
+
+    //*****************
+    //  CACHE HELPERS
+    //*****************
+
+    // read the file and render its header fields -> null if too large or unreadable
+    private static Entry load(String sHTTPRequest, String sFilePath, SiteIndex siteIndex) {
+        File file = new File(ClientThread.ROOT_FOLDER, sFilePath);
+        long lLastModified = file.lastModified();
+        long lSize = file.length();
+        if (lSize > lMaxFileBytes || lSize > lBudgetBytes) {
+            return null;
+        }
+
+        byte[] body = new byte[(int) lSize];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(body);
+        } catch (IOException e) {
+            return null;  // file changed or vanished under us -> serve it uncached
+        }
+
+        // the Server line differs for HTTP and HTTPS, so render both once
+        byte[] unsecureFields = ClientThread.getHeaderFields(sHTTPRequest, 200, sFilePath, lSize, false)
+                .getBytes(StandardCharsets.ISO_8859_1);
+        byte[] secureFields = ClientThread.getHeaderFields(sHTTPRequest, 200, sFilePath, lSize, true)
+                .getBytes(StandardCharsets.ISO_8859_1);
+        return new Entry(file, lLastModified, body, unsecureFields, secureFields, siteIndex);
+    }
+
+    // drop the least recently used entries until the cache fits the budget (caller holds the lock)
+    private static void evictToBudget() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (lUsedBytes > lBudgetBytes && iterator.hasNext()) {
+            lUsedBytes -= iterator.next().getSize();
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    // drop the entry for the request if present (caller holds the lock)
+    private static void remove(String sHTTPRequest) {
+        Entry removed = entries.remove(sHTTPRequest);
+        if (removed != null) {
+            lUsedBytes -= removed.getSize();
+        }
+    }
+
+
+    //****************
+    //  CACHE ENTRY
+    //****************
+
+    // one cached file: body bytes plus header fields for HTTP and HTTPS
+    static final class Entry {
+
+        private final File file;
+        private final long lLastModified;
+        private final byte[] body;
+        private final byte[] unsecureFields;
+        private final byte[] secureFields;
+        private volatile SiteIndex validatedIndex;
+
+        // entry constructor
+        private Entry(File file, long lLastModified, byte[] body, byte[] unsecureFields, byte[] secureFields,
+                      SiteIndex validatedIndex) {
+            this.file = file;
+            this.lLastModified = lLastModified;
+            this.body = body;
+            this.unsecureFields = unsecureFields;
+            this.secureFields = secureFields;
+            this.validatedIndex = validatedIndex;
+        }
+
+        // get the complete response as buffers for one gathered write (fresh buffers per call)
+        ByteBuffer[] getBuffers(boolean bIsSecure, boolean bPersistentConnection) {
+            return new ByteBuffer[] {
+                    ByteBuffer.wrap(bIsSecure ? secureFields : unsecureFields),
+                    ByteBuffer.wrap(getHeaderEnd(bPersistentConnection)),
+                    ByteBuffer.wrap(body)
+            };
+        }
+
+        // get the body length
+        int getBodyLength() {
+            return body.length;
+        }
+
+        // get the header and body bytes held by this entry
+        long getSize() {
+            return body.length + unsecureFields.length + secureFields.length;
+        }
+
+        // check the entry still matches the file -> only touches the disk after the site index changed
+        private boolean isCurrent(SiteIndex siteIndex) {
+            if (validatedIndex == siteIndex) {
+                return true;
+            }
+            if (file.lastModified() == lLastModified && file.length() == body.length) {
+                validatedIndex = siteIndex;
+                return true;
+            }
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,596 @@
+package server;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ReverseProxy forwards one request on a proxy route to an upstream server and relays the response (see ProxyRoutes)
+ * ReverseProxy sends the client's head with the route's target over a pooled keep-alive connection (see Upstream),
+ *   without hop-by-hop headers (Connection, Keep-Alive, TE, Upgrade, ...) and with X-Forwarded-For and
+ *   X-Forwarded-Proto added
+ * ReverseProxy streams request and response bodies through one 16 KB buffer, whatever their framing
+ *   (Content-Length, chunked or until the upstream closes), flushing only before it has to wait for more
+ * ReverseProxy answers Expect: 100-continue itself, dechunks for HTTP/1.0 clients, tries the next upstream when
+ *   one can't be reached and retries a request without a body once on a new connection when a pooled one was closed
+ * ReverseProxy answers 502 when no upstream can be reached or the response is broken, and 504 when none arrives
+ *   within --proxyReadTimeout (once the response has started, an upstream failure closes the client connection)
+ * ReverseProxy runs on the thread engine's blocking sockets -> HTTP/2 streams on a route are reset with
+ *   HTTP_1_1_REQUIRED so the client retries over HTTP/1.1, and the NIO engine answers them with 501
+ */
+
+final class ReverseProxy {
+
+    // constants for relaying
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_LINE_BYTES = 8 * 1024;
+    private static final int MAX_HEAD_BYTES = 64 * 1024;
+    private static final String[] HOP_BY_HOP_HEADERS = {"connection", "keep-alive", "proxy-connection", "te",
+            "upgrade", "transfer-encoding"};
+    private static final String HEADER_CONTENT_LENGTH = "content-length";
+    private static final String HEADER_TRANSFER_ENCODING = "transfer-encoding";
+    private static final String HEADER_CONNECTION = "connection";
+    private static final String HEADER_EXPECT = "expect";
+    private static final String HEADER_HOST = "host";
+    private static final String HEADER_FORWARDED_FOR = "x-forwarded-for";
+    private static final String HEADER_FORWARDED_PROTO = "x-forwarded-proto";
+    private static final String CHUNKED = "chunked";
+    private static final String CONTINUE = "100-continue";
+    private static final byte[] CONTINUE_RESPONSE = ("HTTP/1.1 100 Continue" + ClientThread.END_LINE
+            + ClientThread.END_LINE).getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] END_LINE_BYTES = ClientThread.END_LINE.getBytes(StandardCharsets.ISO_8859_1);
+
+    // constants for body framing
+    private static final int BODY_NONE = 0;
+    private static final int BODY_LENGTH = 1;
+    private static final int BODY_CHUNKED = 2;
+    private static final int BODY_UNTIL_CLOSE = 3;
+
+    // exchange instance variables
+    private final ProxyRoutes.Route route;
+    private final RequestParser requestParser;
+    private final Socket clientSocket;
+    private final InputStream inFromClient;
+    private final OutputStream outToClient;
+    private final boolean bIsSecure;
+    private final InputStream clientBody = new ClientBody();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    // request instance variables (from the client's head)
+    private int iRequestBody = BODY_NONE;
+    private long lRequestLength;
+    private boolean bExpectsContinue;
+    private boolean bHasHost;
+    private boolean bIsRequestBodyRead;
+    private boolean bIsUnreachable;
+
+    // response instance variables (what to log)
+    private int iStatusCode = 502;
+    private long lBodyBytes;
+
+    // exchange constructor (the request head is the one the parser just parsed)
+    ReverseProxy(ProxyRoutes.Route route, RequestParser requestParser, Socket clientSocket, InputStream inFromClient,
+                 OutputStream outToClient, boolean bIsSecure) {
+        this.route = route;
+        this.requestParser = requestParser;
+        this.clientSocket = clientSocket;
+        this.inFromClient = inFromClient;
+        this.outToClient = outToClient;
+        this.bIsSecure = bIsSecure;
+    }
+
+    // forward the request and relay the response -> false if the client connection can't be kept alive after it
+    // (throws if the client connection failed)
+    boolean forward(boolean bPersistentConnection) throws IOException {
+        String sHTTPMethod = requestParser.getMethod();
+
+        // head for the upstream -> body framing that can't be relayed is answered with 400 and closes
+        String sUpstreamHead = getUpstreamHead(sHTTPMethod);
+        if (sUpstreamHead == null) {
+            iStatusCode = 400;
+            return sendError(sHTTPMethod, false);
+        }
+        bIsRequestBodyRead = iRequestBody == BODY_NONE;
+        clientSocket.setSoTimeout(Upstream.getReadTimeoutMillis());  // for the request body
+
+        // forward through an upstream (the next one when one can't be reached)
+        for (int i = 0; i < route.getUpstreamCount(); i++) {
+            Upstream upstream = route.pick();
+            try {
+                Upstream.Connection connection = connect(upstream, true);
+                if (connection != null) {
+                    boolean bIsKeptAlive = exchange(upstream, connection, sUpstreamHead, sHTTPMethod,
+                            bPersistentConnection);
+                    if (!bIsUnreachable) {
+                        return bIsKeptAlive;
+                    }
+                    bIsUnreachable = false;  // pooled connection was stale and the upstream is gone since
+                }
+            } finally {
+                upstream.done();
+            }
+        }
+        iStatusCode = 502;
+        return sendError(sHTTPMethod, bPersistentConnection && bIsRequestBodyRead);
+    }
+
+    // get the status code of the response sent to the client
+    int getStatusCode() {
+        return iStatusCode;
+    }
+
+    // get the count of response body bytes sent to the client
+    long getBodyBytes() {
+        return lBodyBytes;
+    }
+
+
+    //*******************
+    //  EXCHANGE HELPERS
+    //*******************
+
+    // send the request on the connection and relay the response (retrying a request without a body once on a new
+    // connection if a pooled one fails before the response arrives)
+    private boolean exchange(Upstream upstream, Upstream.Connection connection, String sUpstreamHead,
+                             String sHTTPMethod, boolean bPersistentConnection) throws IOException {
+        boolean bIsReusable = false;
+        boolean bIsHeadSent = false;
+        try {
+            while (true) {
+                try {
+                    sendRequest(connection, sUpstreamHead + (bHasHost ? "" : "Host: " + upstream.getAuthority()
+                            + ClientThread.END_LINE) + ClientThread.END_LINE);
+                    List<String> sHeadLines = readResponseHead(connection.in);
+
+                    // relay the head, then the body
+                    Response response = new Response(sHeadLines, sHTTPMethod, requestParser.getMinorVersion() > 0,
+                            bPersistentConnection);
+                    iStatusCode = response.iStatusCode;
+                    outToClient.write(response.sClientHead.getBytes(StandardCharsets.ISO_8859_1));
+                    bIsHeadSent = true;
+                    long lRelayed = relayBody(connection.in, response);
+                    if (lRelayed < 0) {
+                        return false;  // the upstream broke the body off -> the client can't tell the end
+                    }
+                    lBodyBytes = lRelayed;
+                    bIsReusable = response.bIsUpstreamPersistent;
+                    return response.bIsClientPersistent;
+                } catch (Upstream.UpstreamException e) {
+                    // pooled connection the upstream had closed -> once more on a new connection
+                    if (!bIsHeadSent && connection.isReused() && iRequestBody == BODY_NONE && !e.isTimeout()) {
+                        connection.close();
+                        connection = connect(upstream, false);
+                        if (connection == null) {
+                            bIsUnreachable = true;  // nothing was sent -> the next upstream can take it
+                            return false;
+                        }
+                        continue;
+                    }
+                    throw e;
+                }
+            }
+        } catch (Upstream.UpstreamException e) {
+            AccessLog.error("There was an error forwarding to upstream " + upstream.getAuthority() + ":", e);
+            if (bIsHeadSent) {
+                return false;  // response already started -> close to show it is cut short
+            }
+            iStatusCode = e.isTimeout() ? 504 : 502;
+            return sendError(sHTTPMethod, bPersistentConnection && bIsRequestBodyRead);
+        } finally {
+            if (connection != null) {
+                upstream.release(connection, bIsReusable);
+            }
+        }
+    }
+
+    // get a pooled connection (bIsPooled) or a new one -> null if the upstream can't be reached (marked down)
+    private static Upstream.Connection connect(Upstream upstream, boolean bIsPooled) {
+        try {
+            return bIsPooled ? upstream.acquire() : upstream.connect();
+        } catch (IOException e) {
+            upstream.setUp(false);
+            AccessLog.error("There was an error connecting to upstream " + upstream.getAuthority() + ":", e);
+            return null;
+        }
+    }
+
+    // send the head, then relay the body from the client (chunked bodies keep their chunks)
+    private void sendRequest(Upstream.Connection connection, String sHead) throws IOException {
+        connection.out.write(sHead.getBytes(StandardCharsets.ISO_8859_1));
+        if (iRequestBody != BODY_NONE) {
+            if (bExpectsContinue && requestParser.getMinorVersion() > 0) {
+                outToClient.write(CONTINUE_RESPONSE);  // client waits for this before it sends the body
+                outToClient.flush();
+                bExpectsContinue = false;
+            }
+            long lRelayed = (iRequestBody == BODY_CHUNKED) ? relayChunked(clientBody, connection.out, true)
+                    : copy(clientBody, connection.out, lRequestLength);
+            if (lRelayed < 0 || (iRequestBody == BODY_LENGTH && lRelayed < lRequestLength)) {
+                throw new EOFException("the request body ended early or its chunks are malformed");
+            }
+            bIsRequestBodyRead = true;
+        }
+        connection.out.flush();
+    }
+
+    // read the upstream's response head as lines (status line first), skipping 1xx interim responses
+    private List<String> readResponseHead(InputStream in) throws IOException {
+        while (true) {
+            List<String> sLines = new ArrayList<>();
+            int iHeadBytes = 0;
+            String sLine;
+            while ((sLine = readLine(in)) != null && !sLine.isEmpty()) {
+                iHeadBytes += sLine.length();
+                if (iHeadBytes > MAX_HEAD_BYTES) {
+                    throw upstreamError("response head is too large");
+                }
+                sLines.add(sLine);
+            }
+            if (sLine == null || sLines.isEmpty()) {
+                throw upstreamError("upstream closed the connection before its response head ended");
+            }
+            int iStatusCode = getStatusCode(sLines.get(0));
+            if (iStatusCode < 100 || iStatusCode == 101) {
+                throw upstreamError("malformed status line: " + sLines.get(0));
+            }
+            if (iStatusCode >= 200) {
+                return sLines;
+            }
+        }
+    }
+
+    // relay the response body to the client as its framing says -> body bytes relayed, or -1 if cut short
+    private long relayBody(InputStream in, Response response) throws IOException {
+        long lRelayed = 0;
+        if (response.iBody == BODY_LENGTH) {
+            lRelayed = copy(in, outToClient, response.lLength);
+            if (lRelayed < response.lLength) {
+                lRelayed = -1;
+            }
+        } else if (response.iBody == BODY_CHUNKED) {
+            lRelayed = relayChunked(in, outToClient, response.bIsClientChunked);
+        } else if (response.iBody == BODY_UNTIL_CLOSE) {
+            lRelayed = copy(in, outToClient, -1);
+        }
+        if (lRelayed < 0) {
+            AccessLog.error("There was an error relaying the upstream response:",
+                    new EOFException("the response body ended early or its chunks are malformed"));
+        }
+        return lRelayed;
+    }
+
+    // answer the client with the error status (body left out for HEAD) -> bPersistentConnection
+    private boolean sendError(String sHTTPMethod, boolean bPersistentConnection) throws IOException {
+        String sResponse = ClientThread.getResponse(null, "", "", iStatusCode);
+        String sHeader = ClientThread.getHeader("", iStatusCode, sResponse, sResponse.length(), null,
+                bPersistentConnection, bIsSecure);
+        boolean bIsBodySent = ClientThread.isMessageSend(sHTTPMethod, iStatusCode);
+        outToClient.write((bIsBodySent ? sHeader + sResponse : sHeader).getBytes(StandardCharsets.ISO_8859_1));
+        lBodyBytes = bIsBodySent ? sResponse.length() : 0;
+        return bPersistentConnection;
+    }
+
+
+    //***************
+    //  HEAD HELPERS
+    //***************
+
+    // get the head to send upstream (without its final empty line and maybe Host): request line with the route's
+    // target, the client's header lines less hop-by-hop ones, X-Forwarded-* and the body framing
+    // -> null if the body framing can't be relayed (several lengths, or a transfer coding other than chunked)
+    private String getUpstreamHead(String sHTTPMethod) {
+        StringBuilder sHead = new StringBuilder(512);
+        sHead.append(sHTTPMethod).append(' ').append(route.getUpstreamTarget(requestParser.getSentTarget()))
+                .append(" HTTP/1.1").append(ClientThread.END_LINE);
+
+        // header lines as the client sent them (the parser already rejected malformed ones)
+        String sContentLength = null;
+        String sTransferEncoding = null;
+        String sForwardedFor = null;
+        String[] sLines = requestParser.getHeadText().split("\n");
+        for (int i = 1; i < sLines.length; i++) {
+            String sLine = trimLineEnd(sLines[i]);
+            int iColon = sLine.indexOf(':');
+            if (iColon <= 0) {
+                continue;
+            }
+            String sName = sLine.substring(0, iColon).toLowerCase();
+            String sValue = sLine.substring(iColon + 1).trim();
+            if (sName.equals(HEADER_CONTENT_LENGTH)) {
+                if (sContentLength != null && !sContentLength.equals(sValue)) {
+                    return null;
+                }
+                sContentLength = sValue;
+            } else if (sName.equals(HEADER_TRANSFER_ENCODING)) {
+                sTransferEncoding = (sTransferEncoding == null) ? sValue : sTransferEncoding + "," + sValue;
+            } else if (sName.equals(HEADER_EXPECT)) {
+                bExpectsContinue = sValue.equalsIgnoreCase(CONTINUE);
+            } else if (sName.equals(HEADER_FORWARDED_FOR)) {
+                sForwardedFor = (sForwardedFor == null) ? sValue : sForwardedFor + ", " + sValue;
+            } else if (!sName.equals(HEADER_FORWARDED_PROTO) && !isHopByHop(sName)) {
+                bHasHost = bHasHost || sName.equals(HEADER_HOST);
+                sHead.append(sLine).append(ClientThread.END_LINE);
+            }
+        }
+        String sClientAddress = clientSocket.getInetAddress().getHostAddress();
+        sHead.append("X-Forwarded-For: ").append((sForwardedFor == null) ? "" : sForwardedFor + ", ")
+                .append(sClientAddress).append(ClientThread.END_LINE);
+        sHead.append("X-Forwarded-Proto: ").append(bIsSecure ? "https" : "http").append(ClientThread.END_LINE);
+
+        // body framing: chunked wins over Content-Length (which is then dropped)
+        if (sTransferEncoding != null) {
+            if (!sTransferEncoding.trim().equalsIgnoreCase(CHUNKED)) {
+                return null;
+            }
+            iRequestBody = BODY_CHUNKED;
+            sHead.append("Transfer-Encoding: chunked").append(ClientThread.END_LINE);
+        } else if (sContentLength != null) {
+            lRequestLength = parseLength(sContentLength);
+            if (lRequestLength < 0) {
+                return null;
+            }
+            iRequestBody = (lRequestLength > 0) ? BODY_LENGTH : BODY_NONE;
+            sHead.append("Content-Length: ").append(lRequestLength).append(ClientThread.END_LINE);
+        }
+        return sHead.toString();
+    }
+
+    // check if the header only applies to one connection (not forwarded in either direction)
+    private static boolean isHopByHop(String sLowerName) {
+        for (String sHeader : HOP_BY_HOP_HEADERS) {
+            if (sHeader.equals(sLowerName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // get the status code from a status line (HTTP/1.x SSS reason) -> -1 if it isn't one
+    private static int getStatusCode(String sStatusLine) {
+        if (!sStatusLine.startsWith("HTTP/1.") || sStatusLine.length() < 12 || sStatusLine.charAt(8) != ' ') {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(sStatusLine.substring(9, 12));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // parse a Content-Length value -> -1 if it isn't a plain count of bytes
+    private static long parseLength(String sValue) {
+        if (sValue.isEmpty() || sValue.length() > 18) {
+            return -1;
+        }
+        for (int i = 0; i < sValue.length(); i++) {
+            if (sValue.charAt(i) < '0' || sValue.charAt(i) > '9') {
+                return -1;
+            }
+        }
+        return Long.parseLong(sValue);
+    }
+
+    // parse a chunk size line (hex size, maybe ;extensions) -> -1 if it isn't one
+    private static long parseChunkSize(String sLine) {
+        int iEnd = sLine.indexOf(';');
+        String sSize = ((iEnd < 0) ? sLine : sLine.substring(0, iEnd)).trim();
+        if (sSize.isEmpty() || sSize.length() > 15) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(sSize, 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // drop the CR of a CR LF line ending
+    private static String trimLineEnd(String sLine) {
+        return sLine.endsWith("\r") ? sLine.substring(0, sLine.length() - 1) : sLine;
+    }
+
+    // get an upstream failure for a broken response
+    private static Upstream.UpstreamException upstreamError(String sMessage) {
+        return new Upstream.UpstreamException(new IOException(sMessage));
+    }
+
+
+    //****************
+    //  BODY HELPERS
+    //****************
+
+    // copy lLength bytes (-1 -> until the end of the input), flushing the output before waiting on the input
+    // -> bytes copied (fewer than lLength if the input ended first)
+    private long copy(InputStream in, OutputStream out, long lLength) throws IOException {
+        long lCopied = 0;
+        while (lLength < 0 || lCopied < lLength) {
+            if (in.available() == 0) {
+                out.flush();  // send what the reader has so far before waiting for more
+            }
+            int iWanted = (lLength < 0) ? buffer.length : (int) Math.min(buffer.length, lLength - lCopied);
+            int iRead = in.read(buffer, 0, iWanted);
+            if (iRead < 0) {
+                break;
+            }
+            out.write(buffer, 0, iRead);
+            lCopied += iRead;
+        }
+        return lCopied;
+    }
+
+    // relay a chunked body, checking its framing: chunks as they are (bKeepChunks), or the bare data
+    // -> data bytes relayed, or -1 if the chunks are malformed or end early
+    private long relayChunked(InputStream in, OutputStream out, boolean bKeepChunks) throws IOException {
+        long lData = 0;
+        while (true) {
+            String sSizeLine = readLine(in);
+            long lChunk = (sSizeLine == null) ? -1 : parseChunkSize(sSizeLine);
+            if (lChunk < 0) {
+                return -1;
+            }
+            if (bKeepChunks) {
+                out.write((sSizeLine + ClientThread.END_LINE).getBytes(StandardCharsets.ISO_8859_1));
+            }
+            if (lChunk == 0) {
+                break;
+            }
+            if (copy(in, out, lChunk) < lChunk) {
+                return -1;
+            }
+            lData += lChunk;
+            String sChunkEnd = readLine(in);
+            if (sChunkEnd == null || !sChunkEnd.isEmpty()) {
+                return -1;
+            }
+            if (bKeepChunks) {
+                out.write(END_LINE_BYTES);
+            }
+        }
+
+        // trailer lines up to the empty line that ends the body
+        while (true) {
+            String sTrailer = readLine(in);
+            if (sTrailer == null) {
+                return -1;
+            }
+            if (bKeepChunks) {
+                out.write((sTrailer + ClientThread.END_LINE).getBytes(StandardCharsets.ISO_8859_1));
+            }
+            if (sTrailer.isEmpty()) {
+                return lData;
+            }
+        }
+    }
+
+    // read a line without its CR LF (or LF) ending -> null at the end of the input or past MAX_LINE_BYTES
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sLine = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') {
+                return trimLineEnd(sLine.toString());
+            }
+            if (sLine.length() >= MAX_LINE_BYTES) {
+                return null;
+            }
+            sLine.append((char) b);
+        }
+        return null;
+    }
+
+
+    //************
+    //  RESPONSE
+    //************
+
+    // the upstream's response head worked out: status, body framing, persistence and the head for the client
+    private static final class Response {
+
+        private final int iStatusCode;
+        private final int iBody;
+        private final long lLength;
+        private final boolean bIsClientChunked;
+        private final boolean bIsClientPersistent;
+        private final boolean bIsUpstreamPersistent;
+        private final String sClientHead;
+
+        // response constructor
+        Response(List<String> sLines, String sHTTPMethod, boolean bIsClientHttp11, boolean bPersistentConnection)
+                throws Upstream.UpstreamException {
+            String sStatusLine = sLines.get(0);
+            iStatusCode = getStatusCode(sStatusLine);
+            boolean bUpstreamKeepAlive = sStatusLine.startsWith("HTTP/1.1");
+
+            // header lines less hop-by-hop ones (framing headers are added back below)
+            StringBuilder sHead = new StringBuilder(512);
+            sHead.append("HTTP/1.1").append(sStatusLine.substring(8)).append(ClientThread.END_LINE);
+            long lContentLength = -1;
+            String sTransferEncoding = null;
+            for (int i = 1; i < sLines.size(); i++) {
+                String sLine = sLines.get(i);
+                int iColon = sLine.indexOf(':');
+                if (iColon <= 0) {
+                    throw upstreamError("malformed header line: " + sLine);
+                }
+                String sName = sLine.substring(0, iColon).trim().toLowerCase();
+                String sValue = sLine.substring(iColon + 1).trim();
+                if (sName.equals(HEADER_CONTENT_LENGTH)) {
+                    long lValue = parseLength(sValue);
+                    if (lValue < 0 || (lContentLength >= 0 && lValue != lContentLength)) {
+                        throw upstreamError("malformed Content-Length: " + sValue);
+                    }
+                    lContentLength = lValue;
+                } else if (sName.equals(HEADER_TRANSFER_ENCODING)) {
+                    sTransferEncoding = (sTransferEncoding == null) ? sValue : sTransferEncoding + "," + sValue;
+                } else if (sName.equals(HEADER_CONNECTION)) {
+                    String sOptions = "," + sValue.toLowerCase().replace(" ", "") + ",";
+                    if (sOptions.contains(",close,")) {
+                        bUpstreamKeepAlive = false;
+                    } else if (sOptions.contains(",keep-alive,")) {
+                        bUpstreamKeepAlive = true;
+                    }
+                } else if (!isHopByHop(sName)) {
+                    sHead.append(sLine).append(ClientThread.END_LINE);
+                }
+            }
+
+            // body framing (no body for HEAD, 204 or 304 whatever the headers say)
+            boolean bIsChunked = sTransferEncoding != null && sTransferEncoding.toLowerCase().trim().endsWith(CHUNKED);
+            if (sHTTPMethod.equals("HEAD") || iStatusCode == 204 || iStatusCode == 304) {
+                iBody = BODY_NONE;
+            } else if (bIsChunked) {
+                iBody = BODY_CHUNKED;
+            } else if (sTransferEncoding == null && lContentLength >= 0) {
+                iBody = BODY_LENGTH;
+            } else {
+                iBody = BODY_UNTIL_CLOSE;
+            }
+            lLength = lContentLength;
+
+            // chunks go on to HTTP/1.1 clients, HTTP/1.0 ones get the data and the connection closes at its end
+            bIsClientChunked = iBody == BODY_CHUNKED && bIsClientHttp11;
+            if (bIsClientChunked) {
+                sHead.append("Transfer-Encoding: chunked").append(ClientThread.END_LINE);
+            } else if (lContentLength >= 0 && sTransferEncoding == null) {
+                sHead.append("Content-Length: ").append(lContentLength).append(ClientThread.END_LINE);
+            }
+            bIsClientPersistent = bPersistentConnection && (iBody == BODY_NONE || iBody == BODY_LENGTH
+                    || bIsClientChunked);
+            bIsUpstreamPersistent = bUpstreamKeepAlive && iBody != BODY_UNTIL_CLOSE;
+            sClientHead = sHead.append(ClientThread.getHeaderEnd(bIsClientPersistent)).toString();
+        }
+    }
+
+
+    //***************
+    //  CLIENT BODY
+    //***************
+
+    // the request body: bytes the parser buffered past the head, then more read through the parser (so the bytes
+    // of a pipelined request behind the body stay buffered for it)
+    private final class ClientBody extends InputStream {
+
+        private final byte[] single = new byte[1];
+
+        public int read() throws IOException {
+            return (read(single, 0, 1) < 0) ? -1 : single[0] & 0xff;
+        }
+
+        public int read(byte[] bytes, int iOffset, int iLength) throws IOException {
+            if (iLength == 0) {
+                return 0;
+            }
+            if (!requestParser.hasBufferedInput() && requestParser.read(inFromClient) < 0) {
+                return -1;
+            }
+            return requestParser.take(bytes, iOffset, iLength);
+        }
+
+        public int available() throws IOException {
+            return requestParser.hasBufferedInput() ? 1 : inFromClient.available();
+        }
+    }
+
+}
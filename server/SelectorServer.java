@@ -0,0 +1,204 @@
+package server;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * SelectorServer is the non-blocking alternative to a ClientThread per connection (--engine=nio)
+ * SelectorServer accepts on one thread per acceptor socket (--acceptors, see ListenerOptions) and spreads connections
+ *   over a few event loops (one per core by default); each acceptor feeds its own share of the loops
+ * SelectorServer event loops only wake up for sockets that are readable or writable, so idle keep-alive is free
+ * SelectorServer event loops reap connections past their header or keep-alive deadline with a TimerWheel
+ *   (ticks only while deadlines are scheduled); the acceptor answers 503 past --maxConnections
+ * SelectorServer serves plain HTTP only -> the SSL listener always uses ClientThread
+ * SelectorServer event loops drain their connections on their own thread when the server shuts down
+ */
+
+final class SelectorServer {
+
+    // constants for engines
+    static final String ENGINE_THREAD = "thread";
+    static final String ENGINE_NIO = "nio";
+
+    // constants for threads
+    private static final String EVENT_LOOP_THREAD_NAME = "event-loop-";
+    private static final String ACCEPTOR_THREAD_NAME = "nio-acceptor-";
+
+    // start the acceptor and event loop threads for the port
+    static void start(final int iServerPort) {
+        int iLoopCount = ServerOptions.getInt(ServerOptions.FLAG_EVENT_LOOPS, Runtime.getRuntime().availableProcessors());
+        final EventLoop[] eventLoops = new EventLoop[Math.max(1, iLoopCount)];
+        try {
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new EventLoop(EVENT_LOOP_THREAD_NAME + (i + 1));
+                eventLoops[i].start();
+                ServerLifecycle.opened(eventLoops[i]);
+            }
+        } catch (IOException e) {
+            System.out.println("There was an error opening the (unsecure) event loop selectors:");
+            System.out.println("  " + e);
+            return;
+        }
+
+        // create the sockets
+        final ServerSocket[] serverSockets;
+        try {
+            serverSockets = ListenerOptions.open(iServerPort, ListenerOptions.CHANNEL_OPENER);
+            for (ServerSocket serverSocket : serverSockets) {
+                ServerLifecycle.addListener(serverSocket);
+            }
+            WebServer.listenerBound(false, serverSockets[0].getLocalPort());
+            System.out.println("Ramon's Killer (unsecure) NIO Server waiting for client on port "
+                    + serverSockets[0].getLocalPort() + " with " + eventLoops.length + " event loops, "
+                    + ListenerOptions.getDescription(serverSockets));
+        } catch (IOException e) {
+            System.out.println("There was an error setting up the (unsecure) server channel:");
+            System.out.println("  " + e);
+            return;
+        }
+
+        for (int i = 0; i < serverSockets.length; i++) {
+            final ServerSocketChannel serverChannel = serverSockets[i].getChannel();
+            final EventLoop[] acceptorLoops = getAcceptorLoops(eventLoops, i, serverSockets.length);
+            new Thread(ACCEPTOR_THREAD_NAME + (i + 1)) {
+                public void run() {
+                    try {
+                        // loop to listen -> hand each new client to the acceptor's next event loop
+                        int iNextLoop = 0;
+                        while (true) {
+                            SocketChannel clientChannel = serverChannel.accept();
+                            if (!ConnectionLimits.tryOpen()) {
+                                NioConnection.reject(clientChannel, 503);
+                                continue;
+                            }
+                            ListenerOptions.configure(clientChannel.socket());
+                            acceptorLoops[iNextLoop].register(clientChannel);
+                            iNextLoop = (iNextLoop + 1) % acceptorLoops.length;
+                        }
+                    } catch (IOException e) {
+                        if (!ServerLifecycle.isDraining()) {
+                            System.out.println("There was an error accepting on the (unsecure) server channel:");
+                            System.out.println("  " + e);
+                        }
+                    }
+                }
+            }.start();
+        }
+    }
+
+    // get the event loops an acceptor feeds: every n-th loop from its index (a loop of its own if there are fewer)
+    // -> acceptors never hand connections to the same selector unless there are more acceptors than loops
+    private static EventLoop[] getAcceptorLoops(EventLoop[] eventLoops, int iAcceptor, int iAcceptorCount) {
+        if (eventLoops.length <= iAcceptorCount) {
+            return new EventLoop[]{eventLoops[iAcceptor % eventLoops.length]};
+        }
+        List<EventLoop> acceptorLoops = new ArrayList<>();
+        for (int i = iAcceptor; i < eventLoops.length; i += iAcceptorCount) {
+            acceptorLoops.add(eventLoops[i]);
+        }
+        return acceptorLoops.toArray(new EventLoop[acceptorLoops.size()]);
+    }
+
+
+    //**************
+    //  EVENT LOOP
+    //**************
+
+    // single thread that owns a selector and every connection registered with it
+    private static final class EventLoop extends Thread implements ServerLifecycle.Drainable {
+
+        private final Selector selector;
+        private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+        private final TimerWheel timerWheel = new TimerWheel();
+        private volatile boolean bIsDrainRequested;
+        private volatile boolean bIsCloseRequested;
+
+        // event loop constructor
+        EventLoop(String sName) throws IOException {
+            super(sName);
+            selector = Selector.open();
+        }
+
+        // queue a newly accepted channel and wake up the selector to register it
+        void register(SocketChannel clientChannel) {
+            newChannels.add(clientChannel);
+            selector.wakeup();
+        }
+
+        // ask the loop to drain its connections (the connections are only touched on the loop's thread)
+        public void drain(boolean bIsForced) {
+            if (bIsForced) {
+                bIsCloseRequested = true;
+            } else {
+                bIsDrainRequested = true;
+            }
+            selector.wakeup();
+        }
+
+        // extends Thread -> runnable
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(timerWheel.isEmpty() ? 0 : TimerWheel.TICK_MILLIS);
+                    registerNewChannels();
+                    drainConnections();
+
+                    // handle each ready connection
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        connection.handle();
+                    }
+
+                    // close connections whose deadline has passed
+                    timerWheel.advance();
+                } catch (IOException e) {
+                    AccessLog.error("There was an error in event loop " + getName() + ":", e);
+                }
+            }
+        }
+
+        // drain the loop's connections once when asked (later ones drain as they go idle), or close them all
+        private void drainConnections() {
+            boolean bIsForced = bIsCloseRequested;
+            if (!bIsForced && !bIsDrainRequested) {
+                return;
+            }
+            bIsDrainRequested = false;
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                if (key.attachment() != null) {
+                    ((NioConnection) key.attachment()).drain(bIsForced);
+                }
+            }
+        }
+
+        // register queued channels with this loop's selector (clients with their cap of connections open -> 429)
+        private void registerNewChannels() {
+            SocketChannel clientChannel;
+            while ((clientChannel = newChannels.poll()) != null) {
+                ClientLimits.Client client = ClientLimits.open(clientChannel.socket().getInetAddress());
+                if (client == null) {
+                    NioConnection.reject(clientChannel, ClientLimits.STATUS_CODE);
+                    ConnectionLimits.closed();
+                    continue;
+                }
+                try {
+                    clientChannel.configureBlocking(false);
+                    SelectionKey key = clientChannel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new NioConnection(clientChannel, key, timerWheel, client));
+                } catch (IOException e) {
+                    AccessLog.error("There was an error registering the client channel:", e);
+                    ConnectionLimits.closed();
+                    client.close();
+                    NioConnection.closeQuietly(clientChannel);
+                }
+            }
+        }
+    }
+
+}
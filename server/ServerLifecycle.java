@@ -0,0 +1,145 @@
+package server;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ServerLifecycle stops WebServer gracefully on SIGTERM / SIGINT (shutdown hook) or when shutdown is called in-process
+ * ServerLifecycle closes the listening sockets first (no new connections), then drains the open ones:
+ *   idle keep-alive connections are closed, requests in flight are answered with Connection: close and HTTP/2
+ *   connections get GOAWAY, so no client sees a response cut short
+ * ServerLifecycle waits up to --drainTimeout millis (default 10000) for the connections to finish, then cuts off
+ *   the rest and flushes the access log
+ * ServerLifecycle restarts without downtime either by starting the new process on the same ports with
+ *   --reusePort=true before stopping the old one, or by taking the listening socket from the parent process
+ *   (--inheritedChannel=true, e.g. systemd socket activation) so it stays open across restarts (see ListenerOptions)
+ */
+
+final class ServerLifecycle {
+
+    // constants for defaults
+    private static final int DEFAULT_DRAIN_TIMEOUT_MILLIS = 10000;
+    private static final long POLL_MILLIS = 20;
+    private static final String SHUTDOWN_THREAD_NAME = "shutdown";
+
+    // settings (read once from flags)
+    private static final int iDrainTimeoutMillis = Math.max(0, ServerOptions.getInt(ServerOptions.FLAG_DRAIN_TIMEOUT,
+            DEFAULT_DRAIN_TIMEOUT_MILLIS));
+
+    // listening sockets and open connections (thread engine) or event loops (NIO engine)
+    private static final List<Closeable> listeners = new ArrayList<>();
+    private static final Set<Drainable> drainables = Collections.newSetFromMap(new ConcurrentHashMap<Drainable, Boolean>());
+    private static volatile boolean bIsDraining;
+
+    // no instances - lifecycle is process wide
+    private ServerLifecycle() {
+    }
+
+    // drain on SIGTERM / SIGINT (the JVM exits once the hook returns)
+    static void installShutdownHook() {
+        Runtime.getRuntime().addShutdownHook(new Thread(SHUTDOWN_THREAD_NAME) {
+            public void run() {
+                shutdown(iDrainTimeoutMillis);
+            }
+        });
+    }
+
+    // add a listening socket to close when draining starts
+    static void addListener(Closeable listener) {
+        synchronized (listeners) {
+            if (bIsDraining) {
+                NioConnection.closeQuietly(listener);  // bound while shutting down
+                return;
+            }
+            listeners.add(listener);
+        }
+    }
+
+    // add a connection (or event loop) to drain -> drained right away if draining already started
+    static void opened(Drainable drainable) {
+        drainables.add(drainable);
+        if (bIsDraining) {
+            drainable.drain(false);
+        }
+    }
+
+    // remove a closed connection
+    static void closed(Drainable drainable) {
+        drainables.remove(drainable);
+    }
+
+    // check if the server is draining -> responses close their connection instead of keeping it alive
+    static boolean isDraining() {
+        return bIsDraining;
+    }
+
+    // stop accepting, drain open connections for up to lTimeoutMillis, then cut off the rest
+    // -> true if every connection finished in time
+    static boolean shutdown(long lTimeoutMillis) {
+        long lStartMillis = System.currentTimeMillis();
+        long lDeadlineMillis = lStartMillis + lTimeoutMillis;
+
+        // no new connections (accept loops end quietly once their socket is closed)
+        synchronized (listeners) {
+            if (bIsDraining) {
+                return false;  // already shutting down
+            }
+            bIsDraining = true;
+            for (Closeable listener : listeners) {
+                NioConnection.closeQuietly(listener);
+            }
+            listeners.clear();
+        }
+        int iOpenConnections = ConnectionLimits.getOpenConnections();
+        System.out.println("Shutting down: stopped accepting, draining " + iOpenConnections + " connections");
+
+        // handshakes under way still become connections (and are drained as they open)
+        TlsLayer.stopHandshakes(lTimeoutMillis);
+        for (Drainable drainable : drainables) {
+            drainable.drain(false);
+        }
+
+        // wait for the connections to finish, then cut off the rest
+        boolean bIsDrained = awaitConnections(lDeadlineMillis);
+        if (!bIsDrained) {
+            System.out.println("Shutting down: cutting off " + ConnectionLimits.getOpenConnections()
+                    + " connections still open after " + lTimeoutMillis + " ms");
+            for (Drainable drainable : drainables) {
+                drainable.drain(true);
+            }
+            awaitConnections(System.currentTimeMillis() + POLL_MILLIS * 10);
+        }
+        AccessLog.awaitWritten(POLL_MILLIS * 50);
+        System.out.println("Shut down in " + (System.currentTimeMillis() - lStartMillis) + " ms");
+        return bIsDrained;
+    }
+
+    // wait until no connection is open -> false if the deadline passed first
+    private static boolean awaitConnections(long lDeadlineMillis) {
+        while (ConnectionLimits.getOpenConnections() > 0) {
+            if (System.currentTimeMillis() >= lDeadlineMillis) {
+                return false;
+            }
+            try {
+                Thread.sleep(POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    //*************
+    //  DRAINABLE
+    //*************
+
+    // something holding connections open: closes them when idle (or right away when forced) and keeps the rest
+    // from being reused (called from the shutdown thread)
+    interface Drainable {
+        void drain(boolean bIsForced);
+    }
+
+}
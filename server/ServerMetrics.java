@@ -0,0 +1,406 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ServerMetrics counts requests per status code, bytes sent, connections and keep-alive reuse per listener (HTTP/HTTPS)
+ * ServerMetrics counts closed connections per listener by the reason they closed (timeouts, limits, client, ...)
+ * ServerMetrics keeps HdrHistogram-style latency histograms (16 linear sub-buckets per power of two, relative error
+ *   under 1/16) for requests and TLS handshakes
+ * ServerMetrics records without locks: counters are LongAdders and histograms are striped by thread,
+ *   so recording never becomes a contention point -> stripes are only summed when the metrics are read
+ * ServerMetrics reports whether each proxy upstream is up and its requests in flight (see ProxyRoutes)
+ * ServerMetrics are served in Prometheus text format on METRICS_PATH (turn off with --metrics=false)
+ */
+
+final class ServerMetrics {
+
+    // constants for listeners (index into per listener metrics)
+    static final int LISTENER_HTTP = 0;
+    static final int LISTENER_HTTPS = 1;
+    private static final String[] LISTENER_NAMES = {"http", "https"};
+
+    // constants for close reasons (index into per reason counters)
+    static final int CLOSE_CLIENT = 0;
+    static final int CLOSE_NOT_PERSISTENT = 1;
+    static final int CLOSE_MAX_REQUESTS = 2;
+    static final int CLOSE_HEADER_TIMEOUT = 3;
+    static final int CLOSE_IDLE_TIMEOUT = 4;
+    static final int CLOSE_BAD_REQUEST = 5;
+    static final int CLOSE_REJECTED = 6;
+    static final int CLOSE_ERROR = 7;
+    static final int CLOSE_SHUTDOWN = 8;
+    private static final String[] CLOSE_REASON_NAMES = {"client_closed", "not_persistent", "max_requests",
+            "header_timeout", "idle_timeout", "bad_request", "rejected", "error", "shutdown"};
+
+    // constants for endpoint
+    static final String METRICS_PATH = "/__metrics";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String PREFIX = "webserver_";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    // constants for status codes
+    private static final int MAX_STATUS_CODE = 599;
+
+    // whether the endpoint is served (read once from flags)
+    private static final boolean bEnabled = ServerOptions.getBoolean(ServerOptions.FLAG_METRICS, true);
+
+    // per listener metrics
+    private static final LongAdder[][] requests = new LongAdder[LISTENER_NAMES.length][MAX_STATUS_CODE + 1];
+    private static final LongAdder[] bodyBytes = new LongAdder[LISTENER_NAMES.length];
+    private static final LongAdder[] activeConnections = new LongAdder[LISTENER_NAMES.length];
+    private static final LongAdder[] connections = new LongAdder[LISTENER_NAMES.length];
+    private static final LongAdder[] reusedRequests = new LongAdder[LISTENER_NAMES.length];
+    private static final LongAdder[][] closedConnections = new LongAdder[LISTENER_NAMES.length][CLOSE_REASON_NAMES.length];
+    private static final Histogram[] requestLatency = new Histogram[LISTENER_NAMES.length];
+
+    // TLS handshake metrics (HTTPS listener only)
+    private static final Histogram handshakeLatency = new Histogram();
+    private static final LongAdder handshakeFailures = new LongAdder();
+    private static final LongAdder resumedHandshakes = new LongAdder();
+
+    static {
+        for (int i = 0; i < LISTENER_NAMES.length; i++) {
+            for (int iStatusCode = 0; iStatusCode <= MAX_STATUS_CODE; iStatusCode++) {
+                requests[i][iStatusCode] = new LongAdder();
+            }
+            bodyBytes[i] = new LongAdder();
+            activeConnections[i] = new LongAdder();
+            connections[i] = new LongAdder();
+            reusedRequests[i] = new LongAdder();
+            for (int iReason = 0; iReason < CLOSE_REASON_NAMES.length; iReason++) {
+                closedConnections[i][iReason] = new LongAdder();
+            }
+            requestLatency[i] = new Histogram();
+        }
+    }
+
+    // no instances - metrics are process wide
+    private ServerMetrics() {
+    }
+
+    // check if the request is for the metrics endpoint (target is already lower case)
+    static boolean isMetricsRequest(String sHTTPMethod, String sHTTPRequest) {
+        return bEnabled && METRICS_PATH.equals(sHTTPRequest) && ClientThread.isSupportedMethod(sHTTPMethod);
+    }
+
+    // get the listener index for a connection
+    static int getListener(boolean bIsSecure) {
+        return bIsSecure ? LISTENER_HTTPS : LISTENER_HTTP;
+    }
+
+
+    //*******************
+    //  RECORD METHODS
+    //*******************
+
+    // record a connection that started being served
+    static void connectionOpened(boolean bIsSecure) {
+        int iListener = getListener(bIsSecure);
+        connections[iListener].increment();
+        activeConnections[iListener].increment();
+    }
+
+    // record a served connection that closed, and why
+    static void connectionClosed(boolean bIsSecure, int iReason) {
+        int iListener = getListener(bIsSecure);
+        activeConnections[iListener].decrement();
+        closedConnections[iListener][iReason].increment();
+    }
+
+    // record a connection turned away before it was served (worker pool full or connection cap reached)
+    static void connectionRejected(boolean bIsSecure) {
+        closedConnections[getListener(bIsSecure)][CLOSE_REJECTED].increment();
+    }
+
+    // record an answered request (bReusedConnection -> an earlier request on the same connection was kept alive)
+    static void requestDone(boolean bIsSecure, int iStatusCode, long lBodyBytes, long lStartNanos,
+                            boolean bReusedConnection) {
+        long lLatencyNanos = System.nanoTime() - lStartNanos;
+        int iListener = getListener(bIsSecure);
+        requests[iListener][Math.min(Math.max(iStatusCode, 0), MAX_STATUS_CODE)].increment();
+        bodyBytes[iListener].add(lBodyBytes);
+        if (bReusedConnection) {
+            reusedRequests[iListener].increment();
+        }
+        requestLatency[iListener].record(lLatencyNanos / 1000);
+    }
+
+    // record a finished TLS handshake (bResumed -> an earlier session was reused)
+    static void handshakeDone(long lStartNanos, boolean bResumed) {
+        handshakeLatency.record((System.nanoTime() - lStartNanos) / 1000);
+        if (bResumed) {
+            resumedHandshakes.increment();
+        }
+    }
+
+    // record a failed TLS handshake
+    static void handshakeFailed() {
+        handshakeFailures.increment();
+    }
+
+
+    //*******************
+    //  EXPOSE METHODS
+    //*******************
+
+    // get the metrics response body
+    static byte[] getBody() {
+        return getText().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // get the header block for a metrics response body of the given length
+    static byte[] getHeader(long lContentLength, boolean bPersistentConnection, boolean bIsSecure) {
+        String sHeader = ClientThread.getStatusLine(200) + ClientThread.END_LINE
+                + ClientThread.getServerDetails(bIsSecure) + ClientThread.END_LINE
+                + "Content-Type: " + CONTENT_TYPE + ClientThread.END_LINE
+                + "Content-Length: " + lContentLength + ClientThread.END_LINE
+                + ClientThread.getHeaderEnd(bPersistentConnection);
+        return sHeader.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // get all metrics in Prometheus text exposition format
+    static String getText() {
+        StringBuilder sText = new StringBuilder(4096);
+
+        // requests per listener and status code
+        addType(sText, "requests_total", "counter", "Requests answered by listener and status code.");
+        for (int i = 0; i < LISTENER_NAMES.length; i++) {
+            for (int iStatusCode = 0; iStatusCode <= MAX_STATUS_CODE; iStatusCode++) {
+                long lCount = requests[i][iStatusCode].sum();
+                if (lCount > 0) {
+                    sText.append(PREFIX).append("requests_total{listener=\"").append(LISTENER_NAMES[i])
+                            .append("\",code=\"").append(iStatusCode).append("\"} ").append(lCount).append('\n');
+                }
+            }
+        }
+
+        // request latency per listener
+        addType(sText, "request_duration_seconds", "summary", "Time from parsed request to response sent.");
+        for (int i = 0; i < LISTENER_NAMES.length; i++) {
+            addSummary(sText, "request_duration_seconds", "listener=\"" + LISTENER_NAMES[i] + "\"",
+                    requestLatency[i].snapshot());
+        }
+
+        // bytes and connections per listener
+        addListenerValues(sText, "response_body_bytes_total", "counter", "Response body bytes sent.", bodyBytes);
+        addListenerValues(sText, "connections_total", "counter", "Connections served.", connections);
+        addListenerValues(sText, "active_connections", "gauge", "Connections being served now.", activeConnections);
+        addType(sText, "connections_closed_total", "counter", "Connections closed by listener and reason.");
+        for (int i = 0; i < LISTENER_NAMES.length; i++) {
+            for (int iReason = 0; iReason < CLOSE_REASON_NAMES.length; iReason++) {
+                addValue(sText, "connections_closed_total", "listener=\"" + LISTENER_NAMES[i] + "\",reason=\""
+                        + CLOSE_REASON_NAMES[iReason] + "\"", closedConnections[i][iReason].sum());
+            }
+        }
+        addType(sText, "open_connections", "gauge", "Connections counted against --maxConnections.");
+        addValue(sText, "open_connections", "", ConnectionLimits.getOpenConnections());
+        addType(sText, "limited_clients", "gauge", "Client IPs tracked by ClientLimits.");
+        addValue(sText, "limited_clients", "", ClientLimits.getClientCount());
+        addType(sText, "upstream_up", "gauge", "Whether each proxy upstream passed its last connect and health check.");
+        for (ProxyRoutes.Route route : ProxyRoutes.getRoutes()) {
+            for (Upstream upstream : route.getUpstreams()) {
+                addValue(sText, "upstream_up", getUpstreamLabels(route, upstream), upstream.isUp() ? 1 : 0);
+            }
+        }
+        addType(sText, "upstream_active_requests", "gauge", "Requests being forwarded to each proxy upstream.");
+        for (ProxyRoutes.Route route : ProxyRoutes.getRoutes()) {
+            for (Upstream upstream : route.getUpstreams()) {
+                addValue(sText, "upstream_active_requests", getUpstreamLabels(route, upstream),
+                        upstream.getActiveRequests());
+            }
+        }
+        addListenerValues(sText, "keepalive_reused_requests_total", "counter",
+                "Requests answered on a connection kept alive from an earlier request.", reusedRequests);
+        addType(sText, "keepalive_reuse_ratio", "gauge", "Share of requests that reused a kept alive connection.");
+        for (int i = 0; i < LISTENER_NAMES.length; i++) {
+            long lRequests = requestLatency[i].snapshot()[Histogram.COUNT_INDEX];
+            double dRatio = (lRequests == 0) ? 0 : (double) reusedRequests[i].sum() / lRequests;
+            addValue(sText, "keepalive_reuse_ratio", "listener=\"" + LISTENER_NAMES[i] + "\"", dRatio);
+        }
+
+        // TLS handshakes
+        addType(sText, "tls_handshake_seconds", "summary", "TLS handshake time on the HTTPS listener.");
+        addSummary(sText, "tls_handshake_seconds", "", handshakeLatency.snapshot());
+        addType(sText, "tls_handshake_failures_total", "counter", "TLS handshakes that failed.");
+        addValue(sText, "tls_handshake_failures_total", "", handshakeFailures.sum());
+        addType(sText, "tls_handshakes_resumed_total", "counter", "TLS handshakes that resumed an earlier session.");
+        addValue(sText, "tls_handshakes_resumed_total", "", resumedHandshakes.sum());
+
+        // caches and log
+        addType(sText, "response_cache_hits_total", "counter", "ResponseCache hits.");
+        addValue(sText, "response_cache_hits_total", "", ResponseCache.getHits());
+        addType(sText, "response_cache_misses_total", "counter", "ResponseCache misses.");
+        addValue(sText, "response_cache_misses_total", "", ResponseCache.getMisses());
+        addType(sText, "response_cache_evictions_total", "counter", "ResponseCache entries evicted to make room.");
+        addValue(sText, "response_cache_evictions_total", "", ResponseCache.getEvictions());
+        addType(sText, "response_cache_bytes", "gauge", "Bytes held by ResponseCache.");
+        addValue(sText, "response_cache_bytes", "", ResponseCache.getUsedBytes());
+        addType(sText, "compression_cache_bytes", "gauge", "Bytes held by CompressionCache.");
+        addValue(sText, "compression_cache_bytes", "", CompressionCache.getUsedBytes());
+        addType(sText, "compressions_total", "counter", "Files compressed on the fly.");
+        addValue(sText, "compressions_total", "", CompressionCache.getCompressions());
+        addType(sText, "compression_input_bytes_total", "counter", "Bytes read by on the fly compression.");
+        addValue(sText, "compression_input_bytes_total", "", CompressionCache.getCompressedInputBytes());
+        addType(sText, "compression_output_bytes_total", "counter", "Bytes written by on the fly compression.");
+        addValue(sText, "compression_output_bytes_total", "", CompressionCache.getCompressedOutputBytes());
+        addType(sText, "mapped_file_bytes", "gauge", "Bytes mapped by MappedFileCache.");
+        addValue(sText, "mapped_file_bytes", "", MappedFileCache.getMappedBytes());
+        addType(sText, "access_log_dropped_total", "counter", "Access log records dropped because the ring was full.");
+        addValue(sText, "access_log_dropped_total", "", AccessLog.getDropped());
+        return sText.toString();
+    }
+
+
+    //********************
+    //  FORMAT HELPERS
+    //********************
+
+    // get the labels of a proxy upstream (the same upstream may serve several routes)
+    private static String getUpstreamLabels(ProxyRoutes.Route route, Upstream upstream) {
+        return "route=\"" + route.getPrefix() + "\",upstream=\"" + upstream.getAuthority() + "\"";
+    }
+
+    // add the HELP and TYPE lines for a metric
+    private static void addType(StringBuilder sText, String sName, String sType, String sHelp) {
+        sText.append("# HELP ").append(PREFIX).append(sName).append(' ').append(sHelp).append('\n');
+        sText.append("# TYPE ").append(PREFIX).append(sName).append(' ').append(sType).append('\n');
+    }
+
+    // add one sample line
+    private static void addValue(StringBuilder sText, String sName, String sLabels, double dValue) {
+        sText.append(PREFIX).append(sName);
+        if (!sLabels.isEmpty()) {
+            sText.append('{').append(sLabels).append('}');
+        }
+        sText.append(' ').append(formatNumber(dValue)).append('\n');
+    }
+
+    // add a metric with one sample per listener
+    private static void addListenerValues(StringBuilder sText, String sName, String sType, String sHelp,
+                                          LongAdder[] values) {
+        addType(sText, sName, sType, sHelp);
+        for (int i = 0; i < LISTENER_NAMES.length; i++) {
+            addValue(sText, sName, "listener=\"" + LISTENER_NAMES[i] + "\"", values[i].sum());
+        }
+    }
+
+    // add quantile, sum and count lines for a histogram snapshot (recorded in microseconds, exposed in seconds)
+    private static void addSummary(StringBuilder sText, String sName, String sLabels, long[] snapshot) {
+        String sSeparator = sLabels.isEmpty() ? "" : ",";
+        for (double dQuantile : QUANTILES) {
+            addValue(sText, sName, sLabels + sSeparator + "quantile=\"" + dQuantile + "\"",
+                    Histogram.getValueAtQuantile(snapshot, dQuantile) / 1e6);
+        }
+        addValue(sText, sName + "_sum", sLabels, snapshot[Histogram.SUM_INDEX] / 1e6);
+        addValue(sText, sName + "_count", sLabels, snapshot[Histogram.COUNT_INDEX]);
+    }
+
+    // format a sample value (whole numbers without a fraction)
+    private static String formatNumber(double dValue) {
+        if (dValue == Math.rint(dValue) && Math.abs(dValue) < 1e15) {
+            return Long.toString((long) dValue);
+        }
+        return Double.toString(dValue);
+    }
+
+
+    //*************
+    //  HISTOGRAM
+    //*************
+
+    // log-linear histogram of microsecond values: values below 32 get their own bucket, larger values share
+    // a bucket with others of the same power of two and top 5 bits -> relative error under 1/16
+    static final class Histogram {
+
+        // constants for buckets
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+        private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+        private static final int MAX_VALUE_BITS = 36;  // ~19 hours in microseconds
+        private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+        private static final int BUCKET_COUNT = SUB_BUCKET_COUNT
+                + (MAX_VALUE_BITS - SUB_BUCKET_BITS) * SUB_BUCKET_HALF;
+
+        // constants for snapshot layout: bucket counts, then sum and count
+        static final int SUM_INDEX = BUCKET_COUNT;
+        static final int COUNT_INDEX = BUCKET_COUNT + 1;
+
+        // constants for stripes (power of two, at least the core count)
+        private static final int STRIPES = Integer.highestOneBit(
+                Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+
+        // one row of counts (plus sum) per stripe -> threads pick a stripe by id
+        private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+
+        // histogram constructor
+        Histogram() {
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new AtomicLongArray(BUCKET_COUNT + 1);
+            }
+        }
+
+        // record a value in the calling thread's stripe
+        void record(long lValue) {
+            long lClamped = Math.min(Math.max(lValue, 0), MAX_VALUE);
+            AtomicLongArray stripe = stripes[(int) (Thread.currentThread().getId() & (STRIPES - 1))];
+            stripe.incrementAndGet(getBucket(lClamped));
+            stripe.addAndGet(SUM_INDEX, lClamped);
+        }
+
+        // sum the stripes -> bucket counts, then sum and count
+        long[] snapshot() {
+            long[] snapshot = new long[BUCKET_COUNT + 2];
+            for (AtomicLongArray stripe : stripes) {
+                for (int i = 0; i <= SUM_INDEX; i++) {
+                    snapshot[i] += stripe.get(i);
+                }
+            }
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                snapshot[COUNT_INDEX] += snapshot[i];
+            }
+            return snapshot;
+        }
+
+        // get the value at the quantile (highest value of the bucket it falls in) -> 0 if empty
+        static long getValueAtQuantile(long[] snapshot, double dQuantile) {
+            long lCount = snapshot[COUNT_INDEX];
+            if (lCount == 0) {
+                return 0;
+            }
+            long lRank = Math.max(1, (long) Math.ceil(dQuantile * lCount));
+            long lSeen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                lSeen += snapshot[i];
+                if (lSeen >= lRank) {
+                    return getBucketHighestValue(i);
+                }
+            }
+            return MAX_VALUE;
+        }
+
+        // get the bucket index for a value
+        static int getBucket(long lValue) {
+            if (lValue < SUB_BUCKET_COUNT) {
+                return (int) lValue;
+            }
+            int iShift = (63 - Long.numberOfLeadingZeros(lValue)) - (SUB_BUCKET_BITS - 1);
+            int iTop = (int) (lValue >>> iShift);  // in [SUB_BUCKET_HALF, SUB_BUCKET_COUNT)
+            return SUB_BUCKET_COUNT + (iShift - 1) * SUB_BUCKET_HALF + (iTop - SUB_BUCKET_HALF);
+        }
+
+        // get the highest value that falls in the bucket
+        static long getBucketHighestValue(int iBucket) {
+            if (iBucket < SUB_BUCKET_COUNT) {
+                return iBucket;
+            }
+            int iOffset = iBucket - SUB_BUCKET_COUNT;
+            int iShift = iOffset / SUB_BUCKET_HALF + 1;
+            long lTop = iOffset % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+            return ((lTop + 1) << iShift) - 1;
+        }
+    }
+
+}
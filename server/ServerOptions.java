@@ -0,0 +1,163 @@
+package server;
+
+import java.util.*;
+
+/**
+ * ServerOptions holds the optional command line flags given to WebServer (in form --name=value)
+ * ServerOptions flags are parsed once in main and then read anywhere in the server
+ * ServerOptions getters fall back to the supplied default when a flag is missing or malformed
+ */
+
+final class ServerOptions {
+
+    // constants for optional flags
+    static final String FLAG_EXECUTOR = "--executor=";
+    static final String FLAG_WORKER_THREADS = "--workerThreads=";
+    static final String FLAG_WORKER_QUEUE = "--workerQueue=";
+    static final String FLAG_ENGINE = "--engine=";
+    static final String FLAG_EVENT_LOOPS = "--eventLoops=";
+    static final String FLAG_SENDFILE = "--sendfile=";
+    static final String FLAG_CACHE_BYTES = "--cacheBytes=";
+    static final String FLAG_CACHE_MAX_FILE_BYTES = "--cacheMaxFileBytes=";
+    static final String FLAG_MMAP_THRESHOLD = "--mmapThreshold=";
+    static final String FLAG_MMAP_BYTES = "--mmapBytes=";
+    static final String FLAG_MAX_REQUEST_LINE = "--maxRequestLine=";
+    static final String FLAG_MAX_HEADER_BYTES = "--maxHeaderBytes=";
+    static final String FLAG_LOG_LEVEL = "--logLevel=";
+    static final String FLAG_ACCESS_LOG = "--accessLog=";
+    static final String FLAG_ACCESS_LOG_MAX_BYTES = "--accessLogMaxBytes=";
+    static final String FLAG_ACCESS_LOG_FILES = "--accessLogFiles=";
+    static final String FLAG_METRICS = "--metrics=";
+    static final String FLAG_TLS_PROTOCOLS = "--tlsProtocols=";
+    static final String FLAG_TLS_CIPHERS = "--tlsCiphers=";
+    static final String FLAG_TLS_SESSION_CACHE_SIZE = "--tlsSessionCacheSize=";
+    static final String FLAG_TLS_SESSION_TIMEOUT = "--tlsSessionTimeout=";
+    static final String FLAG_TLS_SESSION_TICKETS = "--tlsSessionTickets=";
+    static final String FLAG_TLS_HANDSHAKE_THREADS = "--tlsHandshakeThreads=";
+    static final String FLAG_TLS_HANDSHAKE_TIMEOUT = "--tlsHandshakeTimeout=";
+    static final String FLAG_COMPRESSION = "--compression=";
+    static final String FLAG_COMPRESSION_CACHE_BYTES = "--compressionCacheBytes=";
+    static final String FLAG_COMPRESSION_MAX_FILE_BYTES = "--compressionMaxFileBytes=";
+    static final String FLAG_COMPRESSION_LEVEL = "--compressionLevel=";
+    static final String FLAG_CACHE_MAX_AGE = "--cacheMaxAge=";
+    static final String FLAG_HEADER_TIMEOUT = "--headerTimeout=";
+    static final String FLAG_KEEP_ALIVE_TIMEOUT = "--keepAliveTimeout=";
+    static final String FLAG_MAX_KEEP_ALIVE_REQUESTS = "--maxKeepAliveRequests=";
+    static final String FLAG_MAX_CONNECTIONS = "--maxConnections=";
+    static final String FLAG_ACCEPTORS = "--acceptors=";
+    static final String FLAG_BACKLOG = "--backlog=";
+    static final String FLAG_TCP_NO_DELAY = "--tcpNoDelay=";
+    static final String FLAG_SEND_BUFFER_SIZE = "--sendBufferSize=";
+    static final String FLAG_RECEIVE_BUFFER_SIZE = "--receiveBufferSize=";
+    static final String FLAG_DIRECTORY_LISTING = "--directoryListing=";
+    static final String FLAG_LISTING_CACHE_ENTRIES = "--listingCacheEntries=";
+    static final String FLAG_MIME_TYPES = "--mimeTypes=";
+    static final String FLAG_UNKNOWN_CONTENT_TYPE = "--unknownContentType=";
+    static final String FLAG_HTTP2 = "--http2=";
+    static final String FLAG_HTTP2_MAX_STREAMS = "--http2MaxStreams=";
+    static final String FLAG_DRAIN_TIMEOUT = "--drainTimeout=";
+    static final String FLAG_REUSE_PORT = "--reusePort=";
+    static final String FLAG_INHERITED_CHANNEL = "--inheritedChannel=";
+    static final String FLAG_MAX_CLIENT_CONNECTIONS = "--maxClientConnections=";
+    static final String FLAG_CLIENT_REQUEST_RATE = "--clientRequestRate=";
+    static final String FLAG_CLIENT_REQUEST_BURST = "--clientRequestBurst=";
+    static final String FLAG_CLIENT_BANDWIDTH = "--clientBandwidth=";
+    static final String FLAG_CLIENT_BANDWIDTH_BURST = "--clientBandwidthBurst=";
+    static final String FLAG_CLIENT_IDLE_TIMEOUT = "--clientIdleTimeout=";
+    static final String FLAG_PROXY_ROUTES = "--proxyRoutes=";
+    static final String FLAG_PROXY_HEALTH_INTERVAL = "--proxyHealthInterval=";
+    static final String FLAG_PROXY_CONNECT_TIMEOUT = "--proxyConnectTimeout=";
+    static final String FLAG_PROXY_READ_TIMEOUT = "--proxyReadTimeout=";
+    static final String FLAG_PROXY_IDLE_TIMEOUT = "--proxyIdleTimeout=";
+    static final String FLAG_PROXY_MAX_IDLE = "--proxyMaxIdle=";
+    static final String FLAG_WARM_UP = "--warmUpAtStart=";
+    static final String FLAG_WARM_UP_FILES = "--warmUpFiles=";
+    static final String FLAG_WARM_UP_TOP_PATHS = "--warmUpTopPaths=";
+    static final String FLAG_WARM_UP_REQUESTS = "--warmUpRequests=";
+    static final String FLAG_WARM_UP_HANDSHAKES = "--warmUpHandshakes=";
+    private static final String[] KNOWN_FLAGS = {FLAG_EXECUTOR, FLAG_WORKER_THREADS, FLAG_WORKER_QUEUE,
+            FLAG_ENGINE, FLAG_EVENT_LOOPS, FLAG_SENDFILE, FLAG_CACHE_BYTES, FLAG_CACHE_MAX_FILE_BYTES,
+            FLAG_MMAP_THRESHOLD, FLAG_MMAP_BYTES, FLAG_MAX_REQUEST_LINE, FLAG_MAX_HEADER_BYTES,
+            FLAG_LOG_LEVEL, FLAG_ACCESS_LOG, FLAG_ACCESS_LOG_MAX_BYTES, FLAG_ACCESS_LOG_FILES,
+            FLAG_METRICS, FLAG_TLS_PROTOCOLS, FLAG_TLS_CIPHERS, FLAG_TLS_SESSION_CACHE_SIZE, FLAG_TLS_SESSION_TIMEOUT,
+            FLAG_TLS_SESSION_TICKETS, FLAG_TLS_HANDSHAKE_THREADS, FLAG_TLS_HANDSHAKE_TIMEOUT, FLAG_COMPRESSION,
+            FLAG_COMPRESSION_CACHE_BYTES, FLAG_COMPRESSION_MAX_FILE_BYTES, FLAG_COMPRESSION_LEVEL, FLAG_CACHE_MAX_AGE,
+            FLAG_HEADER_TIMEOUT, FLAG_KEEP_ALIVE_TIMEOUT, FLAG_MAX_KEEP_ALIVE_REQUESTS, FLAG_MAX_CONNECTIONS,
+            FLAG_ACCEPTORS, FLAG_BACKLOG, FLAG_TCP_NO_DELAY, FLAG_SEND_BUFFER_SIZE, FLAG_RECEIVE_BUFFER_SIZE,
+            FLAG_DIRECTORY_LISTING, FLAG_LISTING_CACHE_ENTRIES, FLAG_MIME_TYPES, FLAG_UNKNOWN_CONTENT_TYPE,
+            FLAG_HTTP2, FLAG_HTTP2_MAX_STREAMS, FLAG_DRAIN_TIMEOUT, FLAG_REUSE_PORT, FLAG_INHERITED_CHANNEL,
+            FLAG_MAX_CLIENT_CONNECTIONS, FLAG_CLIENT_REQUEST_RATE, FLAG_CLIENT_REQUEST_BURST, FLAG_CLIENT_BANDWIDTH,
+            FLAG_CLIENT_BANDWIDTH_BURST, FLAG_CLIENT_IDLE_TIMEOUT, FLAG_PROXY_ROUTES, FLAG_PROXY_HEALTH_INTERVAL,
+            FLAG_PROXY_CONNECT_TIMEOUT, FLAG_PROXY_READ_TIMEOUT, FLAG_PROXY_IDLE_TIMEOUT, FLAG_PROXY_MAX_IDLE,
+            FLAG_WARM_UP, FLAG_WARM_UP_FILES, FLAG_WARM_UP_TOP_PATHS, FLAG_WARM_UP_REQUESTS, FLAG_WARM_UP_HANDSHAKES};
+
+    // parsed flag values keyed by flag label
+    private static final Map<String, String> sValues = new HashMap<>();
+
+    // no instances - options are process wide
+    private ServerOptions() {
+    }
+
+    // parse the optional flags -> false if any flag is not a known --name=value flag
+    static boolean parse(List<String> sOptionArgs) {
+        for (String sArg : sOptionArgs) {
+            String sFlag = getKnownFlag(sArg);
+            if (sFlag == null || sArg.length() == sFlag.length()) {
+                return false;
+            }
+            sValues.put(sFlag, sArg.substring(sFlag.length()));
+        }
+        return true;
+    }
+
+    // get the usage text for the optional flags
+    static String getUsage() {
+        StringBuilder sUsage = new StringBuilder();
+        for (String sFlag : KNOWN_FLAGS) {
+            sUsage.append(" [").append(sFlag).append("<value>]");
+        }
+        return sUsage.toString();
+    }
+
+    // get a flag value as a string
+    static String getString(String sFlag, String sDefault) {
+        String sValue = sValues.get(sFlag);
+        return (sValue == null) ? sDefault : sValue;
+    }
+
+    // get a flag value as an int
+    static int getInt(String sFlag, int iDefault) {
+        return (int) getLong(sFlag, iDefault);
+    }
+
+    // get a flag value as a long
+    static long getLong(String sFlag, long lDefault) {
+        String sValue = sValues.get(sFlag);
+        if (sValue == null) {
+            return lDefault;
+        }
+        try {
+            return Long.parseLong(sValue);
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring non-numeric value for " + sFlag + sValue);
+            return lDefault;
+        }
+    }
+
+    // get a flag value as a boolean
+    static boolean getBoolean(String sFlag, boolean bDefault) {
+        String sValue = sValues.get(sFlag);
+        return (sValue == null) ? bDefault : Boolean.parseBoolean(sValue);
+    }
+
+    // get the known flag label that the argument starts with (case insensitive like the port flags)
+    private static String getKnownFlag(String sArg) {
+        for (String sFlag : KNOWN_FLAGS) {
+            if (sArg.regionMatches(true, 0, sFlag, 0, sFlag.length())) {
+                return sFlag;
+            }
+        }
+        return null;
+    }
+
+}
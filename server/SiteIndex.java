@@ -0,0 +1,198 @@
+package server;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * SiteIndex is an immutable snapshot of the files and redirects that WebServer can serve from ./www
+ * SiteIndex holds the redirect.defs rules compiled once per build (see RedirectRules)
+ * SiteIndex knows the folders under ./www too -> a folder request without its trailing / is redirected to it
+ * SiteIndex is built once at startup and shared by every ClientThread (no per-connection disk scan)
+ * SiteIndex is rebuilt and swapped atomically when a WatchService sees changes under ./www
+ */
+
+final class SiteIndex {
+
+    // constants for watcher
+    private static final String WATCHER_THREAD_NAME = "site-index-watcher";
+    private static final long RELOAD_SETTLE_MILLIS = 100;
+
+    // current index shared by all client threads -> replaced as a whole, never modified
+    private static volatile SiteIndex currentIndex;
+
+    // index instance variables
+    private final Set<String> sAvailableFiles;
+    private final Set<String> sDirectories;
+    private final RedirectRules redirectRules;
+
+    // index constructor
+    private SiteIndex(Set<String> sAvailableFiles, Set<String> sDirectories, RedirectRules redirectRules) {
+        this.sAvailableFiles = Collections.unmodifiableSet(sAvailableFiles);
+        this.sDirectories = Collections.unmodifiableSet(sDirectories);
+        this.redirectRules = redirectRules;
+    }
+
+    // get the current index (built on first use if server did not load it at startup)
+    static SiteIndex get() {
+        SiteIndex index = currentIndex;
+        if (index == null) {
+            synchronized (SiteIndex.class) {
+                if (currentIndex == null) {
+                    currentIndex = build();
+                }
+                index = currentIndex;
+            }
+        }
+        return index;
+    }
+
+    // build a new index from disk and swap it in for all future requests
+    static synchronized SiteIndex reload() {
+        currentIndex = build();
+        return currentIndex;
+    }
+
+    // check if HTTP request is a valid file - i.e. among available files in root server
+    boolean isValidFile(String sHTTPRequest) {
+        String sRootFolder = "/" + ClientThread.ROOT_FOLDER.getName();
+        return sAvailableFiles.contains(sRootFolder + sHTTPRequest.toLowerCase());
+    }
+
+    // check if HTTP request is a folder in root server (with or without the trailing /)
+    boolean isDirectory(String sHTTPRequest) {
+        String sRootFolder = "/" + ClientThread.ROOT_FOLDER.getName();
+        String sFolder = sHTTPRequest.endsWith("/") ? sHTTPRequest.substring(0, sHTTPRequest.length() - 1) : sHTTPRequest;
+        return sDirectories.contains(sRootFolder + sFolder.toLowerCase());
+    }
+
+    // get the redirect (status code and final URL location) for the request -> null if it is not a redirect
+    // rules come first, then a folder without its trailing / (so relative links in its listing or index work)
+    RedirectRules.Redirect getRedirect(String sHTTPRequest) {
+        RedirectRules.Redirect redirect = redirectRules.find(sHTTPRequest);
+        if (redirect == null && !sHTTPRequest.endsWith("/") && isDirectory(sHTTPRequest)) {
+            redirect = new RedirectRules.Redirect(301, sHTTPRequest + "/");
+        }
+        return redirect;
+    }
+
+    // get count of files in the index
+    int getFileCount() {
+        return sAvailableFiles.size();
+    }
+
+    // get count of redirects in the index
+    int getRedirectCount() {
+        return redirectRules.getRuleCount();
+    }
+
+
+    //*************************
+    //  INITIALIZATION HELPERS
+    //*************************
+
+    // build a fresh index from the root folder and redirect file
+    private static SiteIndex build() {
+        Set<String> sValidFiles = new HashSet<>();
+        Set<String> sDirectories = new HashSet<>();
+        sDirectories.add("/" + ClientThread.ROOT_FOLDER.getName());
+        addValidFiles(ClientThread.ROOT_FOLDER, sValidFiles, sDirectories);
+        return new SiteIndex(sValidFiles, sDirectories, RedirectRules.load(ClientThread.REDIRECT_FILE_NAME));
+    }
+
+    // add valid file requests (and the folders below the current one) to the sets
+    private static void addValidFiles(File currentFolder, Set<String> sValidFiles, Set<String> sDirectories) {
+        File[] subFiles = currentFolder.listFiles();
+
+        // recurse through root directory, http://stackoverflow.com/questions/1844688/read-all-files-in-a-folder
+        // valid file must not be a directory, not be the redirect file, and be a supported content type
+        if (subFiles != null) {
+            for (File fileEntry : subFiles) {
+                String sFileName = fileEntry.getPath();
+                if (fileEntry.isDirectory()) {
+                    sDirectories.add(sFileName.replaceFirst(".","").toLowerCase());
+                    addValidFiles(fileEntry, sValidFiles, sDirectories);
+                } else if (ClientThread.isValidContentType(sFileName) && !sFileName.equals(ClientThread.REDIRECT_FILE_NAME)) {
+                    sValidFiles.add(sFileName.replaceFirst(".","").toLowerCase());
+                }
+            }
+        }
+    }
+
+
+    //*******************
+    //  WATCHER METHODS
+    //*******************
+
+    // start a daemon thread that rebuilds the index when anything under the root folder changes
+    static void startWatcher() {
+        final Path rootPath = ClientThread.ROOT_FOLDER.toPath();
+        final WatchService watchService;
+        try {
+            watchService = rootPath.getFileSystem().newWatchService();
+        } catch (IOException e) {
+            System.out.println("There was an error starting the site index watcher:");
+            System.out.println("  " + e);
+            return;
+        }
+
+        Thread watcher = new Thread(WATCHER_THREAD_NAME) {
+            public void run() {
+                Set<Path> registeredFolders = new HashSet<>();
+                registerFolders(watchService, rootPath, registeredFolders);
+
+                try {
+                    while (true) {
+                        // block until something changes, then let a burst of changes settle
+                        WatchKey key = watchService.take();
+                        Thread.sleep(RELOAD_SETTLE_MILLIS);
+                        do {
+                            key.pollEvents();
+                            if (!key.reset()) {
+                                registeredFolders.remove((Path) key.watchable());
+                            }
+                        } while ((key = watchService.poll()) != null);
+
+                        // pick up new sub folders, then rebuild once for the whole burst
+                        registerFolders(watchService, rootPath, registeredFolders);
+                        SiteIndex index = reload();
+                        System.out.println("Site index reloaded: " + index.getFileCount() + " files, "
+                                + index.getRedirectCount() + " redirects");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    // register the folder and all sub folders (WatchService only watches a single level)
+    private static void registerFolders(WatchService watchService, Path folder, Set<Path> registeredFolders) {
+        if (!Files.isDirectory(folder)) {
+            return;
+        }
+        if (registeredFolders.add(folder)) {
+            try {
+                folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            } catch (IOException e) {
+                registeredFolders.remove(folder);
+                System.out.println("There was an error watching folder " + folder + ":");
+                System.out.println("  " + e);
+            }
+        }
+        try (DirectoryStream<Path> subFolders = Files.newDirectoryStream(folder)) {
+            for (Path subFolder : subFolders) {
+                if (Files.isDirectory(subFolder)) {
+                    registerFolders(watchService, subFolder, registeredFolders);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("There was an error listing folder " + folder + ":");
+            System.out.println("  " + e);
+        }
+    }
+
+}
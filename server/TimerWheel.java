@@ -0,0 +1,128 @@
+package server;
+
+/**
+ * TimerWheel is a hashed timing wheel for connection deadlines -> scheduling, moving and cancelling are O(1)
+ * TimerWheel rounds deadlines up to whole ticks and runs the timeouts that are due when it is advanced
+ * TimerWheel is not thread safe -> each SelectorServer event loop owns one and advances it after every select
+ */
+
+final class TimerWheel {
+
+    // constants for the wheel (slot count is a power of two, deadlines past one turn wait for later turns)
+    static final long TICK_MILLIS = 100;
+    private static final int SLOT_COUNT = 512;
+    private static final int SLOT_MASK = SLOT_COUNT - 1;
+
+    // wheel instance variables: each slot is a doubly linked list of timeouts
+    private final Timeout[] slots = new Timeout[SLOT_COUNT];
+    private final long lStartMillis;
+    private long lTick;
+    private int iScheduled;
+
+    // wheel constructor
+    TimerWheel() {
+        this.lStartMillis = getNowMillis();
+    }
+
+    // get monotonic millis for deadlines
+    static long getNowMillis() {
+        return System.nanoTime() / 1000000;
+    }
+
+    // schedule (or move) the timeout to run after the delay, remembering why it would run
+    void schedule(Timeout timeout, int iReason, long lDelayMillis) {
+        cancel(timeout);
+        long lDeadlineTick = (getNowMillis() - lStartMillis + lDelayMillis + TICK_MILLIS - 1) / TICK_MILLIS;
+        timeout.lDeadlineTick = Math.max(lTick + 1, lDeadlineTick);
+        timeout.iReason = iReason;
+        timeout.wheel = this;
+
+        int iSlot = (int) (timeout.lDeadlineTick & SLOT_MASK);
+        timeout.previous = null;
+        timeout.next = slots[iSlot];
+        if (slots[iSlot] != null) {
+            slots[iSlot].previous = timeout;
+        }
+        slots[iSlot] = timeout;
+        iScheduled++;
+    }
+
+    // cancel the timeout if it is scheduled on this wheel
+    void cancel(Timeout timeout) {
+        if (timeout.wheel != this) {
+            return;
+        }
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            slots[(int) (timeout.lDeadlineTick & SLOT_MASK)] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.wheel = null;
+        iScheduled--;
+    }
+
+    // check if no timeouts are scheduled (the owner can then block without waking up for ticks)
+    boolean isEmpty() {
+        return iScheduled == 0;
+    }
+
+    // run every timeout that is due (an expiring timeout's action may reschedule or cancel only itself)
+    void advance() {
+        long lNowTick = (getNowMillis() - lStartMillis) / TICK_MILLIS;
+        if (lNowTick <= lTick) {
+            return;
+        }
+
+        // visit each slot passed since the last advance (every slot once after a long stall)
+        long lFirstTick = Math.max(lTick + 1, lNowTick - SLOT_MASK);
+        lTick = lNowTick;
+        for (long lVisit = lFirstTick; lVisit <= lNowTick && iScheduled > 0; lVisit++) {
+            Timeout timeout = slots[(int) (lVisit & SLOT_MASK)];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.lDeadlineTick <= lNowTick) {
+                    cancel(timeout);
+                    timeout.action.run();
+                }
+                timeout = next;
+            }
+        }
+    }
+
+
+    //***********
+    //  TIMEOUT
+    //***********
+
+    // one reusable deadline (a connection keeps one and moves it as its state changes)
+    static final class Timeout {
+
+        private final Runnable action;
+        private int iReason;
+        private long lDeadlineTick;
+        private Timeout previous;
+        private Timeout next;
+        private TimerWheel wheel;
+
+        // timeout constructor (action runs on the thread that advances the wheel)
+        Timeout(Runnable action) {
+            this.action = action;
+        }
+
+        // get the reason given when the timeout was last scheduled
+        int getReason() {
+            return iReason;
+        }
+
+        // check if the timeout is waiting on a wheel
+        boolean isScheduled() {
+            return wheel != null;
+        }
+    }
+
+}
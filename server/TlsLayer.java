@@ -0,0 +1,378 @@
+package server;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.*;
+
+/**
+ * TlsLayer builds the SSL listener for WebServer from the key store and the --tls* flags
+ * TlsLayer caches sessions for resumption (--tlsSessionCacheSize, --tlsSessionTimeout seconds) and
+ *   turns session tickets on or off (--tlsSessionTickets, on JDKs that support stateless tickets)
+ * TlsLayer enables protocols and cipher suites in preference order (--tlsProtocols, --tlsCiphers),
+ *   TLS 1.3 and forward secret AEAD suites first, and makes the server's order win
+ * TlsLayer completes handshakes on its own pool (--tlsHandshakeThreads) within a deadline for the whole handshake
+ *   (--tlsHandshakeTimeout millis) before a connection reaches the ConnectionExecutor -> slow, stalled or trickling
+ *   clients can't hold workers or handshake threads
+ * TlsLayer offers HTTP/2 ("h2", then "http/1.1") through ALPN (--http2, on by default) -> clients that pick h2 are
+ *   served by Http2Connection, the rest by HTTP/1.1 as before (ALPN needs Java 9, or 8u252 and later)
+ * TlsLayer loads the key store once and can run handshakes in memory before the listener opens (see WarmUp)
+ */
+
+final class TlsLayer {
+
+    // constants for defaults
+    private static final int DEFAULT_SESSION_CACHE_SIZE = 20480;
+    private static final int DEFAULT_SESSION_TIMEOUT_SECONDS = 3600;
+    private static final int DEFAULT_HANDSHAKE_TIMEOUT_MILLIS = 10000;
+    private static final int HANDSHAKE_QUEUE = 1000;
+    private static final String HANDSHAKE_THREAD_NAME = "tls-handshake-";
+    private static final String DEADLINE_THREAD_NAME = "tls-handshake-deadline";
+    private static final String SESSION_TICKET_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+    private static final String[] APPLICATION_PROTOCOLS = {Http2Connection.PROTOCOL, "http/1.1"};
+    private static final String APPLICATION_PROTOCOLS_METHOD = "setApplicationProtocols";
+    private static final String WARM_UP_PEER_HOST = "warm-up";
+    private static final int WARM_UP_PEER_PORT = 443;
+    private static final int MAX_WARM_UP_STEPS = 100;
+    private static final byte[] WARM_UP_RECORD = "GET / HTTP/1.1\r\nHost: warm-up\r\n\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    // constants for preferred protocols and cipher suites (unsupported ones are skipped)
+    private static final String[] DEFAULT_PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+    private static final String[] DEFAULT_CIPHERS = {
+            "TLS_AES_128_GCM_SHA256",
+            "TLS_AES_256_GCM_SHA384",
+            "TLS_CHACHA20_POLY1305_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
+            "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384",
+            "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
+            "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256",
+            "TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256"
+    };
+
+    // handshake settings (read once from flags)
+    private static final int iHandshakeTimeoutMillis = ServerOptions.getInt(ServerOptions.FLAG_TLS_HANDSHAKE_TIMEOUT,
+            DEFAULT_HANDSHAKE_TIMEOUT_MILLIS);
+
+    // handshake pool and the timer that closes handshakes past their deadline (created with the listener)
+    private static ExecutorService handshakePool;
+    private static ScheduledThreadPoolExecutor handshakeDeadlines;
+
+    // HTTP/2 offered in the handshake (set with the listener)
+    private static boolean bIsHttp2Offered;
+
+    // server context (loaded once)
+    private static SSLContext sslContext;
+
+    // no instances - TLS settings are process wide
+    private TlsLayer() {
+    }
+
+    // create the configured SSL server sockets on the port (one per acceptor, see ListenerOptions)
+    static SSLServerSocket[] createServerSockets(int iSSLPort, String sKeyStoreFileName, char[] keyStorePass)
+            throws IOException, GeneralSecurityException {
+        SSLContext sslContext = getContext(sKeyStoreFileName, keyStorePass);
+
+        // create the secure sockets with protocols and cipher suites in preference order
+        final SSLServerSocketFactory serverSocketFactory = sslContext.getServerSocketFactory();
+        ServerSocket[] serverSockets = ListenerOptions.open(iSSLPort, new ListenerOptions.SocketOpener() {
+            public ServerSocket open() throws IOException {
+                return serverSocketFactory.createServerSocket();
+            }
+        });
+        SSLServerSocket[] sslServers = new SSLServerSocket[serverSockets.length];
+        bIsHttp2Offered = ServerOptions.getBoolean(ServerOptions.FLAG_HTTP2, true);
+        for (int i = 0; i < serverSockets.length; i++) {
+            sslServers[i] = (SSLServerSocket) serverSockets[i];
+            SSLParameters parameters = sslServers[i].getSSLParameters();
+            bIsHttp2Offered = configure(parameters, sslServers[i].getSupportedProtocols(),
+                    sslServers[i].getSupportedCipherSuites(), bIsHttp2Offered);
+            sslServers[i].setSSLParameters(parameters);
+        }
+
+        handshakePool = newHandshakePool();
+        handshakeDeadlines = newDeadlineTimer();
+        return sslServers;
+    }
+
+    // run handshakes in memory against the server's own context, half of them resumed, each followed by a record
+    // from the client -> the key store, the providers and the handshake code are ready before the first client
+    static void warmUp(String sKeyStoreFileName, char[] keyStorePass, int iHandshakes)
+            throws IOException, GeneralSecurityException {
+        SSLContext serverContext = getContext(sKeyStoreFileName, keyStorePass);
+        SSLContext clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, new TrustManager[]{new WarmUpTrustManager()}, null);
+        for (int i = 0; i < iHandshakes; i++) {
+            // a client engine with a peer resumes the session of the previous one, one without starts afresh
+            SSLEngine client = (i % 2 == 0) ? clientContext.createSSLEngine()
+                    : clientContext.createSSLEngine(WARM_UP_PEER_HOST, WARM_UP_PEER_PORT);
+            client.setUseClientMode(true);
+            SSLEngine server = serverContext.createSSLEngine();
+            server.setUseClientMode(false);
+            SSLParameters parameters = server.getSSLParameters();
+            configure(parameters, server.getSupportedProtocols(), server.getSupportedCipherSuites(), false);
+            server.setSSLParameters(parameters);
+            handshake(client, server);
+        }
+    }
+
+    // get a description of the TLS settings for the console
+    static String getDescription(SSLServerSocket sslServer) {
+        return Arrays.toString(sslServer.getEnabledProtocols()) + ", "
+                + sslServer.getEnabledCipherSuites().length + " cipher suites"
+                + (bIsHttp2Offered ? ", h2 and http/1.1" : ", http/1.1");
+    }
+
+    // let the handshakes under way finish (the listeners are closed) for up to lTimeoutMillis
+    static void stopHandshakes(long lTimeoutMillis) {
+        if (handshakePool == null) {
+            return;
+        }
+        handshakePool.shutdown();
+        try {
+            handshakePool.awaitTermination(Math.min(lTimeoutMillis, iHandshakeTimeoutMillis), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        handshakeDeadlines.shutdownNow();
+    }
+
+    // complete the handshake on the handshake pool, then hand the socket to the executor
+    static void handshake(final SSLSocket clientSocket, final ConnectionExecutor executor) {
+        try {
+            handshakePool.execute(new Runnable() {
+                public void run() {
+                    if (completeHandshake(clientSocket)) {
+                        executor.execute(clientSocket, true);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            ServerMetrics.handshakeFailed();  // pool is full, or stopped by the drain
+            NioConnection.closeQuietly(clientSocket);
+        }
+    }
+
+
+    //*******************
+    //  TLS HELPERS
+    //*******************
+
+    // get the server's SSL context: key store, key managers and session cache (loaded once, by the warm-up or the
+    // listener, whichever comes first)
+    private static synchronized SSLContext getContext(String sKeyStoreFileName, char[] keyStorePass)
+            throws IOException, GeneralSecurityException {
+        if (sslContext != null) {
+            return sslContext;
+        }
+
+        // session tickets are a JDK wide switch -> must be set before the first SSLContext is created
+        String sSessionTickets = ServerOptions.getString(ServerOptions.FLAG_TLS_SESSION_TICKETS, null);
+        if (sSessionTickets != null) {
+            System.setProperty(SESSION_TICKET_PROPERTY, Boolean.toString(Boolean.parseBoolean(sSessionTickets)));
+        }
+
+        // setup params for secure connection
+        KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+        try (InputStream in = new FileInputStream(sKeyStoreFileName)) {
+            ks.load(in, keyStorePass);
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, keyStorePass);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+
+        // keep sessions around so returning clients resume instead of doing a full handshake
+        SSLSessionContext sessionContext = context.getServerSessionContext();
+        sessionContext.setSessionCacheSize(ServerOptions.getInt(ServerOptions.FLAG_TLS_SESSION_CACHE_SIZE,
+                DEFAULT_SESSION_CACHE_SIZE));
+        sessionContext.setSessionTimeout(ServerOptions.getInt(ServerOptions.FLAG_TLS_SESSION_TIMEOUT,
+                DEFAULT_SESSION_TIMEOUT_SECONDS));
+        sslContext = context;
+        return sslContext;
+    }
+
+    // set protocols and cipher suites in preference order (the server's order wins) and offer h2 if bOfferHttp2
+    // -> true if h2 is offered
+    private static boolean configure(SSLParameters parameters, String[] sSupportedProtocols,
+                                     String[] sSupportedCiphers, boolean bOfferHttp2) {
+        parameters.setProtocols(getPreferred(ServerOptions.FLAG_TLS_PROTOCOLS, DEFAULT_PROTOCOLS,
+                sSupportedProtocols));
+        parameters.setCipherSuites(getPreferred(ServerOptions.FLAG_TLS_CIPHERS, DEFAULT_CIPHERS,
+                sSupportedCiphers));
+        parameters.setUseCipherSuitesOrder(true);
+        return bOfferHttp2 && setApplicationProtocols(parameters);
+    }
+
+    // pump records between the two engines until the handshake is done and the client's record arrived
+    private static void handshake(SSLEngine client, SSLEngine server) throws SSLException {
+        int iPacketBytes = Math.max(client.getSession().getPacketBufferSize(),
+                server.getSession().getPacketBufferSize());
+        int iApplicationBytes = Math.max(client.getSession().getApplicationBufferSize(),
+                server.getSession().getApplicationBufferSize());
+        ByteBuffer toServer = ByteBuffer.allocate(2 * iPacketBytes);
+        ByteBuffer toClient = ByteBuffer.allocate(2 * iPacketBytes);
+        ByteBuffer clientInput = ByteBuffer.allocate(2 * iApplicationBytes);
+        ByteBuffer serverInput = ByteBuffer.allocate(2 * iApplicationBytes);
+        ByteBuffer record = ByteBuffer.wrap(WARM_UP_RECORD);
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        client.beginHandshake();
+        server.beginHandshake();
+        for (int i = 0; i < MAX_WARM_UP_STEPS; i++) {
+            // each side writes what it has (the client's record once the handshake is done), then reads
+            client.wrap(record, toServer);
+            server.wrap(empty, toClient);
+            runTasks(client);
+            runTasks(server);
+            toServer.flip();
+            toClient.flip();
+            server.unwrap(toServer, serverInput);
+            client.unwrap(toClient, clientInput);
+            runTasks(client);
+            runTasks(server);
+            toServer.compact();
+            toClient.compact();
+            if (serverInput.position() == WARM_UP_RECORD.length) {
+                return;
+            }
+        }
+        throw new SSLException("warm-up handshake did not finish in " + MAX_WARM_UP_STEPS + " steps");
+    }
+
+    // run the engine's delegated tasks (key exchange, certificate checks) on this thread
+    private static void runTasks(SSLEngine engine) {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    // run the handshake with a deadline for the whole of it (the read timeout alone lets a client that trickles
+    // bytes hold a handshake thread) -> false (socket closed) if it failed or timed out
+    private static boolean completeHandshake(final SSLSocket clientSocket) {
+        long lStartNanos = System.nanoTime();
+        long lStartMillis = System.currentTimeMillis();
+        ScheduledFuture<?> deadline = null;
+        try {
+            deadline = handshakeDeadlines.schedule(new Runnable() {
+                public void run() {
+                    NioConnection.closeQuietly(clientSocket);  // unblocks the handshake read with an IOException
+                }
+            }, iHandshakeTimeoutMillis, TimeUnit.MILLISECONDS);
+            clientSocket.setSoTimeout(iHandshakeTimeoutMillis);
+            clientSocket.startHandshake();
+            clientSocket.setSoTimeout(0);
+            if (!deadline.cancel(false)) {
+                throw new SocketTimeoutException("handshake took over " + iHandshakeTimeoutMillis + " ms");
+            }
+
+            // a resumed session was created by an earlier handshake
+            boolean bResumed = clientSocket.getSession().getCreationTime() < lStartMillis;
+            ServerMetrics.handshakeDone(lStartNanos, bResumed);
+            return true;
+        } catch (IOException | RejectedExecutionException e) {
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            ServerMetrics.handshakeFailed();
+            if (AccessLog.isDebugEnabled()) {
+                AccessLog.debug("TLS handshake with client " + clientSocket.getInetAddress() + " failed: " + e);
+            }
+            NioConnection.closeQuietly(clientSocket);
+            return false;
+        }
+    }
+
+    // offer h2 and http/1.1 through ALPN -> false (HTTP/1.1 only) if this JDK has no ALPN
+    private static boolean setApplicationProtocols(SSLParameters parameters) {
+        try {
+            Method setProtocols = SSLParameters.class.getMethod(APPLICATION_PROTOCOLS_METHOD, String[].class);
+            setProtocols.invoke(parameters, (Object) APPLICATION_PROTOCOLS);
+            return true;
+        } catch (ReflectiveOperationException e) {
+            System.out.println("ALPN needs Java 9 or 8u252 and later -> HTTPS is served as HTTP/1.1 only");
+            return false;
+        }
+    }
+
+    // get the flag's comma separated list (or the defaults) in order, keeping only supported names
+    // -> all supported names if none of them are
+    private static String[] getPreferred(String sFlag, String[] sDefaults, String[] sSupported) {
+        String sValue = ServerOptions.getString(sFlag, null);
+        String[] sWanted = (sValue == null) ? sDefaults : sValue.split(",");
+        List<String> sSupportedList = Arrays.asList(sSupported);
+        List<String> sPreferred = new ArrayList<>();
+        for (String sName : sWanted) {
+            if (sSupportedList.contains(sName.trim()) && !sPreferred.contains(sName.trim())) {
+                sPreferred.add(sName.trim());
+            }
+        }
+        if (sPreferred.isEmpty()) {
+            System.out.println("None of " + Arrays.toString(sWanted) + " are supported, using the JDK defaults");
+            return sSupported;
+        }
+        return sPreferred.toArray(new String[sPreferred.size()]);
+    }
+
+    // create the bounded handshake pool (handshakes are CPU bound -> defaults to two per core)
+    private static ExecutorService newHandshakePool() {
+        int iThreads = Math.max(1, ServerOptions.getInt(ServerOptions.FLAG_TLS_HANDSHAKE_THREADS,
+                Runtime.getRuntime().availableProcessors() * 2));
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, HANDSHAKE_THREAD_NAME + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        return new ThreadPoolExecutor(iThreads, iThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(HANDSHAKE_QUEUE), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    // create the timer for handshake deadlines (cancelled deadlines are dropped at once, not kept until due)
+    private static ScheduledThreadPoolExecutor newDeadlineTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, DEADLINE_THREAD_NAME);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+
+    //**************
+    //  WARM-UP
+    //**************
+
+    // trust manager of the in-memory warm-up client (it only ever talks to this server's own context)
+    private static final class WarmUpTrustManager implements X509TrustManager {
+
+        public void checkClientTrusted(X509Certificate[] chain, String sAuthType) {
+        }
+
+        public void checkServerTrusted(X509Certificate[] chain, String sAuthType) {
+        }
+
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+
+}
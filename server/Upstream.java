@@ -0,0 +1,320 @@
+package server;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Upstream is one server a proxy route forwards to (see ProxyRoutes), with its pool of kept alive connections
+ * Upstream hands out the most recently used idle connection first (the most likely to still be open) and closes
+ *   connections idle longer than --proxyIdleTimeout millis (default 4000, under common keep-alive timeouts) or
+ *   beyond --proxyMaxIdle per upstream (default 32)
+ * Upstream connects within --proxyConnectTimeout millis (default 2000) and waits up to --proxyReadTimeout millis
+ *   (default 30000) on each read
+ * Upstream counts its requests in flight (for least-connections) and is down from a failed connect or health
+ *   check until a health check passes again
+ */
+
+final class Upstream {
+
+    // constants for defaults
+    private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int DEFAULT_READ_TIMEOUT_MILLIS = 30000;
+    private static final int DEFAULT_IDLE_TIMEOUT_MILLIS = 4000;
+    private static final int DEFAULT_MAX_IDLE = 32;
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_STATUS_LINE = 1024;
+
+    // settings (read once from flags)
+    private static final int iConnectTimeoutMillis = ServerOptions.getInt(ServerOptions.FLAG_PROXY_CONNECT_TIMEOUT,
+            DEFAULT_CONNECT_TIMEOUT_MILLIS);
+    private static final int iReadTimeoutMillis = ServerOptions.getInt(ServerOptions.FLAG_PROXY_READ_TIMEOUT,
+            DEFAULT_READ_TIMEOUT_MILLIS);
+    private static final long lIdleNanos = ServerOptions.getInt(ServerOptions.FLAG_PROXY_IDLE_TIMEOUT,
+            DEFAULT_IDLE_TIMEOUT_MILLIS) * 1000000L;
+    private static final int iMaxIdle = ServerOptions.getInt(ServerOptions.FLAG_PROXY_MAX_IDLE, DEFAULT_MAX_IDLE);
+
+    // upstream instance variables
+    private final String sHost;
+    private final int iPort;
+    private final String sAuthority;
+    private final ConcurrentLinkedDeque<Connection> idleConnections = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicInteger activeRequests = new AtomicInteger();
+    private volatile boolean bIsUp = true;
+
+    // upstream constructor
+    Upstream(String sHost, int iPort) {
+        this.sHost = sHost;
+        this.iPort = iPort;
+        this.sAuthority = sHost + ":" + iPort;
+    }
+
+    // parse an upstream in form host:port -> null if it isn't one
+    static Upstream parse(String sAuthority) {
+        int iColon = sAuthority.lastIndexOf(':');
+        if (iColon <= 0) {
+            return null;
+        }
+        try {
+            int iPort = Integer.parseInt(sAuthority.substring(iColon + 1));
+            return (iPort > 0 && iPort < 65536) ? new Upstream(sAuthority.substring(0, iColon), iPort) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // get the host:port of the upstream
+    String getAuthority() {
+        return sAuthority;
+    }
+
+    // check if the upstream is taking requests (last connect and health check went through)
+    boolean isUp() {
+        return bIsUp;
+    }
+
+    // mark the upstream up or down -> the change is reported once
+    void setUp(boolean bIsUp) {
+        if (this.bIsUp != bIsUp) {
+            this.bIsUp = bIsUp;
+            System.out.println("Upstream " + sAuthority + " is " + (bIsUp ? "up" : "down"));
+        }
+    }
+
+    // get the read timeout (also the wait for a request body the client sends through)
+    static int getReadTimeoutMillis() {
+        return iReadTimeoutMillis;
+    }
+
+    // get the count of requests being forwarded to the upstream now
+    int getActiveRequests() {
+        return activeRequests.get();
+    }
+
+    // count a request being forwarded to the upstream (done once it ends)
+    void begin() {
+        activeRequests.incrementAndGet();
+    }
+
+    // uncount a finished request
+    void done() {
+        activeRequests.decrementAndGet();
+    }
+
+
+    //******************
+    //  POOL METHODS
+    //******************
+
+    // get an idle pooled connection, or connect a new one
+    Connection acquire() throws IOException {
+        long lNowNanos = System.nanoTime();
+        Connection connection;
+        while ((connection = idleConnections.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            if (lNowNanos - connection.lIdleSinceNanos < lIdleNanos && !connection.isOutOfStep()) {
+                connection.bIsReused = true;
+                return connection;
+            }
+            connection.close();  // expired, or out of step
+        }
+        return connect();
+    }
+
+    // connect a new connection (also used to retry when a pooled one turns out closed)
+    Connection connect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(sHost, iPort), iConnectTimeoutMillis);
+            socket.setSoTimeout(iReadTimeoutMillis);
+            return new Connection(socket);
+        } catch (IOException e) {
+            NioConnection.closeQuietly(socket);
+            throw e;
+        }
+    }
+
+    // give the connection back once its response was read in full (bIsReusable), otherwise close it
+    void release(Connection connection, boolean bIsReusable) {
+        if (bIsReusable && idleCount.incrementAndGet() <= iMaxIdle) {
+            connection.lIdleSinceNanos = System.nanoTime();
+            idleConnections.offerFirst(connection);
+        } else {
+            if (bIsReusable) {
+                idleCount.decrementAndGet();
+            }
+            connection.close();
+        }
+    }
+
+    // close the connections idle past the timeout (oldest are at the end of the deque)
+    void closeIdle(long lNowNanos) {
+        Iterator<Connection> iterator = idleConnections.descendingIterator();
+        while (iterator.hasNext()) {
+            Connection connection = iterator.next();
+            if (lNowNanos - connection.lIdleSinceNanos >= lIdleNanos && idleConnections.remove(connection)) {
+                idleCount.decrementAndGet();
+                connection.close();
+            }
+        }
+    }
+
+    // check the upstream answers a GET of the path with a status under 500 within the connect timeout (on a
+    // connection of its own)
+    boolean check(String sHealthPath) {
+        Connection connection = null;
+        try {
+            connection = connect();
+            connection.socket.setSoTimeout(iConnectTimeoutMillis);
+            String sRequest = "GET " + sHealthPath + " HTTP/1.1" + ClientThread.END_LINE
+                    + "Host: " + sAuthority + ClientThread.END_LINE
+                    + "Connection: close" + ClientThread.END_LINE + ClientThread.END_LINE;
+            connection.out.write(sRequest.getBytes(StandardCharsets.ISO_8859_1));
+            connection.out.flush();
+
+            // status line: HTTP/1.x SSS reason
+            StringBuilder sStatusLine = new StringBuilder();
+            int b;
+            while ((b = connection.in.read()) >= 0 && b != '\n' && sStatusLine.length() < MAX_STATUS_LINE) {
+                sStatusLine.append((char) b);
+            }
+            String sLine = sStatusLine.toString();
+            if (!sLine.startsWith("HTTP/1.") || sLine.length() < 12) {
+                return false;
+            }
+            int iStatusCode = Integer.parseInt(sLine.substring(9, 12));
+            return iStatusCode < 500;
+        } catch (IOException | NumberFormatException e) {
+            return false;
+        } finally {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+
+    //**************
+    //  CONNECTION
+    //**************
+
+    // one connection to the upstream -> its streams throw UpstreamException, so a failure of the upstream can be
+    // told apart from one of the client while bodies are relayed
+    static final class Connection {
+
+        final InputStream in;
+        final OutputStream out;
+        private final Socket socket;
+        private long lIdleSinceNanos;
+        private boolean bIsReused;
+
+        // connection constructor
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(new UpstreamInput(socket.getInputStream()), BUFFER_SIZE);
+            this.out = new BufferedOutputStream(new UpstreamOutput(socket.getOutputStream()), BUFFER_SIZE);
+        }
+
+        // check if the connection came from the pool (it may have been closed by the upstream since)
+        boolean isReused() {
+            return bIsReused;
+        }
+
+        // check if the idle connection is out of step (bytes arrived while it sat in the pool) -> a connection the
+        // upstream closed meanwhile only shows when it is used (see ReverseProxy's retry)
+        private boolean isOutOfStep() {
+            try {
+                return in.available() > 0;
+            } catch (IOException e) {
+                return true;
+            }
+        }
+
+        // close the socket
+        void close() {
+            NioConnection.closeQuietly(socket);
+        }
+    }
+
+    // a failed read or write on an upstream connection (timeout -> the upstream didn't answer in time)
+    static final class UpstreamException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        // exception constructor
+        UpstreamException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+
+        // check if the upstream took longer than the read timeout
+        boolean isTimeout() {
+            return getCause() instanceof SocketTimeoutException;
+        }
+    }
+
+    // upstream socket input that reports failures as UpstreamException
+    private static final class UpstreamInput extends FilterInputStream {
+
+        // input constructor
+        UpstreamInput(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (IOException e) {
+                throw new UpstreamException(e);
+            }
+        }
+
+        public int read(byte[] bytes, int iOffset, int iLength) throws IOException {
+            try {
+                return super.read(bytes, iOffset, iLength);
+            } catch (IOException e) {
+                throw new UpstreamException(e);
+            }
+        }
+    }
+
+    // upstream socket output that reports failures as UpstreamException
+    private static final class UpstreamOutput extends FilterOutputStream {
+
+        // output constructor
+        UpstreamOutput(OutputStream out) {
+            super(out);
+        }
+
+        public void write(byte[] bytes, int iOffset, int iLength) throws IOException {
+            try {
+                out.write(bytes, iOffset, iLength);
+            } catch (IOException e) {
+                throw new UpstreamException(e);
+            }
+        }
+
+        public void write(int b) throws IOException {
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                throw new UpstreamException(e);
+            }
+        }
+
+        public void flush() throws IOException {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                throw new UpstreamException(e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,252 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.*;
+
+/**
+ * WarmUp gets the server ready before its listeners open when --warmUpAtStart=true (off by default), so the first
+ *   clients after a restart don't pay for the key store, cold caches and interpreted code
+ * WarmUp loads the TLS context once (the listener uses the same one) and runs --warmUpHandshakes in-memory
+ *   handshakes through it (default 50, half of them resumed, see TlsLayer)
+ * WarmUp preloads the hot files into the page cache, FileMetadataCache, ResponseCache and CompressionCache: the
+ *   paths in --warmUpFiles (default ./warmup.list if present, one per line) and the --warmUpTopPaths files most
+ *   often answered with 200 in the previous run's --accessLog (default 50), or the home page if there are none
+ * WarmUp drives --warmUpRequests synthetic requests (default 20000) over the hot files through a RequestParser and
+ *   the status, range, encoding, conditional and header helpers of the response path, so the JIT compiles them
+ * WarmUp touches no socket, so nothing of it shows in the access log, the metrics or the client limits
+ */
+
+final class WarmUp {
+
+    // constants for defaults
+    static final String DEFAULT_HOT_FILES = "./warmup.list";
+    private static final int DEFAULT_TOP_PATHS = 50;
+    private static final int DEFAULT_REQUESTS = 20000;
+    private static final int DEFAULT_HANDSHAKES = 50;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final String COMMENT_START = "#";
+    private static final String HOME_PATH = "/";
+    private static final String ACCEPT_ENCODING = "gzip, deflate";
+    private static final String RANGE = "bytes=0-99";
+
+    // constants for access log request lines: time client scheme method path status bytes latency
+    private static final int LOG_FIELD_COUNT = 8;
+    private static final int LOG_PATH_FIELD = 4;
+    private static final int LOG_STATUS_FIELD = 5;
+    private static final String LOG_STATUS_OK = "200";
+
+    // settings (read once from flags)
+    private static final boolean bEnabled = ServerOptions.getBoolean(ServerOptions.FLAG_WARM_UP, false);
+    private static final int iTopPaths = ServerOptions.getInt(ServerOptions.FLAG_WARM_UP_TOP_PATHS, DEFAULT_TOP_PATHS);
+    private static final int iRequests = ServerOptions.getInt(ServerOptions.FLAG_WARM_UP_REQUESTS, DEFAULT_REQUESTS);
+    private static final int iHandshakes = ServerOptions.getInt(ServerOptions.FLAG_WARM_UP_HANDSHAKES,
+            DEFAULT_HANDSHAKES);
+
+    // no instances - warm-up runs once per process
+    private WarmUp() {
+    }
+
+    // check if the warm-up runs before the listeners open
+    static boolean isEnabled() {
+        return bEnabled;
+    }
+
+    // warm up TLS, the hot files and the request path -> a one line summary for the console
+    static String run(SiteIndex siteIndex, String sKeyStoreFileName, char[] keyStorePass) {
+        long lStartNanos = System.nanoTime();
+
+        // TLS context and handshakes (a broken key store is reported again when the listener loads it)
+        int iHandshakesDone = 0;
+        try {
+            TlsLayer.warmUp(sKeyStoreFileName, keyStorePass, iHandshakes);
+            iHandshakesDone = Math.max(0, iHandshakes);
+        } catch (IOException | GeneralSecurityException e) {
+            System.out.println("There was an error warming up TLS:");
+            System.out.println("  " + e);
+        }
+
+        // hot files: the list first, then the most requested files of the previous run, else the home page
+        Set<String> sHotRequests = new LinkedHashSet<>();
+        for (String sPath : readHotFiles()) {
+            addHotRequest(siteIndex, sPath, sHotRequests);
+        }
+        for (String sPath : readTopPaths()) {
+            addHotRequest(siteIndex, sPath, sHotRequests);
+        }
+        if (sHotRequests.isEmpty()) {
+            addHotRequest(siteIndex, HOME_PATH, sHotRequests);
+        }
+        long lPreloadedBytes = 0;
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        for (String sHTTPRequest : sHotRequests) {
+            lPreloadedBytes += preload(siteIndex, sHTTPRequest, buffer);
+        }
+
+        // synthetic requests over the hot files
+        int iRequestsDone = (sHotRequests.isEmpty()) ? 0 : Math.max(0, iRequests);
+        long lHeaderBytes = drive(siteIndex, new ArrayList<>(sHotRequests), iRequestsDone);
+
+        long lMillis = (System.nanoTime() - lStartNanos) / 1000000;
+        return "done in " + lMillis + " ms: " + iHandshakesDone + " TLS handshakes, " + sHotRequests.size()
+                + " hot files (" + lPreloadedBytes / 1024 + " KB) preloaded, " + iRequestsDone
+                + " synthetic requests (" + lHeaderBytes / 1024 + " KB of headers)";
+    }
+
+
+    //*******************
+    //  HOT FILE HELPERS
+    //*******************
+
+    // read the hot file list -> nothing if the default file is missing, a missing file given by flag is reported
+    private static List<String> readHotFiles() {
+        String sFileName = ServerOptions.getString(ServerOptions.FLAG_WARM_UP_FILES, null);
+        boolean bIsDefaultFile = sFileName == null;
+        File listFile = new File(bIsDefaultFile ? DEFAULT_HOT_FILES : sFileName);
+        List<String> sPaths = new ArrayList<>();
+        if (bIsDefaultFile && !listFile.isFile()) {
+            return sPaths;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(listFile))) {
+            String sLine;
+            while ((sLine = reader.readLine()) != null) {
+                sLine = sLine.trim();
+                if (sLine.startsWith("/")) {
+                    sPaths.add(sLine);  // blank and comment lines are skipped
+                } else if (!sLine.isEmpty() && !sLine.startsWith(COMMENT_START)) {
+                    System.out.println("Skipping hot file (path must start with /): " + sLine);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("There was an error loading the hot file list:");
+            System.out.println("  " + e);
+        }
+        return sPaths;
+    }
+
+    // get the files most often answered with 200 in the access log the previous run wrote -> most requested first
+    private static List<String> readTopPaths() {
+        String sFileName = ServerOptions.getString(ServerOptions.FLAG_ACCESS_LOG, null);
+        if (iTopPaths <= 0 || sFileName == null || !new File(sFileName).isFile()) {
+            return Collections.emptyList();
+        }
+        final Map<String, Integer> counts = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(sFileName))) {
+            String sLine;
+            while ((sLine = reader.readLine()) != null) {
+                String[] sFields = sLine.split(" ");
+                if (sFields.length == LOG_FIELD_COUNT && sFields[LOG_STATUS_FIELD].equals(LOG_STATUS_OK)
+                        && sFields[LOG_PATH_FIELD].startsWith("/")) {
+                    Integer count = counts.get(sFields[LOG_PATH_FIELD]);
+                    counts.put(sFields[LOG_PATH_FIELD], (count == null) ? 1 : count + 1);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("There was an error reading the access log for hot files:");
+            System.out.println("  " + e);
+        }
+        List<String> sPaths = new ArrayList<>(counts.keySet());
+        Collections.sort(sPaths, new Comparator<String>() {
+            public int compare(String sFirst, String sSecond) {
+                return counts.get(sSecond) - counts.get(sFirst);
+            }
+        });
+        return sPaths.subList(0, Math.min(iTopPaths, sPaths.size()));
+    }
+
+    // add the request for a hot path if it is answered with a file (missing, redirected and listed paths are not)
+    private static void addHotRequest(SiteIndex siteIndex, String sPath, Set<String> sHotRequests) {
+        String sHTTPRequest = DirectoryListing.resolveIndex(siteIndex, sPath.toLowerCase());
+        if (ClientThread.getStatusCode(siteIndex, "GET", sHTTPRequest) == 200
+                && !DirectoryListing.isListing(siteIndex, sHTTPRequest)) {
+            sHotRequests.add(sHTTPRequest);
+        }
+    }
+
+    // load the file into the caches the response path uses and read it through the page cache -> bytes read
+    private static long preload(SiteIndex siteIndex, String sHTTPRequest, byte[] buffer) {
+        String sFilePath = ClientThread.getResponse(siteIndex, "GET", sHTTPRequest, 200);
+        FileMetadataCache.get(ClientThread.getFilePath(sHTTPRequest));
+        ResponseCache.get(sHTTPRequest, sFilePath, siteIndex);
+        String sEncoding = CompressionCache.getEncoding(ACCEPT_ENCODING, sHTTPRequest);
+        if (sEncoding != null) {
+            CompressionCache.get(sHTTPRequest, sFilePath, sEncoding, siteIndex);
+        }
+        long lRead = 0;
+        try (InputStream in = new FileInputStream(ClientThread.ROOT_FOLDER.toString() + "/" + sFilePath)) {
+            int iRead;
+            while ((iRead = in.read(buffer)) > 0) {
+                lRead += iRead;
+            }
+        } catch (IOException e) {
+            System.out.println("There was an error preloading " + sHTTPRequest + ":");
+            System.out.println("  " + e);
+        }
+        return lRead;
+    }
+
+
+    //***************************
+    //  SYNTHETIC REQUEST HELPERS
+    //***************************
+
+    // parse and dispatch the synthetic requests in turn over the hot files (GET with Accept-Encoding, HTTP/1.0 HEAD,
+    // conditional GET and Range GET of each) -> bytes of the headers worked out
+    private static long drive(SiteIndex siteIndex, List<String> sHotRequests, int iCount) {
+        if (iCount == 0) {
+            return 0;
+        }
+        List<byte[]> requests = new ArrayList<>();
+        for (String sHTTPRequest : sHotRequests) {
+            FileMetadataCache.Metadata fileMetadata = FileMetadataCache.get(ClientThread.getFilePath(sHTTPRequest));
+            String sETag = (fileMetadata == null) ? "\"none\"" : fileMetadata.getETag(null);
+            requests.add(getRequest("GET " + sHTTPRequest + " HTTP/1.1", "Accept-Encoding: " + ACCEPT_ENCODING));
+            requests.add(getRequest("HEAD " + sHTTPRequest + " HTTP/1.0", "Connection: close"));
+            requests.add(getRequest("GET " + sHTTPRequest + " HTTP/1.1", "If-None-Match: " + sETag));
+            requests.add(getRequest("GET " + sHTTPRequest + " HTTP/1.1", "Range: " + RANGE));
+        }
+
+        RequestParser requestParser = new RequestParser();
+        long lHeaderBytes = 0;
+        for (int i = 0; i < iCount; i++) {
+            try {
+                requestParser.read(new ByteArrayInputStream(requests.get(i % requests.size())));
+            } catch (IOException e) {
+                return lHeaderBytes;  // in-memory stream -> never
+            }
+            if (requestParser.parse() == RequestParser.REQUEST_READY) {
+                lHeaderBytes += dispatch(siteIndex, requestParser).length();
+            }
+        }
+        return lHeaderBytes;
+    }
+
+    // get the bytes of a request with the request line and one header line
+    private static byte[] getRequest(String sRequestLine, String sHeaderLine) {
+        return (sRequestLine + ClientThread.END_LINE + "Host: warm-up" + ClientThread.END_LINE + sHeaderLine
+                + ClientThread.END_LINE + ClientThread.END_LINE).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // work out the status and header for the parsed request the way ClientThread does (nothing is sent)
+    private static String dispatch(SiteIndex siteIndex, RequestParser requestParser) {
+        String sHTTPMethod = requestParser.getMethod();
+        String sHTTPRequest = DirectoryListing.resolveIndex(siteIndex, requestParser.getTarget());
+        int iStatusCode = ClientThread.getStatusCode(siteIndex, sHTTPMethod, sHTTPRequest);
+        ByteRanges ranges = ClientThread.getRanges(iStatusCode, sHTTPMethod, sHTTPRequest,
+                requestParser.getHeader(RequestParser.HEADER_RANGE),
+                requestParser.getHeader(RequestParser.HEADER_IF_RANGE));
+        String sContentEncoding = (iStatusCode != 200 || ranges != null) ? null : CompressionCache.getEncoding(
+                requestParser.getHeader(RequestParser.HEADER_ACCEPT_ENCODING), sHTTPRequest);
+        iStatusCode = ClientThread.getConditionalStatusCode(iStatusCode, sHTTPRequest, sContentEncoding,
+                requestParser.getHeader(RequestParser.HEADER_IF_NONE_MATCH),
+                requestParser.getHeader(RequestParser.HEADER_IF_MODIFIED_SINCE));
+        if (iStatusCode == 200 && ranges != null) {
+            iStatusCode = ranges.getStatusCode();
+        }
+        String sResponse = ClientThread.getResponse(siteIndex, sHTTPMethod, sHTTPRequest, iStatusCode);
+        return ClientThread.getHeader(sHTTPRequest, iStatusCode, sResponse, sResponse.length(),
+                (iStatusCode == 304) ? sContentEncoding : null, requestParser.isPersistentConnection(), false);
+    }
+
+}
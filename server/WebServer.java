@@ -1,16 +1,36 @@
 package server;
 
 import javax.net.ssl.*;
+import java.lang.management.ManagementFactory;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.io.*;
-import java.security.KeyStore;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * WebServer serves files based in ./www directory
  * WebServer requires ports to be supplied for standard HTTP and secure HTTPS requests
+ * WebServer accepts optional --name=value flags (see ServerOptions), e.g. --executor=pool|virtual
+ * WebServer serves HTTP with a thread per connection, or with --engine=nio on selector event loops (see SelectorServer)
  * WebServer client requests must match Server name and a valid port
  * WebServer supports GET and HEAD requests and limited MIME types (see constants in ClientThread class)
  * WebServer redirects based on URLs listed in /www/redirect.defs
+ * WebServer indexes ./www once at startup and reloads the index when files change (see SiteIndex)
+ * WebServer logs requests asynchronously to the console or --accessLog=<file> (see AccessLog)
+ * WebServer resumes TLS sessions and finishes handshakes off the worker threads (see TlsLayer)
+ * WebServer accepts port 0 for an ephemeral port and reports the bound ports (see awaitBoundPort), so it can
+ *   be started in-process by the load driver and benchmarks
+ * WebServer can accept on several SO_REUSEPORT sockets per port and tunes accepted sockets (see ListenerOptions)
+ * WebServer times out slow and idle connections and caps keep-alive requests and open connections
+ *   (see ConnectionLimits)
+ * WebServer drains its connections before it exits on SIGTERM / SIGINT and can hand its ports to a new process
+ *   (see ServerLifecycle)
+ * WebServer forwards requests under the path prefixes in proxy.defs to pools of upstream servers (see ProxyRoutes)
+ * WebServer can warm up TLS, the hot files and the request path before its listeners open, and reports how long
+ *   after JVM start it was ready (see WarmUp)
  */
 
 public class WebServer {
@@ -23,78 +43,197 @@ public class WebServer {
     private static final int FLAG_SSL_PORT_MIN_LENGTH = FLAG_SSL_PORT.length() + 1;
 
     // constants for keystore info
-    private static final String KEY_STORE_FILE_NAME = "server.jks";
-    private static final char[] KEY_STORE_PASS = "mpcs54001".toCharArray();
+    static final String KEY_STORE_FILE_NAME = "server.jks";
+    static final char[] KEY_STORE_PASS = "mpcs54001".toCharArray();
+
+    // constants for acceptor threads
+    private static final String ACCEPTOR_THREAD_NAME = "acceptor-";
+    private static final String SSL_ACCEPTOR_THREAD_NAME = "ssl-acceptor-";
+
+    // ports the listeners bound (differ from the flags when those are 0)
+    private static final CountDownLatch serverPortBound = new CountDownLatch(1);
+    private static final CountDownLatch sslPortBound = new CountDownLatch(1);
+    private static volatile int iBoundServerPort;
+    private static volatile int iBoundSSLPort;
 
     // main method to run program
     public static void main(String args[]) {
+        // split the required port flags from the optional flags
+        List<String> sPortArgs = new ArrayList<>();
+        List<String> sOptionArgs = new ArrayList<>();
+        for (String sArg : args) {
+            if (isFlagWithServerPort(sArg) || isFlagWithSSLPort(sArg)) {
+                sPortArgs.add(sArg);
+            } else {
+                sOptionArgs.add(sArg);
+            }
+        }
+        String[] sPorts = sPortArgs.toArray(new String[sPortArgs.size()]);
+
         // check if user entered input with correct format
-        if (args.length != REQUIRED_FLAG_COUNT || !hasServerPortAndSSLPort(args)) {
+        if (sPorts.length != REQUIRED_FLAG_COUNT || !hasServerPortAndSSLPort(sPorts)
+                || !ServerOptions.parse(sOptionArgs)) {
             System.err.println("Usage: java ServerDriver " + FLAG_SERVER_PORT + "<port number> "
-                + FLAG_SSL_PORT + "<port number>");
+                + FLAG_SSL_PORT + "<port number>" + ServerOptions.getUsage());
             System.exit(1);
         }
 
         // assign portNumber from user input
-        final int iServerPort = getPortFromInput(args, FLAG_SERVER_PORT);
-        final int iSSLPort = getPortFromInput(args, FLAG_SSL_PORT);
+        final int iServerPort = getPortFromInput(sPorts, FLAG_SERVER_PORT);
+        final int iSSLPort = getPortFromInput(sPorts, FLAG_SSL_PORT);
+
+        // start the access log writer before any client can connect
+        AccessLog.start();
+
+        // create the executor that runs each client connection
+        final ConnectionExecutor executor;
+        try {
+            executor = ConnectionExecutor.create(ServerOptions.getString(ServerOptions.FLAG_EXECUTOR,
+                    ConnectionExecutor.MODE_THREAD));
+        } catch (IllegalArgumentException e) {
+            System.err.println("There was an error creating the connection executor:");
+            System.err.println("  " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        System.out.println("Connection executor: " + executor.getDescription());
+
+        // build the shared site index once, then keep it current as ./www changes
+        SiteIndex siteIndex = SiteIndex.reload();
+        System.out.println("Site index built: " + siteIndex.getFileCount() + " files, "
+                + siteIndex.getRedirectCount() + " redirects, " + MimeTypes.getExtensionCount() + " file types");
+        SiteIndex.startWatcher();
+
+        // proxy routes to upstream servers, checked in the background from here on
+        System.out.println("Proxy routes: " + ProxyRoutes.getRouteCount());
+        for (ProxyRoutes.Route route : ProxyRoutes.getRoutes()) {
+            System.out.println("  " + route.getDescription());
+        }
+        ProxyRoutes.startHealthChecks();
+
+        // drain open connections on SIGTERM / SIGINT instead of cutting them off
+        ServerLifecycle.installShutdownHook();
+
+        // warm up before the listeners open, so the first clients don't pay for cold caches and code (optional)
+        if (WarmUp.isEnabled()) {
+            System.out.println("Warm-up " + WarmUp.run(siteIndex, KEY_STORE_FILE_NAME, KEY_STORE_PASS));
+        }
 
         // start independent threads to listen on standard & ssl sockets
-        startServerSocketThread(iServerPort);
-        startSSLSocketThread(iSSLPort);
+        String sEngine = ServerOptions.getString(ServerOptions.FLAG_ENGINE, SelectorServer.ENGINE_THREAD);
+        if (sEngine.equalsIgnoreCase(SelectorServer.ENGINE_NIO)) {
+            if (ProxyRoutes.getRouteCount() > 0) {
+                System.out.println("Proxy routes are answered with 501 on the NIO port (HTTPS still forwards them)");
+            }
+            SelectorServer.start(iServerPort);
+        } else {
+            startServerSocketThread(iServerPort, executor);
+        }
+        startSSLSocketThread(iSSLPort, executor);
+        System.out.println("Ready in " + ManagementFactory.getRuntimeMXBean().getUptime() + " ms after JVM start");
     }
 
-    // start the standard socket thread to listen
-    private static void startServerSocketThread(final int iServerPort) {
+    // start the standard socket threads to listen (one per acceptor, see ListenerOptions)
+    private static void startServerSocketThread(final int iServerPort, final ConnectionExecutor executor) {
         final boolean bIsSecure = false;
-        new Thread() {
-            public void run() {
-                try {
-                    // create the socket
-                    ServerSocket serverSocket = new ServerSocket(iServerPort);
-                    System.out.println("Ramon's Killer (unsecure) Server waiting for client on port " + iServerPort);
-
-                    // loop to listen -> start a new ClientThread if socket accepts & binds with new client
-                    while (true) {
-                        new ClientThread(serverSocket.accept(), bIsSecure).start();
+        final ServerSocket[] serverSockets;
+        try {
+            // create the sockets (from channels so ClientThread can send files with transferTo)
+            serverSockets = ListenerOptions.open(iServerPort, ListenerOptions.CHANNEL_OPENER);
+            for (ServerSocket serverSocket : serverSockets) {
+                ServerLifecycle.addListener(serverSocket);
+            }
+            listenerBound(bIsSecure, serverSockets[0].getLocalPort());
+            System.out.println("Ramon's Killer (unsecure) Server waiting for client on port "
+                    + serverSockets[0].getLocalPort() + " with " + ListenerOptions.getDescription(serverSockets));
+        } catch (IOException e) {
+            System.out.println("There was an error setting up the (unsecure) server socket:");
+            System.out.println("  " + e);
+            return;
+        }
+
+        for (int i = 0; i < serverSockets.length; i++) {
+            final ServerSocketChannel serverChannel = serverSockets[i].getChannel();
+            new Thread(ACCEPTOR_THREAD_NAME + (i + 1)) {
+                public void run() {
+                    try {
+                        // loop to listen -> hand a new ClientThread to the executor if socket accepts & binds with new client
+                        while (true) {
+                            Socket clientSocket = serverChannel.accept().socket();
+                            ListenerOptions.configure(clientSocket);
+                            executor.execute(clientSocket, bIsSecure);
+                        }
+                    } catch (IOException e) {
+                        if (!ServerLifecycle.isDraining()) {
+                            System.out.println("There was an error accepting on the (unsecure) server socket:");
+                            System.out.println("  " + e);
+                        }
                     }
-                } catch (IOException e) {
-                    System.out.println("There was an error setting up the (unsecure) server socket:");
-                    System.out.println("  " + e);
                 }
-            }
-        }.start();
+            }.start();
+        }
     }
 
-    // start the SSL socket thread to listen
-    private static void startSSLSocketThread(final int iSSLPort) {
-        final boolean bIsSecure = true;
-        new Thread() {
-            public void run() {
-                try {
-                    // setup params for secure connection
-                    KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
-                    ks.load(new FileInputStream(KEY_STORE_FILE_NAME), KEY_STORE_PASS);
-                    KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-                    kmf.init(ks, KEY_STORE_PASS);
-                    SSLContext sslContext = SSLContext.getInstance("TLS");
-                    sslContext.init(kmf.getKeyManagers(), null, null);
-
-                    // create the secure socket
-                    SSLServerSocketFactory ssf = sslContext.getServerSocketFactory();
-                    SSLServerSocket sslServer = (SSLServerSocket) ssf.createServerSocket(iSSLPort);
-                    System.out.println("Ramon's Killer (SECURE) Server waiting for client on port " + iSSLPort);
-
-                    // loop to listen -> start a new ClientThread if socket accepts & binds with new client
-                    while (true) {
-                        new ClientThread(sslServer.accept(), bIsSecure).start();
+    // start the SSL socket threads to listen (one per acceptor, see ListenerOptions)
+    private static void startSSLSocketThread(final int iSSLPort, final ConnectionExecutor executor) {
+        final SSLServerSocket[] sslServers;
+        try {
+            // create the secure sockets (session cache, protocols and ciphers from the --tls* flags)
+            sslServers = TlsLayer.createServerSockets(iSSLPort, KEY_STORE_FILE_NAME, KEY_STORE_PASS);
+            for (SSLServerSocket sslServer : sslServers) {
+                ServerLifecycle.addListener(sslServer);
+            }
+            listenerBound(true, sslServers[0].getLocalPort());
+            System.out.println("Ramon's Killer (SECURE) Server waiting for client on port "
+                    + sslServers[0].getLocalPort() + " with " + TlsLayer.getDescription(sslServers[0]) + ", "
+                    + ListenerOptions.getDescription(sslServers));
+        } catch (Exception e) {
+            System.out.println("There was an error setting up the (SECURE) ssl socket:");
+            System.out.println("  " + e);
+            return;
+        }
+
+        for (int i = 0; i < sslServers.length; i++) {
+            final SSLServerSocket sslServer = sslServers[i];
+            new Thread(SSL_ACCEPTOR_THREAD_NAME + (i + 1)) {
+                public void run() {
+                    try {
+                        // loop to listen -> handshake on the TLS pool, then hand a new ClientThread to the executor
+                        while (true) {
+                            SSLSocket clientSocket = (SSLSocket) sslServer.accept();
+                            ListenerOptions.configure(clientSocket);
+                            TlsLayer.handshake(clientSocket, executor);
+                        }
+                    } catch (IOException e) {
+                        if (!ServerLifecycle.isDraining()) {
+                            System.out.println("There was an error accepting on the (SECURE) ssl socket:");
+                            System.out.println("  " + e);
+                        }
                     }
-                } catch (Exception e) {
-                    System.out.println("There was an error setting up the (SECURE) ssl socket:");
-                    System.out.println("  " + e);
                 }
-            }
-        }.start();
+            }.start();
+        }
+    }
+
+
+    // record the port a listener bound
+    static void listenerBound(boolean bIsSecure, int iPort) {
+        if (bIsSecure) {
+            iBoundSSLPort = iPort;
+            sslPortBound.countDown();
+        } else {
+            iBoundServerPort = iPort;
+            serverPortBound.countDown();
+        }
+    }
+
+    // wait for a listener to bind -> its port, or -1 if it did not bind in time
+    static int awaitBoundPort(boolean bIsSecure, long lTimeoutMillis) throws InterruptedException {
+        CountDownLatch bound = bIsSecure ? sslPortBound : serverPortBound;
+        if (!bound.await(lTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            return -1;
+        }
+        return bIsSecure ? iBoundSSLPort : iBoundServerPort;
     }
 
 
@@ -119,7 +258,7 @@ public class WebServer {
 
         // get the flag label and port number as strings
         String sFlagLabel = sUserInput.substring(0, FLAG_SERVER_PORT.length());
-        String sPort = sUserInput.substring(FLAG_SERVER_PORT_MIN_LENGTH);
+        String sPort = sUserInput.substring(FLAG_SERVER_PORT.length());
 
         // check that the flag label matches expected form and that port is a number
         return isServerFlagLabel(sFlagLabel) && isInteger(sPort);
@@ -133,7 +272,7 @@ public class WebServer {
 
         // get the flag label and port number as strings
         String sFlagLabel = sUserInput.substring(0, FLAG_SSL_PORT.length());
-        String sPort = sUserInput.substring(FLAG_SSL_PORT_MIN_LENGTH);
+        String sPort = sUserInput.substring(FLAG_SSL_PORT.length());
 
         // check that the flag label matches expected form and that port is a number
         return isSSLFlagLabel(sFlagLabel) && isInteger(sPort);